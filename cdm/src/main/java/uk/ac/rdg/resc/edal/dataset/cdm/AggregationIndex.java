@@ -0,0 +1,482 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ucar.ma2.Array;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+import ucar.nc2.time.CalendarDateUnit;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.util.AtomicFile;
+
+/**
+ * An index of the files making up a multi-file (glob) aggregation. For each
+ * file this records its path, size, modification time, and the first time
+ * and number of values on its time axis.
+ *
+ * This allows the files to be sorted into time order and the aggregation NcML
+ * to be generated without opening every file. Entries are validated against
+ * the size and modification time of each file, so only files which are new or
+ * have changed need to be opened. The index is stored on disk (if a working
+ * directory is available) so that it persists between restarts.
+ *
+ * If the time axis of any file cannot be read, the files are sorted by path
+ * instead, and the aggregation is left to find the length of that file's time
+ * axis itself.
+ *
+ * @author agent
+ */
+final class AggregationIndex {
+    private static final Logger log = LoggerFactory.getLogger(AggregationIndex.class);
+
+    /* Increment this if the format of the serialised index changes */
+    private static final int INDEX_VERSION = 2;
+    /* The number of time values recorded for files whose time axis is unreadable */
+    private static final int UNKNOWN_COORDS = -1;
+
+    private final String location;
+    private final File indexFile;
+
+    /* The name of the time dimension along which the files are joined */
+    private String timeDimName = null;
+    /* Index entries, keyed by absolute path */
+    private Map<String, FileEntry> entries = new HashMap<String, FileEntry>();
+
+    /* The NcML generated for the current set of files */
+    private String ncml = null;
+    /* The list of files which was used to generate the NcML */
+    private List<File> ncmlFiles = null;
+    /* The number of time values in each file in the NcML, in time order */
+    private LinkedHashMap<String, Integer> ncmlLayout = null;
+
+    /**
+     * Creates an index for the given location, reading any existing index
+     * from disk
+     *
+     * @param location
+     *            The glob expression which this index represents
+     * @param indexDir
+     *            The directory in which to store the index, or
+     *            <code>null</code> if it should only be held in memory
+     */
+    AggregationIndex(String location, File indexDir) {
+        this.location = location;
+        if (indexDir != null) {
+            indexFile = new File(indexDir, "aggregation-"
+                    + Integer.toHexString(location.hashCode()) + ".index.ser");
+            readIndex();
+        } else {
+            indexFile = null;
+        }
+    }
+
+    /**
+     * Gets the NcML which aggregates the given files, updating the index for
+     * any files which have been added, removed or modified.
+     *
+     * @param files
+     *            The files to aggregate (the expansion of the glob expression)
+     * @return An NcML string which aggregates the given files along their
+     *         time dimension
+     * @throws EdalException
+     *             If the files cannot be aggregated
+     */
+    synchronized String getNcml(List<File> files) throws EdalException {
+        if (ncml != null && files.equals(ncmlFiles) && !anyModified(files)) {
+            return ncml;
+        }
+        List<FileEntry> sortedEntries = update(files);
+
+        StringBuilder ncmlBuilder = new StringBuilder();
+        ncmlBuilder
+                .append("<netcdf xmlns=\"http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2\">");
+        ncmlBuilder.append("<aggregation dimName=\"" + escapeAttribute(timeDimName) + "\" type=\"joinExisting\">");
+        LinkedHashMap<String, Integer> layout = new LinkedHashMap<String, Integer>();
+        for (FileEntry entry : sortedEntries) {
+            ncmlBuilder.append("<netcdf location=\"" + escapeAttribute(entry.path) + "\"");
+            if (entry.nCoords != UNKNOWN_COORDS) {
+                /*
+                 * Specifying the number of time coordinates means that the
+                 * aggregation does not need to open every file to find out its
+                 * size
+                 */
+                ncmlBuilder.append(" ncoords=\"" + entry.nCoords + "\"");
+            } else {
+                layout = null;
+            }
+            ncmlBuilder.append("/>");
+            if (layout != null) {
+                layout.put(entry.path, entry.nCoords);
+            }
+        }
+        ncmlBuilder.append("</aggregation>");
+        ncmlBuilder.append("</netcdf>");
+
+        ncml = ncmlBuilder.toString();
+        ncmlFiles = new ArrayList<File>(files);
+        ncmlLayout = layout;
+        return ncml;
+    }
+
+    /**
+     * Gets the layout of the aggregation along its time dimension. To ensure
+     * that this matches a particular NcML aggregation, callers should hold
+     * the lock on this index whilst calling {@link #getNcml(List)} and this
+     * method.
+     * 
+     * @return The absolute paths of the files in the NcML most recently
+     *         returned by {@link #getNcml(List)}, in time order, mapped to the
+     *         number of time values in each. This is <code>null</code> if no
+     *         NcML has been generated, or if the time axis of any of its files
+     *         could not be read.
+     */
+    synchronized Map<String, Integer> getLayout() {
+        return ncmlLayout == null ? null : Collections.unmodifiableMap(ncmlLayout);
+    }
+
+    /**
+     * Brings the index up-to-date with the given list of files.
+     *
+     * @return The entries for the given files, sorted into time order
+     */
+    private List<FileEntry> update(List<File> files) throws EdalException {
+        boolean changed = false;
+        Map<String, FileEntry> newEntries = new HashMap<String, FileEntry>();
+        for (File file : files) {
+            String path = file.getAbsolutePath();
+            FileEntry entry = entries.get(path);
+            if (entry == null || !entry.isValidFor(file)) {
+                entry = indexFile(file);
+                changed = true;
+            }
+            newEntries.put(path, entry);
+        }
+        if (newEntries.size() != entries.size()) {
+            /* Some files have been removed */
+            changed = true;
+        }
+        entries = newEntries;
+        if (timeDimName == null) {
+            throw new EdalException("Cannot join multiple files without time dimensions");
+        }
+        if (changed) {
+            writeIndex();
+        }
+
+        List<FileEntry> sortedEntries = new ArrayList<FileEntry>(entries.values());
+        for (FileEntry entry : sortedEntries) {
+            if (Double.isNaN(entry.startTime)) {
+                /*
+                 * We don't know where this file lies in time. Sort
+                 * alphanumerically by path and hope for the best. If the
+                 * error is a genuine problem, it'll show up as soon as we try
+                 * and aggregate.
+                 */
+                log.warn("Cannot read the time axis of " + entry.path + ", so the files in "
+                        + location + " will be aggregated in order of their paths");
+                Collections.sort(sortedEntries, new Comparator<FileEntry>() {
+                    @Override
+                    public int compare(FileEntry entry1, FileEntry entry2) {
+                        return entry1.path.compareTo(entry2.path);
+                    }
+                });
+                return sortedEntries;
+            }
+        }
+        /*
+         * We can't assume that the glob expression will have returned the
+         * files in time order, or that alphabetical == time ordered, so sort
+         * on the start time of each file.
+         */
+        Collections.sort(sortedEntries, new Comparator<FileEntry>() {
+            @Override
+            public int compare(FileEntry entry1, FileEntry entry2) {
+                int comp = Double.compare(entry1.startTime, entry2.startTime);
+                if (comp == 0) {
+                    comp = entry1.path.compareTo(entry2.path);
+                }
+                return comp;
+            }
+        });
+        return sortedEntries;
+    }
+
+    /**
+     * Opens a file and reads the information needed for its index entry. If
+     * its time axis cannot be read, the entry records that its start time and
+     * number of time values are unknown.
+     */
+    private FileEntry indexFile(File file) throws EdalException {
+        String path = file.getAbsolutePath();
+        /*
+         * Take the size and modification time before opening the file, so that
+         * if it is modified while we read it, the entry will be invalid next
+         * time.
+         */
+        long size = file.length();
+        long lastModified = file.lastModified();
+        NetcdfFile nc = null;
+        try {
+            nc = NetcdfFile.open(path);
+            if (timeDimName == null) {
+                timeDimName = findTimeDimensionName(nc);
+                if (timeDimName == null) {
+                    throw new EdalException("Cannot join multiple files without time dimensions");
+                }
+            }
+            Variable timeVar = nc.findVariable(timeDimName);
+            if (timeVar == null) {
+                log.warn("The file " + path + " has no time variable called " + timeDimName);
+                return new FileEntry(path, size, lastModified, UNKNOWN_COORDS, Double.NaN);
+            }
+            Array timeVals = timeVar.read();
+            int nCoords = (int) timeVals.getSize();
+            if (nCoords == 0) {
+                log.warn("The file " + path + " has an empty time axis");
+                return new FileEntry(path, size, lastModified, UNKNOWN_COORDS, Double.NaN);
+            }
+            Attribute unitsAttr = timeVar.findAttributeIgnoreCase("units");
+            String units = unitsAttr == null ? null : unitsAttr.getStringValue();
+            Attribute calendarAttr = timeVar.findAttributeIgnoreCase("calendar");
+            String calendar = calendarAttr == null ? null : calendarAttr.getStringValue();
+            double startTime = toSortableTime(timeVals.getDouble(0), units, calendar);
+            return new FileEntry(path, size, lastModified, nCoords, startTime);
+        } catch (IOException e) {
+            log.warn("Problem reading time axis of " + path, e);
+            return new FileEntry(path, size, lastModified, UNKNOWN_COORDS, Double.NaN);
+        } finally {
+            if (nc != null) {
+                try {
+                    nc.close();
+                } catch (IOException e) {
+                    log.error("Problem closing netcdf file", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts a time coordinate to milliseconds since the epoch, so that
+     * files with different time units can be compared. If the units cannot be
+     * parsed, the raw value is used.
+     */
+    private static double toSortableTime(double value, String units, String calendar) {
+        if (units != null) {
+            try {
+                return CalendarDateUnit.of(calendar, units).makeCalendarDate(value).getMillis();
+            } catch (Exception e) {
+                /*
+                 * The units are not parseable. Fall back to the raw value,
+                 * which will still sort correctly if all files share units
+                 */
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Finds the name of the time dimension in the given file. This is the
+     * dimension of the coordinate variable which has units of the form
+     * "[units] since [date]"
+     */
+    private static String findTimeDimensionName(NetcdfFile nc) {
+        for (Variable var : nc.getVariables()) {
+            if (var.isCoordinateVariable()) {
+                for (Attribute attr : var.getAttributes()) {
+                    if (attr.getFullName().equalsIgnoreCase("units") && attr.isString()
+                            && attr.getStringValue().contains(" since ")) {
+                        /*
+                         * This is the time dimension. Since this is a
+                         * co-ordinate variable, there is only 1 dimension
+                         */
+                        return var.getDimension(0).getFullName();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Escapes a value for use in a double-quoted XML attribute. File paths may
+     * legitimately contain characters such as '&amp;' which would otherwise
+     * produce invalid NcML.
+     */
+    static String escapeAttribute(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '&':
+                escaped.append("&amp;");
+                break;
+            case '<':
+                escaped.append("&lt;");
+                break;
+            case '>':
+                escaped.append("&gt;");
+                break;
+            case '"':
+                escaped.append("&quot;");
+                break;
+            case '\'':
+                escaped.append("&apos;");
+                break;
+            default:
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private boolean anyModified(List<File> files) {
+        for (File file : files) {
+            FileEntry entry = entries.get(file.getAbsolutePath());
+            if (entry == null || !entry.isValidFor(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readIndex() {
+        if (!indexFile.exists()) {
+            return;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            int version = in.readInt();
+            String indexedLocation = (String) in.readObject();
+            if (version != INDEX_VERSION || !location.equals(indexedLocation)) {
+                /*
+                 * Either an old format, or a hash collision with another
+                 * location. Either way we just re-index.
+                 */
+                return;
+            }
+            timeDimName = (String) in.readObject();
+            entries = (Map<String, FileEntry>) in.readObject();
+            log.debug("Read aggregation index of " + entries.size() + " files for " + location);
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            /*
+             * Not a big problem - we will just recreate the index.
+             */
+            log.warn("Problem reading aggregation index for " + location, e);
+            timeDimName = null;
+            entries = new HashMap<String, FileEntry>();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.error("Problem closing aggregation index file", e);
+                }
+            }
+        }
+    }
+
+    private void writeIndex() {
+        if (indexFile == null) {
+            return;
+        }
+        try {
+            /* A partially written index is never read */
+            AtomicFile.write(indexFile, new AtomicFile.Writer() {
+                @Override
+                public void writeTo(OutputStream os) throws IOException {
+                    ObjectOutputStream out = new ObjectOutputStream(os);
+                    out.writeInt(INDEX_VERSION);
+                    out.writeObject(location);
+                    out.writeObject(timeDimName);
+                    out.writeObject(entries);
+                    out.close();
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Problem writing aggregation index for " + location, e);
+        }
+    }
+
+    /**
+     * The index entry for a single file
+     */
+    private static final class FileEntry implements Serializable {
+        private static final long serialVersionUID = 2L;
+
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        /* The number of values on the time axis, or UNKNOWN_COORDS */
+        private final int nCoords;
+        /*
+         * The first time in the file, in milliseconds since the epoch where
+         * possible, or NaN if unknown. This is only used to sort the files.
+         */
+        private final double startTime;
+
+        public FileEntry(String path, long size, long lastModified, int nCoords,
+                double startTime) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.nCoords = nCoords;
+            this.startTime = startTime;
+        }
+
+        /**
+         * @return Whether this entry is still valid for the given file. This
+         *         only checks the size and modification time, so is cheap
+         */
+        private boolean isValidFor(File file) {
+            return file.length() == size && file.lastModified() == lastModified;
+        }
+    }
+}
@@ -29,20 +29,25 @@
 package uk.ac.rdg.resc.edal.dataset.cdm;
 
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import ucar.ma2.Array;
-import ucar.ma2.Index;
 import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
 import ucar.nc2.Variable;
 import ucar.nc2.dataset.NetcdfDataset.Enhance;
 import ucar.nc2.dataset.VariableDS;
 import ucar.nc2.dt.GridDataset;
 import ucar.nc2.dt.GridDatatype;
 import uk.ac.rdg.resc.edal.dataset.GridDataSource;
+import uk.ac.rdg.resc.edal.dataset.StridedGridDataSource;
 import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
 import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.FloatArray4D;
 
 /**
  * Implementation of {@link GridDataSource} using the Unidata Common Data Model
@@ -51,12 +56,19 @@ import uk.ac.rdg.resc.edal.util.Array4D;
  * @author Jon
  * @author Guy
  */
-final class CdmGridDataSource implements GridDataSource {
+final class CdmGridDataSource implements StridedGridDataSource {
     /*
      * Note that this is the CDM GridDataset, not the EDAL one
      */
     private final GridDataset gridDataset;
 
+    /*
+     * Information needed to decode each variable, calculated once per variable.
+     * Instances of this class are not used by more than one thread at once, so
+     * this does not need to be synchronised.
+     */
+    private final Map<String, VariableDecoder> decoders = new HashMap<String, VariableDecoder>();
+
     public CdmGridDataSource(GridDataset gridDataset) {
         this.gridDataset = gridDataset;
     }
@@ -64,11 +76,19 @@ final class CdmGridDataSource implements GridDataSource {
     @Override
     public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
             int ymin, int ymax, int xmin, int xmax) throws IOException, DataReadingException {
+        return read(variableId, tmin, tmax, zmin, zmax, ymin, ymax, 1, xmin, xmax, 1);
+    }
+
+    @Override
+    public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+            int ymin, int ymax, int ystride, int xmin, int xmax, int xstride)
+            throws IOException, DataReadingException {
 
         /*
          * Get hold of the variable from which we want to read data
          */
-        GridDatatype gridDatatype = gridDataset.findGridDatatype(variableId);
+        VariableDecoder decoder = getDecoder(variableId);
+        GridDatatype gridDatatype = decoder.gridDatatype;
         VariableDS var = gridDatatype.getVariable();
 
         /*
@@ -86,8 +106,8 @@ final class CdmGridDataSource implements GridDataSource {
          */
         rangesList.setTRange(tmin, tmax);
         rangesList.setZRange(zmin, zmax);
-        rangesList.setYRange(ymin, ymax);
-        rangesList.setXRange(xmin, xmax);
+        rangesList.setYRange(ymin, ymax, ystride);
+        rangesList.setXRange(xmin, xmax, xstride);
 
         final Array arr;
         Variable origVar = var.getOriginalVariable();
@@ -108,30 +128,68 @@ final class CdmGridDataSource implements GridDataSource {
         }
 
         /*
-         * Decide whether or not we need to enhance any data values we read from
-         * this array
+         * Convert the whole array into a float array in (t,z,y,x) order in a
+         * single pass
          */
-        final boolean needsEnhance;
-        Set<Enhance> enhanceMode = var.getEnhanceMode();
-        if (enhanceMode.contains(Enhance.ScaleMissingDefer)) {
-            /* Values read from the array are not enhanced, but need to be */
-            needsEnhance = true;
-        } else if (enhanceMode.contains(Enhance.ScaleMissing)) {
-            /* We only need to enhance if we read data from the plain Variable */
-            needsEnhance = origVar != null;
-        } else {
-            /* Values read from the array will not be enhanced */
-            needsEnhance = false;
+        int tSize = tmax - tmin + 1;
+        int zSize = zmax - zmin + 1;
+        int ySize = (ymax - ymin) / ystride + 1;
+        int xSize = (xmax - xmin) / xstride + 1;
+        float[] data = new float[tSize * zSize * ySize * xSize];
+        decoder.decode(arr, rangesList, tSize, zSize, ySize, xSize, data);
+
+        return new FloatArray4D(tSize, zSize, ySize, xSize, data);
+    }
+
+    /**
+     * Gets the information needed to decode the given variable
+     * 
+     * @param variableId
+     *            The ID of the variable
+     * @throws DataReadingException
+     *             If the variable is not present
+     */
+    VariableDecoder getDecoder(String variableId) throws DataReadingException {
+        VariableDecoder decoder = decoders.get(variableId);
+        if (decoder == null) {
+            GridDatatype gridDatatype = gridDataset.findGridDatatype(variableId);
+            if (gridDatatype == null) {
+                throw new DataReadingException("The variable " + variableId
+                        + " does not exist in this data source");
+            }
+            decoder = new VariableDecoder(gridDatatype);
+            decoders.put(variableId, decoder);
         }
+        return decoder;
+    }
 
-        /*
-         * Returns a 4D array that wraps the Array
-         */
-        int[] shape = new int[] { (tmax - tmin + 1), (zmax - zmin + 1), (ymax - ymin + 1),
-                (xmax - xmin + 1) };
-        WrappedArray wrappedArray = new WrappedArray(var, arr, needsEnhance, shape, rangesList);
+    /**
+     * Gets the shape of a variable
+     * 
+     * @param variableId
+     *            The ID of the variable
+     * @return The size of each axis, in (t,z,y,x) order. Axes which are not
+     *         present have a size of 1
+     * @throws DataReadingException
+     *             If the variable is not present
+     */
+    int[] getShape(String variableId) throws DataReadingException {
+        return getDecoder(variableId).shape.clone();
+    }
 
-        return wrappedArray;
+    /**
+     * Gets the shape of the chunks in which a variable is stored
+     * 
+     * @param variableId
+     *            The ID of the variable
+     * @return The size of each chunk, in (t,z,y,x) order, or <code>null</code>
+     *         if the variable is not stored in chunks
+     * @throws DataReadingException
+     *             If the variable is not present
+     */
+    int[] getChunkShape(String variableId) throws DataReadingException {
+        int[] chunkShape = getDecoder(variableId).chunkShape;
+        return chunkShape == null ? null : chunkShape.clone();
     }
 
     @Override
@@ -139,64 +197,267 @@ final class CdmGridDataSource implements GridDataSource {
         gridDataset.close();
     }
 
-    private static final class WrappedArray extends Array4D<Number> {
-        private VariableDS var;
-        private Array arr;
-        private boolean needsEnhance;
+    /**
+     * Converts raw data read from a variable into floats, applying scale,
+     * offset and missing value handling. All of the information needed for
+     * this is extracted from the variable once, rather than for every value.
+     * 
+     * Raw values are those of the original (i.e. not enhanced) variable, where
+     * there is one.
+     */
+    static final class VariableDecoder {
+        private final GridDatatype gridDatatype;
+        private final VariableDS var;
+
+        /* Whether we need to apply scale/offset/missing to the data ourselves */
+        private final boolean needsEnhance;
+        /*
+         * Whether we know the scale and offset. If not (but we still need to
+         * enhance) we must defer to the variable for each value
+         */
+        private final boolean knownScaleOffset;
+        private final double scale;
+        private final double offset;
+
+        /*
+         * Whether raw values should be treated as unsigned. This is only used
+         * if we enhance the data ourselves - otherwise it is taken from the
+         * array which is read
+         */
+        private final boolean unsigned;
+
+        /*
+         * Missing/fill values in the packed data. These are only used if we
+         * enhance the data ourselves
+         */
+        private final double[] packedMissingValues;
+
+        /*
+         * Whether we need to ask the variable whether (unpacked) values are
+         * missing/fill values
+         */
+        private final boolean checkMissingValue;
+        private final boolean checkFillValue;
+
+        /* Valid range, in unpacked units, if there is one */
+        private final boolean hasValidRange;
+        private final double validMin;
+        private final double validMax;
+
+        /*
+         * The shape of the variable and of its chunks (or null if it is not
+         * chunked), in (t,z,y,x) order
+         */
         private final int[] shape;
-        private final int xAxisIndex;
-        private final int yAxisIndex;
-        private final int zAxisIndex;
-        private final int tAxisIndex;
-
-        public WrappedArray(VariableDS var, Array arr, boolean needsEnhance, int[] shape,
-                RangesList rangesList) {
-            super(shape[0], shape[1], shape[2], shape[3]);
-            this.var = var;
-            this.arr = arr;
-            this.needsEnhance = needsEnhance;
-            this.shape = shape;
-
-            xAxisIndex = rangesList.getXAxisIndex();
-            yAxisIndex = rangesList.getYAxisIndex();
-            zAxisIndex = rangesList.getZAxisIndex();
-            tAxisIndex = rangesList.getTAxisIndex();
-        }
+        private final int[] chunkShape;
 
-        @Override
-        public int[] getShape() {
-            return shape;
-        }
+        public VariableDecoder(GridDatatype gridDatatype) {
+            this.gridDatatype = gridDatatype;
+            var = gridDatatype.getVariable();
+            Variable origVar = var.getOriginalVariable();
 
-        @Override
-        public Number get(int... coords) {
             /*
-             * The convention is that the x coordinate varies fastest
+             * Decide whether or not we need to enhance any data values we read
+             * from this array
              */
-            int x = coords[3];
-            int y = coords[2];
-            int z = coords[1];
-            int t = coords[0];
+            Set<Enhance> enhanceMode = var.getEnhanceMode();
+            if (enhanceMode.contains(Enhance.ScaleMissingDefer)) {
+                /* Values read from the array are not enhanced, but need to be */
+                needsEnhance = true;
+            } else if (enhanceMode.contains(Enhance.ScaleMissing)) {
+                /* We only need to enhance if we read data from the plain Variable */
+                needsEnhance = origVar != null;
+            } else {
+                /* Values read from the array will not be enhanced */
+                needsEnhance = false;
+            }
 
             /*
-             * Create a new index
+             * The packing attributes are found on the original variable where
+             * there is one. The enhanced variable may have had them removed.
              */
-            Index index = arr.getIndex();
+            Variable packedVar = origVar == null ? var : origVar;
+            Attribute scaleAttr = packedVar.findAttribute("scale_factor");
+            Attribute offsetAttr = packedVar.findAttribute("add_offset");
+            Attribute missingAttr = packedVar.findAttribute("missing_value");
+            Attribute fillAttr = packedVar.findAttribute("_FillValue");
+
+            if (needsEnhance) {
+                knownScaleOffset = !var.hasScaleOffset() || scaleAttr != null
+                        || offsetAttr != null;
+                scale = getNumericValue(scaleAttr, 1.0);
+                offset = getNumericValue(offsetAttr, 0.0);
+
+                /*
+                 * Missing values are defined in packed units, so we can test
+                 * the raw values directly, without any rounding issues.
+                 * Depending on the version of NetCDF-Java, an _Unsigned
+                 * variable's missing values may be interpreted as either
+                 * signed or unsigned, so we try both. Each candidate is only
+                 * used if NetCDF-Java itself considers it to be missing, so
+                 * that we agree with the enhanced values.
+                 */
+                unsigned = packedVar.isUnsigned();
+                List<Double> missing = new ArrayList<Double>();
+                boolean foundMissing = false;
+                if (var.hasMissingValue() && missingAttr != null && knownScaleOffset) {
+                    for (int i = 0; i < missingAttr.getLength(); i++) {
+                        foundMissing |= addIfMissing(missing, missingAttr.getNumericValue(i));
+                    }
+                }
+                boolean foundFill = false;
+                if (var.hasFillValue() && fillAttr != null && knownScaleOffset) {
+                    foundFill = addIfMissing(missing, fillAttr.getNumericValue());
+                }
+                packedMissingValues = new double[missing.size()];
+                for (int i = 0; i < packedMissingValues.length; i++) {
+                    packedMissingValues[i] = missing.get(i);
+                }
+
+                /*
+                 * If we couldn't find the attributes (or if we can't do the
+                 * unpacking ourselves, or we couldn't reproduce the
+                 * variable's notion of missing), we fall back to asking the
+                 * variable
+                 */
+                checkMissingValue = var.hasMissingValue() && !foundMissing;
+                checkFillValue = var.hasFillValue() && !foundFill;
+            } else {
+                unsigned = false;
+                knownScaleOffset = true;
+                scale = 1.0;
+                offset = 0.0;
+                packedMissingValues = new double[0];
+                checkMissingValue = var.hasMissingValue();
+                checkFillValue = var.hasFillValue();
+            }
+
+            hasValidRange = var.hasInvalidData();
+            if (hasValidRange) {
+                validMin = var.getValidMin();
+                validMax = var.getValidMax();
+            } else {
+                validMin = -Double.MAX_VALUE;
+                validMax = Double.MAX_VALUE;
+            }
+
             /*
-             * Set the index values
+             * Chunked (i.e. NetCDF-4/HDF5) variables have their chunk sizes
+             * given in the _ChunkSizes attribute, in the physical order of the
+             * dimensions
              */
-            if (tAxisIndex >= 0)
-                index.setDim(tAxisIndex, t);
-            if (zAxisIndex >= 0)
-                index.setDim(zAxisIndex, z);
-            if (yAxisIndex >= 0)
-                index.setDim(yAxisIndex, y);
-            if (xAxisIndex >= 0)
-                index.setDim(xAxisIndex, x);
-
-            double val = arr.getFloat(index);
+            RangesList rangesList = new RangesList(gridDatatype);
+            int[] axisIndices = new int[] { rangesList.getTAxisIndex(),
+                    rangesList.getZAxisIndex(), rangesList.getYAxisIndex(),
+                    rangesList.getXAxisIndex() };
+            int[] varShape = var.getShape();
+            Attribute chunkAttr = packedVar.findAttribute("_ChunkSizes");
+            if (chunkAttr != null && chunkAttr.getLength() != varShape.length) {
+                chunkAttr = null;
+            }
+            shape = new int[4];
+            int[] chunks = chunkAttr == null ? null : new int[4];
+            for (int i = 0; i < 4; i++) {
+                int axisIndex = axisIndices[i];
+                shape[i] = axisIndex >= 0 ? varShape[axisIndex] : 1;
+                if (chunks != null) {
+                    chunks[i] = axisIndex >= 0 ? chunkAttr.getNumericValue(axisIndex).intValue()
+                            : 1;
+                    if (chunks[i] <= 0) {
+                        chunks = null;
+                    }
+                }
+            }
+            chunkShape = chunks;
+        }
+
+        /**
+         * Decodes an entire array into a float array.
+         * 
+         * @param arr
+         *            The data, as read from the variable
+         * @param rangesList
+         *            The {@link RangesList} used to read the data. This
+         *            defines the order of the axes in the array
+         * @param tSize
+         *            The size of the requested t-range
+         * @param zSize
+         *            The size of the requested z-range
+         * @param ySize
+         *            The size of the requested y-range
+         * @param xSize
+         *            The size of the requested x-range
+         * @param data
+         *            The array to write to, in (t,z,y,x) order, with x varying
+         *            fastest
+         */
+        public void decode(Array arr, RangesList rangesList, int tSize, int zSize, int ySize,
+                int xSize, float[] data) {
+            /*
+             * Get the underlying Java array. This does not copy the data if
+             * the array is already in canonical order (which it will be if it
+             * has just been read)
+             */
+            RawValues raw = RawValues.forStorage(arr.get1DJavaArray(arr.getElementType()),
+                    needsEnhance ? unsigned : arr.isUnsigned());
+
+            /*
+             * Work out how far through the storage we move for a step along
+             * each axis. Axes which are not present have a stride of zero, so
+             * all values along that axis are the same.
+             */
+            int[] shape = arr.getShape();
+            int[] strides = new int[shape.length];
+            int stride = 1;
+            for (int i = shape.length - 1; i >= 0; i--) {
+                strides[i] = stride;
+                stride *= shape[i];
+            }
+            int tStride = getStride(strides, rangesList.getTAxisIndex());
+            int zStride = getStride(strides, rangesList.getZAxisIndex());
+            int yStride = getStride(strides, rangesList.getYAxisIndex());
+            int xStride = getStride(strides, rangesList.getXAxisIndex());
+
+            int index = 0;
+            for (int t = 0; t < tSize; t++) {
+                for (int z = 0; z < zSize; z++) {
+                    for (int y = 0; y < ySize; y++) {
+                        int offset = t * tStride + z * zStride + y * yStride;
+                        for (int x = 0; x < xSize; x++) {
+                            data[index++] = convert(raw.get(offset));
+                            offset += xStride;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return The {@link GridDatatype} which this decodes
+         */
+        GridDatatype getGridDatatype() {
+            return gridDatatype;
+        }
+
+        /**
+         * Converts a single raw value to a float, returning NaN if it is
+         * missing
+         */
+        float convert(double raw) {
+            double val;
             if (needsEnhance) {
-                val = var.convertScaleOffsetMissing(val);
+                for (int i = 0; i < packedMissingValues.length; i++) {
+                    if (raw == packedMissingValues[i]) {
+                        return Float.NaN;
+                    }
+                }
+                if (knownScaleOffset) {
+                    val = raw * scale + offset;
+                } else {
+                    val = var.convertScaleOffsetMissing(raw);
+                }
+            } else {
+                val = raw;
             }
             if (isMissing(val)) {
                 /*
@@ -204,27 +465,12 @@ final class CdmGridDataSource implements GridDataSource {
                  * which means that isMissing can return true in cases where it
                  * should be false.
                  */
-                return null;
+                return Float.NaN;
             } else {
                 return (float) val;
             }
         }
 
-        @Override
-        public void set(Number val, int... coords) {
-            throw new UnsupportedOperationException("Modification not supported.");
-        }
-
-        @Override
-        public Iterator<Number> iterator() {
-            throw new UnsupportedOperationException("Not supported yet.");
-        }
-
-        @Override
-        public long size() {
-            return shape[0] * shape[1] * shape[2] * shape[3];
-        }
-
         /**
          * Performs the same checks as {@link VariableDS#isMissing(double)}, but
          * allows a tolerance of 1e-7 on the maximum and minimum values. This is
@@ -246,23 +492,160 @@ final class CdmGridDataSource implements GridDataSource {
             if (Double.isNaN(val)) {
                 return true;
             }
-            if (var.hasMissingValue() && var.isMissingValue(val)) {
+            if (checkMissingValue && var.isMissingValue(val)) {
+                return true;
+            } else if (checkFillValue && var.isFillValue(val)) {
+                return true;
+            }
+            if (!hasValidRange) {
+                return false;
+            }
+            if (val > validMax && (val - validMax) > 1e-7) {
                 return true;
-            } else if (var.hasFillValue() && var.isFillValue(val)) {
+            }
+            if (val < validMin && (validMin - val) > 1e-7) {
                 return true;
-            } else if (var.hasInvalidData()) {
-                if (var.getValidMax() != -Double.MAX_VALUE) {
-                    if (val > var.getValidMax() && (val - var.getValidMax()) > 1e-7) {
-                        return true;
+            }
+            return false;
+        }
+
+        private static int getStride(int[] strides, int axisIndex) {
+            return axisIndex >= 0 ? strides[axisIndex] : 0;
+        }
+
+        private static double getNumericValue(Attribute attr, double defaultValue) {
+            if (attr == null || attr.getNumericValue() == null) {
+                return defaultValue;
+            }
+            return attr.getNumericValue().doubleValue();
+        }
+
+        /**
+         * Adds the signed and unsigned interpretations of a packed missing
+         * value to the given list, if NetCDF-Java treats them as missing. This
+         * must only be called once the scale and offset are known.
+         * 
+         * @return Whether any value was added
+         */
+        private boolean addIfMissing(List<Double> missing, Number value) {
+            boolean added = false;
+            double signed = value.doubleValue();
+            if (isMissingInVariable(signed)) {
+                missing.add(signed);
+                added = true;
+            }
+            if (unsigned) {
+                double unsignedValue = signed;
+                if (value instanceof Byte) {
+                    unsignedValue = value.byteValue() & 0xff;
+                } else if (value instanceof Short) {
+                    unsignedValue = value.shortValue() & 0xffff;
+                } else if (value instanceof Integer) {
+                    unsignedValue = value.intValue() & 0xffffffffL;
+                }
+                if (unsignedValue != signed && isMissingInVariable(unsignedValue)) {
+                    missing.add(unsignedValue);
+                    added = true;
+                }
+            }
+            return added;
+        }
+
+        /**
+         * Asks the variable whether a packed value is missing, in exactly the
+         * way that this was done for every value before the decoder existed
+         */
+        private boolean isMissingInVariable(double packed) {
+            double val = var.convertScaleOffsetMissing(packed);
+            return Double.isNaN(val) || var.isMissingValue(val) || var.isFillValue(val);
+        }
+    }
+
+    /**
+     * Provides access to the raw values in the storage of an {@link Array}.
+     * The implementation is chosen once for each read, so that the type of
+     * the storage is not tested for every value.
+     */
+    private static abstract class RawValues {
+        abstract double get(int index);
+
+        static RawValues forStorage(Object storage, boolean unsigned) {
+            if (storage instanceof float[]) {
+                final float[] values = (float[]) storage;
+                return new RawValues() {
+                    @Override
+                    double get(int index) {
+                        return values[index];
+                    }
+                };
+            } else if (storage instanceof short[]) {
+                final short[] values = (short[]) storage;
+                if (unsigned) {
+                    return new RawValues() {
+                        @Override
+                        double get(int index) {
+                            return values[index] & 0xffff;
+                        }
+                    };
+                }
+                return new RawValues() {
+                    @Override
+                    double get(int index) {
+                        return values[index];
                     }
+                };
+            } else if (storage instanceof byte[]) {
+                final byte[] values = (byte[]) storage;
+                if (unsigned) {
+                    return new RawValues() {
+                        @Override
+                        double get(int index) {
+                            return values[index] & 0xff;
+                        }
+                    };
                 }
-                if (var.getValidMin() != Double.MAX_VALUE) {
-                    if (val < var.getValidMin() && (var.getValidMin() - val) > 1e-7) {
-                        return true;
+                return new RawValues() {
+                    @Override
+                    double get(int index) {
+                        return values[index];
                     }
+                };
+            } else if (storage instanceof int[]) {
+                final int[] values = (int[]) storage;
+                if (unsigned) {
+                    return new RawValues() {
+                        @Override
+                        double get(int index) {
+                            return values[index] & 0xffffffffL;
+                        }
+                    };
                 }
+                return new RawValues() {
+                    @Override
+                    double get(int index) {
+                        return values[index];
+                    }
+                };
+            } else if (storage instanceof double[]) {
+                final double[] values = (double[]) storage;
+                return new RawValues() {
+                    @Override
+                    double get(int index) {
+                        return values[index];
+                    }
+                };
+            } else if (storage instanceof long[]) {
+                final long[] values = (long[]) storage;
+                return new RawValues() {
+                    @Override
+                    double get(int index) {
+                        return values[index];
+                    }
+                };
+            } else {
+                throw new IllegalArgumentException("Cannot read numerical values from an array of "
+                        + storage.getClass().getComponentType());
             }
-            return false;
         }
     }
 }
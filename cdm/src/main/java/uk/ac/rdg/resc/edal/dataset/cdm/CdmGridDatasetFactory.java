@@ -33,19 +33,20 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+
+import org.joda.time.DateTime;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ucar.nc2.Attribute;
-import ucar.nc2.Dimension;
-import ucar.nc2.NetcdfFile;
 import ucar.nc2.Variable;
 import ucar.nc2.dataset.NetcdfDataset;
 import ucar.nc2.dataset.VariableDS;
@@ -58,14 +59,21 @@ import uk.ac.rdg.resc.edal.dataset.DataReadingStrategy;
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.dataset.DatasetFactory;
 import uk.ac.rdg.resc.edal.dataset.GridDataSource;
+import uk.ac.rdg.resc.edal.dataset.GridDataSourcePool;
+import uk.ac.rdg.resc.edal.dataset.GridDataSourcePool.GridDataSourceOpener;
+import uk.ac.rdg.resc.edal.dataset.SourceVersion;
 import uk.ac.rdg.resc.edal.dataset.plugins.MeanSDPlugin;
+import uk.ac.rdg.resc.edal.dataset.plugins.VariablePlugin;
 import uk.ac.rdg.resc.edal.dataset.plugins.VectorPlugin;
+import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
 import uk.ac.rdg.resc.edal.grid.VerticalAxis;
 import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
 import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.util.Extents;
 import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
 
 /**
@@ -78,16 +86,54 @@ import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
 public final class CdmGridDatasetFactory extends DatasetFactory {
     private static final Logger log = LoggerFactory.getLogger(CdmGridDatasetFactory.class);
 
-    private String ncmlString = null;
+    /*
+     * Indices of multi-file aggregations, keyed on location
+     */
+    private final Map<String, AggregationIndex> aggregationIndices = new HashMap<String, AggregationIndex>();
+
+    /*
+     * Pools of open data sources, keyed on dataset ID and location. These are
+     * shared by successive CdmGridDatasets created for the same ID/location so
+     * that the handles in use by a dataset which is being replaced can be
+     * invalidated.
+     */
+    private final Map<String, GridDataSourcePool> dataSourcePools = new HashMap<String, GridDataSourcePool>();
+
+    /*
+     * The number of times each dataset has been (re)loaded, keyed on dataset
+     * ID and location. This is used to distinguish different versions of the
+     * underlying data in the ChunkCache.
+     */
+    private final Map<String, Integer> chunkCacheGenerations = new HashMap<String, Integer>();
 
     @Override
     public GriddedDataset createDataset(String id, String location) throws IOException, EdalException {
+        /*
+         * We are (re)loading this dataset. The underlying data may have
+         * changed, so none of the existing open handles can be reused
+         */
+        GridDataSourcePool pool = getDataSourcePool(id, location);
+        pool.invalidate();
+        /*
+         * Nor can any decompressed chunks. Handles opened from now on use a
+         * new key in the chunk cache, so any chunks added by handles which are
+         * still in use will never be read.
+         */
+        ChunkCache.getInstance().invalidate(getChunkCacheKey(id, location));
+        incrementChunkCacheGeneration(id, location);
+
+        /*
+         * Record the state of the underlying files before opening them, so
+         * that the snapshot is out-of-date if they change while we read them
+         */
+        List<GridVariableMetadata> vars = new ArrayList<GridVariableMetadata>();
+        DatasetSnapshot snapshot = new DatasetSnapshot(id, location, vars);
         NetcdfDataset nc = null;
         try {
             /*
              * Open the dataset, using the cache for NcML aggregations
              */
-            nc = openAndAggregateDataset(location);
+            nc = openAndAggregateDataset(location, snapshot);
 
             /*-
              * We may in future be able to use forecast model run collection aggregations for
@@ -151,7 +197,6 @@ public final class CdmGridDatasetFactory extends DatasetFactory {
             }
 
             ucar.nc2.dt.GridDataset gridDataset = CdmUtils.getGridDataset(nc);
-            List<GridVariableMetadata> vars = new ArrayList<GridVariableMetadata>();
             /*
              * Store a map of component names. Key is the compound name, value
              * is a 2-element String array with x, y component IDs
@@ -281,14 +326,18 @@ public final class CdmGridDatasetFactory extends DatasetFactory {
                 }
             }
 
-            CdmGridDataset cdmGridDataset = new CdmGridDataset(id, location, vars,
-                    CdmUtils.getOptimumDataReadingStrategy(nc));
+            DataReadingStrategy dataReadingStrategy = CdmUtils.getOptimumDataReadingStrategy(nc);
+            snapshot.setDataReadingStrategy(dataReadingStrategy);
+            CdmGridDataset cdmGridDataset = new CdmGridDataset(id, pool, vars,
+                    dataReadingStrategy, snapshot);
             for (Entry<String, String[]> componentData : xyComponentPairs.entrySet()) {
                 String commonName = componentData.getKey();
                 String[] comps = componentData.getValue();
                 if (comps[0] != null && comps[1] != null) {
                     cdmGridDataset.addVariablePlugin(new VectorPlugin(comps[0], comps[1], commonName,
                             xyNameToTrueEN.get(commonName)));
+                    snapshot.addVectorPlugin(comps[0], comps[1], commonName,
+                            xyNameToTrueEN.get(commonName));
                 }
             }
 
@@ -313,35 +362,440 @@ public final class CdmGridDatasetFactory extends DatasetFactory {
                     MeanSDPlugin meanSDPlugin = new MeanSDPlugin(meanId, stddevId,
                             parentVarId2Title.get(statsCollectionId));
                     cdmGridDataset.addVariablePlugin(meanSDPlugin);
+                    snapshot.addMeanSDPlugin(meanId, stddevId,
+                            parentVarId2Title.get(statsCollectionId));
                 }
             }
 
+            /*
+             * Measure the cost of reading from this dataset, so that we can
+             * choose the cheapest way of reading each map
+             */
+            cdmGridDataset.calibrateDataReading();
+
             return cdmGridDataset;
         } finally {
             CdmUtils.closeDataset(nc);
         }
     }
 
+    @Override
+    public GriddedDataset refreshDataset(Dataset previous, String id, String location)
+            throws IOException, EdalException {
+        if (previous instanceof CdmGridDataset) {
+            CdmGridDataset refreshed = refreshAggregation((CdmGridDataset) previous, id,
+                    location);
+            if (refreshed != null) {
+                return refreshed;
+            }
+        }
+        return createDataset(id, location);
+    }
+
+    /**
+     * Refreshes a multi-file aggregation by reading only the files which have
+     * been added or modified since the previous version of the dataset was
+     * created. The time axes of the previous version are extended or shrunk
+     * accordingly, and everything else (the horizontal and vertical domains,
+     * plugins and data reading costs) is reused. The {@link SourceVersion} of
+     * the refreshed dataset records the times of the files which have been
+     * added, modified or removed, so that only these are discarded from the
+     * time-major stores and statistics index.
+     * 
+     * @return The refreshed dataset, or <code>null</code> if it must be
+     *         created from scratch (e.g. because it is not an aggregation, or
+     *         the structure of the files has changed)
+     */
+    private CdmGridDataset refreshAggregation(CdmGridDataset previous, String id,
+            String location) throws IOException, EdalException {
+        DatasetSnapshot previousSnapshot = previous.snapshot;
+        Map<String, Integer> previousLayout = previousSnapshot.getAggregationLayout();
+        if (!previousSnapshot.isOf(id, location) || previousLayout == null) {
+            return null;
+        }
+        /*
+         * As with createDataset, record the state of the files before reading
+         * any of them
+         */
+        List<GridVariableMetadata> vars = new ArrayList<GridVariableMetadata>();
+        DatasetSnapshot snapshot = previousSnapshot.createUpdate(vars);
+        List<File> files = CdmUtils.expandGlobExpression(location);
+        if (files.size() < 2) {
+            return null;
+        }
+        /*
+         * Bring the aggregation index up-to-date. This reads the time axis
+         * length of each new or modified file.
+         */
+        AggregationIndex index = getAggregationIndex(location);
+        Map<String, Integer> layout;
+        synchronized (index) {
+            index.getNcml(files);
+            layout = index.getLayout();
+        }
+        if (layout == null) {
+            /* The time axis of at least one of the files could not be read */
+            return null;
+        }
+        snapshot.setAggregationLayout(layout);
+        Set<String> unchangedFiles = previousSnapshot.getUnchangedFiles(snapshot);
+        if (unchangedFiles == null) {
+            return null;
+        }
+
+        /*
+         * Find where the values of each unchanged file lie on the previous
+         * time axis, and how many time steps at the start of the axis are
+         * unchanged
+         */
+        Map<String, Integer> previousOffsets = new HashMap<String, Integer>();
+        int previousSize = 0;
+        for (Entry<String, Integer> entry : previousLayout.entrySet()) {
+            previousOffsets.put(entry.getKey(), previousSize);
+            previousSize += entry.getValue();
+        }
+        int nUnchanged = 0;
+        Iterator<Entry<String, Integer>> previousEntries = previousLayout.entrySet().iterator();
+        for (Entry<String, Integer> entry : layout.entrySet()) {
+            if (!previousEntries.hasNext()) {
+                break;
+            }
+            Entry<String, Integer> previousEntry = previousEntries.next();
+            if (!previousEntry.getKey().equals(entry.getKey())
+                    || !unchangedFiles.contains(entry.getKey())) {
+                break;
+            }
+            nUnchanged += previousEntry.getValue();
+        }
+
+        /*
+         * Variables in the same gridset share a time axis, and will continue
+         * to do so
+         */
+        Map<TimeAxis, List<DateTime>> newTimes = new IdentityHashMap<TimeAxis, List<DateTime>>();
+        /*
+         * The times at which the data may differ from the previous version:
+         * those of the files which have been modified or removed, and those
+         * of the files which have been modified or added
+         */
+        List<Extent<DateTime>> changedTimes = new ArrayList<Extent<DateTime>>();
+        for (GridVariableMetadata metadata : previousSnapshot.getVariables()) {
+            TimeAxis tAxis = metadata.getTemporalDomain();
+            if (tAxis != null) {
+                if (tAxis.size() != previousSize) {
+                    return null;
+                }
+                newTimes.put(tAxis, new ArrayList<DateTime>());
+            }
+        }
+        for (Entry<String, Integer> entry : previousLayout.entrySet()) {
+            int nCoords = entry.getValue();
+            if (!unchangedFiles.contains(entry.getKey()) && nCoords > 0) {
+                int offset = previousOffsets.get(entry.getKey());
+                for (TimeAxis tAxis : newTimes.keySet()) {
+                    changedTimes.add(Extents.newExtent(tAxis.getCoordinateValue(offset),
+                            tAxis.getCoordinateValue(offset + nCoords - 1)));
+                }
+            }
+        }
+        int nRead = 0;
+        for (Entry<String, Integer> entry : layout.entrySet()) {
+            String path = entry.getKey();
+            int nCoords = entry.getValue();
+            if (unchangedFiles.contains(path)) {
+                if (previousLayout.get(path) != nCoords) {
+                    return null;
+                }
+                int offset = previousOffsets.get(path);
+                for (Entry<TimeAxis, List<DateTime>> times : newTimes.entrySet()) {
+                    times.getValue().addAll(
+                            times.getKey().getCoordinateValues()
+                                    .subList(offset, offset + nCoords));
+                }
+            } else {
+                Map<TimeAxis, TimeAxis> fileTimes = readTimeAxes(path,
+                        previousSnapshot.getVariables());
+                nRead++;
+                if (fileTimes == null) {
+                    return null;
+                }
+                for (Entry<TimeAxis, List<DateTime>> times : newTimes.entrySet()) {
+                    TimeAxis fileAxis = fileTimes.get(times.getKey());
+                    if (fileAxis.size() != nCoords) {
+                        return null;
+                    }
+                    times.getValue().addAll(fileAxis.getCoordinateValues());
+                    if (nCoords > 0) {
+                        changedTimes.add(Extents.newExtent(fileAxis.getCoordinateValue(0),
+                                fileAxis.getCoordinateValue(nCoords - 1)));
+                    }
+                }
+            }
+        }
+        Map<TimeAxis, TimeAxis> newAxes = new IdentityHashMap<TimeAxis, TimeAxis>();
+        for (Entry<TimeAxis, List<DateTime>> times : newTimes.entrySet()) {
+            List<DateTime> values = times.getValue();
+            for (int i = 1; i < values.size(); i++) {
+                if (!values.get(i).isAfter(values.get(i - 1))) {
+                    /*
+                     * Files overlap in time. Leave it to a full load to deal
+                     * with (or report) this.
+                     */
+                    return null;
+                }
+            }
+            newAxes.put(times.getKey(), new TimeAxisImpl(times.getKey().getName(), values));
+        }
+        for (GridVariableMetadata metadata : previousSnapshot.getVariables()) {
+            TimeAxis tAxis = metadata.getTemporalDomain();
+            vars.add(new GridVariableMetadata(metadata.getId(), metadata.getParameter(),
+                    metadata.getHorizontalDomain(), metadata.getVerticalDomain(),
+                    tAxis == null ? null : newAxes.get(tAxis), metadata.isScalar()));
+        }
+
+        /*
+         * The open handles all refer to the previous aggregation. Chunks
+         * which are entirely within the unchanged time steps remain valid.
+         * The chunk which contains the previous last time step may have been
+         * truncated at the end of the previous axis, so is discarded.
+         */
+        String previousKey = getChunkCacheKey(id, location);
+        incrementChunkCacheGeneration(id, location);
+        GridDataSourcePool pool = getDataSourcePool(id, location);
+        pool.invalidate();
+        if (nUnchanged > 0) {
+            ChunkCache.getInstance().carryOver(previousKey, getChunkCacheKey(id, location),
+                    Math.min(nUnchanged, previousSize - 1));
+        } else {
+            /*
+             * Variables without a time axis are read from the first file,
+             * which has changed
+             */
+            ChunkCache.getInstance().invalidate(previousKey);
+        }
+
+        CdmGridDataset cdmGridDataset = new CdmGridDataset(id, pool, vars,
+                previous.dataReadingStrategy, snapshot);
+        for (VariablePlugin plugin : snapshot.createPlugins()) {
+            cdmGridDataset.addVariablePlugin(plugin);
+        }
+        if (previous.getDataReadingCostModel() != null) {
+            cdmGridDataset.setDataReadingCostModel(previous.getDataReadingCostModel());
+        }
+        /*
+         * Copies and indices of the data of the previous version (time-major
+         * stores and statistics) remain valid, except at the changed times
+         */
+        cdmGridDataset.setSourceVersion(new SourceVersion(snapshot.getSourceId(),
+                previousSnapshot.getSourceId(), changedTimes));
+        log.debug("Refreshed dataset " + id + " by reading " + nRead + " of " + layout.size()
+                + " files.  " + nUnchanged + " time steps are unchanged.");
+        return cdmGridDataset;
+    }
+
+    /**
+     * Reads the time axes of a single file in a multi-file aggregation
+     * 
+     * @param path
+     *            The path of the file
+     * @param vars
+     *            The variables of the aggregation
+     * @return A map of each of the time axes of the given variables to the
+     *         corresponding time axis in the file, or <code>null</code> if any
+     *         of the variables are missing from the file or have a different
+     *         shape
+     */
+    private static Map<TimeAxis, TimeAxis> readTimeAxes(String path,
+            Collection<GridVariableMetadata> vars) throws IOException {
+        NetcdfDataset nc = null;
+        try {
+            nc = CdmUtils.openDataset(path);
+            ucar.nc2.dt.GridDataset gridDataset = CdmUtils.getGridDataset(nc);
+            Map<TimeAxis, TimeAxis> fileAxes = new IdentityHashMap<TimeAxis, TimeAxis>();
+            for (GridVariableMetadata metadata : vars) {
+                if (metadata.getTemporalDomain() == null) {
+                    continue;
+                }
+                GridDatatype grid = gridDataset.findGridDatatype(metadata.getId());
+                if (grid == null) {
+                    return null;
+                }
+                HorizontalGrid hGrid = metadata.getHorizontalDomain();
+                VerticalAxis zAxis = metadata.getVerticalDomain();
+                if (grid.getXDimension() == null
+                        || grid.getXDimension().getLength() != hGrid.getXSize()
+                        || grid.getYDimension() == null
+                        || grid.getYDimension().getLength() != hGrid.getYSize()
+                        || (grid.getZDimension() == null ? zAxis != null : zAxis == null
+                                || grid.getZDimension().getLength() != zAxis.size())) {
+                    return null;
+                }
+                if (!fileAxes.containsKey(metadata.getTemporalDomain())) {
+                    TimeAxis fileAxis = CdmUtils.createTimeAxis(grid.getCoordinateSystem());
+                    if (fileAxis == null) {
+                        return null;
+                    }
+                    fileAxes.put(metadata.getTemporalDomain(), fileAxis);
+                }
+            }
+            return fileAxes;
+        } finally {
+            CdmUtils.closeDataset(nc);
+        }
+    }
+
+    @Override
+    public boolean writeSnapshot(Dataset dataset, File snapshotDir) throws IOException {
+        if (!(dataset instanceof CdmGridDataset)) {
+            return false;
+        }
+        CdmGridDataset cdmGridDataset = (CdmGridDataset) dataset;
+        DatasetSnapshot snapshot = cdmGridDataset.snapshot;
+        snapshot.setDataReadingCostModel(cdmGridDataset.getDataReadingCostModel());
+        return snapshot.write(snapshotDir);
+    }
+
+    @Override
+    public GriddedDataset restoreDataset(String id, String location, File snapshotDir)
+            throws IOException, EdalException {
+        DatasetSnapshot snapshot = DatasetSnapshot.read(snapshotDir, id, location);
+        if (snapshot == null) {
+            return null;
+        }
+        /*
+         * The underlying data is not opened until it is first read
+         */
+        CdmGridDataset cdmGridDataset = new CdmGridDataset(id, getDataSourcePool(id, location),
+                snapshot.getVariables(), snapshot.getDataReadingStrategy(), snapshot);
+        for (VariablePlugin plugin : snapshot.createPlugins()) {
+            cdmGridDataset.addVariablePlugin(plugin);
+        }
+        if (snapshot.getDataReadingCostModel() != null) {
+            cdmGridDataset.setDataReadingCostModel(snapshot.getDataReadingCostModel());
+        }
+        return cdmGridDataset;
+    }
+
+    @Override
+    public boolean isSnapshotCurrent(String id, String location, File snapshotDir) {
+        return DatasetSnapshot.isCurrent(snapshotDir, id, location);
+    }
+
+    @Override
+    public void closeDataset(String id, String location) {
+        GridDataSourcePool pool;
+        synchronized (this) {
+            pool = dataSourcePools.remove(id + "@" + location);
+        }
+        if (pool != null) {
+            /*
+             * Any dataset still using this pool will open (and close) a new
+             * handle for each read
+             */
+            pool.close();
+        }
+        /*
+         * The generation count is kept, so that the chunk cache keys of this
+         * ID and location are never reused
+         */
+        ChunkCache.getInstance().invalidate(getChunkCacheKey(id, location));
+    }
+
+    /**
+     * Gets the {@link GridDataSourcePool} for the given dataset, creating it if
+     * necessary
+     */
+    private synchronized GridDataSourcePool getDataSourcePool(final String id,
+            final String location) {
+        String key = id + "@" + location;
+        GridDataSourcePool pool = dataSourcePools.get(key);
+        if (pool == null) {
+            pool = new GridDataSourcePool(id, new GridDataSourceOpener() {
+                @Override
+                public GridDataSource open() throws IOException {
+                    NetcdfDataset nc;
+                    try {
+                        nc = openAndAggregateDataset(location);
+                    } catch (EdalException e) {
+                        throw new IOException("Problem aggregating datasets", e);
+                    }
+                    CdmGridDataSource cdmSource = new CdmGridDataSource(
+                            CdmUtils.getGridDataset(nc));
+                    File netcdf3File = MappedNetcdf3GridDataSource.getNetcdf3File(nc);
+                    if (netcdf3File != null) {
+                        /*
+                         * NetCDF-3 files are never chunked or compressed, so
+                         * we can read their data straight from a mapped buffer
+                         */
+                        try {
+                            return new MappedNetcdf3GridDataSource(netcdf3File, cdmSource);
+                        } catch (IOException e) {
+                            log.warn("Cannot map " + netcdf3File
+                                    + ".  Reading it through the CDM instead.", e);
+                        }
+                    }
+                    /*
+                     * Wrap the data source so that chunked variables are read
+                     * (and cached) a whole chunk at a time
+                     */
+                    return new ChunkedGridDataSource(cdmSource, ChunkCache.getInstance(),
+                            getChunkCacheKey(id, location));
+                }
+            });
+            dataSourcePools.put(key, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Gets the key which identifies the current version of the given dataset
+     * in the {@link ChunkCache}
+     */
+    private synchronized String getChunkCacheKey(String id, String location) {
+        String key = id + "@" + location;
+        Integer generation = chunkCacheGenerations.get(key);
+        return key + "#" + (generation == null ? 0 : generation);
+    }
+
+    private synchronized void incrementChunkCacheGeneration(String id, String location) {
+        String key = id + "@" + location;
+        Integer generation = chunkCacheGenerations.get(key);
+        chunkCacheGenerations.put(key, generation == null ? 1 : generation + 1);
+    }
+
     private final class CdmGridDataset extends GriddedDataset {
-        private final String location;
+        private final GridDataSourcePool dataSourcePool;
         private final DataReadingStrategy dataReadingStrategy;
+        /* Everything needed to recreate this dataset without reading the data */
+        private final DatasetSnapshot snapshot;
 
-        public CdmGridDataset(String id, String location, Collection<GridVariableMetadata> vars,
-                DataReadingStrategy dataReadingStrategy) {
+        public CdmGridDataset(String id, GridDataSourcePool dataSourcePool,
+                Collection<GridVariableMetadata> vars, DataReadingStrategy dataReadingStrategy,
+                DatasetSnapshot snapshot) {
             super(id, vars);
-            this.location = location;
+            this.dataSourcePool = dataSourcePool;
             this.dataReadingStrategy = dataReadingStrategy;
+            this.snapshot = snapshot;
+            setSourceVersion(new SourceVersion(snapshot.getSourceId()));
         }
 
         @Override
         protected GridDataSource openGridDataSource() throws IOException {
-            NetcdfDataset nc;
-            try {
-                nc = openAndAggregateDataset(location);
-            } catch (EdalException e) {
-                throw new IOException("Problem aggregating datasets", e);
-            }
-            return new CdmGridDataSource(CdmUtils.getGridDataset(nc));
+            /*
+             * Opening (and possibly aggregating) the underlying data is
+             * expensive, so we borrow an already-open handle where possible.
+             * Closing the returned GridDataSource returns it to the pool.
+             */
+            return dataSourcePool.borrow();
+        }
+
+        @Override
+        protected boolean supportsConcurrentReads() {
+            /*
+             * Each borrowed GridDataSource is for the exclusive use of its
+             * borrower, and borrowing is cheap once the pool has warmed up
+             */
+            return true;
         }
 
         @Override
@@ -375,6 +829,16 @@ public final class CdmGridDatasetFactory extends DatasetFactory {
      */
     private NetcdfDataset openAndAggregateDataset(String location) throws IOException,
             EdalException {
+        return openAndAggregateDataset(location, null);
+    }
+
+    /**
+     * Opens the NetCDF dataset at the given location, as
+     * {@link #openAndAggregateDataset(String)}, recording the layout of any
+     * multi-file aggregation in the given {@link DatasetSnapshot}
+     */
+    private NetcdfDataset openAndAggregateDataset(String location, DatasetSnapshot snapshot)
+            throws IOException, EdalException {
         NetcdfDataset nc;
         if (location.startsWith("dods://") || location.startsWith("http://")) {
             /*
@@ -405,111 +869,17 @@ public final class CdmGridDatasetFactory extends DatasetFactory {
                  * NcML and use the NetCDF aggregation libs to parse this into
                  * an aggregated dataset.
                  * 
-                 * If we have already generated the ncML on a previous call,
-                 * just use that.
+                 * The aggregation index keeps track of the time range of each
+                 * file, so that we only need to open files which are new or
+                 * have changed since the NcML was last generated.
                  */
-                if (ncmlString == null) {
-                    /*
-                     * Find the name of the time dimension
-                     */
-                    NetcdfDataset first = openAndAggregateDataset(files.get(0).getAbsolutePath());
-                    String timeDimName = null;
-                    for (Variable var : first.getVariables()) {
-                        if (var.isCoordinateVariable()) {
-                            for (Attribute attr : var.getAttributes()) {
-                                if (attr.getFullName().equalsIgnoreCase("units")
-                                        && attr.getStringValue().contains(" since ")) {
-                                    /*
-                                     * This is the time dimension. Since this is
-                                     * a co-ordinate variable, there is only 1
-                                     * dimension
-                                     */
-                                    Dimension timeDimension = var.getDimension(0);
-                                    timeDimName = timeDimension.getFullName();
-                                }
-                            }
-                        }
-                    }
-                    first.close();
-                    if (timeDimName == null) {
-                        throw new EdalException(
-                                "Cannot join multiple files without time dimensions");
-                    }
-                    /*
-                     * We can't assume that the glob expression will have
-                     * returned the files in time order.
-                     * 
-                     * We could assume that alphabetical == time ordered (and
-                     * for properly named files it will - but let's not rely on
-                     * our users having sensible naming conventions...
-                     * 
-                     * Sort the list using a comparator which opens the file and
-                     * gets the first value of the time dimension
-                     */
-                    final String aggDimName = timeDimName;
-                    Collections.sort(files, new Comparator<File>() {
-                        @Override
-                        public int compare(File ncFile1, File ncFile2) {
-                            NetcdfFile nc1 = null;
-                            NetcdfFile nc2 = null;
-                            try {
-                                nc1 = NetcdfFile.open(ncFile1.getAbsolutePath());
-                                nc2 = NetcdfFile.open(ncFile2.getAbsolutePath());
-                                Variable timeVar1 = nc1.findVariable(aggDimName);
-                                Variable timeVar2 = nc2.findVariable(aggDimName);
-                                long time1 = timeVar1.read().getLong(0);
-                                long time2 = timeVar2.read().getLong(0);
-                                return Long.compare(time1, time2);
-                            } catch (Exception e) {
-                                /*
-                                 * There was a problem reading the data. Sort
-                                 * alphanumerically by filename and hope for the
-                                 * best...
-                                 * 
-                                 * This catches all exceptions because however
-                                 * it fails this is still our best option.
-                                 * 
-                                 * If the error is a genuine problem, it'll show
-                                 * up as soon as we try and aggregate.
-                                 */
-                                return ncFile1.getAbsolutePath().compareTo(
-                                        ncFile2.getAbsolutePath());
-                            } finally {
-                                if (nc1 != null) {
-                                    try {
-                                        nc1.close();
-                                    } catch (IOException e) {
-                                        log.error("Problem closing netcdf file", e);
-                                    }
-                                }
-                                if (nc2 != null) {
-                                    try {
-                                        nc2.close();
-                                    } catch (IOException e) {
-                                        log.error("Problem closing netcdf file", e);
-                                    }
-                                }
-                            }
-                        }
-                    });
-
-                    /*
-                     * Now create the NcML string and use it to create an
-                     * aggregated dataset
-                     */
-                    StringBuffer ncmlStringBuffer = new StringBuffer();
-                    ncmlStringBuffer
-                            .append("<netcdf xmlns=\"http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2\">");
-                    ncmlStringBuffer.append("<aggregation dimName=\"" + timeDimName
-                            + "\" type=\"joinExisting\">");
-                    for (File file : files) {
-                        ncmlStringBuffer.append("<netcdf location=\"" + file.getAbsolutePath()
-                                + "\"/>");
+                AggregationIndex index = getAggregationIndex(location);
+                String ncmlString;
+                synchronized (index) {
+                    ncmlString = index.getNcml(files);
+                    if (snapshot != null) {
+                        snapshot.setAggregationLayout(index.getLayout());
                     }
-                    ncmlStringBuffer.append("</aggregation>");
-                    ncmlStringBuffer.append("</netcdf>");
-
-                    ncmlString = ncmlStringBuffer.toString();
                 }
                 nc = NcMLReader.readNcML(new StringReader(ncmlString), null);
             }
@@ -518,6 +888,20 @@ public final class CdmGridDatasetFactory extends DatasetFactory {
         return nc;
     }
 
+    /**
+     * Gets the {@link AggregationIndex} for the given location, reading it
+     * from the working directory if it has previously been stored.
+     */
+    private synchronized AggregationIndex getAggregationIndex(String location) {
+        AggregationIndex index = aggregationIndices.get(location);
+        if (index == null) {
+            File indexDir = workingDir == null ? null : new File(workingDir, "aggregations");
+            index = new AggregationIndex(location, indexDir);
+            aggregationIndices.put(location, index);
+        }
+        return index;
+    }
+
     /**
      * Returns the phenomenon that the given variable represents.
      * 
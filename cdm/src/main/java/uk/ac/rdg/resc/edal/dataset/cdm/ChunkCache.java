@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.util.BuildOnceCache;
+import uk.ac.rdg.resc.edal.util.BuildOnceCache.KeyFilter;
+
+/**
+ * A size-bounded, least-recently-used cache of decompressed data chunks. A
+ * single instance is shared between all {@link ChunkedGridDataSource}s (and
+ * hence between all concurrent requests), so that neighbouring map tiles and
+ * successive zoom levels can reuse chunks which have already been
+ * decompressed.
+ * 
+ * Chunks are held as <code>float</code> arrays, and the size of the cache is
+ * bounded by the total number of bytes in these arrays. If several requests
+ * need the same chunk at the same time, it is only read and decompressed
+ * once.
+ * 
+ * @author agent
+ */
+public final class ChunkCache {
+    /** The default maximum size of the shared cache, in bytes */
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024L * 1024L;
+
+    private static final ChunkCache INSTANCE = new ChunkCache(DEFAULT_MAX_SIZE);
+
+    private final BuildOnceCache<ChunkKey, float[]> chunks;
+
+    /**
+     * @return The {@link ChunkCache} shared by all datasets
+     */
+    public static ChunkCache getInstance() {
+        return INSTANCE;
+    }
+
+    ChunkCache(long maxSize) {
+        chunks = new BuildOnceCache<ChunkKey, float[]>("Chunk", maxSize) {
+            @Override
+            protected long getSize(float[] chunk) {
+                return chunk.length * 4L;
+            }
+        };
+    }
+
+    /**
+     * Gets a chunk from the cache
+     * 
+     * @param key
+     *            The {@link ChunkKey} identifying the chunk
+     * @return The chunk data, or <code>null</code> if it is not in the cache
+     */
+    float[] get(ChunkKey key) {
+        return chunks.getIfPresent(key);
+    }
+
+    /**
+     * Gets a chunk from the cache, reading it if it is not present. If several
+     * threads request the same chunk at the same time, it is only read once.
+     * 
+     * @param key
+     *            The {@link ChunkKey} identifying the chunk
+     * @param reader
+     *            A {@link Callable} which reads the chunk data
+     * @return The chunk data. This must not be modified.
+     * @throws IOException
+     *             If there is a problem reading the chunk
+     * @throws DataReadingException
+     *             If there is a problem reading the chunk
+     */
+    float[] get(ChunkKey key, Callable<float[]> reader) throws IOException,
+            DataReadingException {
+        try {
+            return chunks.get(key, reader);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof DataReadingException) {
+                throw (DataReadingException) cause;
+            }
+            throw new DataReadingException("Problem reading chunk", cause);
+        }
+    }
+
+    /**
+     * Adds a chunk to the cache, evicting the least-recently-used chunks if
+     * required. Chunks which are larger than the cache are not stored.
+     * 
+     * @param key
+     *            The {@link ChunkKey} identifying the chunk
+     * @param chunk
+     *            The chunk data. This must not be modified after it has been
+     *            added
+     */
+    void put(ChunkKey key, float[] chunk) {
+        chunks.put(key, chunk);
+    }
+
+    /**
+     * @return Whether a chunk of the given number of values can be held in the
+     *         cache
+     */
+    boolean canHold(long nValues) {
+        return nValues * 4L <= chunks.getMaxSize();
+    }
+
+    /**
+     * Removes all chunks belonging to the given data source, e.g. because the
+     * underlying data have changed. Chunks of this data source which are
+     * currently being read will not be stored.
+     * 
+     * @param dataSourceKey
+     *            The key identifying the data source, as used in the
+     *            {@link ChunkKey}s
+     */
+    public void invalidate(String dataSourceKey) {
+        chunks.removeAll(forDataSource(dataSourceKey));
+    }
+
+    /**
+     * Moves the chunks of a data source which only cover time indices before
+     * the given index to a new key, removing all of its other chunks. This is
+     * used when the time axis of a dataset has changed after the given index
+     * (e.g. it has been extended), so that the chunks of the time steps which
+     * are unchanged remain in the cache.
+     * 
+     * @param oldKey
+     *            The key identifying the old version of the data source
+     * @param newKey
+     *            The key identifying the new version of the data source
+     * @param nTimes
+     *            The number of time steps (from the start of the time axis)
+     *            which are unchanged in the new version
+     */
+    public void carryOver(String oldKey, String newKey, int nTimes) {
+        /*
+         * The retained chunks are re-added in their original order, so they
+         * are treated as the most recently used
+         */
+        for (Entry<ChunkKey, float[]> entry : chunks.removeAll(forDataSource(oldKey))
+                .entrySet()) {
+            ChunkKey key = entry.getKey();
+            if (key.lastTIndex < nTimes) {
+                chunks.put(new ChunkKey(newKey, key), entry.getValue());
+            }
+        }
+    }
+
+    private static KeyFilter<ChunkKey> forDataSource(final String dataSourceKey) {
+        return new KeyFilter<ChunkKey>() {
+            @Override
+            public boolean accept(ChunkKey key) {
+                return key.dataSourceKey.equals(dataSourceKey);
+            }
+        };
+    }
+
+    /**
+     * Empties the cache and resets the statistics
+     */
+    public void clear() {
+        chunks.clear();
+    }
+
+    /**
+     * Sets the maximum size of the cache, evicting chunks if necessary
+     * 
+     * @param maxSize
+     *            The maximum size, in bytes
+     */
+    public void setMaxSize(long maxSize) {
+        chunks.setMaxSize(maxSize);
+    }
+
+    public long getMaxSize() {
+        return chunks.getMaxSize();
+    }
+
+    /**
+     * @return The total size of all cached chunks, in bytes
+     */
+    public long getSize() {
+        return chunks.getSize();
+    }
+
+    public int getNumChunks() {
+        return chunks.getNumEntries();
+    }
+
+    public long getHits() {
+        return chunks.getHits();
+    }
+
+    public long getMisses() {
+        return chunks.getMisses();
+    }
+
+    /**
+     * @return The proportion of chunk requests which were found in the cache,
+     *         or 0 if there have been no requests
+     */
+    public double getHitRate() {
+        return chunks.getHitRate();
+    }
+
+    /**
+     * Identifies a single chunk of a variable within a data source
+     */
+    static final class ChunkKey {
+        private final String dataSourceKey;
+        private final String varId;
+        /* The index of the chunk along each axis, in (t,z,y,x) order */
+        private final int[] chunkIndex;
+        /*
+         * The last time index covered by the chunk, or -1 if the variable has
+         * no time axis. This is not part of the identity of the key.
+         */
+        private final int lastTIndex;
+        private final int hashCode;
+
+        ChunkKey(String dataSourceKey, String varId, int t, int z, int y, int x) {
+            /* The time indices covered are unknown, so never carry it over */
+            this(dataSourceKey, varId, t, z, y, x, Integer.MAX_VALUE);
+        }
+
+        ChunkKey(String dataSourceKey, String varId, int t, int z, int y, int x, int lastTIndex) {
+            this(dataSourceKey, varId, new int[] { t, z, y, x }, lastTIndex);
+        }
+
+        /**
+         * Creates a copy of the given key for a different data source
+         */
+        private ChunkKey(String dataSourceKey, ChunkKey key) {
+            this(dataSourceKey, key.varId, key.chunkIndex, key.lastTIndex);
+        }
+
+        private ChunkKey(String dataSourceKey, String varId, int[] chunkIndex, int lastTIndex) {
+            this.dataSourceKey = dataSourceKey;
+            this.varId = varId;
+            this.chunkIndex = chunkIndex;
+            this.lastTIndex = lastTIndex;
+
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + dataSourceKey.hashCode();
+            result = prime * result + varId.hashCode();
+            result = prime * result + Arrays.hashCode(chunkIndex);
+            hashCode = result;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            ChunkKey other = (ChunkKey) obj;
+            return hashCode == other.hashCode && dataSourceKey.equals(other.dataSourceKey)
+                    && varId.equals(other.varId) && Arrays.equals(chunkIndex, other.chunkIndex);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import uk.ac.rdg.resc.edal.dataset.DataReadingStrategy;
+import uk.ac.rdg.resc.edal.dataset.GridDataSource;
+import uk.ac.rdg.resc.edal.dataset.StridedGridDataSource;
+import uk.ac.rdg.resc.edal.dataset.cdm.ChunkCache.ChunkKey;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.FloatArray4D;
+
+/**
+ * A {@link GridDataSource} which reads chunked (e.g. compressed NetCDF-4)
+ * variables one whole chunk at a time, and keeps the decompressed chunks in a
+ * shared {@link ChunkCache}.
+ * 
+ * The underlying library has to decompress an entire chunk whenever any part
+ * of it is read. Without this, the {@link DataReadingStrategy#SCANLINE
+ * SCANLINE} strategy decompresses the same chunks once for every row, and
+ * neighbouring tiles decompress the chunks along their shared edges twice.
+ * Aligning reads to chunk boundaries means that each chunk is only ever
+ * decompressed once, as long as it stays in the cache.
+ * 
+ * Variables which are not chunked are read directly from the underlying
+ * {@link CdmGridDataSource}. Strided reads only fetch the chunks which contain
+ * at least one of the requested points.
+ * 
+ * @author agent
+ */
+final class ChunkedGridDataSource implements StridedGridDataSource {
+    private final CdmGridDataSource source;
+    private final ChunkCache cache;
+    /*
+     * Identifies the underlying data in the cache. This must be the same for
+     * all data sources reading the same data
+     */
+    private final String dataSourceKey;
+
+    /**
+     * @param source
+     *            The {@link CdmGridDataSource} to read data from
+     * @param cache
+     *            The {@link ChunkCache} to store decompressed chunks in
+     * @param dataSourceKey
+     *            A key which uniquely identifies the underlying data in the
+     *            cache
+     */
+    public ChunkedGridDataSource(CdmGridDataSource source, ChunkCache cache, String dataSourceKey) {
+        this.source = source;
+        this.cache = cache;
+        this.dataSourceKey = dataSourceKey;
+    }
+
+    @Override
+    public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+            int ymin, int ymax, int xmin, int xmax) throws IOException, DataReadingException {
+        return read(variableId, tmin, tmax, zmin, zmax, ymin, ymax, 1, xmin, xmax, 1);
+    }
+
+    @Override
+    public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+            int ymin, int ymax, int ystride, int xmin, int xmax, int xstride)
+            throws IOException, DataReadingException {
+        int[] chunkShape = source.getChunkShape(variableId);
+        if (chunkShape == null) {
+            return source.read(variableId, tmin, tmax, zmin, zmax, ymin, ymax, ystride, xmin,
+                    xmax, xstride);
+        }
+        int[] shape = source.getShape(variableId);
+        int[] mins = new int[] { tmin, zmin, ymin, xmin };
+        int[] maxs = new int[] { tmax, zmax, ymax, xmax };
+        int[] strides = new int[] { 1, 1, ystride, xstride };
+
+        long chunkValues = 1L;
+        for (int i = 0; i < 4; i++) {
+            if (mins[i] > maxs[i] || strides[i] < 1
+                    || (shape[i] > 1 && (mins[i] < 0 || maxs[i] >= shape[i]))) {
+                /*
+                 * Let the underlying data source deal with (i.e. report)
+                 * invalid ranges
+                 */
+                return source.read(variableId, tmin, tmax, zmin, zmax, ymin, ymax, ystride,
+                        xmin, xmax, xstride);
+            }
+            chunkValues *= Math.min(chunkShape[i], shape[i]);
+        }
+        if (!cache.canHold(chunkValues)) {
+            /* Chunks are too large to cache */
+            return source.read(variableId, tmin, tmax, zmin, zmax, ymin, ymax, ystride, xmin,
+                    xmax, xstride);
+        }
+
+        /*
+         * Axes of size 1 may be absent from the underlying data, in which case
+         * any index is valid and refers to the same (single) value
+         */
+        int[] sizes = new int[4];
+        int[] firstChunk = new int[4];
+        int[] lastChunk = new int[4];
+        for (int i = 0; i < 4; i++) {
+            sizes[i] = (maxs[i] - mins[i]) / strides[i] + 1;
+            if (shape[i] == 1) {
+                firstChunk[i] = 0;
+                lastChunk[i] = 0;
+            } else {
+                firstChunk[i] = mins[i] / chunkShape[i];
+                lastChunk[i] = (mins[i] + (sizes[i] - 1) * strides[i]) / chunkShape[i];
+            }
+        }
+
+        float[] data = new float[sizes[0] * sizes[1] * sizes[2] * sizes[3]];
+        int[] chunkMins = new int[4];
+        int[] chunkSizes = new int[4];
+        int[] outStart = new int[4];
+        int[] outEnd = new int[4];
+        for (int ct = firstChunk[0]; ct <= lastChunk[0]; ct++) {
+            for (int cz = firstChunk[1]; cz <= lastChunk[1]; cz++) {
+                for (int cy = firstChunk[2]; cy <= lastChunk[2]; cy++) {
+                    for (int cx = firstChunk[3]; cx <= lastChunk[3]; cx++) {
+                        int[] chunkIndex = new int[] { ct, cz, cy, cx };
+                        boolean sampled = true;
+                        for (int i = 0; i < 4; i++) {
+                            chunkMins[i] = chunkIndex[i] * chunkShape[i];
+                            chunkSizes[i] = Math.min(chunkShape[i], shape[i] - chunkMins[i]);
+                            /*
+                             * Find the range of output indices along this axis
+                             * which are covered by this chunk
+                             */
+                            if (shape[i] == 1) {
+                                /* All output indices map onto the single value */
+                                outStart[i] = 0;
+                                outEnd[i] = sizes[i];
+                            } else {
+                                outStart[i] = ceilDiv(Math.max(chunkMins[i], mins[i]) - mins[i],
+                                        strides[i]);
+                                outEnd[i] = Math.min(
+                                        ceilDiv(chunkMins[i] + chunkSizes[i] - mins[i],
+                                                strides[i]), sizes[i]);
+                            }
+                            if (outStart[i] >= outEnd[i]) {
+                                sampled = false;
+                            }
+                        }
+                        if (!sampled) {
+                            /*
+                             * The stride steps over this chunk entirely, so
+                             * there is no need to read it
+                             */
+                            continue;
+                        }
+                        float[] chunk = getChunk(variableId, chunkIndex, chunkMins, chunkSizes,
+                                shape[0] == 1);
+                        copyFromChunk(chunk, chunkMins, chunkSizes, shape, mins, strides,
+                                sizes, outStart, outEnd, data);
+                    }
+                }
+            }
+        }
+        return new FloatArray4D(sizes[0], sizes[1], sizes[2], sizes[3], data);
+    }
+
+    private static int ceilDiv(int numerator, int denominator) {
+        return (numerator + denominator - 1) / denominator;
+    }
+
+    /**
+     * Gets a chunk, either from the cache or by reading it from the underlying
+     * data source
+     */
+    private float[] getChunk(final String variableId, int[] chunkIndex, final int[] chunkMins,
+            final int[] chunkSizes, boolean timeIndependent) throws IOException,
+            DataReadingException {
+        ChunkKey key = new ChunkKey(dataSourceKey, variableId, chunkIndex[0], chunkIndex[1],
+                chunkIndex[2], chunkIndex[3], timeIndependent ? -1 : chunkMins[0]
+                        + chunkSizes[0] - 1);
+        return cache.get(key, new Callable<float[]>() {
+            @Override
+            public float[] call() throws IOException, DataReadingException {
+                Array4D<Number> chunkData = source.read(variableId, chunkMins[0], chunkMins[0]
+                        + chunkSizes[0] - 1, chunkMins[1], chunkMins[1] + chunkSizes[1] - 1,
+                        chunkMins[2], chunkMins[2] + chunkSizes[2] - 1, chunkMins[3],
+                        chunkMins[3] + chunkSizes[3] - 1);
+                if (chunkData instanceof FloatArray4D) {
+                    return ((FloatArray4D) chunkData).getData();
+                }
+                float[] chunk = new float[(int) chunkData.size()];
+                chunkData.copyInto(chunk);
+                return chunk;
+            }
+        });
+    }
+
+    /**
+     * Copies the part of a chunk which intersects the requested range into
+     * the output array. <code>outStart</code> and <code>outEnd</code> give the
+     * range of output indices along each axis which are covered by the chunk.
+     */
+    private static void copyFromChunk(float[] chunk, int[] chunkMins, int[] chunkSizes,
+            int[] shape, int[] mins, int[] strides, int[] sizes, int[] outStart, int[] outEnd,
+            float[] data) {
+        for (int t = outStart[0]; t < outEnd[0]; t++) {
+            int chunkT = shape[0] == 1 ? 0 : t + mins[0] - chunkMins[0];
+            for (int z = outStart[1]; z < outEnd[1]; z++) {
+                int chunkZ = shape[1] == 1 ? 0 : z + mins[1] - chunkMins[1];
+                for (int y = outStart[2]; y < outEnd[2]; y++) {
+                    int chunkY = shape[2] == 1 ? 0 : y * strides[2] + mins[2] - chunkMins[2];
+                    int chunkRow = ((chunkT * chunkSizes[1] + chunkZ) * chunkSizes[2] + chunkY)
+                            * chunkSizes[3];
+                    int outRow = ((t * sizes[1] + z) * sizes[2] + y) * sizes[3];
+                    if (shape[3] == 1) {
+                        for (int x = outStart[3]; x < outEnd[3]; x++) {
+                            data[outRow + x] = chunk[chunkRow];
+                        }
+                    } else if (strides[3] == 1) {
+                        int chunkX = outStart[3] + mins[3] - chunkMins[3];
+                        System.arraycopy(chunk, chunkRow + chunkX, data, outRow + outStart[3],
+                                outEnd[3] - outStart[3]);
+                    } else {
+                        int chunkX = outStart[3] * strides[3] + mins[3] - chunkMins[3];
+                        for (int x = outStart[3]; x < outEnd[3]; x++) {
+                            data[outRow + x] = chunk[chunkRow + chunkX];
+                            chunkX += strides[3];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
@@ -0,0 +1,899 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.GregorianChronology;
+import org.joda.time.chrono.ISOChronology;
+import org.joda.time.chrono.JulianChronology;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.dataset.DataReadingCostModel;
+import uk.ac.rdg.resc.edal.dataset.DataReadingStrategy;
+import uk.ac.rdg.resc.edal.dataset.plugins.MeanSDPlugin;
+import uk.ac.rdg.resc.edal.dataset.plugins.VariablePlugin;
+import uk.ac.rdg.resc.edal.dataset.plugins.VectorPlugin;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.LookUpTableGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGridImpl;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularAxis;
+import uk.ac.rdg.resc.edal.grid.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
+import uk.ac.rdg.resc.edal.grid.VerticalAxis;
+import uk.ac.rdg.resc.edal.grid.VerticalAxisImpl;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.position.LonLatPosition;
+import uk.ac.rdg.resc.edal.position.VerticalCrs;
+import uk.ac.rdg.resc.edal.position.VerticalCrsImpl;
+import uk.ac.rdg.resc.edal.util.AtomicFile;
+import uk.ac.rdg.resc.edal.util.CurvilinearCoords;
+import uk.ac.rdg.resc.edal.util.FloatArray2D;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.chronologies.AllLeapChronology;
+import uk.ac.rdg.resc.edal.util.chronologies.NoLeapChronology;
+import uk.ac.rdg.resc.edal.util.chronologies.ThreeSixtyDayChronology;
+import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
+
+/**
+ * A snapshot of everything needed to recreate a dataset from
+ * {@link CdmGridDatasetFactory} without opening the underlying data: the
+ * variables with their domains, the plugins, and the data reading strategy and
+ * cost model.
+ * 
+ * Snapshots are written to disk so that they persist between restarts. Along
+ * with the metadata they record the size and modification time of each file
+ * in the dataset, so that it is cheap to check whether a snapshot is still
+ * up-to-date. This is not possible for remote datasets or NcML documents
+ * (which may refer to any number of other files, local or remote), so their
+ * snapshots can only be used to make the dataset available whilst it is
+ * reloaded.
+ * 
+ * Only the types of domain which {@link CdmUtils} creates for lat-lon data
+ * (regular, rectilinear and curvilinear grids) can be stored. Datasets with
+ * other domains (e.g. projected grids) cannot be snapshotted.
+ * 
+ * @author agent
+ */
+final class DatasetSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(DatasetSnapshot.class);
+
+    /* Increment this if the format of the serialised snapshot changes */
+    private static final int SNAPSHOT_VERSION = 2;
+
+    private final String id;
+    private final String location;
+    /*
+     * The files making up the dataset, or null if they cannot be checked for
+     * changes
+     */
+    private final ArrayList<FileStamp> files;
+    /*
+     * The number of time values in each file of a multi-file aggregation, in
+     * time order, or null if the dataset is not an aggregation
+     */
+    private LinkedHashMap<String, Integer> aggregationLayout = null;
+    private final Collection<GridVariableMetadata> variables;
+    private final List<PluginSpec> plugins = new ArrayList<PluginSpec>();
+    private DataReadingStrategy dataReadingStrategy = null;
+    private DataReadingCostModel dataReadingCostModel = null;
+
+    /**
+     * Creates a snapshot of a dataset which is being created. This should be
+     * called before the underlying data is opened, so that if the data is
+     * modified during the creation, the snapshot will be out-of-date.
+     * 
+     * @param id
+     *            The ID of the dataset
+     * @param location
+     *            The location of the dataset
+     * @param variables
+     *            The variables in the dataset. These may be added to after
+     *            the snapshot is created
+     */
+    DatasetSnapshot(String id, String location, Collection<GridVariableMetadata> variables) {
+        this(id, location, getFileStamps(location), variables);
+    }
+
+    private DatasetSnapshot(String id, String location, ArrayList<FileStamp> files,
+            Collection<GridVariableMetadata> variables) {
+        this.id = id;
+        this.location = location;
+        this.files = files;
+        this.variables = variables;
+    }
+
+    void addVectorPlugin(String xComponentId, String yComponentId, String commonName,
+            boolean eastNorthComps) {
+        plugins.add(new PluginSpec(PluginSpec.VECTOR, new String[] { xComponentId,
+                yComponentId, commonName }, eastNorthComps));
+    }
+
+    void addMeanSDPlugin(String meanComponentId, String sdComponentId, String title) {
+        plugins.add(new PluginSpec(PluginSpec.MEAN_SD, new String[] { meanComponentId,
+                sdComponentId, title }, false));
+    }
+
+    void setDataReadingStrategy(DataReadingStrategy dataReadingStrategy) {
+        this.dataReadingStrategy = dataReadingStrategy;
+    }
+
+    void setDataReadingCostModel(DataReadingCostModel dataReadingCostModel) {
+        this.dataReadingCostModel = dataReadingCostModel;
+    }
+
+    /**
+     * @return Whether this is a snapshot of the dataset with the given ID and
+     *         location
+     */
+    boolean isOf(String id, String location) {
+        return this.id.equals(id) && this.location.equals(location);
+    }
+
+    void setAggregationLayout(Map<String, Integer> aggregationLayout) {
+        this.aggregationLayout = aggregationLayout == null ? null
+                : new LinkedHashMap<String, Integer>(aggregationLayout);
+    }
+
+    /**
+     * @return The absolute paths of the files in a multi-file aggregation, in
+     *         time order, mapped to the number of time values in each, or
+     *         <code>null</code> if the dataset is not an aggregation
+     */
+    Map<String, Integer> getAggregationLayout() {
+        return aggregationLayout;
+    }
+
+    Collection<GridVariableMetadata> getVariables() {
+        return variables;
+    }
+
+    DataReadingStrategy getDataReadingStrategy() {
+        return dataReadingStrategy;
+    }
+
+    /**
+     * @return The calibrated {@link DataReadingCostModel}, or
+     *         <code>null</code> if the dataset was not calibrated
+     */
+    DataReadingCostModel getDataReadingCostModel() {
+        return dataReadingCostModel;
+    }
+
+    /**
+     * @return New instances of the {@link VariablePlugin}s in the dataset
+     */
+    List<VariablePlugin> createPlugins() {
+        List<VariablePlugin> ret = new ArrayList<VariablePlugin>();
+        for (PluginSpec plugin : plugins) {
+            if (plugin.type == PluginSpec.VECTOR) {
+                ret.add(new VectorPlugin(plugin.args[0], plugin.args[1], plugin.args[2],
+                        plugin.flag));
+            } else {
+                ret.add(new MeanSDPlugin(plugin.args[0], plugin.args[1], plugin.args[2]));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Creates a snapshot of a new version of this dataset, which has the same
+     * plugins, data reading strategy and cost model. As with a new snapshot,
+     * this should be called before the underlying data is opened.
+     * 
+     * @param variables
+     *            The variables in the new version of the dataset. These may be
+     *            added to after the snapshot is created
+     * @return The new snapshot
+     */
+    DatasetSnapshot createUpdate(Collection<GridVariableMetadata> variables) {
+        DatasetSnapshot update = new DatasetSnapshot(id, location, variables);
+        update.plugins.addAll(plugins);
+        update.dataReadingStrategy = dataReadingStrategy;
+        update.dataReadingCostModel = dataReadingCostModel;
+        return update;
+    }
+
+    /**
+     * @return A string which identifies the version of the data in this
+     *         snapshot: its location, and the size and modification time of
+     *         each of its files. This is <code>null</code> if the dataset is
+     *         not local.
+     */
+    String getSourceId() {
+        if (files == null) {
+            return null;
+        }
+        StringBuilder sourceId = new StringBuilder(location);
+        for (FileStamp stamp : files) {
+            sourceId.append('\n').append(stamp.path).append(':').append(stamp.size)
+                    .append(':').append(stamp.lastModified);
+        }
+        return sourceId.toString();
+    }
+
+    /**
+     * Finds the files which have not been modified between this snapshot and
+     * a newer snapshot of the same dataset
+     * 
+     * @param newer
+     *            The newer snapshot
+     * @return The absolute paths of the files which are in both snapshots
+     *         with the same size and modification time, or <code>null</code>
+     *         if the dataset is not local, or the files of either snapshot do
+     *         not match its aggregation layout
+     */
+    Set<String> getUnchangedFiles(DatasetSnapshot newer) {
+        if (!hasConsistentLayout() || !newer.hasConsistentLayout()) {
+            return null;
+        }
+        Set<String> unchanged = new HashSet<String>();
+        Set<FileStamp> newFiles = new HashSet<FileStamp>(newer.files);
+        for (FileStamp stamp : files) {
+            if (newFiles.contains(stamp)) {
+                unchanged.add(stamp.path);
+            }
+        }
+        return unchanged;
+    }
+
+    /**
+     * @return Whether this snapshot is of a local dataset whose files are
+     *         exactly those in the aggregation layout (if there is one)
+     */
+    private boolean hasConsistentLayout() {
+        if (files == null) {
+            return false;
+        }
+        if (aggregationLayout == null) {
+            return true;
+        }
+        Set<String> paths = new HashSet<String>();
+        for (FileStamp stamp : files) {
+            paths.add(stamp.path);
+        }
+        return paths.equals(aggregationLayout.keySet());
+    }
+
+    /**
+     * Writes this snapshot to disk
+     * 
+     * @param snapshotDir
+     *            The directory to write the snapshot to
+     * @return <code>true</code> if the snapshot was written,
+     *         <code>false</code> if the dataset contains domains which cannot
+     *         be stored
+     * @throws IOException
+     *             If there is a problem writing the snapshot
+     */
+    boolean write(File snapshotDir) throws IOException {
+        final SnapshotContents contents = SnapshotContents.fromSnapshot(this);
+        if (contents == null) {
+            return false;
+        }
+        File snapshotFile = getSnapshotFile(snapshotDir, id, location);
+        /* A partially written snapshot is never read */
+        AtomicFile.write(snapshotFile, new AtomicFile.Writer() {
+            @Override
+            public void writeTo(OutputStream os) throws IOException {
+                ObjectOutputStream out = new ObjectOutputStream(os);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeObject(id);
+                out.writeObject(location);
+                out.writeObject(files);
+                out.writeObject(aggregationLayout);
+                out.writeObject(contents);
+                out.close();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Reads a snapshot from disk
+     * 
+     * @param snapshotDir
+     *            The directory containing snapshots
+     * @param id
+     *            The ID of the dataset
+     * @param location
+     *            The location of the dataset
+     * @return The snapshot, or <code>null</code> if there is no usable
+     *         snapshot for the given dataset
+     */
+    static DatasetSnapshot read(File snapshotDir, String id, String location) {
+        return readSnapshot(snapshotDir, id, location, true);
+    }
+
+    /**
+     * Checks whether the snapshot of a dataset is up-to-date with the files
+     * making up the dataset. This only reads the header of the snapshot, so is
+     * cheap.
+     * 
+     * @param snapshotDir
+     *            The directory containing snapshots
+     * @param id
+     *            The ID of the dataset
+     * @param location
+     *            The location of the dataset
+     * @return <code>true</code> if the snapshot exists and none of the files
+     *         in the dataset have been added, removed or modified since it was
+     *         taken. Remote datasets and NcML documents are never
+     *         up-to-date, since we cannot check them cheaply
+     */
+    static boolean isCurrent(File snapshotDir, String id, String location) {
+        DatasetSnapshot snapshot = readSnapshot(snapshotDir, id, location, false);
+        if (snapshot == null || snapshot.files == null) {
+            return false;
+        }
+        List<FileStamp> currentFiles = getFileStamps(location);
+        return currentFiles != null && !currentFiles.isEmpty()
+                && currentFiles.equals(snapshot.files);
+    }
+
+    /**
+     * Reads a snapshot, optionally only reading the header
+     */
+    @SuppressWarnings("unchecked")
+    private static DatasetSnapshot readSnapshot(File snapshotDir, String id, String location,
+            boolean readContents) {
+        File snapshotFile = getSnapshotFile(snapshotDir, id, location);
+        if (!snapshotFile.exists()) {
+            return null;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+            int version = in.readInt();
+            if (version != SNAPSHOT_VERSION) {
+                /* An old format. It will be replaced on the next full load */
+                return null;
+            }
+            String snapshotId = (String) in.readObject();
+            String snapshotLocation = (String) in.readObject();
+            if (!id.equals(snapshotId) || !location.equals(snapshotLocation)) {
+                /* A hash collision with another dataset */
+                return null;
+            }
+            ArrayList<FileStamp> files = (ArrayList<FileStamp>) in.readObject();
+            if (!readContents) {
+                return new DatasetSnapshot(id, location, files,
+                        new ArrayList<GridVariableMetadata>());
+            }
+            LinkedHashMap<String, Integer> aggregationLayout = (LinkedHashMap<String, Integer>) in
+                    .readObject();
+            SnapshotContents contents = (SnapshotContents) in.readObject();
+            DatasetSnapshot snapshot = contents.toSnapshot(id, location, files);
+            snapshot.aggregationLayout = aggregationLayout;
+            return snapshot;
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            /*
+             * Not a big problem - the dataset will just be loaded in full
+             */
+            log.warn("Problem reading metadata snapshot for dataset " + id, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.error("Problem closing metadata snapshot file", e);
+                }
+            }
+        }
+    }
+
+    private static File getSnapshotFile(File snapshotDir, String id, String location) {
+        return new File(snapshotDir, "snapshot-"
+                + Integer.toHexString((id + "@" + location).hashCode()) + ".ser");
+    }
+
+    /**
+     * @return The sizes and modification times of the files making up the
+     *         dataset at the given location, or <code>null</code> if it is
+     *         not a local dataset, or if it includes any NcML documents
+     */
+    private static ArrayList<FileStamp> getFileStamps(String location) {
+        if (location.contains("://")) {
+            /*
+             * Any URL (OPeNDAP, HTTP(S), etc.) - we have no way of knowing
+             * whether the data have changed
+             */
+            return null;
+        }
+        ArrayList<FileStamp> stamps = new ArrayList<FileStamp>();
+        for (File file : CdmUtils.expandGlobExpression(location)) {
+            if (CdmUtils.isNcmlAggregation(file.getPath())) {
+                /*
+                 * The files which NcML refers to (possibly through scans or
+                 * other NcML documents) can change without the document itself
+                 * changing
+                 */
+                return null;
+            }
+            stamps.add(new FileStamp(file));
+        }
+        return stamps;
+    }
+
+    /**
+     * The size and modification time of a file in the dataset
+     */
+    private static final class FileStamp implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+        private final long size;
+        private final long lastModified;
+
+        public FileStamp(File file) {
+            path = file.getAbsolutePath();
+            size = file.length();
+            lastModified = file.lastModified();
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode() ^ (int) size ^ (int) lastModified;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FileStamp)) {
+                return false;
+            }
+            FileStamp other = (FileStamp) obj;
+            return path.equals(other.path) && size == other.size
+                    && lastModified == other.lastModified;
+        }
+    }
+
+    /**
+     * The arguments needed to recreate a {@link VariablePlugin}
+     */
+    private static final class PluginSpec implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private static final int VECTOR = 0;
+        private static final int MEAN_SD = 1;
+
+        private final int type;
+        private final String[] args;
+        private final boolean flag;
+
+        public PluginSpec(int type, String[] args, boolean flag) {
+            this.type = type;
+            this.args = args;
+            this.flag = flag;
+        }
+    }
+
+    /**
+     * The serialisable form of the metadata in a snapshot. Domains which are
+     * shared between variables are only stored once.
+     */
+    private static final class SnapshotContents implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final List<GridEntry> grids = new ArrayList<GridEntry>();
+        private final List<VerticalAxisEntry> zAxes = new ArrayList<VerticalAxisEntry>();
+        private final List<TimeAxisEntry> tAxes = new ArrayList<TimeAxisEntry>();
+        private final List<VariableEntry> variables = new ArrayList<VariableEntry>();
+        private final List<PluginSpec> plugins = new ArrayList<PluginSpec>();
+        private String dataReadingStrategy = null;
+        private double msPerRead = Double.NaN;
+        private double msPerValue = Double.NaN;
+
+        /**
+         * @return The serialisable form of the given snapshot, or
+         *         <code>null</code> if it contains domains which cannot be
+         *         stored
+         */
+        private static SnapshotContents fromSnapshot(DatasetSnapshot snapshot) {
+            SnapshotContents contents = new SnapshotContents();
+            Map<HorizontalGrid, Integer> gridIndices = new IdentityHashMap<HorizontalGrid, Integer>();
+            Map<VerticalAxis, Integer> zIndices = new IdentityHashMap<VerticalAxis, Integer>();
+            Map<TimeAxis, Integer> tIndices = new IdentityHashMap<TimeAxis, Integer>();
+            for (GridVariableMetadata metadata : snapshot.variables) {
+                HorizontalGrid grid = metadata.getHorizontalDomain();
+                if (!gridIndices.containsKey(grid)) {
+                    GridEntry entry = GridEntry.fromGrid(grid);
+                    if (entry == null) {
+                        return null;
+                    }
+                    gridIndices.put(grid, contents.grids.size());
+                    contents.grids.add(entry);
+                }
+                VerticalAxis zAxis = metadata.getVerticalDomain();
+                if (zAxis != null && !zIndices.containsKey(zAxis)) {
+                    VerticalAxisEntry entry = VerticalAxisEntry.fromAxis(zAxis);
+                    if (entry == null) {
+                        return null;
+                    }
+                    zIndices.put(zAxis, contents.zAxes.size());
+                    contents.zAxes.add(entry);
+                }
+                TimeAxis tAxis = metadata.getTemporalDomain();
+                if (tAxis != null && !tIndices.containsKey(tAxis)) {
+                    TimeAxisEntry entry = TimeAxisEntry.fromAxis(tAxis);
+                    if (entry == null) {
+                        return null;
+                    }
+                    tIndices.put(tAxis, contents.tAxes.size());
+                    contents.tAxes.add(entry);
+                }
+                contents.variables.add(new VariableEntry(metadata, gridIndices.get(grid),
+                        zAxis == null ? -1 : zIndices.get(zAxis), tAxis == null ? -1
+                                : tIndices.get(tAxis)));
+            }
+            contents.plugins.addAll(snapshot.plugins);
+            if (snapshot.dataReadingStrategy != null) {
+                contents.dataReadingStrategy = snapshot.dataReadingStrategy.name();
+            }
+            if (snapshot.dataReadingCostModel != null) {
+                contents.msPerRead = snapshot.dataReadingCostModel.getMsPerRead();
+                contents.msPerValue = snapshot.dataReadingCostModel.getMsPerValue();
+            }
+            return contents;
+        }
+
+        private DatasetSnapshot toSnapshot(String id, String location,
+                ArrayList<FileStamp> files) {
+            List<HorizontalGrid> hGrids = new ArrayList<HorizontalGrid>();
+            for (GridEntry entry : grids) {
+                hGrids.add(entry.toGrid());
+            }
+            List<VerticalAxis> verticalAxes = new ArrayList<VerticalAxis>();
+            for (VerticalAxisEntry entry : zAxes) {
+                verticalAxes.add(entry.toAxis());
+            }
+            List<TimeAxis> timeAxes = new ArrayList<TimeAxis>();
+            for (TimeAxisEntry entry : tAxes) {
+                timeAxes.add(entry.toAxis());
+            }
+            List<GridVariableMetadata> metadata = new ArrayList<GridVariableMetadata>();
+            for (VariableEntry entry : variables) {
+                metadata.add(new GridVariableMetadata(entry.id, new Parameter(entry.parameterId,
+                        entry.title, entry.description, entry.units, entry.standardName),
+                        hGrids.get(entry.gridIndex), entry.zIndex < 0 ? null : verticalAxes
+                                .get(entry.zIndex), entry.tIndex < 0 ? null : timeAxes
+                                .get(entry.tIndex), entry.scalar));
+            }
+            DatasetSnapshot snapshot = new DatasetSnapshot(id, location, files, metadata);
+            snapshot.plugins.addAll(plugins);
+            if (dataReadingStrategy != null) {
+                snapshot.dataReadingStrategy = DataReadingStrategy.valueOf(dataReadingStrategy);
+            }
+            if (!Double.isNaN(msPerRead)) {
+                snapshot.dataReadingCostModel = new DataReadingCostModel(msPerRead, msPerValue);
+            }
+            return snapshot;
+        }
+    }
+
+    private static final class VariableEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String id;
+        private final String parameterId;
+        private final String title;
+        private final String description;
+        private final String units;
+        private final String standardName;
+        private final boolean scalar;
+        private final int gridIndex;
+        private final int zIndex;
+        private final int tIndex;
+
+        public VariableEntry(GridVariableMetadata metadata, int gridIndex, int zIndex, int tIndex) {
+            Parameter parameter = metadata.getParameter();
+            id = metadata.getId();
+            parameterId = parameter.getId();
+            title = parameter.getTitle();
+            description = parameter.getDescription();
+            units = parameter.getUnits();
+            standardName = parameter.getStandardName();
+            scalar = metadata.isScalar();
+            this.gridIndex = gridIndex;
+            this.zIndex = zIndex;
+            this.tIndex = tIndex;
+        }
+    }
+
+    /**
+     * A stored {@link HorizontalGrid}. This is either a regular or
+     * rectilinear grid in WGS84, or a curvilinear grid defined by the
+     * positions of its cell centres.
+     */
+    private static final class GridEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private static final int REGULAR = 0;
+        private static final int RECTILINEAR = 1;
+        private static final int CURVILINEAR = 2;
+
+        private final int type;
+        private AxisEntry xAxis = null;
+        private AxisEntry yAxis = null;
+        private int ni;
+        private int nj;
+        private float[] longitudes = null;
+        private float[] latitudes = null;
+
+        private GridEntry(int type) {
+            this.type = type;
+        }
+
+        /**
+         * @return The stored form of the grid, or <code>null</code> if it
+         *         cannot be stored
+         */
+        private static GridEntry fromGrid(HorizontalGrid grid) {
+            /*
+             * Check the exact classes, since subclasses may have state which
+             * we can't store
+             */
+            if (grid.getClass() == RegularGridImpl.class
+                    || grid.getClass() == RectilinearGridImpl.class) {
+                if (!GISUtils.isWgs84LonLat(grid.getCoordinateReferenceSystem())) {
+                    return null;
+                }
+                GridEntry entry;
+                if (grid.getClass() == RegularGridImpl.class) {
+                    entry = new GridEntry(REGULAR);
+                    entry.xAxis = AxisEntry.fromAxis(((RegularGridImpl) grid).getXAxis());
+                    entry.yAxis = AxisEntry.fromAxis(((RegularGridImpl) grid).getYAxis());
+                } else {
+                    entry = new GridEntry(RECTILINEAR);
+                    entry.xAxis = AxisEntry.fromAxis(((RectilinearGridImpl) grid).getXAxis());
+                    entry.yAxis = AxisEntry.fromAxis(((RectilinearGridImpl) grid).getYAxis());
+                }
+                return entry.xAxis == null || entry.yAxis == null ? null : entry;
+            } else if (grid instanceof LookUpTableGrid) {
+                CurvilinearCoords coords = ((LookUpTableGrid) grid).getCurvilinearCoords();
+                GridEntry entry = new GridEntry(CURVILINEAR);
+                entry.ni = coords.getNi();
+                entry.nj = coords.getNj();
+                entry.longitudes = new float[entry.ni * entry.nj];
+                entry.latitudes = new float[entry.ni * entry.nj];
+                int index = 0;
+                for (int j = 0; j < entry.nj; j++) {
+                    for (int i = 0; i < entry.ni; i++) {
+                        LonLatPosition midpoint = coords.getMidpoint(i, j);
+                        entry.longitudes[index] = (float) midpoint.getLongitude();
+                        entry.latitudes[index] = (float) midpoint.getLatitude();
+                        index++;
+                    }
+                }
+                return entry;
+            }
+            return null;
+        }
+
+        private HorizontalGrid toGrid() {
+            switch (type) {
+            case REGULAR:
+                return new RegularGridImpl((RegularAxis) xAxis.toAxis(true),
+                        (RegularAxis) yAxis.toAxis(false), DefaultGeographicCRS.WGS84);
+            case RECTILINEAR:
+                return new RectilinearGridImpl(xAxis.toAxis(true), yAxis.toAxis(false),
+                        DefaultGeographicCRS.WGS84);
+            default:
+                return LookUpTableGrid.generate(new FloatArray2D(nj, ni, longitudes),
+                        new FloatArray2D(nj, ni, latitudes));
+            }
+        }
+    }
+
+    /**
+     * A stored {@link ReferenceableAxis}, either regular or irregular
+     */
+    private static final class AxisEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final boolean regular;
+        private final double firstValue;
+        private final double spacing;
+        private final int size;
+        private final double[] values;
+
+        private AxisEntry(String name, boolean regular, double firstValue, double spacing,
+                int size, double[] values) {
+            this.name = name;
+            this.regular = regular;
+            this.firstValue = firstValue;
+            this.spacing = spacing;
+            this.size = size;
+            this.values = values;
+        }
+
+        private static AxisEntry fromAxis(ReferenceableAxis<Double> axis) {
+            if (axis instanceof RegularAxisImpl) {
+                RegularAxis regularAxis = (RegularAxis) axis;
+                return new AxisEntry(axis.getName(), true, regularAxis.getCoordinateValue(0),
+                        regularAxis.getCoordinateSpacing(), regularAxis.size(), null);
+            } else if (axis instanceof ReferenceableAxisImpl) {
+                return new AxisEntry(axis.getName(), false, 0, 0, axis.size(),
+                        toArray(axis.getCoordinateValues()));
+            }
+            return null;
+        }
+
+        /**
+         * @param isLongitude
+         *            Whether this is a longitude axis. For the lat-lon grids
+         *            which can be stored, this is always the x-axis
+         */
+        private ReferenceableAxis<Double> toAxis(boolean isLongitude) {
+            if (regular) {
+                return new RegularAxisImpl(name, firstValue, spacing, size, isLongitude);
+            } else {
+                return new ReferenceableAxisImpl(name, toList(values), isLongitude);
+            }
+        }
+    }
+
+    private static final class VerticalAxisEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final double[] values;
+        private final String units;
+        private final boolean pressure;
+        private final boolean dimensionless;
+        private final boolean positiveUpwards;
+
+        private VerticalAxisEntry(VerticalAxis axis) {
+            VerticalCrs crs = axis.getVerticalCrs();
+            name = axis.getName();
+            values = toArray(axis.getCoordinateValues());
+            units = crs.getUnits();
+            pressure = crs.isPressure();
+            dimensionless = crs.isDimensionless();
+            positiveUpwards = crs.isPositiveUpwards();
+        }
+
+        private static VerticalAxisEntry fromAxis(VerticalAxis axis) {
+            if (!(axis instanceof VerticalAxisImpl) || axis.getVerticalCrs() == null) {
+                return null;
+            }
+            return new VerticalAxisEntry(axis);
+        }
+
+        private VerticalAxis toAxis() {
+            return new VerticalAxisImpl(name, toList(values), new VerticalCrsImpl(units,
+                    pressure, dimensionless, positiveUpwards));
+        }
+    }
+
+    private static final class TimeAxisEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final long[] millis;
+        private final String chronology;
+        private final String zoneId;
+
+        private TimeAxisEntry(TimeAxis axis, String chronology) {
+            name = axis.getName();
+            List<DateTime> values = axis.getCoordinateValues();
+            millis = new long[values.size()];
+            for (int i = 0; i < millis.length; i++) {
+                millis[i] = values.get(i).getMillis();
+            }
+            this.chronology = chronology;
+            zoneId = axis.getChronology().getZone().getID();
+        }
+
+        private static TimeAxisEntry fromAxis(TimeAxis axis) {
+            if (!(axis instanceof TimeAxisImpl) || axis.getChronology() == null) {
+                return null;
+            }
+            /*
+             * Chronologies are identified by class, and recreated using the
+             * same factory methods as CdmUtils
+             */
+            Chronology chron = axis.getChronology();
+            if (chron instanceof ISOChronology || chron instanceof GregorianChronology
+                    || chron instanceof JulianChronology || chron instanceof NoLeapChronology
+                    || chron instanceof AllLeapChronology
+                    || chron instanceof ThreeSixtyDayChronology) {
+                return new TimeAxisEntry(axis, chron.getClass().getName());
+            }
+            return null;
+        }
+
+        private TimeAxis toAxis() {
+            DateTimeZone zone = DateTimeZone.forID(zoneId);
+            Chronology chron;
+            if (chronology.equals(ISOChronology.class.getName())) {
+                chron = ISOChronology.getInstance(zone);
+            } else if (chronology.equals(GregorianChronology.class.getName())) {
+                chron = GregorianChronology.getInstance(zone);
+            } else if (chronology.equals(JulianChronology.class.getName())) {
+                chron = JulianChronology.getInstance(zone);
+            } else if (chronology.equals(NoLeapChronology.class.getName())) {
+                chron = NoLeapChronology.getInstanceUTC();
+            } else if (chronology.equals(AllLeapChronology.class.getName())) {
+                chron = AllLeapChronology.getInstanceUTC();
+            } else if (chronology.equals(ThreeSixtyDayChronology.class.getName())) {
+                chron = ThreeSixtyDayChronology.getInstanceUTC();
+            } else {
+                throw new IllegalArgumentException("Unknown chronology: " + chronology);
+            }
+            List<DateTime> values = new ArrayList<DateTime>(millis.length);
+            for (long value : millis) {
+                values.add(new DateTime(value, chron));
+            }
+            return new TimeAxisImpl(name, values);
+        }
+    }
+
+    private static double[] toArray(List<Double> values) {
+        double[] ret = new double[values.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = values.get(i);
+        }
+        return ret;
+    }
+
+    private static List<Double> toList(double[] values) {
+        List<Double> ret = new ArrayList<Double>(values.length);
+        for (double value : values) {
+            ret.add(value);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,561 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dt.GridDatatype;
+import uk.ac.rdg.resc.edal.dataset.GridDataSource;
+import uk.ac.rdg.resc.edal.dataset.GridDataSourcePool.CheckedGridDataSource;
+import uk.ac.rdg.resc.edal.dataset.StridedGridDataSource;
+import uk.ac.rdg.resc.edal.dataset.cdm.CdmGridDataSource.VariableDecoder;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.FloatArray4D;
+
+/**
+ * A {@link GridDataSource} which reads data directly from a memory-mapped
+ * NetCDF-3 file (either the classic or the 64-bit offset format).
+ * 
+ * The NetCDF-3 formats store each variable uncompressed, in big-endian order,
+ * at an offset given in the file header. This parses the header once, and
+ * then reads values straight from the mapped file into a float array, without
+ * creating any intermediate arrays.
+ * 
+ * The interpretation of the data (i.e. which dimensions correspond to which
+ * axes, and how to unpack the values) is still taken from the CDM. Variables
+ * which cannot be read directly (e.g. those which are not in the file, or
+ * whose size has changed since the file was mapped) are read from the
+ * underlying {@link CdmGridDataSource}.
+ * 
+ * A mapping does not follow changes to the file, so this records the length
+ * and modification time of the file when it was mapped, and reports itself as
+ * no longer current (and so not to be reused by a pool) once they change.
+ * 
+ * @author agent
+ */
+final class MappedNetcdf3GridDataSource implements StridedGridDataSource,
+        CheckedGridDataSource {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* Tags and types from the NetCDF-3 format specification */
+    private static final int NC_DIMENSION = 0x0A;
+    private static final int NC_VARIABLE = 0x0B;
+    private static final int NC_ATTRIBUTE = 0x0C;
+    private static final int NC_BYTE = 1;
+    private static final int NC_CHAR = 2;
+    private static final int NC_SHORT = 3;
+    private static final int NC_INT = 4;
+    private static final int NC_FLOAT = 5;
+    private static final int NC_DOUBLE = 6;
+
+    /*
+     * A single mapping is limited to 2GB, so larger files are mapped in
+     * segments. Each segment overlaps the next by the size of the largest
+     * value, so that no single value spans two segments.
+     */
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    private static final long SEGMENT_OVERLAP = 8;
+
+    private final File file;
+    private final CdmGridDataSource cdmSource;
+    private final ByteBuffer[] segments;
+    /* The length and modification time of the file when it was mapped */
+    private final long mappedLength;
+    private final long mappedLastModified;
+    /* The variables in the file header, keyed by name */
+    private final Map<String, FileVariable> fileVariables;
+    /*
+     * The variables which can be read directly, keyed by ID. A null value
+     * means that the variable must be read through the CDM.
+     */
+    private final Map<String, MappedVariable> mappedVariables = new HashMap<String, MappedVariable>();
+
+    /**
+     * Finds the file underlying a {@link NetcdfDataset}, if it is a local
+     * NetCDF-3 file which can be read by this class
+     * 
+     * @param nc
+     *            The {@link NetcdfDataset}
+     * @return The NetCDF-3 file, or <code>null</code> if the dataset is not a
+     *         single local NetCDF-3 file
+     */
+    static File getNetcdf3File(NetcdfDataset nc) {
+        String location = nc.getLocation();
+        if (location == null) {
+            return null;
+        }
+        if (location.startsWith("file:")) {
+            location = location.substring("file:".length());
+        }
+        File file = new File(location);
+        if (!file.isFile()) {
+            return null;
+        }
+        byte[] magic = new byte[4];
+        try (InputStream in = new FileInputStream(file)) {
+            if (in.read(magic) != 4) {
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        if (magic[0] == 'C' && magic[1] == 'D' && magic[2] == 'F'
+                && (magic[3] == 1 || magic[3] == 2)) {
+            return file;
+        }
+        return null;
+    }
+
+    /**
+     * @param file
+     *            The NetCDF-3 file to read
+     * @param cdmSource
+     *            A {@link CdmGridDataSource} reading the same file. This is
+     *            used to interpret the data, and to read any variables which
+     *            cannot be read directly. It is closed when this data source is
+     *            closed.
+     * @throws IOException
+     *             If the file cannot be mapped, or is not a NetCDF-3 file
+     */
+    public MappedNetcdf3GridDataSource(File file, CdmGridDataSource cdmSource)
+            throws IOException {
+        this.file = file;
+        this.cdmSource = cdmSource;
+        mappedLastModified = file.lastModified();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            mappedLength = length;
+            int nSegments = (int) Math.max(1, (length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            segments = new ByteBuffer[nSegments];
+            for (int i = 0; i < nSegments; i++) {
+                long start = i * SEGMENT_SIZE;
+                long size = Math.min(SEGMENT_SIZE + SEGMENT_OVERLAP, length - start);
+                /*
+                 * The mapping remains valid after the channel is closed. It is
+                 * released when the buffer is garbage collected.
+                 */
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+        }
+        try {
+            fileVariables = readHeader(segments[0].duplicate());
+        } catch (RuntimeException e) {
+            /* e.g. BufferUnderflowException */
+            throw new IOException("Cannot parse the header of " + file, e);
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the length or modification time of the
+     *         file have changed since it was mapped
+     */
+    @Override
+    public boolean isCurrent() {
+        return file.length() == mappedLength && file.lastModified() == mappedLastModified;
+    }
+
+    @Override
+    public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+            int ymin, int ymax, int xmin, int xmax) throws IOException, DataReadingException {
+        return read(variableId, tmin, tmax, zmin, zmax, ymin, ymax, 1, xmin, xmax, 1);
+    }
+
+    @Override
+    public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+            int ymin, int ymax, int ystride, int xmin, int xmax, int xstride)
+            throws IOException, DataReadingException {
+        MappedVariable var = getMappedVariable(variableId);
+        int[] mins = new int[] { tmin, zmin, ymin, xmin };
+        int[] maxs = new int[] { tmax, zmax, ymax, xmax };
+        int[] strides = new int[] { 1, 1, ystride, xstride };
+        if (var == null || !var.canRead(mins, maxs, strides)) {
+            /*
+             * Let the CDM read (or report problems with) anything we can't
+             * read directly
+             */
+            return cdmSource.read(variableId, tmin, tmax, zmin, zmax, ymin, ymax, ystride, xmin,
+                    xmax, xstride);
+        }
+
+        /*
+         * Work out where the first value is, and how far through the file we
+         * move for a step along each output axis. Axes which are not present
+         * have a step of zero, so all values along that axis are the same.
+         */
+        int[] sizes = new int[4];
+        long[] steps = new long[4];
+        long base = var.fileVar.begin;
+        for (int i = 0; i < 4; i++) {
+            sizes[i] = (maxs[i] - mins[i]) / strides[i] + 1;
+            int axisIndex = var.axisIndices[i];
+            if (axisIndex >= 0) {
+                base += mins[i] * var.fileVar.byteStrides[axisIndex];
+                steps[i] = strides[i] * var.fileVar.byteStrides[axisIndex];
+            }
+        }
+
+        float[] data = new float[sizes[0] * sizes[1] * sizes[2] * sizes[3]];
+        int index = 0;
+        try {
+            for (int t = 0; t < sizes[0]; t++) {
+                for (int z = 0; z < sizes[1]; z++) {
+                    for (int y = 0; y < sizes[2]; y++) {
+                        long offset = base + t * steps[0] + z * steps[1] + y * steps[2];
+                        readRow(var, offset, steps[3], sizes[3], data, index);
+                        index += sizes[3];
+                    }
+                }
+            }
+        } catch (InternalError e) {
+            /*
+             * This is how the JVM reports an access to a page of the mapping
+             * which is no longer backed by the file, i.e. the file has been
+             * truncated since it was mapped
+             */
+            throw new IOException("Cannot read " + variableId + " from " + file
+                    + ", which may have been truncated", e);
+        }
+        return new FloatArray4D(sizes[0], sizes[1], sizes[2], sizes[3], data);
+    }
+
+    /**
+     * Reads and decodes a row of values from the file
+     */
+    private void readRow(MappedVariable var, long offset, long step, int n, float[] data,
+            int index) {
+        int type = var.fileVar.type;
+        ByteBuffer segment = segments[(int) (offset >>> SEGMENT_BITS)];
+        int position = (int) (offset & (SEGMENT_SIZE - 1));
+        if (type == NC_FLOAT && step == 4 && position + 4L * n <= segment.limit()) {
+            /*
+             * Contiguous floats: copy them in a single bulk operation, then
+             * decode in place
+             */
+            ByteBuffer buffer = segment.duplicate();
+            buffer.position(position);
+            FloatBuffer floats = buffer.asFloatBuffer();
+            floats.get(data, index, n);
+            for (int i = index; i < index + n; i++) {
+                data[i] = var.decoder.convert(data[i]);
+            }
+        } else {
+            for (int i = index; i < index + n; i++) {
+                data[i] = var.decoder.convert(getRaw(type, offset, var.unsigned));
+                offset += step;
+            }
+        }
+    }
+
+    private double getRaw(int type, long offset, boolean unsigned) {
+        ByteBuffer segment = segments[(int) (offset >>> SEGMENT_BITS)];
+        int position = (int) (offset & (SEGMENT_SIZE - 1));
+        switch (type) {
+        case NC_FLOAT:
+            return segment.getFloat(position);
+        case NC_DOUBLE:
+            return segment.getDouble(position);
+        case NC_SHORT:
+            short s = segment.getShort(position);
+            return unsigned ? (s & 0xffff) : s;
+        case NC_INT:
+            int i = segment.getInt(position);
+            return unsigned ? (i & 0xffffffffL) : i;
+        case NC_BYTE:
+            byte b = segment.get(position);
+            return unsigned ? (b & 0xff) : b;
+        default:
+            throw new IllegalArgumentException("Cannot read numerical values of type " + type);
+        }
+    }
+
+    /**
+     * Gets the information needed to read a variable directly from the file
+     * 
+     * @return The {@link MappedVariable}, or <code>null</code> if the variable
+     *         must be read via the CDM
+     */
+    private MappedVariable getMappedVariable(String variableId) throws DataReadingException {
+        if (mappedVariables.containsKey(variableId)) {
+            return mappedVariables.get(variableId);
+        }
+        MappedVariable mappedVar = null;
+        VariableDecoder decoder = cdmSource.getDecoder(variableId);
+        GridDatatype gridDatatype = decoder.getGridDatatype();
+        /*
+         * The decoder works on values from the original variable, which are
+         * exactly those stored in the file
+         */
+        Variable origVar = gridDatatype.getVariable().getOriginalVariable();
+        if (origVar != null) {
+            FileVariable fileVar = fileVariables.get(origVar.getShortName());
+            if (fileVar != null && fileVar.type != NC_CHAR
+                    && Arrays.equals(fileVar.shape, origVar.getShape())) {
+                RangesList rangesList = new RangesList(gridDatatype);
+                mappedVar = new MappedVariable(fileVar, new int[] { rangesList.getTAxisIndex(),
+                        rangesList.getZAxisIndex(), rangesList.getYAxisIndex(),
+                        rangesList.getXAxisIndex() }, decoder, origVar.isUnsigned());
+            }
+        }
+        mappedVariables.put(variableId, mappedVar);
+        return mappedVar;
+    }
+
+    @Override
+    public void close() throws IOException {
+        cdmSource.close();
+    }
+
+    /**
+     * Parses the header of a NetCDF-3 file
+     * 
+     * @param header
+     *            A buffer positioned at the start of the file
+     * @return The variables in the file, keyed by name
+     */
+    private static Map<String, FileVariable> readHeader(ByteBuffer header) throws IOException {
+        if (header.get() != 'C' || header.get() != 'D' || header.get() != 'F') {
+            throw new IOException("Not a NetCDF-3 file");
+        }
+        int version = header.get();
+        if (version != 1 && version != 2) {
+            throw new IOException("Unsupported NetCDF-3 version: " + version);
+        }
+        int numRecs = header.getInt();
+        if (numRecs < 0) {
+            /* The number of records is not known whilst the file is streamed */
+            throw new IOException("The number of records is not known");
+        }
+
+        /* Dimensions */
+        int[] dimLengths = new int[readListSize(header, NC_DIMENSION)];
+        int recordDim = -1;
+        for (int i = 0; i < dimLengths.length; i++) {
+            readName(header);
+            dimLengths[i] = header.getInt();
+            if (dimLengths[i] == 0) {
+                recordDim = i;
+                dimLengths[i] = numRecs;
+            }
+        }
+
+        /* Global attributes */
+        skipAttributes(header);
+
+        /* Variables */
+        int nVars = readListSize(header, NC_VARIABLE);
+        List<FileVariable> vars = new ArrayList<FileVariable>(nVars);
+        for (int v = 0; v < nVars; v++) {
+            String name = readName(header);
+            int[] shape = new int[header.getInt()];
+            boolean record = false;
+            for (int d = 0; d < shape.length; d++) {
+                int dimId = header.getInt();
+                shape[d] = dimLengths[dimId];
+                if (d == 0 && dimId == recordDim) {
+                    record = true;
+                }
+            }
+            skipAttributes(header);
+            int type = header.getInt();
+            /*
+             * The size given in the header is incorrect for very large
+             * variables, so we calculate it ourselves
+             */
+            header.getInt();
+            long begin = version == 1 ? header.getInt() & 0xffffffffL : header.getLong();
+            vars.add(new FileVariable(name, type, shape, record, begin));
+        }
+
+        /*
+         * Records contain one slice of each record variable. Each slice is
+         * padded to a 4-byte boundary, unless there is only one record
+         * variable.
+         */
+        long recordSize = 0;
+        int nRecordVars = 0;
+        for (FileVariable var : vars) {
+            if (var.record) {
+                recordSize += pad(var.sliceSize);
+                nRecordVars++;
+            }
+        }
+        Map<String, FileVariable> fileVariables = new HashMap<String, FileVariable>();
+        for (FileVariable var : vars) {
+            if (var.record) {
+                var.byteStrides[0] = nRecordVars == 1 ? var.sliceSize : recordSize;
+            }
+            fileVariables.put(var.name, var);
+        }
+        return fileVariables;
+    }
+
+    /**
+     * Reads the tag and size of a list in the header. A list may be absent, in
+     * which case both the tag and the size are zero
+     */
+    private static int readListSize(ByteBuffer header, int expectedTag) throws IOException {
+        int tag = header.getInt();
+        int size = header.getInt();
+        if (tag != expectedTag && !(tag == 0 && size == 0)) {
+            throw new IOException("Unexpected tag in header: " + tag);
+        }
+        return size;
+    }
+
+    private static String readName(ByteBuffer header) {
+        int length = header.getInt();
+        byte[] bytes = new byte[length];
+        header.get(bytes);
+        header.position(header.position() + (int) (pad(length) - length));
+        return new String(bytes, UTF8);
+    }
+
+    private static void skipAttributes(ByteBuffer header) throws IOException {
+        int nAttributes = readListSize(header, NC_ATTRIBUTE);
+        for (int i = 0; i < nAttributes; i++) {
+            readName(header);
+            int type = header.getInt();
+            int nValues = header.getInt();
+            header.position(header.position() + (int) pad((long) nValues * getTypeSize(type)));
+        }
+    }
+
+    private static int getTypeSize(int type) throws IOException {
+        switch (type) {
+        case NC_BYTE:
+        case NC_CHAR:
+            return 1;
+        case NC_SHORT:
+            return 2;
+        case NC_INT:
+        case NC_FLOAT:
+            return 4;
+        case NC_DOUBLE:
+            return 8;
+        default:
+            throw new IOException("Unknown data type in header: " + type);
+        }
+    }
+
+    /**
+     * @return The given size, rounded up to a multiple of 4 bytes
+     */
+    private static long pad(long size) {
+        return (size + 3) & ~3L;
+    }
+
+    /**
+     * A variable as described in the file header
+     */
+    private static final class FileVariable {
+        private final String name;
+        private final int type;
+        /* The shape of the variable, including the number of records */
+        private final int[] shape;
+        /* Whether the first dimension is the record dimension */
+        private final boolean record;
+        /* The offset of the start of the data in the file */
+        private final long begin;
+        /* The size in bytes of a single record (or the whole variable) */
+        private final long sliceSize;
+        /* The number of bytes between successive indices of each dimension */
+        private final long[] byteStrides;
+
+        public FileVariable(String name, int type, int[] shape, boolean record, long begin)
+                throws IOException {
+            this.name = name;
+            this.type = type;
+            this.shape = shape;
+            this.record = record;
+            this.begin = begin;
+            byteStrides = new long[shape.length];
+            long stride = getTypeSize(type);
+            for (int d = shape.length - 1; d >= 0; d--) {
+                byteStrides[d] = stride;
+                if (d > 0 || !record) {
+                    stride *= shape[d];
+                }
+            }
+            sliceSize = stride;
+        }
+    }
+
+    /**
+     * A variable which can be read directly from the file
+     */
+    private static final class MappedVariable {
+        private final FileVariable fileVar;
+        /* The indices of the t, z, y and x dimensions, or -1 if absent */
+        private final int[] axisIndices;
+        private final VariableDecoder decoder;
+        private final boolean unsigned;
+
+        public MappedVariable(FileVariable fileVar, int[] axisIndices, VariableDecoder decoder,
+                boolean unsigned) {
+            this.fileVar = fileVar;
+            this.axisIndices = axisIndices;
+            this.decoder = decoder;
+            this.unsigned = unsigned;
+        }
+
+        /**
+         * @return Whether the given ranges are valid for this variable
+         */
+        private boolean canRead(int[] mins, int[] maxs, int[] strides) {
+            for (int i = 0; i < 4; i++) {
+                if (mins[i] > maxs[i] || strides[i] < 1) {
+                    return false;
+                }
+                int axisIndex = axisIndices[i];
+                if (axisIndex >= 0 && (mins[i] < 0 || maxs[i] >= fileVar.shape[axisIndex])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
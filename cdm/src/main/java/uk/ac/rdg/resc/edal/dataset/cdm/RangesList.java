@@ -125,25 +125,41 @@ final class RangesList {
     }
 
     public void setXRange(int xmin, int xmax) {
-        setRange(xAxisIndex, xmin, xmax);
+        setRange(xAxisIndex, xmin, xmax, 1);
+    }
+
+    /**
+     * Sets the x range to every <code>xstride</code><sup>th</sup> index
+     * between <code>xmin</code> and <code>xmax</code>
+     */
+    public void setXRange(int xmin, int xmax, int xstride) {
+        setRange(xAxisIndex, xmin, xmax, xstride);
     }
 
     public void setYRange(int ymin, int ymax) {
-        setRange(yAxisIndex, ymin, ymax);
+        setRange(yAxisIndex, ymin, ymax, 1);
+    }
+
+    /**
+     * Sets the y range to every <code>ystride</code><sup>th</sup> index
+     * between <code>ymin</code> and <code>ymax</code>
+     */
+    public void setYRange(int ymin, int ymax, int ystride) {
+        setRange(yAxisIndex, ymin, ymax, ystride);
     }
 
     public void setZRange(int zmin, int zmax) {
-        setRange(zAxisIndex, zmin, zmax);
+        setRange(zAxisIndex, zmin, zmax, 1);
     }
 
     public void setTRange(int tmin, int tmax) {
-        setRange(tAxisIndex, tmin, tmax);
+        setRange(tAxisIndex, tmin, tmax, 1);
     }
 
-    private void setRange(int index, int min, int max) {
+    private void setRange(int index, int min, int max, int stride) {
         if (index >= 0 && min >= 0 && max >= 0) {
             try {
-                ranges.set(index, new Range(min, max));
+                ranges.set(index, new Range(min, max, stride));
             } catch (InvalidRangeException ire) {
                 /*
                  * This is a programming error, so is wrapped as a runtime
@@ -252,6 +252,30 @@ public class CdmTransformedGrid extends AbstractTransformedGrid {
                 yAxis.findIndexOf(transformed.y));
     }
 
+    @Override
+    public void findIndicesOf(double[] lonLat, int[] xIndices, int[] yIndices) {
+        /*
+         * The positions are already in CRS84, so we can use our cached
+         * projection directly, avoiding the per-position CRS checks in
+         * findIndexOf(). The bulk transform works on primitive arrays, so
+         * (for projections which override it) no point objects are created
+         * for each position.
+         */
+        int nPoints = lonLat.length / 2;
+        double[][] latLons = new double[2][nPoints];
+        for (int n = 0; n < nPoints; n++) {
+            latLons[0][n] = lonLat[2 * n + 1];
+            latLons[1][n] = lonLat[2 * n];
+        }
+        double[][] projected = proj.latLonToProj(latLons, new double[2][nPoints], 0, 1);
+        double[] xs = projected[ProjectionImpl.INDEX_X];
+        double[] ys = projected[ProjectionImpl.INDEX_Y];
+        for (int n = 0; n < nPoints; n++) {
+            xIndices[n] = xAxis.findIndexOf(xs[n]);
+            yIndices[n] = yAxis.findIndexOf(ys[n]);
+        }
+    }
+
     @Override
     public double transformNativeHeadingToWgs84(double xComp, double yComp, double lon, double lat) {
         double dxy = 1e-8;
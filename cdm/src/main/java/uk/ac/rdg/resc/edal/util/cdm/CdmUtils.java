@@ -59,6 +59,7 @@ import ucar.nc2.ft.FeatureDataset;
 import ucar.nc2.ft.FeatureDatasetFactoryManager;
 import ucar.nc2.time.CalendarDate;
 import uk.ac.rdg.resc.edal.dataset.DataReadingStrategy;
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.grid.LookUpTableGrid;
 import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
@@ -141,15 +142,16 @@ public final class CdmUtils {
      * {@link DataReadingStrategy#SCANLINE}, which reduces the amount of data
      * read.
      * 
+     * This only takes into account the type of the file, so datasets should
+     * be calibrated with {@link GriddedDataset#calibrateDataReading()} so that
+     * a strategy can be chosen based on each request. This strategy is used if
+     * that is not possible.
+     * 
      * @param nc
      *            The NetcdfDataset from which data will be read.
      * @return an optimum DataReadingStrategy for reading from the dataset
      */
     public static DataReadingStrategy getOptimumDataReadingStrategy(NetcdfDataset nc) {
-        /*
-         * TODO: also use the size of the grids as a deciding factor: it can be
-         * very slow to read large grids by the BOUNDING_BOX strategy
-         */
         String fileType = nc.getFileTypeId();
         return "netCDF".equalsIgnoreCase(fileType) || "HDF4".equalsIgnoreCase(fileType) ? DataReadingStrategy.SCANLINE
                 : DataReadingStrategy.BOUNDING_BOX;
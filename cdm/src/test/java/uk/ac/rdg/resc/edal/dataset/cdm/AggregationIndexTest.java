@@ -0,0 +1,321 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import ucar.ma2.ArrayDouble;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriteable;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+
+public class AggregationIndexTest {
+    private File dataDir;
+    private File indexDir;
+    private File early;
+    private File late;
+    private List<File> files;
+
+    @Before
+    public void setUp() throws Exception {
+        File testDir = new File(System.getProperty("java.io.tmpdir"), "edal-aggregation-test-"
+                + System.nanoTime());
+        dataDir = new File(testDir, "data");
+        indexDir = new File(testDir, "index");
+        dataDir.mkdirs();
+
+        /*
+         * The alphabetical order of the files is the opposite of their time
+         * order, and one of them needs escaping in the NcML
+         */
+        late = new File(dataDir, "a.nc");
+        early = new File(dataDir, "b&c.nc");
+        writeTimeFile(late, 10.0, 11.0);
+        writeTimeFile(early, 0.0, 1.0, 2.0);
+        files = Arrays.asList(late, early);
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(dataDir.getParentFile());
+    }
+
+    @Test
+    public void testNcml() throws Exception {
+        AggregationIndex index = new AggregationIndex("test", indexDir);
+        String ncml = index.getNcml(files);
+
+        /* This will fail if the NcML is not well-formed */
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(ncml.getBytes("UTF-8")));
+        NodeList aggregations = doc.getElementsByTagName("aggregation");
+        assertEquals(1, aggregations.getLength());
+        assertEquals("time", aggregations.item(0).getAttributes().getNamedItem("dimName")
+                .getNodeValue());
+        assertEquals("joinExisting", aggregations.item(0).getAttributes().getNamedItem("type")
+                .getNodeValue());
+
+        /* Files are in time order, not the order given */
+        NodeList members = doc.getElementsByTagName("netcdf");
+        assertEquals(3, members.getLength());
+        assertEquals(early.getAbsolutePath(), members.item(1).getAttributes()
+                .getNamedItem("location").getNodeValue());
+        assertEquals("3", members.item(1).getAttributes().getNamedItem("ncoords").getNodeValue());
+        assertEquals(late.getAbsolutePath(), members.item(2).getAttributes()
+                .getNamedItem("location").getNodeValue());
+        assertEquals("2", members.item(2).getAttributes().getNamedItem("ncoords").getNodeValue());
+
+        assertEquals(Arrays.asList(early.getAbsolutePath(), late.getAbsolutePath()),
+                new ArrayList<String>(index.getLayout().keySet()));
+    }
+
+    @Test
+    public void testEscapeAttribute() {
+        assertEquals("/data/a&amp;b&lt;c&gt;&quot;d&quot;&apos;e&apos;.nc",
+                AggregationIndex.escapeAttribute("/data/a&b<c>\"d\"'e'.nc"));
+        assertEquals("/data/plain.nc", AggregationIndex.escapeAttribute("/data/plain.nc"));
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        String ncml = new AggregationIndex("test", indexDir).getNcml(files);
+        assertTrue(indexDir.listFiles().length > 0);
+
+        /*
+         * Replace the contents of a file without changing its size or
+         * modification time. If the persisted index is used, the file is never
+         * opened and the NcML is unchanged.
+         */
+        corrupt(late);
+        AggregationIndex reread = new AggregationIndex("test", indexDir);
+        assertEquals(ncml, reread.getNcml(files));
+        assertNotNull(reread.getLayout());
+
+        /*
+         * An index for a different location does not share the entries, so
+         * finds that the time axis of the corrupt file is unreadable
+         */
+        AggregationIndex other = new AggregationIndex("other", indexDir);
+        other.getNcml(files);
+        assertNull(other.getLayout());
+
+        /* Nor does an in-memory index */
+        AggregationIndex inMemory = new AggregationIndex("test", null);
+        inMemory.getNcml(files);
+        assertNull(inMemory.getLayout());
+    }
+
+    @Test
+    public void testModificationTimeInvalidates() throws Exception {
+        AggregationIndex index = new AggregationIndex("test", indexDir);
+        index.getNcml(files);
+
+        corrupt(late);
+        /* Same size and modification time - the cached NcML is still used */
+        index.getNcml(files);
+
+        assertNotNull(index.getLayout());
+
+        late.setLastModified(late.lastModified() + 10000L);
+        index.getNcml(files);
+        assertNull("Modified file should have been re-indexed", index.getLayout());
+        AggregationIndex reread = new AggregationIndex("test", indexDir);
+        reread.getNcml(files);
+        assertNull("Modified file should have been re-indexed", reread.getLayout());
+    }
+
+    @Test
+    public void testSizeInvalidates() throws Exception {
+        AggregationIndex index = new AggregationIndex("test", indexDir);
+        index.getNcml(files);
+
+        /*
+         * Rewrite the later file so that it comes first, keeping its
+         * modification time so that only the size has changed
+         */
+        long lastModified = late.lastModified();
+        late.delete();
+        writeTimeFile(late, -5.0, -4.0, -3.0, -2.0);
+        late.setLastModified(lastModified);
+
+        index.getNcml(files);
+        Map<String, Integer> layout = index.getLayout();
+        assertEquals(Arrays.asList(late.getAbsolutePath(), early.getAbsolutePath()),
+                new ArrayList<String>(layout.keySet()));
+        assertEquals(4, layout.get(late.getAbsolutePath()).intValue());
+
+        /* The updated entry was also persisted */
+        AggregationIndex reread = new AggregationIndex("test", indexDir);
+        reread.getNcml(files);
+        assertEquals(layout, reread.getLayout());
+    }
+
+    @Test
+    public void testFilesAddedAndRemoved() throws Exception {
+        AggregationIndex index = new AggregationIndex("test", indexDir);
+        index.getNcml(files);
+
+        File middle = new File(dataDir, "middle.nc");
+        writeTimeFile(middle, 5.0);
+        index.getNcml(Arrays.asList(late, early, middle));
+        assertEquals(
+                Arrays.asList(early.getAbsolutePath(), middle.getAbsolutePath(),
+                        late.getAbsolutePath()), new ArrayList<String>(index.getLayout().keySet()));
+
+        index.getNcml(Arrays.asList(late, middle));
+        assertEquals(Arrays.asList(middle.getAbsolutePath(), late.getAbsolutePath()),
+                new ArrayList<String>(index.getLayout().keySet()));
+    }
+
+    @Test
+    public void testUnreadableTimesSortByPath() throws Exception {
+        /*
+         * This file has no time variable, so we don't know where it lies in
+         * time
+         */
+        File noTime = new File(dataDir, "m.nc");
+        NetcdfFileWriteable nc = NetcdfFileWriteable.createNew(noTime.getAbsolutePath(), false);
+        try {
+            nc.addDimension("x", 2);
+            nc.create();
+        } finally {
+            nc.close();
+        }
+        /* And this one is not NetCDF */
+        File corrupt = new File(dataDir, "z.nc");
+        writeTimeFile(corrupt, 20.0);
+        corrupt(corrupt);
+
+        AggregationIndex index = new AggregationIndex("test", indexDir);
+        String ncml = index.getNcml(Arrays.asList(early, corrupt, noTime, late));
+        assertNull(index.getLayout());
+
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(ncml.getBytes("UTF-8")));
+        NodeList members = doc.getElementsByTagName("netcdf");
+        List<String> locations = new ArrayList<String>();
+        for (int i = 1; i < members.getLength(); i++) {
+            locations.add(members.item(i).getAttributes().getNamedItem("location")
+                    .getNodeValue());
+        }
+        assertEquals(
+                Arrays.asList(late.getAbsolutePath(), early.getAbsolutePath(),
+                        noTime.getAbsolutePath(), corrupt.getAbsolutePath()), locations);
+        /* The aggregation is left to find the size of the unreadable files */
+        assertEquals("2", members.item(1).getAttributes().getNamedItem("ncoords").getNodeValue());
+        assertNull(members.item(3).getAttributes().getNamedItem("ncoords"));
+        assertNull(members.item(4).getAttributes().getNamedItem("ncoords"));
+
+        /* Once the files are readable, they are sorted by time again */
+        index.getNcml(files);
+        assertEquals(Arrays.asList(early.getAbsolutePath(), late.getAbsolutePath()),
+                new ArrayList<String>(index.getLayout().keySet()));
+    }
+
+    @Test(expected = EdalException.class)
+    public void testNoTimeDimension() throws Exception {
+        File noTime = new File(dataDir, "0.nc");
+        NetcdfFileWriteable nc = NetcdfFileWriteable.createNew(noTime.getAbsolutePath(), false);
+        try {
+            nc.addDimension("x", 2);
+            nc.create();
+        } finally {
+            nc.close();
+        }
+        new AggregationIndex("test", indexDir).getNcml(Arrays.asList(noTime, early, late));
+    }
+
+    private static void writeTimeFile(File file, double... times) throws IOException,
+            InvalidRangeException {
+        NetcdfFileWriteable nc = NetcdfFileWriteable.createNew(file.getAbsolutePath(), false);
+        try {
+            Dimension timeDim = nc.addDimension("time", times.length);
+            nc.addVariable("time", DataType.DOUBLE, new Dimension[] { timeDim });
+            nc.addVariableAttribute("time", "units", "days since 2000-01-01 00:00:00");
+            nc.create();
+            ArrayDouble.D1 values = new ArrayDouble.D1(times.length);
+            for (int i = 0; i < times.length; i++) {
+                values.set(i, times[i]);
+            }
+            nc.write("time", values);
+        } finally {
+            nc.close();
+        }
+    }
+
+    /**
+     * Overwrites a file with data of the same length which is not NetCDF,
+     * leaving its modification time unchanged
+     */
+    private static void corrupt(File file) throws IOException {
+        long lastModified = file.lastModified();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] garbage = new byte[(int) raf.length()];
+            Arrays.fill(garbage, (byte) 'x');
+            raf.seek(0);
+            raf.write(garbage);
+        } finally {
+            raf.close();
+        }
+        file.setLastModified(lastModified);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
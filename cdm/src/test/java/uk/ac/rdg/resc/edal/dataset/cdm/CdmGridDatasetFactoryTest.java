@@ -68,6 +68,8 @@ import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
  */
 public class CdmGridDatasetFactoryTest {
 
+    private CdmGridDatasetFactory datasetFactory;
+    private String location;
     private Dataset dataset;
     private int xSize;
     private int ySize;
@@ -91,8 +93,8 @@ public class CdmGridDatasetFactoryTest {
          * The time covers 10 days starting from 01/01/2000 00:00:00
          */
         URL url = this.getClass().getResource("/test.nc");
-        String location = url.getPath();
-        CdmGridDatasetFactory datasetFactory = new CdmGridDatasetFactory();
+        location = url.getPath();
+        datasetFactory = new CdmGridDatasetFactory();
         dataset = datasetFactory.createDataset("testdataset", location);
         /*
          * We also add a vector plugin, which will generate magnitudes and
@@ -175,6 +177,30 @@ public class CdmGridDatasetFactoryTest {
         }
     }
 
+    @Test
+    public void testCloseDataset() throws EdalException, IOException {
+        DateTime time = new DateTime(2000, 01, 01, 00, 00);
+        PlottingDomainParams params = new PlottingDomainParams(xSize, ySize,
+                hGrid.getBoundingBox(), null, null, null, 0.0, time);
+        /* Populate the pool of open handles */
+        MapFeature before = (MapFeature) dataset.extractMapFeatures(
+                Collections.singleton("vLon"), params).iterator().next();
+
+        datasetFactory.closeDataset("testdataset", location);
+        /* The dataset can still be read after its handles have been closed */
+        MapFeature after = (MapFeature) dataset.extractMapFeatures(
+                Collections.singleton("vLon"), params).iterator().next();
+        assertEquals(before.getValues("vLon").get(5, 5).doubleValue(), after.getValues("vLon")
+                .get(5, 5).doubleValue(), 1e-5);
+
+        /* ...and it can be loaded again under the same ID */
+        Dataset reloaded = datasetFactory.createDataset("testdataset", location);
+        MapFeature reloadedFeature = (MapFeature) reloaded.extractMapFeatures(
+                Collections.singleton("vLon"), params).iterator().next();
+        assertEquals(before.getValues("vLon").get(5, 5).doubleValue(), reloadedFeature
+                .getValues("vLon").get(5, 5).doubleValue(), 1e-5);
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testThrowsExceptionForInvalidZ() throws DataReadingException, VariableNotFoundException {
         /*
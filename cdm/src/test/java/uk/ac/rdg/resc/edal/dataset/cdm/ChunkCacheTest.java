@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.cdm.ChunkCache.ChunkKey;
+
+/**
+ * Test class for {@link ChunkCache}
+ * 
+ * @author agent
+ */
+public class ChunkCacheTest {
+    private ChunkCache cache;
+
+    @Before
+    public void setUp() {
+        /* Room for 3 chunks of 10 floats */
+        cache = new ChunkCache(3 * 10 * 4);
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        ChunkKey key = new ChunkKey("ds", "var", 0, 0, 1, 2);
+        assertNull(cache.get(key));
+        cache.put(key, new float[10]);
+        assertNotNull(cache.get(new ChunkKey("ds", "var", 0, 0, 1, 2)));
+        assertNull(cache.get(new ChunkKey("ds", "var", 0, 0, 2, 1)));
+        assertNull(cache.get(new ChunkKey("ds", "var2", 0, 0, 1, 2)));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(0.25, cache.getHitRate(), 1e-10);
+        assertEquals(40L, cache.getSize());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        for (int i = 0; i < 3; i++) {
+            cache.put(new ChunkKey("ds", "var", 0, 0, 0, i), new float[10]);
+        }
+        /* Use the first chunk, so the second is the least recently used */
+        assertNotNull(cache.get(new ChunkKey("ds", "var", 0, 0, 0, 0)));
+        cache.put(new ChunkKey("ds", "var", 0, 0, 0, 3), new float[10]);
+
+        assertEquals(3, cache.getNumChunks());
+        assertNotNull(cache.get(new ChunkKey("ds", "var", 0, 0, 0, 0)));
+        assertNull(cache.get(new ChunkKey("ds", "var", 0, 0, 0, 1)));
+        assertNotNull(cache.get(new ChunkKey("ds", "var", 0, 0, 0, 2)));
+        assertNotNull(cache.get(new ChunkKey("ds", "var", 0, 0, 0, 3)));
+
+        /* Chunks larger than the cache are not stored */
+        assertFalse(cache.canHold(31));
+        cache.put(new ChunkKey("ds", "var", 1, 0, 0, 0), new float[31]);
+        assertNull(cache.get(new ChunkKey("ds", "var", 1, 0, 0, 0)));
+        assertEquals(3, cache.getNumChunks());
+
+        /* Shrinking the cache evicts chunks */
+        cache.setMaxSize(40);
+        assertEquals(1, cache.getNumChunks());
+        assertEquals(40L, cache.getSize());
+    }
+
+    @Test
+    public void testInvalidate() {
+        cache.put(new ChunkKey("ds1", "var", 0, 0, 0, 0), new float[10]);
+        cache.put(new ChunkKey("ds2", "var", 0, 0, 0, 0), new float[10]);
+        cache.invalidate("ds1");
+        assertNull(cache.get(new ChunkKey("ds1", "var", 0, 0, 0, 0)));
+        assertNotNull(cache.get(new ChunkKey("ds2", "var", 0, 0, 0, 0)));
+        assertEquals(40L, cache.getSize());
+    }
+
+    @Test
+    public void testCarryOver() {
+        /* Time chunks of size 2, the last of which was truncated */
+        cache.put(new ChunkKey("ds#1", "var", 0, 0, 0, 0, 1), new float[5]);
+        cache.put(new ChunkKey("ds#1", "var", 1, 0, 0, 0, 2), new float[5]);
+        /* A variable with no time axis */
+        cache.put(new ChunkKey("ds#1", "var2", 0, 0, 0, 0, -1), new float[5]);
+        cache.put(new ChunkKey("ds2", "var", 1, 0, 0, 0, 2), new float[5]);
+        cache.carryOver("ds#1", "ds#2", 2);
+        assertNotNull(cache.get(new ChunkKey("ds#2", "var", 0, 0, 0, 0)));
+        assertNotNull(cache.get(new ChunkKey("ds#2", "var2", 0, 0, 0, 0)));
+        assertNull(cache.get(new ChunkKey("ds#2", "var", 1, 0, 0, 0)));
+        assertNull(cache.get(new ChunkKey("ds#1", "var", 0, 0, 0, 0)));
+        assertNotNull(cache.get(new ChunkKey("ds2", "var", 1, 0, 0, 0)));
+        assertEquals(3, cache.getNumChunks());
+        assertEquals(60L, cache.getSize());
+    }
+
+    @Test
+    public void testConcurrentMissesReadOnce() throws Exception {
+        final AtomicInteger reads = new AtomicInteger(0);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<float[]> reader = new Callable<float[]>() {
+            @Override
+            public float[] call() throws InterruptedException {
+                reads.incrementAndGet();
+                release.await();
+                return new float[10];
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<float[]>> results = new ArrayList<Future<float[]>>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(new Callable<float[]>() {
+                    @Override
+                    public float[] call() throws Exception {
+                        return cache.get(new ChunkKey("ds", "var", 0, 0, 0, 0), reader);
+                    }
+                }));
+            }
+            while (cache.getHits() + cache.getMisses() < 4) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            float[] chunk = results.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<float[]> result : results) {
+                assertSame(chunk, result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, reads.get());
+        assertEquals(1, cache.getNumChunks());
+    }
+
+    @Test
+    public void testReadFailure() throws Exception {
+        try {
+            cache.get(new ChunkKey("ds", "var", 0, 0, 0, 0), new Callable<float[]>() {
+                @Override
+                public float[] call() throws IOException {
+                    throw new IOException("Failed");
+                }
+            });
+            fail("The exception should be propagated");
+        } catch (IOException e) {
+            assertEquals("Failed", e.getMessage());
+        }
+        assertEquals(0, cache.getNumChunks());
+    }
+}
@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.DataReadingCostModel;
+import uk.ac.rdg.resc.edal.dataset.DataReadingStrategy;
+import uk.ac.rdg.resc.edal.dataset.plugins.VariablePlugin;
+import uk.ac.rdg.resc.edal.dataset.plugins.VectorPlugin;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGridImpl;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
+import uk.ac.rdg.resc.edal.grid.VerticalAxis;
+import uk.ac.rdg.resc.edal.grid.VerticalAxisImpl;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.position.VerticalCrsImpl;
+import uk.ac.rdg.resc.edal.util.chronologies.ThreeSixtyDayChronology;
+
+public class DatasetSnapshotTest {
+    private File snapshotDir;
+    private String location;
+    private List<GridVariableMetadata> vars;
+
+    @Before
+    public void setUp() throws Exception {
+        snapshotDir = new File(System.getProperty("java.io.tmpdir"), "edal-snapshot-test-"
+                + System.nanoTime());
+        location = new File(this.getClass().getResource("/test.nc").toURI()).getAbsolutePath();
+
+        HorizontalGrid regularGrid = new RegularGridImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84, 36, 18);
+        HorizontalGrid rectilinearGrid = new RectilinearGridImpl(new RegularAxisImpl("lon",
+                -10.0, 0.5, 40, true), new ReferenceableAxisImpl("lat", Arrays.asList(50.0,
+                51.0, 53.0, 56.0), false), DefaultGeographicCRS.WGS84);
+        VerticalAxis zAxis = new VerticalAxisImpl("depth", Arrays.asList(0.0, 10.0, 25.0),
+                new VerticalCrsImpl("m", false, false, false));
+        List<DateTime> times = new ArrayList<DateTime>();
+        for (int i = 0; i < 5; i++) {
+            times.add(new DateTime(2000, 2, 30 - i, 0, 0, ThreeSixtyDayChronology.getInstanceUTC()));
+        }
+        TimeAxis tAxis = new TimeAxisImpl("time", times);
+
+        vars = new ArrayList<GridVariableMetadata>();
+        vars.add(new GridVariableMetadata("u", new Parameter("u", "Eastward velocity",
+                "u-component", "m/s", "eastward_sea_water_velocity"), regularGrid, zAxis, tAxis,
+                true));
+        vars.add(new GridVariableMetadata("v", new Parameter("v", "Northward velocity",
+                "v-component", "m/s", "northward_sea_water_velocity"), regularGrid, zAxis,
+                tAxis, true));
+        vars.add(new GridVariableMetadata("sst", new Parameter("sst", "Temperature", null,
+                "K", null), rectilinearGrid, null, tAxis, true));
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = snapshotDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        snapshotDir.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        DatasetSnapshot snapshot = new DatasetSnapshot("dataset", location, vars);
+        snapshot.setDataReadingStrategy(DataReadingStrategy.SCANLINE);
+        snapshot.setDataReadingCostModel(new DataReadingCostModel(2.5, 0.001));
+        snapshot.addVectorPlugin("u", "v", "sea_water_velocity", true);
+        assertTrue(snapshot.write(snapshotDir));
+
+        DatasetSnapshot restored = DatasetSnapshot.read(snapshotDir, "dataset", location);
+        assertNotNull(restored);
+        assertEquals(DataReadingStrategy.SCANLINE, restored.getDataReadingStrategy());
+        assertEquals(2.5, restored.getDataReadingCostModel().getMsPerRead(), 1e-10);
+        assertEquals(0.001, restored.getDataReadingCostModel().getMsPerValue(), 1e-10);
+
+        assertEquals(vars.size(), restored.getVariables().size());
+        Iterator<GridVariableMetadata> restoredVars = restored.getVariables().iterator();
+        for (GridVariableMetadata expected : vars) {
+            GridVariableMetadata actual = restoredVars.next();
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getParameter(), actual.getParameter());
+            assertEquals(expected.getHorizontalDomain(), actual.getHorizontalDomain());
+            assertEquals(expected.getVerticalDomain(), actual.getVerticalDomain());
+            assertEquals(expected.getTemporalDomain(), actual.getTemporalDomain());
+        }
+        /* Shared domains are still shared */
+        Iterator<GridVariableMetadata> it = restored.getVariables().iterator();
+        GridVariableMetadata u = it.next();
+        GridVariableMetadata v = it.next();
+        assertTrue(u.getHorizontalDomain() == v.getHorizontalDomain());
+        assertTrue(u.getTemporalDomain() == v.getTemporalDomain());
+
+        List<VariablePlugin> plugins = restored.createPlugins();
+        assertEquals(1, plugins.size());
+        assertTrue(plugins.get(0) instanceof VectorPlugin);
+    }
+
+    @Test
+    public void testValidity() throws IOException {
+        assertNull(DatasetSnapshot.read(snapshotDir, "dataset", location));
+        assertFalse(DatasetSnapshot.isCurrent(snapshotDir, "dataset", location));
+
+        DatasetSnapshot snapshot = new DatasetSnapshot("dataset", location, vars);
+        snapshot.setDataReadingStrategy(DataReadingStrategy.BOUNDING_BOX);
+        assertTrue(snapshot.write(snapshotDir));
+        assertTrue(DatasetSnapshot.isCurrent(snapshotDir, "dataset", location));
+
+        /* Snapshots are specific to the dataset ID and location */
+        assertNull(DatasetSnapshot.read(snapshotDir, "other", location));
+        assertFalse(DatasetSnapshot.isCurrent(snapshotDir, "dataset", location + "*"));
+    }
+
+    @Test
+    public void testRemoteNeverCurrent() throws IOException {
+        for (String remote : new String[] { "https://example.com/thredds/dodsC/data.nc",
+                "http://example.com/thredds/dodsC/data.nc", "dods://example.com/data.nc",
+                "ftp://example.com/data.nc" }) {
+            DatasetSnapshot snapshot = new DatasetSnapshot("dataset", remote, vars);
+            assertTrue(snapshot.write(snapshotDir));
+            /* The snapshot can be used to start quickly... */
+            assertNotNull(DatasetSnapshot.read(snapshotDir, "dataset", remote));
+            /* ...but the dataset must still be reloaded */
+            assertFalse(DatasetSnapshot.isCurrent(snapshotDir, "dataset", remote));
+        }
+    }
+
+    @Test
+    public void testNcmlNeverCurrent() throws IOException {
+        snapshotDir.mkdirs();
+        File ncml = new File(snapshotDir, "aggregation.ncml");
+        Writer writer = new FileWriter(ncml);
+        try {
+            writer.write("<netcdf xmlns=\"http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2\">"
+                    + "<aggregation dimName=\"time\" type=\"joinExisting\">"
+                    + "<scan location=\"/data/\" suffix=\".nc\"/></aggregation></netcdf>");
+        } finally {
+            writer.close();
+        }
+        /* The files matched by the scan can change without the NcML changing */
+        for (String ncmlLocation : new String[] { ncml.getAbsolutePath(),
+                new File(snapshotDir, "*.ncml").getAbsolutePath() }) {
+            DatasetSnapshot snapshot = new DatasetSnapshot("dataset", ncmlLocation, vars);
+            assertTrue(snapshot.write(snapshotDir));
+            assertNotNull(DatasetSnapshot.read(snapshotDir, "dataset", ncmlLocation));
+            assertFalse(DatasetSnapshot.isCurrent(snapshotDir, "dataset", ncmlLocation));
+        }
+    }
+
+    @Test
+    public void testUpdate() throws IOException {
+        DatasetSnapshot snapshot = new DatasetSnapshot("dataset", location, vars);
+        snapshot.setDataReadingStrategy(DataReadingStrategy.SCANLINE);
+        snapshot.addVectorPlugin("u", "v", "sea_water_velocity", true);
+        snapshot.setAggregationLayout(Collections.singletonMap(location, 5));
+        assertTrue(snapshot.write(snapshotDir));
+
+        DatasetSnapshot restored = DatasetSnapshot.read(snapshotDir, "dataset", location);
+        assertEquals(Collections.singletonMap(location, 5), restored.getAggregationLayout());
+        assertTrue(restored.isOf("dataset", location));
+        assertFalse(restored.isOf("other", location));
+
+        DatasetSnapshot update = restored
+                .createUpdate(new ArrayList<GridVariableMetadata>());
+        assertEquals(DataReadingStrategy.SCANLINE, update.getDataReadingStrategy());
+        assertEquals(1, update.createPlugins().size());
+        assertNull(update.getAggregationLayout());
+        assertEquals(Collections.singleton(location), restored.getUnchangedFiles(update));
+
+        /* The layout must describe the files in the snapshot */
+        update.setAggregationLayout(Collections.singletonMap(location + ".old", 5));
+        assertNull(restored.getUnchangedFiles(update));
+    }
+}
@@ -0,0 +1,84 @@
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ucar.nc2.dataset.NetcdfDataset;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
+
+public class MappedNetcdf3GridDataSourceTest {
+    private static final String[] VARIABLES = new String[] { "vLon", "vLat", "vDepth", "vTime" };
+
+    private CdmGridDataSource cdmSource;
+    private MappedNetcdf3GridDataSource mappedSource;
+
+    @Before
+    public void setUp() throws Exception {
+        URL url = this.getClass().getResource("/test.nc");
+        String location = url.getPath();
+        NetcdfDataset nc = CdmUtils.openDataset(location);
+        cdmSource = new CdmGridDataSource(CdmUtils.getGridDataset(nc));
+
+        File file = MappedNetcdf3GridDataSource.getNetcdf3File(nc);
+        assertNotNull(file);
+        NetcdfDataset mappedNc = CdmUtils.openDataset(location);
+        mappedSource = new MappedNetcdf3GridDataSource(file, new CdmGridDataSource(
+                CdmUtils.getGridDataset(mappedNc)));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cdmSource.close();
+        mappedSource.close();
+    }
+
+    @Test
+    public void testReadAll() throws IOException, DataReadingException {
+        for (String var : VARIABLES) {
+            compare(cdmSource.read(var, 0, 9, 0, 10, 0, 18, 0, 35),
+                    mappedSource.read(var, 0, 9, 0, 10, 0, 18, 0, 35));
+        }
+    }
+
+    @Test
+    public void testReadSubset() throws IOException, DataReadingException {
+        for (String var : VARIABLES) {
+            compare(cdmSource.read(var, 3, 3, 2, 7, 5, 12, 20, 31),
+                    mappedSource.read(var, 3, 3, 2, 7, 5, 12, 20, 31));
+        }
+    }
+
+    @Test
+    public void testStridedRead() throws IOException, DataReadingException {
+        for (String var : VARIABLES) {
+            compare(cdmSource.read(var, 1, 8, 0, 10, 1, 18, 3, 2, 35, 4),
+                    mappedSource.read(var, 1, 8, 0, 10, 1, 18, 3, 2, 35, 4));
+        }
+    }
+
+    private static void compare(Array4D<Number> expected, Array4D<Number> actual) {
+        int[] shape = expected.getShape();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(shape[i], actual.getShape()[i]);
+        }
+        for (int t = 0; t < shape[0]; t++) {
+            for (int z = 0; z < shape[1]; z++) {
+                for (int y = 0; y < shape[2]; y++) {
+                    for (int x = 0; x < shape[3]; x++) {
+                        assertEquals(expected.get(t, z, y, x), actual.get(t, z, y, x));
+                    }
+                }
+            }
+        }
+    }
+}
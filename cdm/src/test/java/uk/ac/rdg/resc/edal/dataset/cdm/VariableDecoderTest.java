@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.Index;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriteable;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dataset.VariableDS;
+import ucar.nc2.dt.GridDataset;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
+
+/**
+ * Tests that the values decoded by {@link CdmGridDataSource} are the same as
+ * those which NetCDF-Java produces when it enhances the data itself, with the
+ * values which its {@link ucar.nc2.dataset.EnhanceScaleMissing} considers
+ * missing replaced by NaN
+ */
+public class VariableDecoderTest {
+    private static final int NY = 3;
+    private static final int NX = 4;
+
+    private File dataDir;
+    private List<NetcdfDataset> openDatasets;
+
+    @Before
+    public void setUp() {
+        dataDir = new File(System.getProperty("java.io.tmpdir"), "edal-decoder-test-"
+                + System.nanoTime());
+        dataDir.mkdirs();
+        openDatasets = new ArrayList<NetcdfDataset>();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (NetcdfDataset nc : openDatasets) {
+            nc.close();
+        }
+        File[] files = dataDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dataDir.delete();
+    }
+
+    @Test
+    public void testScaleOffset() throws Exception {
+        short[] values = new short[] { 0, 1, 2, 3, -4, 100, 1000, -1000, 32767, -32768, 7, 8 };
+        float[] decoded = compareWithEnhanced(DataType.SHORT, values,
+                new Attribute("scale_factor", 0.5f), new Attribute("add_offset", 10.0f));
+        assertEquals(10.0f, decoded[0], 1e-6f);
+        assertEquals(60.0f, decoded[5], 1e-6f);
+        assertEquals(-490.0f, decoded[7], 1e-6f);
+    }
+
+    @Test
+    public void testNoValidRange() throws Exception {
+        /* Every value is valid, however large */
+        float[] values = new float[] { -1e30f, -1000.0f, -1.5f, 0.0f, 1.5f, 1000.0f, 1e30f,
+                2.0f, 3.0f, 4.0f, 5.0f, 6.0f };
+        float[] decoded = compareWithEnhanced(DataType.FLOAT, values);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], decoded[i], 0.0f);
+        }
+    }
+
+    @Test
+    public void testPackedNoValidRange() throws Exception {
+        short[] values = new short[] { -32768, -100, 0, 100, 32767, 5, 6, 7, 8, 9, 10, 11 };
+        float[] decoded = compareWithEnhanced(DataType.SHORT, values, new Attribute(
+                "scale_factor", 0.5f));
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i] * 0.5f, decoded[i], 1e-6f);
+        }
+    }
+
+    @Test
+    public void testPackedFillAndMissing() throws Exception {
+        short[] values = new short[] { -999, 1, 2, -1, 4, 5, -999, -1, 8, 9, 10, -998 };
+        float[] decoded = compareWithEnhanced(DataType.SHORT, values, new Attribute(
+                "scale_factor", 0.01f), new Attribute("add_offset", 273.15f), new Attribute(
+                "_FillValue", (short) -999), new Attribute("missing_value", (short) -1));
+        assertMissing(decoded, 0, 3, 6, 7);
+        assertEquals(273.16f, decoded[1], 1e-4f);
+        /* Adjacent to the fill value, but not missing */
+        assertEquals(263.17f, decoded[11], 1e-4f);
+    }
+
+    @Test
+    public void testMultipleMissingValues() throws Exception {
+        short[] values = new short[] { -1, -2, -3, 0, 1, 2, 3, 4, 5, 6, 7, -2 };
+        float[] decoded = compareWithEnhanced(DataType.SHORT, values, new Attribute(
+                "scale_factor", 2.0f), new Attribute("missing_value", Array.factory(new short[] {
+                -1, -2 })));
+        assertMissing(decoded, 0, 1, 11);
+        assertEquals(-6.0f, decoded[2], 1e-6f);
+    }
+
+    @Test
+    public void testUnpackedFillAndMissing() throws Exception {
+        float[] values = new float[] { -999.0f, 1.5f, 2.5f, 1e20f, 4.5f, 5.5f, 6.5f, 7.5f,
+                -999.0f, 9.5f, 1e20f, -998.0f };
+        float[] decoded = compareWithEnhanced(DataType.FLOAT, values, new Attribute(
+                "_FillValue", -999.0f), new Attribute("missing_value", 1e20f));
+        assertMissing(decoded, 0, 3, 8, 10);
+        assertEquals(1.5f, decoded[1], 1e-6f);
+        assertEquals(-998.0f, decoded[11], 1e-6f);
+    }
+
+    @Test
+    public void testValidMinMax() throws Exception {
+        float[] values = new float[] { -10.0f, -5.0f, 0.0f, 5.0f, 10.0f, 15.0f, 20.0f, 25.0f,
+                30.0f, 35.0f, 40.0f, 45.0f };
+        float[] decoded = compareWithEnhanced(DataType.FLOAT, values, new Attribute(
+                "valid_min", 0.0f), new Attribute("valid_max", 30.0f));
+        assertMissing(decoded, 0, 1, 9, 10, 11);
+        assertEquals(0.0f, decoded[2], 1e-6f);
+        assertEquals(30.0f, decoded[8], 1e-6f);
+    }
+
+    @Test
+    public void testPackedValidRange() throws Exception {
+        short[] values = new short[] { -200, -100, 0, 100, 200, 300, 400, 500, 600, 700, 800,
+                900 };
+        float[] decoded = compareWithEnhanced(DataType.SHORT, values, new Attribute(
+                "scale_factor", 0.1f), new Attribute("add_offset", 5.0f), new Attribute(
+                "valid_range", Array.factory(new short[] { -100, 700 })));
+        assertEquals(5.0f, decoded[2], 1e-5f);
+        assertEquals(75.0f, decoded[9], 1e-5f);
+    }
+
+    @Test
+    public void testUnsignedValidRange() throws Exception {
+        byte[] values = new byte[] { 0, 1, 10, 100, 127, (byte) 128, (byte) 200, (byte) 250,
+                (byte) 254, (byte) 255, 5, 6 };
+        compareWithEnhanced(DataType.BYTE, values, new Attribute("_Unsigned", "true"),
+                new Attribute("valid_min", (byte) 1), new Attribute("valid_max", (byte) 250));
+    }
+
+    @Test
+    public void testUnsignedScaleOffsetFill() throws Exception {
+        byte[] values = new byte[] { 0, 1, 10, 100, 127, (byte) 128, (byte) 200, (byte) 250,
+                (byte) 254, (byte) 255, (byte) 255, 6 };
+        float[] decoded = compareWithEnhanced(DataType.BYTE, values, new Attribute("_Unsigned",
+                "true"), new Attribute("scale_factor", 0.5f), new Attribute("add_offset", 1.0f),
+                new Attribute("_FillValue", (byte) -1));
+        assertEquals(1.0f, decoded[0], 1e-6f);
+        /* The top bit is not a sign bit */
+        assertEquals(101.0f, decoded[6], 1e-6f);
+    }
+
+    @Test
+    public void testUnsignedShort() throws Exception {
+        short[] values = new short[] { 0, 1, 1000, 32767, (short) 32768, (short) 40000,
+                (short) 65534, (short) 65535, 3, 4, 5, 6 };
+        compareWithEnhanced(DataType.SHORT, values, new Attribute("_Unsigned", "true"),
+                new Attribute("scale_factor", 0.001f), new Attribute("missing_value",
+                        (short) -1));
+    }
+
+    @Test
+    public void testUnsignedShortFillAndValidMax() throws Exception {
+        short[] values = new short[] { 0, 1, 1000, 32767, (short) 32768, (short) 40000,
+                (short) 60000, (short) 60001, (short) 65534, (short) 65535, 5, 6 };
+        compareWithEnhanced(DataType.SHORT, values, new Attribute("_Unsigned", "true"),
+                new Attribute("_FillValue", (short) 65535), new Attribute("valid_max",
+                        (short) 60000));
+    }
+
+    @Test
+    public void testUnsignedBytePackedMissingValue() throws Exception {
+        byte[] values = new byte[] { 0, 1, 10, 100, 127, (byte) 128, (byte) 199, (byte) 200,
+                (byte) 201, (byte) 255, (byte) 200, 6 };
+        float[] decoded = compareWithEnhanced(DataType.BYTE, values, new Attribute("_Unsigned",
+                "true"), new Attribute("scale_factor", 0.25f), new Attribute("add_offset",
+                -10.0f), new Attribute("missing_value", (byte) 200));
+        assertEquals(39.75f, decoded[6], 1e-6f);
+        assertEquals(40.25f, decoded[8], 1e-6f);
+    }
+
+    @Test
+    public void testValidMinOnly() throws Exception {
+        float[] values = new float[] { -1e30f, -10.0f, -0.5f, 0.0f, 0.5f, 10.0f, 1e30f, 7.0f,
+                8.0f, 9.0f, 10.0f, 11.0f };
+        float[] decoded = compareWithEnhanced(DataType.FLOAT, values, new Attribute(
+                "valid_min", 0.0f));
+        assertMissing(decoded, 0, 1, 2);
+        assertEquals(0.0f, decoded[3], 0.0f);
+        /* There is no upper limit */
+        assertEquals(1e30f, decoded[6], 0.0f);
+    }
+
+    @Test
+    public void testPackedValidMinOnly() throws Exception {
+        short[] values = new short[] { -32768, -101, -100, -99, 0, 100, 32767, 7, 8, 9, 10,
+                11 };
+        compareWithEnhanced(DataType.SHORT, values, new Attribute("scale_factor", 0.1f),
+                new Attribute("add_offset", 2.0f), new Attribute("valid_min", (short) -100));
+    }
+
+    @Test
+    public void testFillValueInsideValidRange() throws Exception {
+        float[] values = new float[] { -1.0f, 0.0f, 4.5f, 5.0f, 5.5f, 10.0f, 11.0f, 5.0f, 1.0f,
+                2.0f, 3.0f, 4.0f };
+        float[] decoded = compareWithEnhanced(DataType.FLOAT, values, new Attribute(
+                "_FillValue", 5.0f), new Attribute("valid_range", Array.factory(new float[] {
+                0.0f, 10.0f })));
+        assertMissing(decoded, 0, 3, 6, 7);
+        assertEquals(4.5f, decoded[2], 0.0f);
+        assertEquals(5.5f, decoded[4], 0.0f);
+    }
+
+    @Test
+    public void testPackedFillValueInsideValidRange() throws Exception {
+        short[] values = new short[] { -1, 0, 9, 10, 11, 20, 21, 10, 1, 2, 3, 4 };
+        compareWithEnhanced(DataType.SHORT, values, new Attribute("scale_factor", 0.5f),
+                new Attribute("add_offset", 100.0f), new Attribute("_FillValue", (short) 10),
+                new Attribute("valid_range", Array.factory(new short[] { 0, 20 })));
+    }
+
+    @Test
+    public void testPackedMissingValue() throws Exception {
+        /*
+         * The unpacked missing value (0.3 + 3 * 0.1) is not exactly
+         * representable, so it must be matched before unpacking
+         */
+        short[] values = new short[] { 0, 1, 2, 3, 4, 5, 3, -3, 30, 33, 300, 3 };
+        float[] decoded = compareWithEnhanced(DataType.SHORT, values, new Attribute(
+                "scale_factor", 0.1), new Attribute("add_offset", 0.3), new Attribute(
+                "missing_value", (short) 3));
+        assertMissing(decoded, 3, 6, 11);
+        assertEquals(0.5f, decoded[2], 1e-6f);
+        assertEquals(0.7f, decoded[4], 1e-6f);
+    }
+
+    @Test
+    public void testIntegerWithoutPacking() throws Exception {
+        int[] values = new int[] { -5, -4, -3, -2, -1, 0, 1, 2, 3, 4, 5, 6 };
+        float[] decoded = compareWithEnhanced(DataType.INT, values, new Attribute("_FillValue",
+                -1), new Attribute("valid_max", 4));
+        assertMissing(decoded, 4, 10, 11);
+        assertEquals(-5.0f, decoded[0], 1e-6f);
+    }
+
+    @Test
+    public void testDouble() throws Exception {
+        double[] values = new double[] { 0.25, 1.5, Double.NaN, 3.5, -9999.0, 5.5, 6.5, 7.5,
+                8.5, 9.5, 10.5, 11.5 };
+        float[] decoded = compareWithEnhanced(DataType.DOUBLE, values, new Attribute(
+                "scale_factor", 2.0), new Attribute("_FillValue", -9999.0));
+        assertMissing(decoded, 2, 4);
+        assertEquals(0.5f, decoded[0], 1e-6f);
+    }
+
+    @Test
+    public void testSubset() throws Exception {
+        short[] values = new short[] { 0, 1, 2, 3, 4, 5, -999, 7, 8, 9, 10, 11 };
+        GridDataset gridDataset = createDataset(DataType.SHORT, values, new Attribute(
+                "scale_factor", 0.5f), new Attribute("_FillValue", (short) -999));
+        CdmGridDataSource dataSource = new CdmGridDataSource(gridDataset);
+        Array4D<Number> subset = dataSource.read("data", 0, 0, 0, 0, 1, 2, 1, 3);
+        assertEquals(2.5f, subset.getFloat(0, 0, 0, 0), 1e-6f);
+        assertTrue(Float.isNaN(subset.getFloat(0, 0, 0, 1)));
+        assertEquals(5.5f, subset.getFloat(0, 0, 1, 2), 1e-6f);
+    }
+
+    /**
+     * Writes a variable with the given values and attributes, and checks that
+     * the values decoded by {@link CdmGridDataSource} are the same as those
+     * which NetCDF-Java returns when reading the enhanced variable
+     * 
+     * @return The decoded values, in (y,x) order, with missing values as NaN
+     */
+    private float[] compareWithEnhanced(DataType dataType, Object values,
+            Attribute... attributes) throws IOException, InvalidRangeException,
+            DataReadingException {
+        GridDataset gridDataset = createDataset(dataType, values, attributes);
+
+        /*
+         * Integer data are not replaced with NaNs when they are enhanced, so
+         * ask the variable which of its enhanced values are missing
+         */
+        VariableDS var = gridDataset.findGridDatatype("data").getVariable();
+        Array enhanced = var.read();
+        Index index = enhanced.getIndex();
+
+        CdmGridDataSource dataSource = new CdmGridDataSource(gridDataset);
+        Array4D<Number> decoded = dataSource.read("data", 0, 0, 0, 0, 0, NY - 1, 0, NX - 1);
+
+        float[] ret = new float[NY * NX];
+        for (int y = 0; y < NY; y++) {
+            for (int x = 0; x < NX; x++) {
+                double value = enhanced.getDouble(index.set(y, x));
+                float expected = var.isMissing(value) ? Float.NaN : (float) value;
+                float actual = decoded.getFloat(0, 0, y, x);
+                assertEquals("Value at (" + x + "," + y + ")", expected, actual,
+                        Math.abs(expected) * 1e-6f);
+                ret[y * NX + x] = actual;
+            }
+        }
+        return ret;
+    }
+
+    private GridDataset createDataset(DataType dataType, Object values, Attribute... attributes)
+            throws IOException, InvalidRangeException {
+        File file = new File(dataDir, "decoder" + openDatasets.size() + ".nc");
+        NetcdfFileWriteable writer = NetcdfFileWriteable.createNew(file.getAbsolutePath(), false);
+        try {
+            Dimension latDim = writer.addDimension("lat", NY);
+            Dimension lonDim = writer.addDimension("lon", NX);
+            writer.addVariable("lat", DataType.FLOAT, new Dimension[] { latDim });
+            writer.addVariableAttribute("lat", "units", "degrees_north");
+            writer.addVariable("lon", DataType.FLOAT, new Dimension[] { lonDim });
+            writer.addVariableAttribute("lon", "units", "degrees_east");
+            writer.addVariable("data", dataType, new Dimension[] { latDim, lonDim });
+            for (Attribute attribute : attributes) {
+                writer.addVariableAttribute("data", attribute);
+            }
+            writer.create();
+
+            writer.write("lat", Array.factory(new float[] { 50.0f, 51.0f, 52.0f }));
+            writer.write("lon", Array.factory(new float[] { -10.0f, -9.0f, -8.0f, -7.0f }));
+            writer.write("data", Array.factory(dataType, new int[] { NY, NX }, values));
+        } finally {
+            writer.close();
+        }
+
+        NetcdfDataset nc = CdmUtils.openDataset(file.getAbsolutePath());
+        openDatasets.add(nc);
+        return CdmUtils.getGridDataset(nc);
+    }
+
+    private static void assertMissing(float[] decoded, int... indices) {
+        for (int index : indices) {
+            assertTrue("Value " + index + " should be missing", Float.isNaN(decoded[index]));
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+
+/**
+ * A simple cost model for reading map data from a {@link GridDataSource},
+ * used to choose the cheapest {@link DataReadingStrategy} for each request.
+ * 
+ * Every read from the underlying storage is modelled as having a fixed cost
+ * (e.g. seeking, decompressing a chunk, or the round trip to a remote server)
+ * plus a cost for each value read. For a given {@link Domain2DMapper} we can
+ * count exactly how many reads and how many values each
+ * {@link DataReadingStrategy} will need, and hence pick the cheapest.
+ * 
+ * The two costs are specific to each dataset, and can be measured using
+ * {@link #calibrate(GridDataSource, String, int, int, int, int)}.
+ * 
+ * @author agent
+ */
+public class DataReadingCostModel {
+    private static final Logger log = LoggerFactory.getLogger(DataReadingCostModel.class);
+
+    /*
+     * The number of bytes per value when estimating the amount of data read.
+     * Data are read into floats.
+     */
+    private static final int BYTES_PER_VALUE = 4;
+
+    /*
+     * Limits on the size of the block used for the bandwidth probe
+     */
+    private static final int MAX_PROBE_SIZE = 256;
+    private static final int NUM_PROBES = 3;
+
+    /* The fixed cost (in ms) of making a read */
+    private final double msPerRead;
+    /* The cost (in ms) of each value read */
+    private final double msPerValue;
+
+    /**
+     * Creates a new {@link DataReadingCostModel}
+     * 
+     * @param msPerRead
+     *            The fixed cost of each call to
+     *            {@link GridDataSource#read(String, int, int, int, int, int, int, int, int)}
+     *            , in milliseconds
+     * @param msPerValue
+     *            The additional cost of each value read, in milliseconds
+     */
+    public DataReadingCostModel(double msPerRead, double msPerValue) {
+        if (msPerRead < 0 || msPerValue < 0) {
+            throw new IllegalArgumentException("Read costs cannot be negative");
+        }
+        this.msPerRead = msPerRead;
+        this.msPerValue = msPerValue;
+    }
+
+    /**
+     * @return The fixed cost of each read, in milliseconds
+     */
+    public double getMsPerRead() {
+        return msPerRead;
+    }
+
+    /**
+     * @return The cost of each value read, in milliseconds
+     */
+    public double getMsPerValue() {
+        return msPerValue;
+    }
+
+    /**
+     * Chooses the {@link DataReadingStrategy} which is expected to be cheapest
+     * for the given {@link Domain2DMapper}
+     * 
+     * @param domainMapper
+     *            The {@link Domain2DMapper} describing the data to be read
+     * @return The cheapest {@link DataReadingStrategy}
+     */
+    public DataReadingStrategy chooseStrategy(Domain2DMapper domainMapper) {
+        if (domainMapper.isEmpty()) {
+            /* No data will be read, so it doesn't matter */
+            return DataReadingStrategy.BOUNDING_BOX;
+        }
+        ReadFootprint footprint = new ReadFootprint(domainMapper);
+
+        DataReadingStrategy best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (DataReadingStrategy strategy : DataReadingStrategy.values()) {
+            double cost = getCost(footprint, strategy);
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = strategy;
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Read plan: " + best + " (" + footprint.getNumReads(best) + " reads, ~"
+                    + footprint.getNumValues(best) * BYTES_PER_VALUE + " bytes, est. "
+                    + String.format("%.2f", bestCost) + "ms) for footprint " + footprint);
+        }
+        return best;
+    }
+
+    /**
+     * Estimates the cost of reading data with a given footprint using a
+     * particular {@link DataReadingStrategy}
+     * 
+     * @param footprint
+     *            The {@link ReadFootprint} describing the data required
+     * @param strategy
+     *            The {@link DataReadingStrategy} to use
+     * @return The estimated time, in milliseconds
+     */
+    public double getCost(ReadFootprint footprint, DataReadingStrategy strategy) {
+        return footprint.getNumReads(strategy) * msPerRead + footprint.getNumValues(strategy)
+                * msPerValue;
+    }
+
+    /**
+     * Calibrates a {@link DataReadingCostModel} by timing a number of probe
+     * reads from a variable. A set of single-value reads measures the fixed
+     * cost of each read, and a set of block reads measures the cost of each
+     * value.
+     * 
+     * Note that the probe reads will warm any caches in the underlying
+     * storage, so the calibrated costs are likely to be an underestimate. This
+     * doesn't matter, since it is only the relative costs of the different
+     * strategies that matter.
+     * 
+     * @param dataSource
+     *            The {@link GridDataSource} to read from
+     * @param varId
+     *            The ID of a (non-derived) variable to read
+     * @param tIndex
+     *            The time index to read
+     * @param zIndex
+     *            The vertical index to read
+     * @param xSize
+     *            The x-size of the variable's horizontal grid
+     * @param ySize
+     *            The y-size of the variable's horizontal grid
+     * @return A new {@link DataReadingCostModel}
+     * @throws IOException
+     *             If there is a problem reading from the data source
+     * @throws DataReadingException
+     *             If there is a problem reading from the data source
+     */
+    public static DataReadingCostModel calibrate(GridDataSource dataSource, String varId,
+            int tIndex, int zIndex, int xSize, int ySize) throws IOException,
+            DataReadingException {
+        int blockXSize = Math.min(xSize, MAX_PROBE_SIZE);
+        int blockYSize = Math.min(ySize, MAX_PROBE_SIZE);
+
+        /*
+         * Time some single-value reads, spread across the grid. We take the
+         * median to reduce the effect of outliers (e.g. the first read of a
+         * file).
+         */
+        long[] pointTimes = new long[NUM_PROBES];
+        for (int i = 0; i < NUM_PROBES; i++) {
+            int x = (int) ((long) (xSize - 1) * (i + 1) / (NUM_PROBES + 1));
+            int y = (int) ((long) (ySize - 1) * (i + 1) / (NUM_PROBES + 1));
+            long start = System.nanoTime();
+            dataSource.read(varId, tIndex, tIndex, zIndex, zIndex, y, y, x, x);
+            pointTimes[i] = System.nanoTime() - start;
+        }
+
+        /*
+         * Now time some block reads at different positions in the grid
+         */
+        long[] blockTimes = new long[NUM_PROBES];
+        for (int i = 0; i < NUM_PROBES; i++) {
+            int xmin = (int) ((long) (xSize - blockXSize) * i / NUM_PROBES);
+            int ymin = (int) ((long) (ySize - blockYSize) * i / NUM_PROBES);
+            long start = System.nanoTime();
+            dataSource.read(varId, tIndex, tIndex, zIndex, zIndex, ymin, ymin + blockYSize - 1,
+                    xmin, xmin + blockXSize - 1);
+            blockTimes[i] = System.nanoTime() - start;
+        }
+
+        double msPerRead = median(pointTimes) / 1e6;
+        double msPerValue;
+        long blockValues = (long) blockXSize * blockYSize;
+        if (blockValues > 1) {
+            msPerValue = Math.max(0.0, median(blockTimes) / 1e6 - msPerRead) / (blockValues - 1);
+        } else {
+            msPerValue = 0.0;
+        }
+        /*
+         * Avoid a zero cost per value, which would always favour the
+         * bounding box strategy
+         */
+        msPerValue = Math.max(msPerValue, 1e-9);
+
+        log.debug("Calibrated read costs for variable " + varId + ": " + msPerRead
+                + "ms per read, " + msPerValue + "ms per value");
+        return new DataReadingCostModel(msPerRead, msPerValue);
+    }
+
+    private static double median(long[] times) {
+        long[] sorted = Arrays.copyOf(times, times.length);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    @Override
+    public String toString() {
+        return "DataReadingCostModel [msPerRead=" + msPerRead + ", msPerValue=" + msPerValue
+                + "]";
+    }
+
+    /**
+     * Summarises the source grid points which are needed by a
+     * {@link Domain2DMapper}, in terms of the number of reads and the number
+     * of values each {@link DataReadingStrategy} would need.
+     * 
+     * @author agent
+     */
+    public static final class ReadFootprint {
+        /* The number of points in the bounding box of all required points */
+        private final long boundingBoxSize;
+        /* The number of distinct points required */
+        private final long numUniquePoints;
+        /* The number of distinct rows containing required points */
+        private final long numScanlines;
+        /* The total number of points spanned by the scanlines */
+        private final long scanlineSize;
+
+        public ReadFootprint(Domain2DMapper domainMapper) {
+            int nMappings = domainMapper.getNumMappings();
+            if (nMappings == 0) {
+                boundingBoxSize = 0;
+                numUniquePoints = 0;
+                numScanlines = 0;
+                scanlineSize = 0;
+                return;
+            }
+            boundingBoxSize = (long) (domainMapper.getMaxIIndex() - domainMapper.getMinIIndex() + 1)
+                    * (domainMapper.getMaxJIndex() - domainMapper.getMinJIndex() + 1);
+
+            /*
+             * The mappings are sorted by source index, so we can count the
+             * unique points and scanlines in a single pass
+             */
+            int iSize = domainMapper.getSourceGridISize();
+            long uniquePoints = 0;
+            long scanlines = 0;
+            long scanlinePoints = 0;
+            long lastSourceIndex = -1L;
+            long currentJ = -1L;
+            long scanlineStart = 0L;
+            for (int n = 0; n < nMappings; n++) {
+                long sourceIndex = domainMapper.getSourceIndex(n);
+                if (sourceIndex == lastSourceIndex) {
+                    continue;
+                }
+                uniquePoints++;
+                long j = sourceIndex / iSize;
+                if (j != currentJ) {
+                    if (currentJ >= 0) {
+                        scanlinePoints += lastSourceIndex - scanlineStart + 1;
+                    }
+                    scanlines++;
+                    currentJ = j;
+                    scanlineStart = sourceIndex;
+                }
+                lastSourceIndex = sourceIndex;
+            }
+            scanlinePoints += lastSourceIndex - scanlineStart + 1;
+
+            numUniquePoints = uniquePoints;
+            numScanlines = scanlines;
+            scanlineSize = scanlinePoints;
+        }
+
+        /**
+         * @param strategy
+         *            A {@link DataReadingStrategy}
+         * @return The number of read operations the given strategy will make
+         */
+        public long getNumReads(DataReadingStrategy strategy) {
+            if (numUniquePoints == 0) {
+                return 0;
+            }
+            switch (strategy) {
+            case BOUNDING_BOX:
+                return 1;
+            case SCANLINE:
+                return numScanlines;
+            case PIXEL_BY_PIXEL:
+                return numUniquePoints;
+            default:
+                throw new IllegalArgumentException("Unknown data reading strategy: " + strategy);
+            }
+        }
+
+        /**
+         * @param strategy
+         *            A {@link DataReadingStrategy}
+         * @return The number of values the given strategy will read
+         */
+        public long getNumValues(DataReadingStrategy strategy) {
+            switch (strategy) {
+            case BOUNDING_BOX:
+                return boundingBoxSize;
+            case SCANLINE:
+                return scanlineSize;
+            case PIXEL_BY_PIXEL:
+                return numUniquePoints;
+            default:
+                throw new IllegalArgumentException("Unknown data reading strategy: " + strategy);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "[bbox=" + boundingBoxSize + ", points=" + numUniquePoints + ", scanlines="
+                    + numScanlines + ", scanlinePoints=" + scanlineSize + "]";
+        }
+    }
+}
@@ -28,8 +28,6 @@
 package uk.ac.rdg.resc.edal.dataset;
 
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.List;
 
 import org.h2.store.DataReader;
 
@@ -38,7 +36,7 @@ import uk.ac.rdg.resc.edal.dataset.DomainMapper.Scanline;
 import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Array4D;
-import uk.ac.rdg.resc.edal.util.ValuesArray2D;
+import uk.ac.rdg.resc.edal.util.FloatArray2D;
 
 /**
  * <p>
@@ -126,28 +124,35 @@ public enum DataReadingStrategy {
         @Override
         public Array2D<Number> readMapData(GridDataSource dataSource, String varId, int tIndex,
                 int zIndex, Domain2DMapper domainMapper) throws IOException, DataReadingException {
-            Array2D<Number> ret = new ValuesArray2D(domainMapper.getTargetYSize(),
+            FloatArray2D ret = new FloatArray2D(domainMapper.getTargetYSize(),
                     domainMapper.getTargetXSize());
+            float[] values = ret.getData();
 
-            Iterator<Scanline<int[]>> it = domainMapper.scanlineIterator();
-            while (it.hasNext()) {
-                Scanline<int[]> scanline = it.next();
-                List<DomainMapperEntry<int[]>> entries = scanline.getPixelMapEntries();
-
-                int j = scanline.getSourceGridJIndex();
-                int imin = entries.get(0).getSourceGridIIndex();
-                int imax = entries.get(entries.size() - 1).getSourceGridIIndex();
+            /*
+             * The mappings are sorted by source index, so all of the mappings
+             * for a given j index (i.e. a scanline) are contiguous, in order of
+             * increasing i index
+             */
+            int iSize = domainMapper.getSourceGridISize();
+            int nMappings = domainMapper.getNumMappings();
+            int start = 0;
+            while (start < nMappings) {
+                int j = (int) (domainMapper.getSourceIndex(start) / iSize);
+                int end = start + 1;
+                while (end < nMappings && domainMapper.getSourceIndex(end) / iSize == j) {
+                    end++;
+                }
+                int imin = (int) (domainMapper.getSourceIndex(start) % iSize);
+                int imax = (int) (domainMapper.getSourceIndex(end - 1) % iSize);
 
                 Array4D<Number> data = dataSource.read(varId, tIndex, tIndex, zIndex, zIndex, j, j,
                         imin, imax);
 
-                for (DomainMapperEntry<int[]> dme : entries) {
-                    List<int[]> targetGridPoints = dme.getTargetIndices();
-                    for (int[] targetPoint : targetGridPoints) {
-                        ret.set(data.get(0, 0, 0, dme.getSourceGridIIndex() - imin), new int[] {
-                                targetPoint[1], targetPoint[0] });
-                    }
+                for (int n = start; n < end; n++) {
+                    int i = (int) (domainMapper.getSourceIndex(n) % iSize);
+                    values[domainMapper.getTargetIndex(n)] = data.getFloat(0, 0, 0, i - imin);
                 }
+                start = end;
             }
             return ret;
         }
@@ -162,24 +167,25 @@ public enum DataReadingStrategy {
         @Override
         public Array2D<Number> readMapData(GridDataSource dataSource, String varId, int tIndex,
                 int zIndex, Domain2DMapper domainMapper) throws IOException, DataReadingException {
-            Array2D<Number> ret = new ValuesArray2D(domainMapper.getTargetYSize(),
+            FloatArray2D ret = new FloatArray2D(domainMapper.getTargetYSize(),
                     domainMapper.getTargetXSize());
             if (domainMapper.isEmpty()) {
                 return ret;
             }
+            float[] values = ret.getData();
             int imin = domainMapper.getMinIIndex();
             int imax = domainMapper.getMaxIIndex();
             int jmin = domainMapper.getMinJIndex();
             int jmax = domainMapper.getMaxJIndex();
             Array4D<Number> data = dataSource.read(varId, tIndex, tIndex, zIndex, zIndex, jmin,
                     jmax, imin, imax);
-            for (DomainMapperEntry<int[]> pme : domainMapper) {
-                List<int[]> targetGridPoints = pme.getTargetIndices();
-                for (int[] targetPoint : targetGridPoints) {
-                    ret.set(data.get(0, 0, pme.getSourceGridJIndex() - jmin,
-                            pme.getSourceGridIIndex() - imin), new int[] { targetPoint[1],
-                            targetPoint[0] });
-                }
+            int iSize = domainMapper.getSourceGridISize();
+            int nMappings = domainMapper.getNumMappings();
+            for (int n = 0; n < nMappings; n++) {
+                long sourceIndex = domainMapper.getSourceIndex(n);
+                int i = (int) (sourceIndex % iSize);
+                int j = (int) (sourceIndex / iSize);
+                values[domainMapper.getTargetIndex(n)] = data.getFloat(0, 0, j - jmin, i - imin);
             }
             return ret;
         }
@@ -193,21 +199,50 @@ public enum DataReadingStrategy {
         @Override
         public Array2D<Number> readMapData(GridDataSource dataSource, String varId, int tIndex,
                 int zIndex, Domain2DMapper domainMapper) throws IOException, DataReadingException {
-            Array2D<Number> ret = new ValuesArray2D(domainMapper.getTargetYSize(),
+            FloatArray2D ret = new FloatArray2D(domainMapper.getTargetYSize(),
                     domainMapper.getTargetXSize());
-            for (DomainMapperEntry<int[]> pme : domainMapper) {
-                Array4D<Number> data = dataSource.read(varId, tIndex, tIndex, zIndex, zIndex,
-                        pme.getSourceGridJIndex(), pme.getSourceGridJIndex(),
-                        pme.getSourceGridIIndex(), pme.getSourceGridIIndex());
-                List<int[]> targetGridPoints = pme.getTargetIndices();
-                for (int[] targetPoint : targetGridPoints) {
-                    ret.set(data.get(0, 0, 0, 0), new int[] { targetPoint[1], targetPoint[0] });
+            float[] values = ret.getData();
+            int iSize = domainMapper.getSourceGridISize();
+            int nMappings = domainMapper.getNumMappings();
+            long lastSourceIndex = -1L;
+            float value = Float.NaN;
+            for (int n = 0; n < nMappings; n++) {
+                long sourceIndex = domainMapper.getSourceIndex(n);
+                if (sourceIndex != lastSourceIndex) {
+                    /*
+                     * Mappings are sorted by source index, so we only read
+                     * each source point once
+                     */
+                    int i = (int) (sourceIndex % iSize);
+                    int j = (int) (sourceIndex / iSize);
+                    Array4D<Number> data = dataSource.read(varId, tIndex, tIndex, zIndex, zIndex,
+                            j, j, i, i);
+                    value = data.getFloat(0, 0, 0, 0);
+                    lastSourceIndex = sourceIndex;
                 }
+                values[domainMapper.getTargetIndex(n)] = value;
             }
             return ret;
         }
     };
 
+    /**
+     * Reads the data required for a map
+     * 
+     * @param dataSource
+     *            The {@link GridDataSource} to read from
+     * @param varId
+     *            The ID of the variable to read
+     * @param tIndex
+     *            The time index to read
+     * @param zIndex
+     *            The vertical index to read
+     * @param domainMapper
+     *            The {@link Domain2DMapper} mapping the source grid onto the
+     *            target grid
+     * @return An {@link Array2D} containing the data on the target grid.
+     *         Target points with no corresponding source data are missing.
+     */
     abstract public Array2D<Number> readMapData(GridDataSource dataSource, String varId,
             int tIndex, int zIndex, Domain2DMapper domainMapper) throws IOException,
             DataReadingException;
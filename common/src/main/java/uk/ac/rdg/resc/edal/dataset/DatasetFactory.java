@@ -34,6 +34,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.util.LookUpTableCache;
 
 /**
  * A factory for {@link Dataset} objects. The intention is that one factory
@@ -67,11 +68,23 @@ public abstract class DatasetFactory {
      * @param workingDir
      *            A default working directory which {@link DatasetFactory}
      *            subclasses can use to store data (e.g. to write spatial
-     *            indices to disk)
+     *            indices to disk). Look-up tables for curvilinear grids are
+     *            also stored here.
      * 
      */
     public static void setWorkingDirectory(File workingDir) {
         DatasetFactory.workingDir = workingDir;
+        LookUpTableCache.getInstance().setDirectory(
+                workingDir == null ? null : new File(workingDir, "luts"));
+    }
+
+    /**
+     * @return The default working directory which {@link DatasetFactory}
+     *         subclasses (and the {@link Dataset}s they create) can use to
+     *         store data, or <code>null</code> if none has been set
+     */
+    public static File getWorkingDirectory() {
+        return workingDir;
     }
 
     /**
@@ -127,4 +140,108 @@ public abstract class DatasetFactory {
      */
     public abstract Dataset createDataset(String id, String location) throws IOException,
             EdalException;
+
+    /**
+     * Returns a Dataset object representing the current state of the data at
+     * the given location, which was previously represented by the given
+     * Dataset. Implementations may use the previous Dataset to avoid
+     * re-reading data which has not changed (for example, when new files have
+     * been added to a multi-file dataset).
+     * 
+     * The default implementation creates the dataset from scratch.
+     * 
+     * @param previous
+     *            The {@link Dataset} which was previously created (or
+     *            restored) by this factory for the given ID and location
+     * @param id
+     *            The ID to assign to this dataset
+     * @param location
+     *            The location of the source data
+     * @throws EdalException
+     *             If there is a problem creating the dataset
+     */
+    public Dataset refreshDataset(Dataset previous, String id, String location)
+            throws IOException, EdalException {
+        return createDataset(id, location);
+    }
+
+    /**
+     * Writes a snapshot of the metadata of a {@link Dataset} which was created
+     * by this factory, so that it can later be restored with
+     * {@link DatasetFactory#restoreDataset(String, String, File)} without
+     * reading the underlying data.
+     * 
+     * The default implementation does not support snapshots.
+     * 
+     * @param dataset
+     *            The {@link Dataset} to snapshot. This must have been returned
+     *            by {@link DatasetFactory#createDataset(String, String)}
+     * @param snapshotDir
+     *            The directory in which to store the snapshot
+     * @return <code>true</code> if a snapshot was written
+     * @throws IOException
+     *             If there is a problem writing the snapshot
+     */
+    public boolean writeSnapshot(Dataset dataset, File snapshotDir) throws IOException {
+        return false;
+    }
+
+    /**
+     * Restores a {@link Dataset} from a snapshot written by
+     * {@link DatasetFactory#writeSnapshot(Dataset, File)}. The snapshot may be
+     * out-of-date, which can be checked with
+     * {@link DatasetFactory#isSnapshotCurrent(String, String, File)}.
+     * 
+     * The default implementation does not support snapshots.
+     * 
+     * @param id
+     *            The ID of the dataset
+     * @param location
+     *            The location of the source data
+     * @param snapshotDir
+     *            The directory in which snapshots are stored
+     * @return The restored {@link Dataset}, or <code>null</code> if there is
+     *         no usable snapshot
+     * @throws EdalException
+     *             If there is a problem creating the dataset
+     */
+    public Dataset restoreDataset(String id, String location, File snapshotDir)
+            throws IOException, EdalException {
+        return null;
+    }
+
+    /**
+     * Checks whether the snapshot of a dataset still matches the source data.
+     * This should be much cheaper than creating the dataset.
+     * 
+     * The default implementation does not support snapshots.
+     * 
+     * @param id
+     *            The ID of the dataset
+     * @param location
+     *            The location of the source data
+     * @param snapshotDir
+     *            The directory in which snapshots are stored
+     * @return <code>true</code> if the snapshot exists and is up-to-date
+     */
+    public boolean isSnapshotCurrent(String id, String location, File snapshotDir) {
+        return false;
+    }
+
+    /**
+     * Releases any resources (e.g. pooled file handles) which this factory
+     * holds for the dataset with the given ID and location. This is called
+     * when a dataset is removed, or is about to be given a new ID. Datasets
+     * which were previously created for this ID and location remain usable,
+     * but may be slower.
+     * 
+     * The default implementation does nothing.
+     * 
+     * @param id
+     *            The ID of the dataset
+     * @param location
+     *            The location of the source data
+     */
+    public void closeDataset(String id, String location) {
+    }
 }
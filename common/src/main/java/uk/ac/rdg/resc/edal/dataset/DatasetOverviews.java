@@ -0,0 +1,455 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.VerticalAxis;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.util.Array2D;
+
+/**
+ * The {@link OverviewPyramid}s of the variables of a single
+ * {@link GriddedDataset}, which are used to read maps whose resolution is much
+ * lower than that of the data.
+ * 
+ * @author agent
+ */
+final class DatasetOverviews {
+    private static final Logger log = LoggerFactory.getLogger(DatasetOverviews.class);
+
+    /*
+     * The overview directories in use, and the datasets which they belong to.
+     * A directory is only deleted once all of its datasets have been garbage
+     * collected, since until then they may still be reading from it.
+     */
+    private static final Map<File, OverviewVersion> versions = new HashMap<File, OverviewVersion>();
+
+    /*
+     * Used to build overviews of single slices when they are first needed.
+     * This is separate from the IndexBuilder so that these are not held up by
+     * building entire indices.
+     */
+    private static final ExecutorService builder = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "gridded-dataset-overviews");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    private final GriddedDataset dataset;
+
+    /* The overviews of each variable, keyed on variable ID */
+    private final Map<String, OverviewPyramid> pyramids = new ConcurrentHashMap<String, OverviewPyramid>();
+    /* Slices of overviews which are waiting to be built in the background */
+    private final Set<String> pending = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    DatasetOverviews(GriddedDataset dataset) {
+        this.dataset = dataset;
+    }
+
+    /**
+     * @see GriddedDataset#buildOverviews(File, boolean)
+     */
+    Future<?> build(File directory, boolean eager) {
+        File datasetDir = new File(directory, IndexBuilder.toSafeFilename(dataset.getId()));
+        final SourceVersion version = dataset.getSourceVersion();
+        boolean known = version.getHash() != SourceVersion.UNKNOWN.getHash();
+        /*
+         * Each version of the data gets its own directory, so that overviews
+         * which are still being read by a previous version are not
+         * overwritten. If the version is known, the directory is named after
+         * it, so that later instances of the same version (e.g. after a
+         * restart) reuse it. Overviews of an unknown version can never be
+         * reused.
+         */
+        File versionDir = new File(datasetDir, known ? Long.toHexString(version.getHash())
+                : UUID.randomUUID().toString());
+        final Map<String, OverviewPyramid> newPyramids = new HashMap<String, OverviewPyramid>();
+        /* The overviews of other versions, which unchanged slices are copied from */
+        final List<Map<String, OverviewPyramid>> otherPyramids = new ArrayList<Map<String, OverviewPyramid>>();
+        /* Overviews left over from previous runs, deleted once copied from */
+        final List<OverviewPyramid> leftoverPyramids = new ArrayList<OverviewPyramid>();
+        final List<File> leftoverDirs = new ArrayList<File>();
+        synchronized (versions) {
+            OverviewVersion current = versions.get(versionDir);
+            if (current == null) {
+                current = new OverviewVersion();
+                versions.put(versionDir, current);
+            }
+            /*
+             * Register this dataset first, so that the overviews of the same
+             * version are not deleted because a previous user has gone
+             */
+            current.datasets.add(new WeakReference<GriddedDataset>(dataset));
+            deleteUnused();
+            for (GridVariableMetadata metadata : getOverviewVariables()) {
+                String varId = metadata.getId();
+                OverviewPyramid pyramid = current.pyramids.get(varId);
+                if (pyramid == null) {
+                    pyramid = OverviewPyramid.create(
+                            new File(versionDir, IndexBuilder.toSafeFilename(varId)), varId,
+                            (RectilinearGrid) metadata.getHorizontalDomain(),
+                            getTimes(metadata), getNumZs(metadata), version);
+                }
+                if (pyramid != null) {
+                    current.pyramids.put(varId, pyramid);
+                    newPyramids.put(varId, pyramid);
+                }
+            }
+
+            File[] versionDirs = datasetDir.listFiles();
+            if (versionDirs != null) {
+                for (File otherDir : versionDirs) {
+                    if (otherDir.equals(versionDir)) {
+                        continue;
+                    }
+                    OverviewVersion other = versions.get(otherDir);
+                    if (other != null) {
+                        otherPyramids.add(other.pyramids);
+                    } else if (!known) {
+                        IndexBuilder.deleteRecursively(otherDir);
+                    } else {
+                        Map<String, OverviewPyramid> leftovers = new HashMap<String, OverviewPyramid>();
+                        for (GridVariableMetadata metadata : getOverviewVariables()) {
+                            String varId = metadata.getId();
+                            OverviewPyramid pyramid = OverviewPyramid.open(new File(otherDir,
+                                    IndexBuilder.toSafeFilename(varId)), varId,
+                                    (RectilinearGrid) metadata.getHorizontalDomain(),
+                                    getNumZs(metadata));
+                            if (pyramid != null) {
+                                leftovers.put(varId, pyramid);
+                                leftoverPyramids.add(pyramid);
+                            }
+                        }
+                        otherPyramids.add(leftovers);
+                        leftoverDirs.add(otherDir);
+                    }
+                }
+            }
+        }
+        /*
+         * Any overviews which this dataset was already using are left in
+         * place, and deleted along with the new ones
+         */
+        pyramids.clear();
+        pyramids.putAll(newPyramids);
+
+        final Future<?> carriedOver;
+        if (known && !otherPyramids.isEmpty()) {
+            /*
+             * This runs on the same thread as the slices which are built when
+             * first needed, so it is done before any of them
+             */
+            carriedOver = builder.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        carryOver(newPyramids, otherPyramids, version);
+                    } finally {
+                        for (OverviewPyramid pyramid : leftoverPyramids) {
+                            pyramid.delete();
+                        }
+                        for (File leftoverDir : leftoverDirs) {
+                            IndexBuilder.deleteRecursively(leftoverDir);
+                        }
+                    }
+                }
+            });
+        } else {
+            carriedOver = null;
+        }
+
+        if (!eager) {
+            return carriedOver;
+        }
+        return IndexBuilder.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (carriedOver != null) {
+                    /*
+                     * Don't rebuild slices which can be copied
+                     */
+                    try {
+                        carriedOver.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    } catch (ExecutionException e) {
+                        log.warn("Problem copying overviews of dataset " + dataset.getId(), e);
+                    }
+                }
+                for (Entry<String, OverviewPyramid> entry : newPyramids.entrySet()) {
+                    String varId = entry.getKey();
+                    OverviewPyramid pyramid = entry.getValue();
+                    GridDataSource dataSource = null;
+                    try {
+                        GridVariableMetadata metadata = (GridVariableMetadata) dataset
+                                .getVariableMetadata(varId);
+                        int nTimes = metadata.getTemporalDomain() == null ? 1 : metadata
+                                .getTemporalDomain().size();
+                        int nZs = getNumZs(metadata);
+                        /*
+                         * Later times are more likely to be requested
+                         */
+                        for (int t = nTimes - 1; t >= 0; t--) {
+                            for (int z = 0; z < nZs; z++) {
+                                if (Thread.currentThread().isInterrupted()) {
+                                    return;
+                                }
+                                if (pyramid.isBuilt(t, z)) {
+                                    continue;
+                                }
+                                if (dataSource == null) {
+                                    dataSource = dataset.openGridDataSource();
+                                }
+                                pyramid.build(t, z, dataSource);
+                            }
+                        }
+                    } catch (IOException | DataReadingException | VariableNotFoundException e) {
+                        log.warn("Problem generating overviews of " + varId + " in dataset "
+                                + dataset.getId(), e);
+                    } finally {
+                        IndexBuilder.close(dataSource);
+                    }
+                }
+            }
+        });
+    }
+
+    /*
+     * Copies the unchanged slices of the overviews of other versions of the
+     * data into the overviews of the current version
+     */
+    private void carryOver(Map<String, OverviewPyramid> newPyramids,
+            List<Map<String, OverviewPyramid>> otherPyramids, SourceVersion version) {
+        for (Entry<String, OverviewPyramid> entry : newPyramids.entrySet()) {
+            String varId = entry.getKey();
+            int nCopied = 0;
+            for (Map<String, OverviewPyramid> other : otherPyramids) {
+                OverviewPyramid previous = other.get(varId);
+                if (previous == null || previous == entry.getValue()) {
+                    continue;
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                try {
+                    nCopied += entry.getValue().carryOver(previous, version);
+                } catch (IOException e) {
+                    log.warn("Problem copying overviews of " + varId + " in dataset "
+                            + dataset.getId() + ".  They will be rebuilt.", e);
+                }
+            }
+            if (nCopied > 0) {
+                log.debug("Copied " + nCopied + " unchanged slices of the overviews of "
+                        + varId + " in dataset " + dataset.getId());
+            }
+        }
+    }
+
+    /*
+     * The variables which overviews can be generated for
+     */
+    private List<GridVariableMetadata> getOverviewVariables() {
+        List<GridVariableMetadata> ret = new ArrayList<GridVariableMetadata>();
+        for (GridVariableMetadata metadata : IndexBuilder.getIndexableVariables(dataset)) {
+            if (metadata.getHorizontalDomain() instanceof RectilinearGrid) {
+                ret.add(metadata);
+            }
+        }
+        return ret;
+    }
+
+    private static long[] getTimes(GridVariableMetadata metadata) {
+        TimeAxis tAxis = metadata.getTemporalDomain();
+        if (tAxis == null) {
+            return new long[] { Long.MIN_VALUE };
+        }
+        long[] times = new long[tAxis.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = tAxis.getCoordinateValue(i).getMillis();
+        }
+        return times;
+    }
+
+    private static int getNumZs(GridVariableMetadata metadata) {
+        VerticalAxis zAxis = metadata.getVerticalDomain();
+        return zAxis == null ? 1 : zAxis.size();
+    }
+
+    /**
+     * Reads map data from the coarsest overview which still has enough
+     * resolution for the target grid
+     * 
+     * @param varId
+     *            The ID of the variable to read
+     * @param domainMapper
+     *            The {@link Domain2DMapper} from the grid of the variable to
+     *            the target grid
+     * @param targetGrid
+     *            The {@link HorizontalGrid} on which to read data
+     * @param tIndex
+     *            The time index to read
+     * @param zIndex
+     *            The vertical index to read
+     * @return The data, or <code>null</code> if it should be read from the
+     *         original data instead. This is the case when the target grid
+     *         is not much coarser than the variable's grid, or when the
+     *         overviews of the slice are not built yet, in which case they are
+     *         built in the background.
+     */
+    Array2D<Number> readMapData(String varId, Domain2DMapper domainMapper,
+            HorizontalGrid targetGrid, int tIndex, int zIndex) {
+        OverviewPyramid overviews = pyramids.get(varId);
+        if (overviews == null || domainMapper.isEmpty()) {
+            return null;
+        }
+        int level = overviews.chooseLevel(domainMapper.getMaxIIndex()
+                - domainMapper.getMinIIndex() + 1, domainMapper.getMaxJIndex()
+                - domainMapper.getMinJIndex() + 1, targetGrid.getXSize(), targetGrid.getYSize());
+        if (level <= 0) {
+            return null;
+        }
+        if (!overviews.isBuilt(tIndex, zIndex)) {
+            /*
+             * Don't make this request wait for the overviews. Read the
+             * original data for now.
+             */
+            buildInBackground(varId, overviews, tIndex, zIndex);
+            return null;
+        }
+        try {
+            Domain2DMapper overviewMapper = Domain2DMapperCache.getInstance().getMapper(
+                    overviews.getGrid(level), targetGrid);
+            return dataset.getDataReadingStrategy(overviewMapper).readMapData(
+                    overviews.getDataSource(level), varId, tIndex, zIndex, overviewMapper);
+        } catch (IOException | DataReadingException e) {
+            log.warn("Problem reading overviews of " + varId
+                    + ".  Reading from the original data instead.", e);
+            return null;
+        }
+    }
+
+    /*
+     * Deletes the overviews which can no longer be read, i.e. those whose
+     * datasets have all been garbage collected
+     */
+    private static void deleteUnused() {
+        synchronized (versions) {
+            Iterator<Entry<File, OverviewVersion>> iterator = versions.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Entry<File, OverviewVersion> entry = iterator.next();
+                if (!entry.getValue().isInUse()) {
+                    for (OverviewPyramid pyramid : entry.getValue().pyramids.values()) {
+                        pyramid.delete();
+                    }
+                    IndexBuilder.deleteRecursively(entry.getKey());
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /*
+     * Builds the overviews of a slice in the background, unless this is
+     * already waiting to be done
+     */
+    private void buildInBackground(final String varId, final OverviewPyramid overviews,
+            final int tIndex, final int zIndex) {
+        final String key = varId + "/" + tIndex + "/" + zIndex;
+        if (!pending.add(key)) {
+            return;
+        }
+        builder.execute(new Runnable() {
+            @Override
+            public void run() {
+                GridDataSource dataSource = null;
+                try {
+                    dataSource = dataset.openGridDataSource();
+                    overviews.build(tIndex, zIndex, dataSource);
+                } catch (IOException | DataReadingException e) {
+                    log.warn("Problem generating overviews of " + varId + " in dataset "
+                            + dataset.getId(), e);
+                } finally {
+                    pending.remove(key);
+                    IndexBuilder.close(dataSource);
+                }
+            }
+        });
+    }
+
+    /*
+     * A directory of overviews, and the datasets which read from it
+     */
+    private static final class OverviewVersion {
+        private final List<WeakReference<GriddedDataset>> datasets = new ArrayList<WeakReference<GriddedDataset>>();
+        private final Map<String, OverviewPyramid> pyramids = new ConcurrentHashMap<String, OverviewPyramid>();
+
+        private boolean isInUse() {
+            Iterator<WeakReference<GriddedDataset>> iterator = datasets.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().get() == null) {
+                    iterator.remove();
+                }
+            }
+            return !datasets.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+
+import org.joda.time.DateTime;
+import org.opengis.metadata.extent.GeographicBoundingBox;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.grid.GridCell2D;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.VerticalAxis;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+
+/**
+ * The {@link StatisticsIndex} of a single {@link GriddedDataset}, which is
+ * used to estimate the ranges of the data in horizontal slices without
+ * reading them.
+ * 
+ * @author agent
+ */
+final class DatasetStatistics {
+    private static final Logger log = LoggerFactory.getLogger(DatasetStatistics.class);
+
+    /*
+     * The number of blocks along each horizontal axis for which statistics are
+     * calculated
+     */
+    private static final int N_STATISTICS_BLOCKS = 8;
+
+    private final GriddedDataset dataset;
+
+    private volatile StatisticsIndex index = null;
+
+    DatasetStatistics(GriddedDataset dataset) {
+        this.dataset = dataset;
+    }
+
+    /**
+     * Opens the index of the dataset and adds any slices which are not already
+     * in it, in the background
+     * 
+     * @param directory
+     *            The directory in which to store the index
+     * @return A {@link Future} which completes when the index is up-to-date
+     * @throws IOException
+     *             If the index cannot be opened
+     */
+    Future<?> build(File directory) throws IOException {
+        final StatisticsIndex index = StatisticsIndex.open(new File(directory,
+                IndexBuilder.toSafeFilename(dataset.getId()) + ".stats"));
+        final SourceVersion version = dataset.getSourceVersion();
+        index.setSourceVersion(version);
+        this.index = index;
+        return IndexBuilder.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (GridVariableMetadata metadata : IndexBuilder
+                            .getIndexableVariables(dataset)) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
+                        }
+                        try {
+                            indexStatistics(metadata, index, version);
+                        } catch (IOException | DataReadingException e) {
+                            log.warn("Problem calculating statistics for " + metadata.getId()
+                                    + " in dataset " + dataset.getId(), e);
+                        }
+                    }
+                } finally {
+                    index.write();
+                }
+            }
+        });
+    }
+
+    /*
+     * Adds the statistics of all slices of a variable which are not already in
+     * the index
+     */
+    private void indexStatistics(GridVariableMetadata metadata, StatisticsIndex index,
+            SourceVersion version) throws IOException, DataReadingException {
+        String varId = metadata.getId();
+        HorizontalGrid hGrid = metadata.getHorizontalDomain();
+        VerticalAxis zAxis = metadata.getVerticalDomain();
+        TimeAxis tAxis = metadata.getTemporalDomain();
+        int xSize = hGrid.getXSize();
+        int ySize = hGrid.getYSize();
+        int xBlocks = Math.min(N_STATISTICS_BLOCKS, xSize);
+        int yBlocks = Math.min(N_STATISTICS_BLOCKS, ySize);
+        if (!index.hasGrid(varId, xSize, ySize)) {
+            index.setGrid(varId, xSize, ySize, getBlockExtents(hGrid, xBlocks, yBlocks));
+        }
+
+        int nTimes = tAxis == null ? 1 : tAxis.size();
+        int nZs = zAxis == null ? 1 : zAxis.size();
+        GridDataSource dataSource = null;
+        try {
+            /*
+             * Work backwards in time, since later times are more likely to be
+             * requested
+             */
+            for (int t = nTimes - 1; t >= 0; t--) {
+                long time = tAxis == null ? Long.MIN_VALUE : tAxis.getCoordinateValue(t)
+                        .getMillis();
+                for (int z = 0; z < nZs; z++) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    double zVal = zAxis == null ? Double.NaN : zAxis.getCoordinateValue(z);
+                    if (index.contains(varId, time, zVal)) {
+                        continue;
+                    }
+                    if (dataSource == null) {
+                        dataSource = dataset.openGridDataSource();
+                    }
+                    Array4D<Number> data = dataSource.read(varId, t, t, z, z, 0, ySize - 1, 0,
+                            xSize - 1);
+                    /*
+                     * Copy the whole slice in one go, rather than boxing each
+                     * value
+                     */
+                    float[] values = new float[xSize * ySize];
+                    data.copyInto(values);
+                    float[][] blockValues = new float[xBlocks * yBlocks][];
+                    for (int yBlock = 0; yBlock < yBlocks; yBlock++) {
+                        for (int xBlock = 0; xBlock < xBlocks; xBlock++) {
+                            blockValues[yBlock * xBlocks + xBlock] = new float[(blockStart(
+                                    xBlock + 1, xBlocks, xSize) - blockStart(xBlock, xBlocks,
+                                    xSize))
+                                    * (blockStart(yBlock + 1, yBlocks, ySize) - blockStart(yBlock,
+                                            yBlocks, ySize))];
+                        }
+                    }
+                    int[] blockFill = new int[blockValues.length];
+                    for (int y = 0; y < ySize; y++) {
+                        int yBlock = (int) ((long) y * yBlocks / ySize);
+                        for (int x = 0; x < xSize; x++) {
+                            int xBlock = (int) ((long) x * xBlocks / xSize);
+                            int block = yBlock * xBlocks + xBlock;
+                            blockValues[block][blockFill[block]++] = values[y * xSize + x];
+                        }
+                    }
+                    SliceStatistics[] blockStats = new SliceStatistics[blockValues.length];
+                    for (int i = 0; i < blockValues.length; i++) {
+                        blockStats[i] = SliceStatistics.fromValues(blockValues[i], false);
+                    }
+                    index.put(version, varId, time, zVal,
+                            SliceStatistics.fromValues(values, true), blockStats);
+                }
+            }
+        } finally {
+            if (dataSource != null) {
+                dataSource.close();
+            }
+            index.write();
+        }
+    }
+
+    /*
+     * The index of the first grid cell in a block, such that all blocks are
+     * as close to equal in size as possible
+     */
+    private static int blockStart(int block, int nBlocks, int size) {
+        return (int) (((long) block * size + nBlocks - 1) / nBlocks);
+    }
+
+    /*
+     * Finds the geographic extents of the cells in each block of a grid
+     */
+    private static double[][] getBlockExtents(HorizontalGrid hGrid, int xBlocks, int yBlocks) {
+        int nBlocks = xBlocks * yBlocks;
+        double[] minX = new double[nBlocks];
+        double[] minY = new double[nBlocks];
+        double[] maxX = new double[nBlocks];
+        double[] maxY = new double[nBlocks];
+        Arrays.fill(minX, Double.MAX_VALUE);
+        Arrays.fill(minY, Double.MAX_VALUE);
+        Arrays.fill(maxX, -Double.MAX_VALUE);
+        Arrays.fill(maxY, -Double.MAX_VALUE);
+        for (GridCell2D cell : hGrid.getDomainObjects()) {
+            GridCoordinates2D coords = cell.getGridCoordinates();
+            int block = (int) ((long) coords.getY() * yBlocks / hGrid.getYSize()) * xBlocks
+                    + (int) ((long) coords.getX() * xBlocks / hGrid.getXSize());
+            for (HorizontalPosition vertex : cell.getFootprint().getVertices()) {
+                minX[block] = Math.min(minX[block], vertex.getX());
+                minY[block] = Math.min(minY[block], vertex.getY());
+                maxX[block] = Math.max(maxX[block], vertex.getX());
+                maxY[block] = Math.max(maxY[block], vertex.getY());
+            }
+        }
+        double[][] extents = new double[nBlocks][];
+        for (int i = 0; i < nBlocks; i++) {
+            GeographicBoundingBox geoBbox = GISUtils.toGeographicBoundingBox(new BoundingBoxImpl(
+                    minX[i], minY[i], maxX[i], maxY[i], hGrid.getCoordinateReferenceSystem()));
+            extents[i] = new double[] { geoBbox.getWestBoundLongitude(),
+                    geoBbox.getSouthBoundLatitude(), geoBbox.getEastBoundLongitude(),
+                    geoBbox.getNorthBoundLatitude() };
+        }
+        return extents;
+    }
+
+    /**
+     * @see GriddedDataset#getSliceStatistics(String, DateTime, Double,
+     *      BoundingBox)
+     */
+    SliceStatistics getSliceStatistics(String varId, DateTime time, Double z, BoundingBox bbox) {
+        StatisticsIndex index = this.index;
+        if (index == null) {
+            return null;
+        }
+        VariableMetadata metadata;
+        try {
+            metadata = dataset.getVariableMetadata(varId);
+        } catch (VariableNotFoundException e) {
+            return null;
+        }
+        if (!(metadata instanceof GridVariableMetadata)) {
+            return null;
+        }
+        GridVariableMetadata gridMetadata = (GridVariableMetadata) metadata;
+        HorizontalGrid hGrid = gridMetadata.getHorizontalDomain();
+        TimeAxis tAxis = gridMetadata.getTemporalDomain();
+        VerticalAxis zAxis = gridMetadata.getVerticalDomain();
+        if (!index.hasGrid(varId, hGrid.getXSize(), hGrid.getYSize())) {
+            return null;
+        }
+        int tIndex;
+        int zIndex;
+        try {
+            tIndex = GriddedDataset.getTimeIndex(time, tAxis, varId);
+            zIndex = GriddedDataset.getVerticalIndex(z, zAxis, varId);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        long tValue = tAxis == null ? Long.MIN_VALUE : tAxis.getCoordinateValue(tIndex)
+                .getMillis();
+        double zValue = zAxis == null ? Double.NaN : zAxis.getCoordinateValue(zIndex);
+        return index.getStatistics(dataset.getSourceVersion(), varId, tValue, zValue,
+                bbox == null ? null : GISUtils.toGeographicBoundingBox(bbox));
+    }
+}
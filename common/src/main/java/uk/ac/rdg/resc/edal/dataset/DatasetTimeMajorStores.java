@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.VerticalAxis;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.util.Array1D;
+import uk.ac.rdg.resc.edal.util.FloatArray1D;
+
+/**
+ * The {@link TimeMajorStore}s of the variables of a single
+ * {@link GriddedDataset}, which are used to read timeseries once they are
+ * up-to-date.
+ * 
+ * @author agent
+ */
+final class DatasetTimeMajorStores {
+    private static final Logger log = LoggerFactory.getLogger(DatasetTimeMajorStores.class);
+
+    private final GriddedDataset dataset;
+
+    /* The stores which are up-to-date, keyed on variable ID */
+    private final Map<String, TimeMajorStore> stores = new ConcurrentHashMap<String, TimeMajorStore>();
+
+    DatasetTimeMajorStores(GriddedDataset dataset) {
+        this.dataset = dataset;
+    }
+
+    /**
+     * Builds (or brings up-to-date) the stores of all non-derived variables
+     * which have a time axis, in the background
+     * 
+     * @param directory
+     *            The directory in which to store the data
+     * @return A {@link Future} which completes when all stores are
+     *         up-to-date
+     */
+    Future<?> build(File directory) {
+        final File datasetDir = new File(directory, IndexBuilder.toSafeFilename(dataset.getId()));
+        return IndexBuilder.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (GridVariableMetadata metadata : IndexBuilder.getIndexableVariables(dataset)) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    if (metadata.getTemporalDomain() != null) {
+                        build(metadata, datasetDir);
+                    }
+                }
+            }
+        });
+    }
+
+    private void build(GridVariableMetadata metadata, File datasetDir) {
+        String varId = metadata.getId();
+        HorizontalGrid hGrid = metadata.getHorizontalDomain();
+        VerticalAxis zAxis = metadata.getVerticalDomain();
+        TimeAxis tAxis = metadata.getTemporalDomain();
+        GridDataSource dataSource = null;
+        try {
+            TimeMajorStore store = TimeMajorStore.open(new File(datasetDir,
+                    IndexBuilder.toSafeFilename(varId) + ".tms"), hGrid.getXSize(), hGrid
+                    .getYSize(), zAxis == null ? 1 : zAxis.size());
+            dataSource = dataset.openGridDataSource();
+            store.update(dataSource, varId, tAxis.getCoordinateValues(),
+                    dataset.getSourceVersion());
+            /*
+             * Don't use the store until it contains the whole time axis
+             */
+            if (store.getNumTimes() == tAxis.size()) {
+                stores.put(varId, store);
+                log.debug("Time-major store for " + varId + " in dataset " + dataset.getId()
+                        + " is up-to-date");
+            }
+        } catch (IOException | DataReadingException e) {
+            log.warn("Problem building time-major store for " + varId + " in dataset "
+                    + dataset.getId(), e);
+            stores.remove(varId);
+        } finally {
+            IndexBuilder.close(dataSource);
+        }
+    }
+
+    /**
+     * Reads timeseries of a variable from its store
+     * 
+     * @param varId
+     *            The ID of the variable
+     * @param times
+     *            The time axis values of the variable
+     * @param points
+     *            The (t,z,y,x) indices of the points to read. The t-indices are
+     *            ignored
+     * @param tIndices
+     *            The time indices to read at each point
+     * @return The timeseries at each point, or <code>null</code> if the
+     *         variable has no store, or the store does not contain all of the
+     *         required time steps from the current version of the data (e.g.
+     *         because it has been rebuilt for a newer version of this
+     *         dataset), or cannot be read
+     */
+    List<Array1D<Number>> readTimeseries(String varId, List<DateTime> times,
+            List<int[]> points, int[] tIndices) {
+        TimeMajorStore store = stores.get(varId);
+        if (store == null) {
+            return null;
+        }
+        int tMin = Integer.MAX_VALUE;
+        int tMax = -1;
+        for (int tIndex : tIndices) {
+            tMin = Math.min(tMin, tIndex);
+            tMax = Math.max(tMax, tIndex);
+        }
+        if (tMax < 0) {
+            return null;
+        }
+        List<Array1D<Number>> ret = new ArrayList<Array1D<Number>>();
+        try {
+            for (int[] point : points) {
+                float[] series = store.readTimeseries(times, dataset.getSourceVersion(),
+                        point[GriddedDataset.Z_AXIS], point[GriddedDataset.Y_AXIS],
+                        point[GriddedDataset.X_AXIS], tMin, tMax);
+                if (series == null) {
+                    return null;
+                }
+                FloatArray1D values = new FloatArray1D(tIndices.length);
+                for (int i = 0; i < tIndices.length; i++) {
+                    values.setFloat(i, series[tIndices[i] - tMin]);
+                }
+                ret.add(values);
+            }
+        } catch (IOException e) {
+            log.warn("Problem reading time-major store " + store.getFile()
+                    + ".  Reading from the original data instead.", e);
+            return null;
+        }
+        return ret;
+    }
+}
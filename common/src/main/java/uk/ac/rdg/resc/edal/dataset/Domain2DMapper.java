@@ -28,8 +28,20 @@
 
 package uk.ac.rdg.resc.edal.dataset;
 
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import org.geotoolkit.referencing.CRS;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.GeographicCRS;
+import org.opengis.referencing.crs.ProjectedCRS;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+import org.opengis.util.FactoryException;
+
+import uk.ac.rdg.resc.edal.grid.AbstractTransformedGrid;
 import uk.ac.rdg.resc.edal.grid.GridCell2D;
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
@@ -58,12 +70,28 @@ public class Domain2DMapper extends DomainMapper<int[]> {
     private int targetXSize;
     private int targetYSize;
 
+    /*
+     * The mapper onto a regularly-sampled subset of the source grid, if one is
+     * useful. This is calculated lazily, since it is only needed by some data
+     * sources
+     */
+    private volatile SampledMapper sampledMapper = null;
+    private volatile boolean sampledMapperCalculated = false;
+
     protected Domain2DMapper(HorizontalGrid sourceGrid, int targetXSize, int targetYSize) {
         super(sourceGrid, targetXSize * targetYSize);
         this.targetXSize = targetXSize;
         this.targetYSize = targetYSize;
     }
 
+    private Domain2DMapper(int sourceGridISize, int sourceGridJSize, int targetXSize,
+            int targetYSize) {
+        super(sourceGridISize, (long) sourceGridISize * sourceGridJSize, targetXSize
+                * targetYSize);
+        this.targetXSize = targetXSize;
+        this.targetYSize = targetYSize;
+    }
+
     @Override
     protected int[] convertIndexToCoordType(int index) {
         /*
@@ -91,6 +119,153 @@ public class Domain2DMapper extends DomainMapper<int[]> {
         return targetYSize;
     }
 
+    /**
+     * Gets a mapper onto a regularly-sampled subset of the source grid. When
+     * the target grid is much coarser than the source grid, only a small
+     * fraction of the source points are used, and these are spaced roughly
+     * evenly. The sampled mapper describes the same mapping in terms of a
+     * lattice of source points, starting at
+     * ({@link SampledMapper#getIOffset()}, {@link SampledMapper#getJOffset()})
+     * and spaced {@link SampledMapper#getIStride()} and
+     * {@link SampledMapper#getJStride()} points apart. This allows data
+     * sources which support strided reads to read roughly one value per target
+     * point, rather than every value within the bounding box.
+     * 
+     * The lattice spacing along each axis is the smallest gap between the
+     * source indices used. Source points which do not lie on the lattice are
+     * replaced by the nearest lattice point. This is at most half a gap away,
+     * so the replacement source cell still overlaps the same target cell.
+     * 
+     * @return The sampled mapper, or <code>null</code> if this mapper uses
+     *         neighbouring source points (i.e. there would be no benefit to
+     *         reading a sample)
+     */
+    public SampledMapper getSampledMapper() {
+        if (!sampledMapperCalculated) {
+            sampledMapper = calculateSampledMapper();
+            sampledMapperCalculated = true;
+        }
+        return sampledMapper;
+    }
+
+    private SampledMapper calculateSampledMapper() {
+        if (isEmpty()) {
+            return null;
+        }
+        int iSize = getSourceGridISize();
+        int iMin = getMinIIndex();
+        int jMin = getMinJIndex();
+        int nMappings = getNumMappings();
+        BitSet usedIs = new BitSet(getMaxIIndex() - iMin + 1);
+        BitSet usedJs = new BitSet(getMaxJIndex() - jMin + 1);
+        for (int n = 0; n < nMappings; n++) {
+            long sourceIndex = getSourceIndex(n);
+            usedIs.set((int) (sourceIndex % iSize) - iMin);
+            usedJs.set((int) (sourceIndex / iSize) - jMin);
+        }
+        int iStride = getMinimumGap(usedIs);
+        int jStride = getMinimumGap(usedJs);
+        if (iStride == 1 && jStride == 1) {
+            return null;
+        }
+        int latticeISize = (getMaxIIndex() - iMin) / iStride + 1;
+        int latticeJSize = (getMaxJIndex() - jMin) / jStride + 1;
+
+        SampledMapper sampled = new SampledMapper(latticeISize, latticeJSize, targetXSize,
+                targetYSize, iMin, jMin, iStride, jStride);
+        for (int n = 0; n < nMappings; n++) {
+            long sourceIndex = getSourceIndex(n);
+            int i = (int) (sourceIndex % iSize) - iMin;
+            int j = (int) (sourceIndex / iSize) - jMin;
+            /* Round to the nearest lattice point */
+            int latticeI = Math.min((i + iStride / 2) / iStride, latticeISize - 1);
+            int latticeJ = Math.min((j + jStride / 2) / jStride, latticeJSize - 1);
+            sampled.put(latticeI, latticeJ, getTargetIndex(n));
+        }
+        sampled.sortIndices();
+        return sampled;
+    }
+
+    /**
+     * @return The smallest gap between consecutive set bits, or 1 if fewer
+     *         than 2 bits are set
+     */
+    private static int getMinimumGap(BitSet bits) {
+        int minGap = Integer.MAX_VALUE;
+        int previous = bits.nextSetBit(0);
+        for (int next = bits.nextSetBit(previous + 1); next >= 0; next = bits
+                .nextSetBit(next + 1)) {
+            minGap = Math.min(minGap, next - previous);
+            if (minGap == 1) {
+                break;
+            }
+            previous = next;
+        }
+        return minGap == Integer.MAX_VALUE ? 1 : minGap;
+    }
+
+    /**
+     * A {@link Domain2DMapper} whose source indices refer to a regularly
+     * spaced lattice of points within the original source grid. The point
+     * (i, j) on the lattice is the point (iOffset + i * iStride, jOffset + j *
+     * jStride) in the original source grid.
+     * 
+     * @see Domain2DMapper#getSampledMapper()
+     */
+    public static final class SampledMapper extends Domain2DMapper {
+        private final int iOffset;
+        private final int jOffset;
+        private final int iStride;
+        private final int jStride;
+
+        private SampledMapper(int latticeISize, int latticeJSize, int targetXSize,
+                int targetYSize, int iOffset, int jOffset, int iStride, int jStride) {
+            super(latticeISize, latticeJSize, targetXSize, targetYSize);
+            this.iOffset = iOffset;
+            this.jOffset = jOffset;
+            this.iStride = iStride;
+            this.jStride = jStride;
+        }
+
+        /**
+         * @return The i-index in the original source grid of the first
+         *         lattice point
+         */
+        public int getIOffset() {
+            return iOffset;
+        }
+
+        /**
+         * @return The j-index in the original source grid of the first
+         *         lattice point
+         */
+        public int getJOffset() {
+            return jOffset;
+        }
+
+        /**
+         * @return The spacing of the lattice points along the i-axis of the
+         *         original source grid
+         */
+        public int getIStride() {
+            return iStride;
+        }
+
+        /**
+         * @return The spacing of the lattice points along the j-axis of the
+         *         original source grid
+         */
+        public int getJStride() {
+            return jStride;
+        }
+
+        @Override
+        public SampledMapper getSampledMapper() {
+            /* Already sampled */
+            return null;
+        }
+    }
+
     /**
      * Initialises a {@link Domain2DMapper} from a source and a target grid.
      * 
@@ -118,6 +293,24 @@ public class Domain2DMapper extends DomainMapper<int[]> {
              * works when it should!
              */
             return forMatchingCrsGrids((RectilinearGrid) sourceGrid, (RectilinearGrid) targetGrid);
+        } else if (sourceGrid instanceof RectilinearGrid
+                && targetGrid instanceof RectilinearGrid
+                && isSeparable(targetGrid.getCoordinateReferenceSystem(),
+                        sourceGrid.getCoordinateReferenceSystem())) {
+            /*
+             * The transformation between the CRSs acts on each axis
+             * independently (e.g. lat-lon to Mercator), so we only need to
+             * transform one row and one column of the target grid.
+             * 
+             * forSeparableGrids() checks that this really is the case for
+             * these grids, and returns null if not.
+             */
+            Domain2DMapper mapper = forSeparableGrids((RectilinearGrid) sourceGrid,
+                    (RectilinearGrid) targetGrid);
+            if (mapper != null) {
+                return mapper;
+            }
+            return forGeneralGrids(sourceGrid, targetGrid);
         } else {
             /*
              * We can't gain efficiency, so we just initialise for general grids
@@ -174,30 +367,409 @@ public class Domain2DMapper extends DomainMapper<int[]> {
         return mapper;
     }
 
+    /*-
+     * Initialise the Domain2DMapper for 2 grids which:
+     * 
+     * a) Are rectilinear
+     * b) Have CRSs for which the transformation is separable - i.e. the
+     *    source x co-ordinate depends only on the target x co-ordinate, and
+     *    the source y co-ordinate depends only on the target y co-ordinate
+     * 
+     * This transforms a single row and a single column of the target grid,
+     * rather than every point.  Returns null if the transformation turns out
+     * not to be separable for these grids.
+     */
+    private static Domain2DMapper forSeparableGrids(RectilinearGrid sourceGrid,
+            RectilinearGrid targetGrid) {
+        MathTransform transform;
+        try {
+            transform = CRS.findMathTransform(targetGrid.getCoordinateReferenceSystem(),
+                    sourceGrid.getCoordinateReferenceSystem(), true);
+        } catch (FactoryException e) {
+            return null;
+        }
+
+        double[] targetXs = RowMapper.toDoubleArray(targetGrid.getXAxis());
+        double[] targetYs = RowMapper.toDoubleArray(targetGrid.getYAxis());
+        int xSize = targetXs.length;
+        int ySize = targetYs.length;
+
+        /*
+         * Transform the middle row and middle column of the target grid. The
+         * middle is least likely to lie outside the valid area of the
+         * projection.
+         */
+        double[] row = transformRow(transform, targetXs, targetYs[ySize / 2]);
+        double[] column = transformColumn(transform, targetXs[xSize / 2], targetYs);
+
+        /*
+         * Check that the transformation really is separable by transforming
+         * the first and last rows and columns, which should give the same
+         * source x (for rows) and y (for columns) values.
+         */
+        if (!separableAlong(row, transformRow(transform, targetXs, targetYs[0]), 0)
+                || !separableAlong(row, transformRow(transform, targetXs, targetYs[ySize - 1]), 0)
+                || !separableAlong(column, transformColumn(transform, targetXs[0], targetYs), 1)
+                || !separableAlong(column,
+                        transformColumn(transform, targetXs[xSize - 1], targetYs), 1)) {
+            log.debug("CRS transformation is not separable for these grids");
+            return null;
+        }
+
+        log.debug("Using optimized method for separable transformation between CRSs");
+
+        ReferenceableAxis<Double> sourceGridXAxis = sourceGrid.getXAxis();
+        ReferenceableAxis<Double> sourceGridYAxis = sourceGrid.getYAxis();
+        int[] xIndices = new int[xSize];
+        for (int i = 0; i < xSize; i++) {
+            xIndices[i] = sourceGridXAxis.findIndexOf(row[2 * i]);
+        }
+
+        Domain2DMapper mapper = new Domain2DMapper(sourceGrid, xSize, ySize);
+        for (int j = 0; j < ySize; j++) {
+            int yIndex = sourceGridYAxis.findIndexOf(column[2 * j + 1]);
+            if (yIndex >= 0) {
+                for (int i = 0; i < xSize; i++) {
+                    mapper.put(xIndices[i], yIndex, mapper.convertCoordsToIndex(i, j));
+                }
+            }
+        }
+
+        mapper.sortIndices();
+        return mapper;
+    }
+
+    /*
+     * Transforms the points (x, y) for all given x values, returning
+     * interleaved co-ordinates
+     */
+    private static double[] transformRow(MathTransform transform, double[] xs, double y) {
+        double[] coords = new double[2 * xs.length];
+        for (int i = 0; i < xs.length; i++) {
+            coords[2 * i] = xs[i];
+            coords[2 * i + 1] = y;
+        }
+        transformPoints(transform, coords);
+        return coords;
+    }
+
+    /*
+     * Transforms the points (x, y) for all given y values, returning
+     * interleaved co-ordinates
+     */
+    private static double[] transformColumn(MathTransform transform, double x, double[] ys) {
+        double[] coords = new double[2 * ys.length];
+        for (int j = 0; j < ys.length; j++) {
+            coords[2 * j] = x;
+            coords[2 * j + 1] = ys[j];
+        }
+        transformPoints(transform, coords);
+        return coords;
+    }
+
+    /*
+     * Returns true if the given component (0 for x, 1 for y) of two sets of
+     * interleaved co-ordinates is the same to within rounding error.
+     * Co-ordinates which could not be transformed (NaN) are ignored.
+     */
+    private static boolean separableAlong(double[] coords1, double[] coords2, int component) {
+        for (int n = component; n < coords1.length; n += 2) {
+            double c1 = coords1[n];
+            double c2 = coords2[n];
+            if (Double.isNaN(c1) || Double.isNaN(c2)) {
+                continue;
+            }
+            if (Math.abs(c1 - c2) > 1e-9 * Math.max(1.0, Math.abs(c1))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tests whether the transformation between two CRSs may be separable. This
+     * is the case for geographic CRSs and for cylindrical projections (e.g.
+     * Mercator, Equidistant Cylindrical) which share the same base geographic
+     * CRS. This is a necessary condition only - e.g. it does not check the
+     * axis order, which is checked numerically by
+     * {@link #forSeparableGrids(RectilinearGrid, RectilinearGrid)}.
+     */
+    private static boolean isSeparable(CoordinateReferenceSystem crs1,
+            CoordinateReferenceSystem crs2) {
+        GeographicCRS base1 = getCylindricalBase(crs1);
+        GeographicCRS base2 = getCylindricalBase(crs2);
+        return base1 != null && base2 != null && GISUtils.crsMatch(base1, base2);
+    }
+
+    /*
+     * Gets the geographic CRS which a CRS is based on, if it is either
+     * geographic or a cylindrical projection, or null otherwise
+     */
+    private static GeographicCRS getCylindricalBase(CoordinateReferenceSystem crs) {
+        if (crs instanceof GeographicCRS) {
+            return (GeographicCRS) crs;
+        } else if (crs instanceof ProjectedCRS) {
+            ProjectedCRS projectedCrs = (ProjectedCRS) crs;
+            String method = projectedCrs.getConversionFromBase().getMethod().getName().getCode()
+                    .toLowerCase().replace('_', ' ');
+            if ((method.contains("mercator") && !method.contains("transverse") && !method
+                    .contains("oblique"))
+                    || method.contains("equidistant cylindrical")
+                    || method.contains("equirectangular") || method.contains("plate carr")) {
+                return projectedCrs.getBaseCRS();
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Transforms interleaved co-ordinates in place. Any points which cannot be
+     * transformed are set to NaN.
+     */
+    private static void transformPoints(MathTransform transform, double[] coords) {
+        int nPoints = coords.length / 2;
+        try {
+            transform.transform(coords, 0, coords, 0, nPoints);
+        } catch (TransformException e) {
+            /*
+             * At least one point cannot be transformed. Fall back to
+             * transforming points individually, so that the others can still
+             * be mapped.
+             */
+            for (int i = 0; i < nPoints; i++) {
+                try {
+                    transform.transform(coords, 2 * i, coords, 2 * i, 1);
+                } catch (TransformException e1) {
+                    coords[2 * i] = Double.NaN;
+                    coords[2 * i + 1] = Double.NaN;
+                }
+            }
+        }
+    }
+
+    /*
+     * The number of target grid points above which the mapping for general
+     * grids is split across multiple threads
+     */
+    private static final int PARALLEL_THRESHOLD = 16384;
+
+    /*
+     * Used for splitting the calculation of large mappings across all
+     * available processors. Its threads are daemon threads, so this does not
+     * need to be shut down.
+     */
+    private static final ForkJoinPool MAPPING_POOL = new ForkJoinPool();
+
     /*
      * Initialise the Domain2DMapper for general HorizontalGrids
      */
     private static Domain2DMapper forGeneralGrids(HorizontalGrid sourceGrid,
             final HorizontalGrid targetGrid) {
-        Domain2DMapper mapper = new Domain2DMapper(sourceGrid, targetGrid.getXSize(),
-                targetGrid.getYSize());
+        int xSize = targetGrid.getXSize();
+        int ySize = targetGrid.getYSize();
+        Domain2DMapper mapper = new Domain2DMapper(sourceGrid, xSize, ySize);
         /*
-         * Find the nearest grid coordinates to all the points in the domain
+         * Find the nearest grid coordinates to all the points in the domain.
+         * 
+         * Each row of the target grid is transformed to the source CRS in a
+         * single call and the source indices looked up in bulk. This is done
+         * in parallel for large target grids. The indices are then added to
+         * the mapper in target grid order from this thread.
          */
-        Array<GridCell2D> targetDomainObjects = targetGrid.getDomainObjects();
-        for (int j = 0; j < targetGrid.getYSize(); j++) {
-            for (int i = 0; i < targetGrid.getXSize(); i++) {
-                targetGrid.getDomainObjects().get(j, i).getCentre();
-                HorizontalPosition transformedPosition = GISUtils.transformPosition(targetDomainObjects.get(j,i).getCentre(), sourceGrid
-                        .getCoordinateReferenceSystem());
-                GridCoordinates2D indices = sourceGrid.findIndexOf(transformedPosition);
-                if(indices != null) {
-                    mapper.put(indices.getX(), indices.getY(), mapper.convertCoordsToIndex(i, j));
-                }
-            }
+        int[] xIndices = new int[xSize * ySize];
+        int[] yIndices = new int[xSize * ySize];
+        RowMapper rowMapper = new RowMapper(sourceGrid, targetGrid, xIndices, yIndices);
+        if (xSize * ySize > PARALLEL_THRESHOLD) {
+            MAPPING_POOL.invoke(new RowMappingTask(rowMapper, 0, ySize,
+                    Math.max(1, PARALLEL_THRESHOLD / Math.max(1, xSize))));
+        } else {
+            rowMapper.mapRows(0, ySize);
+        }
+
+        for (int index = 0; index < xIndices.length; index++) {
+            mapper.put(xIndices[index], yIndices[index], index);
         }
 
         mapper.sortIndices();
         return mapper;
     }
+
+    /**
+     * Finds the source grid indices for whole rows of a target grid.
+     */
+    private static final class RowMapper {
+        private final HorizontalGrid sourceGrid;
+        private final HorizontalGrid targetGrid;
+        private final int xSize;
+        private final int[] xIndices;
+        private final int[] yIndices;
+
+        /* The transform from the target to the source CRS, or null if none */
+        private final MathTransform transform;
+        /*
+         * The co-ordinate values of the target grid, if it is a
+         * RectilinearGrid. Otherwise null, and the domain objects are used
+         */
+        private final double[] targetXs;
+        private final double[] targetYs;
+
+        private RowMapper(HorizontalGrid sourceGrid, HorizontalGrid targetGrid, int[] xIndices,
+                int[] yIndices) {
+            this.sourceGrid = sourceGrid;
+            this.targetGrid = targetGrid;
+            this.xSize = targetGrid.getXSize();
+            this.xIndices = xIndices;
+            this.yIndices = yIndices;
+
+            if (targetGrid instanceof RectilinearGrid) {
+                targetXs = toDoubleArray(((RectilinearGrid) targetGrid).getXAxis());
+                targetYs = toDoubleArray(((RectilinearGrid) targetGrid).getYAxis());
+                transform = findTransform(targetGrid.getCoordinateReferenceSystem(),
+                        sourceGrid.getCoordinateReferenceSystem());
+            } else {
+                targetXs = null;
+                targetYs = null;
+                transform = null;
+            }
+        }
+
+        private static double[] toDoubleArray(ReferenceableAxis<Double> axis) {
+            double[] values = new double[axis.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = axis.getCoordinateValue(i);
+            }
+            return values;
+        }
+
+        private static MathTransform findTransform(CoordinateReferenceSystem from,
+                CoordinateReferenceSystem to) {
+            if (from == null || to == null) {
+                return null;
+            }
+            try {
+                MathTransform transform = CRS.findMathTransform(from, to, true);
+                return transform.isIdentity() ? null : transform;
+            } catch (FactoryException e) {
+                throw new IllegalArgumentException("Cannot transform from " + from.getName()
+                        + " to " + to.getName(), e);
+            }
+        }
+
+        /**
+         * Maps the target grid rows from startRow (inclusive) to endRow
+         * (exclusive)
+         */
+        private void mapRows(int startRow, int endRow) {
+            if (targetXs == null) {
+                mapGeneralRows(startRow, endRow);
+                return;
+            }
+            double[] coords = new double[2 * xSize];
+            int[] rowXIndices = new int[xSize];
+            int[] rowYIndices = new int[xSize];
+            for (int j = startRow; j < endRow; j++) {
+                for (int i = 0; i < xSize; i++) {
+                    coords[2 * i] = targetXs[i];
+                    coords[2 * i + 1] = targetYs[j];
+                }
+                transformToSource(coords);
+                findIndices(coords, rowXIndices, rowYIndices);
+                System.arraycopy(rowXIndices, 0, xIndices, j * xSize, xSize);
+                System.arraycopy(rowYIndices, 0, yIndices, j * xSize, xSize);
+            }
+        }
+
+        /*
+         * Transforms a row of interleaved x-y co-ordinates into the source CRS
+         * in place
+         */
+        private void transformToSource(double[] coords) {
+            if (transform != null) {
+                transformPoints(transform, coords);
+            }
+        }
+
+        /*
+         * Finds the source grid indices of a row of interleaved x-y
+         * co-ordinates in the source CRS
+         */
+        private void findIndices(double[] coords, int[] rowXIndices, int[] rowYIndices) {
+            if (sourceGrid instanceof AbstractTransformedGrid) {
+                ((AbstractTransformedGrid) sourceGrid).findIndicesOf(coords, rowXIndices,
+                        rowYIndices);
+            } else if (sourceGrid instanceof RectilinearGrid) {
+                ReferenceableAxis<Double> xAxis = ((RectilinearGrid) sourceGrid).getXAxis();
+                ReferenceableAxis<Double> yAxis = ((RectilinearGrid) sourceGrid).getYAxis();
+                for (int i = 0; i < xSize; i++) {
+                    rowXIndices[i] = xAxis.findIndexOf(coords[2 * i]);
+                    rowYIndices[i] = yAxis.findIndexOf(coords[2 * i + 1]);
+                }
+            } else {
+                CoordinateReferenceSystem sourceCrs = sourceGrid.getCoordinateReferenceSystem();
+                for (int i = 0; i < xSize; i++) {
+                    GridCoordinates2D indices = sourceGrid.findIndexOf(new HorizontalPosition(
+                            coords[2 * i], coords[2 * i + 1], sourceCrs));
+                    setIndices(indices, rowXIndices, rowYIndices, i);
+                }
+            }
+        }
+
+        /*
+         * Maps rows of a target grid which is not rectilinear, transforming
+         * each domain object centre individually
+         */
+        private void mapGeneralRows(int startRow, int endRow) {
+            Array<GridCell2D> targetDomainObjects = targetGrid.getDomainObjects();
+            CoordinateReferenceSystem sourceCrs = sourceGrid.getCoordinateReferenceSystem();
+            for (int j = startRow; j < endRow; j++) {
+                for (int i = 0; i < xSize; i++) {
+                    HorizontalPosition transformedPosition = GISUtils.transformPosition(
+                            targetDomainObjects.get(j, i).getCentre(), sourceCrs);
+                    GridCoordinates2D indices = sourceGrid.findIndexOf(transformedPosition);
+                    setIndices(indices, xIndices, yIndices, j * xSize + i);
+                }
+            }
+        }
+
+        private static void setIndices(GridCoordinates2D indices, int[] xIndices,
+                int[] yIndices, int index) {
+            if (indices != null) {
+                xIndices[index] = indices.getX();
+                yIndices[index] = indices.getY();
+            } else {
+                xIndices[index] = -1;
+                yIndices[index] = -1;
+            }
+        }
+    }
+
+    /**
+     * Recursively splits a range of rows into chunks which are mapped in
+     * parallel
+     */
+    private static final class RowMappingTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final RowMapper rowMapper;
+        private final int startRow;
+        private final int endRow;
+        private final int rowsPerTask;
+
+        private RowMappingTask(RowMapper rowMapper, int startRow, int endRow, int rowsPerTask) {
+            this.rowMapper = rowMapper;
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.rowsPerTask = rowsPerTask;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - startRow <= rowsPerTask) {
+                rowMapper.mapRows(startRow, endRow);
+            } else {
+                int midRow = (startRow + endRow) >>> 1;
+                invokeAll(new RowMappingTask(rowMapper, startRow, midRow, rowsPerTask),
+                        new RowMappingTask(rowMapper, midRow, endRow, rowsPerTask));
+            }
+        }
+    }
 }
@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.util.BuildOnceCache;
+import uk.ac.rdg.resc.edal.util.BuildOnceCache.KeyFilter;
+
+/**
+ * A memory-bounded cache of {@link Domain2DMapper}s. Tiled clients request the
+ * same target grids repeatedly (for different variables, times and
+ * elevations), and building a {@link Domain2DMapper} can be expensive -
+ * particularly when the source and target grids have different CRSs.
+ * 
+ * Mappers are keyed on the identity of the source grid and on the value of the
+ * target grid (which must be a {@link RegularGrid}), including its CRS. Source
+ * grids are only weakly referenced, so this cache will not prevent the grids of
+ * datasets which have been reloaded from being garbage collected.
+ * 
+ * If several threads request the same mapper at the same time, it is only
+ * built once (see {@link BuildOnceCache}).
+ * 
+ * @author agent
+ */
+public class Domain2DMapperCache {
+    /** The default maximum size of the shared cache, in bytes */
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024L * 1024L;
+
+    private static final Domain2DMapperCache INSTANCE = new Domain2DMapperCache(
+            DEFAULT_MAX_SIZE);
+
+    /* Selects the mappers whose source grids no longer exist */
+    private static final KeyFilter<MapperKey> DEAD_SOURCE_GRIDS = new KeyFilter<MapperKey>() {
+        @Override
+        public boolean accept(MapperKey key) {
+            return key.sourceGrid.get() == null;
+        }
+    };
+
+    private final BuildOnceCache<MapperKey, Domain2DMapper> mappers;
+
+    /**
+     * @return The {@link Domain2DMapperCache} shared by all datasets
+     */
+    public static Domain2DMapperCache getInstance() {
+        return INSTANCE;
+    }
+
+    Domain2DMapperCache(long maxSize) {
+        mappers = new BuildOnceCache<MapperKey, Domain2DMapper>("Domain mapper", maxSize) {
+            @Override
+            protected long getSize(Domain2DMapper mapper) {
+                return mapper.getMemoryUsage();
+            }
+        };
+    }
+
+    /**
+     * Gets a {@link Domain2DMapper} from a source to a target grid, building
+     * it if it is not already in the cache.
+     * 
+     * @param sourceGrid
+     *            A {@link HorizontalGrid} representing the domain of the source
+     *            data
+     * @param targetGrid
+     *            A {@link HorizontalGrid} representing the domain of the
+     *            target. Only mappers to {@link RegularGrid}s are cached
+     * @return A {@link Domain2DMapper} performing the mapping. This must not
+     *         be modified.
+     */
+    public Domain2DMapper getMapper(final HorizontalGrid sourceGrid,
+            final HorizontalGrid targetGrid) {
+        if (!(targetGrid instanceof RegularGrid)) {
+            return Domain2DMapper.forGrid(sourceGrid, targetGrid);
+        }
+        try {
+            return mappers.get(new MapperKey(sourceGrid, (RegularGrid) targetGrid),
+                    new Callable<Domain2DMapper>() {
+                        @Override
+                        public Domain2DMapper call() {
+                            /*
+                             * Take the opportunity to remove mappers for
+                             * datasets which have been reloaded
+                             */
+                            mappers.removeAll(DEAD_SOURCE_GRIDS);
+                            return Domain2DMapper.forGrid(sourceGrid, targetGrid);
+                        }
+                    });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Problem building domain mapper", e.getCause());
+        }
+    }
+
+    /**
+     * Sets the maximum size of the cache, evicting mappers if necessary
+     * 
+     * @param maxSize
+     *            The maximum size, in bytes
+     */
+    public void setMaxSize(long maxSize) {
+        mappers.setMaxSize(maxSize);
+    }
+
+    public long getMaxSize() {
+        return mappers.getMaxSize();
+    }
+
+    /**
+     * @return The approximate total size of all cached mappers, in bytes
+     */
+    public long getSize() {
+        return mappers.getSize();
+    }
+
+    public int getNumMappers() {
+        return mappers.getNumEntries();
+    }
+
+    /**
+     * @return The proportion of requests for which a mapper did not need to be
+     *         built, or 0 if there have been no requests
+     */
+    public double getHitRate() {
+        return mappers.getHitRate();
+    }
+
+    public long getHits() {
+        return mappers.getHits();
+    }
+
+    public long getMisses() {
+        return mappers.getMisses();
+    }
+
+    /**
+     * @return The mean time taken to build a mapper, in milliseconds, or 0 if
+     *         none have been built
+     */
+    public double getMeanBuildTime() {
+        return mappers.getMeanBuildTime();
+    }
+
+    /**
+     * Removes all mappers from the cache and resets the statistics
+     */
+    public void clear() {
+        mappers.clear();
+    }
+
+    /**
+     * Identifies a mapping by the identity of its source grid and the value of
+     * its target grid
+     */
+    private static final class MapperKey {
+        private final WeakReference<HorizontalGrid> sourceGrid;
+        private final int sourceGridHash;
+        private final RegularGrid targetGrid;
+        /*
+         * Grid equality is defined in terms of the axes, so we include the CRS
+         * explicitly
+         */
+        private final CoordinateReferenceSystem targetCrs;
+        private final int hashCode;
+
+        public MapperKey(HorizontalGrid sourceGrid, RegularGrid targetGrid) {
+            this.sourceGrid = new WeakReference<HorizontalGrid>(sourceGrid);
+            this.sourceGridHash = System.identityHashCode(sourceGrid);
+            this.targetGrid = targetGrid;
+            this.targetCrs = targetGrid.getCoordinateReferenceSystem();
+
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + sourceGridHash;
+            result = prime * result + targetGrid.hashCode();
+            result = prime * result + ((targetCrs == null) ? 0 : targetCrs.hashCode());
+            hashCode = result;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            MapperKey other = (MapperKey) obj;
+            if (hashCode != other.hashCode || sourceGridHash != other.sourceGridHash) {
+                return false;
+            }
+            HorizontalGrid grid = sourceGrid.get();
+            if (grid == null || grid != other.sourceGrid.get()) {
+                return false;
+            }
+            if (targetCrs == null) {
+                if (other.targetCrs != null)
+                    return false;
+            } else if (!targetCrs.equals(other.targetCrs))
+                return false;
+            return targetGrid.equals(other.targetGrid);
+        }
+    }
+}
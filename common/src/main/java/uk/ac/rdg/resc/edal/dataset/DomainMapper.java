@@ -30,6 +30,7 @@ package uk.ac.rdg.resc.edal.dataset;
 
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -132,6 +133,21 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
     private int maxJIndex = -1;
 
     protected DomainMapper(HorizontalGrid sourceGrid, long targetDomainSize) {
+        this(sourceGrid.getXSize(), sourceGrid.size(), targetDomainSize);
+    }
+
+    /**
+     * Creates a {@link DomainMapper} onto a source grid of the given size,
+     * without needing the grid itself
+     * 
+     * @param sourceGridISize
+     *            The size of the source grid along the i-axis
+     * @param sourceGridSize
+     *            The total number of points in the source grid
+     * @param targetDomainSize
+     *            The number of points in the target domain
+     */
+    protected DomainMapper(int sourceGridISize, long sourceGridSize, long targetDomainSize) {
         if (targetDomainSize > Integer.MAX_VALUE) {
             throw new IllegalArgumentException("Cannot handle target domains"
                     + " greater than Integer.MAX_VALUE in size");
@@ -144,7 +160,7 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
         }
 
         this.targetDomainSize = (int) targetDomainSize;
-        sourceGridISize = sourceGrid.getXSize();
+        this.sourceGridISize = sourceGridISize;
 
         /*
          * Create an estimate of a suitable chunk size. We don't want this to be
@@ -158,7 +174,7 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
          * Choose storage for the mappings appropriate to the sizes of the
          * domains
          */
-        long maxSourceGridIndex = sourceGrid.size() - 1;
+        long maxSourceGridIndex = sourceGridSize - 1;
         sourceGridIndices = chooseRArray(maxSourceGridIndex, chunkSize);
         log.debug("Source grid indices (max: {}) stored in a {}", maxSourceGridIndex,
                 sourceGridIndices.getClass());
@@ -195,8 +211,11 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
     /**
      * Sorts the arrays of source and target indices so that the arrays are in
      * order of increasing source grid index, then increasing target grid index.
-     * Uses an in-place quicksort algorithm adapted from
-     * http://www.vogella.de/articles/JavaAlgorithmsQuicksort/article.html.
+     * 
+     * This uses a (stable) least-significant-digit radix sort on primitive
+     * copies of the indices. Mappings are generally added in order of
+     * increasing target index, in which case only a single sort on the source
+     * indices is required.
      */
     protected void sortIndices() {
         int numElements = sourceGridIndices.size();
@@ -205,78 +224,87 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
          */
         if (numElements < 2)
             return;
-        quicksort(0, numElements - 1);
-    }
 
-    private void quicksort(final int low, final int high) {
-        int i = low;
-        int j = high;
-        /*
-         * The elements to be sorted are pairs of longs: the first is the source
-         * grid index, the second is the target grid index.
-         */
-        final long[] pivot = getPair(low + (high - low) / 2);
-
-        /* Divide into two lists */
-        while (i <= j) {
-            while (comparePairs(getPair(i), pivot) < 0) {
-                i++;
-            }
-            while (comparePairs(getPair(j), pivot) > 0) {
-                j--;
-            }
-            if (i <= j) {
-                exchange(i, j);
-                i++;
-                j--;
+        long[] sources = new long[numElements];
+        long[] targets = new long[numElements];
+        long maxSource = 0L;
+        long maxTarget = 0L;
+        boolean sorted = true;
+        boolean targetsSorted = true;
+        for (int i = 0; i < numElements; i++) {
+            sources[i] = sourceGridIndices.getLong(i);
+            targets[i] = targetGridIndices.getLong(i);
+            maxSource = Math.max(maxSource, sources[i]);
+            maxTarget = Math.max(maxTarget, targets[i]);
+            if (i > 0) {
+                if (targets[i] < targets[i - 1]) {
+                    targetsSorted = false;
+                }
+                if (sources[i] < sources[i - 1]
+                        || (sources[i] == sources[i - 1] && targets[i] < targets[i - 1])) {
+                    sorted = false;
+                }
             }
         }
-        /* Recursion */
-        if (low < j) {
-            quicksort(low, j);
-        }
-        if (i < high) {
-            quicksort(i, high);
+        if (sorted) {
+            return;
         }
-    }
 
-    /*
-     * Gets the pair of [source, target] grid indices at the given index
-     */
-    private long[] getPair(int index) {
-        return new long[] { sourceGridIndices.getLong(index), targetGridIndices.getLong(index) };
-    }
-
-    /**
-     * Returns <0 if pair1 < pair2, 0 if pair1 == pair2, >0 otherwise.
-     * Comparisons are performed first on the source grid index, then on the
-     * target grid index.
-     */
-    private int comparePairs(long[] pair1, long[] pair2) {
-        if (pair1[0] < pair2[0])
-            return -1;
-        if (pair1[0] > pair2[0])
-            return 1;
-        /*
-         * Source grid indices must be equal, so compare target grid indices
-         */
-        if (pair1[1] < pair2[1])
-            return -1;
-        if (pair1[1] > pair2[1])
-            return 1;
+        int[] order = new int[numElements];
+        for (int i = 0; i < numElements; i++) {
+            order[i] = i;
+        }
         /*
-         * Both equal
+         * Since the sort is stable, sorting on target index and then on source
+         * index gives the required ordering
          */
-        return 0;
+        if (!targetsSorted) {
+            order = radixSort(targets, order, maxTarget);
+        }
+        order = radixSort(sources, order, maxSource);
+
+        for (int i = 0; i < numElements; i++) {
+            sourceGridIndices.set(i, sources[order[i]]);
+            targetGridIndices.set(i, targets[order[i]]);
+        }
     }
 
-    /*
-     * Exchanges the values in the source and target grid arrays with indices i1
-     * and i2
+    private static final int RADIX_BITS = 11;
+    private static final int RADIX_MASK = (1 << RADIX_BITS) - 1;
+
+    /**
+     * Performs a stable radix sort of a permutation of a set of non-negative
+     * keys
+     * 
+     * @param keys
+     *            The keys to sort on
+     * @param order
+     *            The initial order of the keys. This may be overwritten
+     * @param maxKey
+     *            The largest key
+     * @return The indices of the keys, in sorted order
      */
-    private void exchange(int i1, int i2) {
-        sourceGridIndices.swapElements(i1, i2);
-        targetGridIndices.swapElements(i1, i2);
+    private static int[] radixSort(long[] keys, int[] order, long maxKey) {
+        int n = order.length;
+        int[] buffer = new int[n];
+        int[] counts = new int[RADIX_MASK + 2];
+        for (int shift = 0; shift < 64 && (maxKey >>> shift) != 0; shift += RADIX_BITS) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                counts[(int) ((keys[order[i]] >>> shift) & RADIX_MASK) + 1]++;
+            }
+            for (int b = 1; b < counts.length; b++) {
+                counts[b] += counts[b - 1];
+            }
+            for (int i = 0; i < n; i++) {
+                int index = order[i];
+                buffer[counts[(int) ((keys[index] >>> shift) & RADIX_MASK)]++] = index;
+            }
+            int[] tmp = order;
+            order = buffer;
+            buffer = tmp;
+        }
+        return order;
     }
 
     /**
@@ -402,6 +430,57 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
         return (maxIIndex - minIIndex + 1) * (maxJIndex - minJIndex + 1);
     }
 
+    /**
+     * Gets the total number of mappings from source to target grid points.
+     * Together with {@link #getSourceIndex(int)} and
+     * {@link #getTargetIndex(int)} this allows the mappings to be traversed
+     * without creating any objects, which is important when reading large
+     * maps. The mappings are in order of increasing source grid index (i.e.
+     * ordered by j-index then i-index), then increasing target index.
+     * 
+     * @return The number of mappings
+     */
+    public int getNumMappings() {
+        return sourceGridIndices.size();
+    }
+
+    /**
+     * @param n
+     *            The index of the mapping, from 0 to
+     *            {@link #getNumMappings()} - 1
+     * @return The single index of the source grid point of the given mapping.
+     *         This is <code>j * sourceGridISize + i</code>
+     */
+    public long getSourceIndex(int n) {
+        return sourceGridIndices.getLong(n);
+    }
+
+    /**
+     * @param n
+     *            The index of the mapping, from 0 to
+     *            {@link #getNumMappings()} - 1
+     * @return The single index of the target point of the given mapping
+     */
+    public int getTargetIndex(int n) {
+        return targetGridIndices.getInt(n);
+    }
+
+    /**
+     * @return The approximate number of bytes used to store the mappings
+     */
+    public long getMemoryUsage() {
+        return sourceGridIndices.getMemoryUsage() + targetGridIndices.getMemoryUsage();
+    }
+
+    /**
+     * @return The size of the source grid along the i-axis, which can be used
+     *         to convert the values returned by {@link #getSourceIndex(int)}
+     *         into i and j indices
+     */
+    public int getSourceGridISize() {
+        return sourceGridISize;
+    }
+
     /**
      * Returns an unmodifiable iterator over all the {@link DomainMapperEntry}s
      * in this PixelMap.
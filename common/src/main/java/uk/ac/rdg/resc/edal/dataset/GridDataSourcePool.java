@@ -0,0 +1,535 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+/**
+ * A bounded pool of open {@link GridDataSource}s belonging to a single
+ * dataset. Opening a {@link GridDataSource} can be very expensive (e.g. for a
+ * multi-file aggregation), so rather than opening and closing one for every
+ * request, {@link GriddedDataset}s can borrow an already-open handle from a
+ * pool.
+ *
+ * {@link GridDataSource}s returned by {@link #borrow()} are for the exclusive
+ * use of the caller until they are closed. Calling
+ * {@link GridDataSource#close()} on them returns the underlying handle to the
+ * pool rather than closing it, so the usual pattern of closing the data
+ * source in a <code>finally</code> block works unchanged.
+ *
+ * All pools share a global budget of open handles. Idle handles are closed
+ * when they have not been used for a given time, or (least-recently used
+ * first) when the budget is exceeded. Borrowing never blocks: if the budget is
+ * exhausted by handles which are in use, a new handle is opened anyway and is
+ * closed (rather than pooled) when it is returned.
+ *
+ * @author agent
+ */
+public class GridDataSourcePool {
+    private static final Logger log = LoggerFactory.getLogger(GridDataSourcePool.class);
+
+    /**
+     * Opens new {@link GridDataSource}s for a {@link GridDataSourcePool}
+     */
+    public interface GridDataSourceOpener {
+        /**
+         * @return A newly-opened {@link GridDataSource}
+         * @throws IOException
+         *             If there is a problem opening the data
+         */
+        public GridDataSource open() throws IOException;
+    }
+
+    /**
+     * A {@link GridDataSource} which can cheaply tell whether the data it was
+     * opened on has changed since (e.g. because it holds a memory mapping of a
+     * file). An idle handle which is no longer current is never reused:
+     * instead the pool is invalidated and a new handle is opened.
+     */
+    public interface CheckedGridDataSource extends GridDataSource {
+        /**
+         * @return <code>false</code> if the underlying data has changed since
+         *         this {@link GridDataSource} was opened
+         */
+        public boolean isCurrent();
+    }
+
+    /*
+     * Global state, shared between all pools. All access to this (and to the
+     * idle handles of each pool) is synchronized on LOCK.
+     */
+    private static final Object LOCK = new Object();
+    /* The maximum number of open handles across all pools */
+    private static int maxOpenHandles = 64;
+    /* The maximum number of idle handles kept by each pool */
+    private static int maxIdlePerPool = 4;
+    /* The time after which an unused handle is closed, in milliseconds */
+    private static long idleTimeout = 5 * 60 * 1000L;
+    /* The number of handles currently open, whether borrowed or idle */
+    private static int numOpen = 0;
+    /*
+     * All idle handles, in the order in which they were returned. The first
+     * element is the least-recently used.
+     */
+    private static final LinkedHashSet<PooledHandle> ALL_IDLE = new LinkedHashSet<PooledHandle>();
+
+    private static ScheduledExecutorService reaper = null;
+
+    /** The interval at which expired idle handles are closed, in seconds */
+    private static final int REAP_INTERVAL = 30;
+
+    private final String name;
+    private final GridDataSourceOpener opener;
+    /* Idle handles for this pool, most recently used first */
+    private final Deque<PooledHandle> idle = new ArrayDeque<PooledHandle>();
+    /*
+     * Incremented each time this pool is invalidated. Handles opened under a
+     * previous generation are closed when they are returned.
+     */
+    private int generation = 0;
+    private boolean closed = false;
+
+    private long hits = 0L;
+    private long misses = 0L;
+
+    /**
+     * Creates a new pool
+     *
+     * @param name
+     *            A name for this pool, used for logging
+     * @param opener
+     *            The {@link GridDataSourceOpener} used to open new handles
+     */
+    public GridDataSourcePool(String name, GridDataSourceOpener opener) {
+        this.name = name;
+        this.opener = opener;
+        startReaper();
+    }
+
+    /**
+     * Borrows a {@link GridDataSource} from this pool, opening a new one if no
+     * idle handles are available. The returned object must be closed once it
+     * is no longer required. If an idle handle reports that the underlying
+     * data has changed (see {@link CheckedGridDataSource}), the pool is
+     * invalidated and a new handle is opened.
+     *
+     * @return A {@link GridDataSource} for the exclusive use of the caller
+     * @throws IOException
+     *             If a new {@link GridDataSource} needed to be opened and
+     *             there was a problem doing so
+     */
+    public GridDataSource borrow() throws IOException {
+        List<PooledHandle> toClose = new ArrayList<PooledHandle>();
+        int openedGeneration;
+        PooledHandle handle;
+        synchronized (LOCK) {
+            expireIdle(System.currentTimeMillis(), toClose);
+            handle = idle.pollFirst();
+            if (handle != null) {
+                ALL_IDLE.remove(handle);
+            }
+        }
+        closeAll(toClose);
+        toClose.clear();
+        if (handle != null) {
+            /* Checking the handle may involve I/O, so is done outside the lock */
+            if (!(handle.source instanceof CheckedGridDataSource)
+                    || ((CheckedGridDataSource) handle.source).isCurrent()) {
+                synchronized (LOCK) {
+                    hits++;
+                }
+                return borrowed(handle);
+            }
+            /*
+             * The data has changed, so none of the other idle handles can be
+             * trusted either
+             */
+            log.debug("Data for " + name + " has changed; invalidating pool");
+            toClose.add(handle);
+            synchronized (LOCK) {
+                numOpen--;
+                generation++;
+                drainIdle(toClose);
+            }
+            closeAll(toClose);
+            toClose.clear();
+        }
+
+        synchronized (LOCK) {
+            misses++;
+            /*
+             * We need to open a new handle. Make room for it by closing the
+             * least-recently used idle handles, from any pool.
+             */
+            Iterator<PooledHandle> it = ALL_IDLE.iterator();
+            while (numOpen + 1 > maxOpenHandles && it.hasNext()) {
+                PooledHandle lru = it.next();
+                it.remove();
+                lru.pool.idle.remove(lru);
+                numOpen--;
+                toClose.add(lru);
+            }
+            numOpen++;
+            openedGeneration = generation;
+        }
+        /* Don't do any I/O whilst holding the lock */
+        closeAll(toClose);
+        GridDataSource source;
+        try {
+            source = opener.open();
+        } catch (IOException | RuntimeException e) {
+            synchronized (LOCK) {
+                numOpen--;
+            }
+            throw e;
+        }
+        return borrowed(new PooledHandle(this, source, openedGeneration));
+    }
+
+    /**
+     * Wraps a handle for a caller of {@link #borrow()}, preserving the ability
+     * of the underlying data source to perform strided reads
+     */
+    private BorrowedGridDataSource borrowed(PooledHandle handle) {
+        if (handle.source instanceof StridedGridDataSource) {
+            return new StridedBorrowedGridDataSource(handle);
+        } else {
+            return new BorrowedGridDataSource(handle);
+        }
+    }
+
+    /**
+     * Closes all idle handles in this pool. Handles which are currently
+     * borrowed will be closed when they are returned, and subsequent calls to
+     * {@link #borrow()} will open new handles. This should be called whenever
+     * the underlying data may have changed.
+     */
+    public void invalidate() {
+        List<PooledHandle> toClose = new ArrayList<PooledHandle>();
+        synchronized (LOCK) {
+            generation++;
+            drainIdle(toClose);
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Closes all idle handles in this pool and stops it from retaining any
+     * more. The pool can still be used, but every borrowed handle will be
+     * closed when it is returned.
+     */
+    public void close() {
+        List<PooledHandle> toClose = new ArrayList<PooledHandle>();
+        synchronized (LOCK) {
+            closed = true;
+            generation++;
+            drainIdle(toClose);
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * @return The number of idle handles currently held by this pool
+     */
+    public int getNumIdle() {
+        synchronized (LOCK) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * @return The proportion of calls to {@link #borrow()} which were satisfied
+     *         by an already-open handle
+     */
+    public double getHitRate() {
+        synchronized (LOCK) {
+            long total = hits + misses;
+            return total == 0 ? 0.0 : ((double) hits) / total;
+        }
+    }
+
+    /**
+     * Sets the maximum number of handles (across all pools) which may be open
+     * at once. This is a soft limit: handles in use are never closed, but idle
+     * handles will be closed to keep within it.
+     *
+     * @param maxOpenHandles
+     *            The maximum number of open handles
+     */
+    public static void setMaxOpenHandles(int maxOpenHandles) {
+        if (maxOpenHandles < 0) {
+            throw new IllegalArgumentException("Maximum number of open handles must be >= 0");
+        }
+        List<PooledHandle> toClose = new ArrayList<PooledHandle>();
+        synchronized (LOCK) {
+            GridDataSourcePool.maxOpenHandles = maxOpenHandles;
+            Iterator<PooledHandle> it = ALL_IDLE.iterator();
+            while (numOpen > maxOpenHandles && it.hasNext()) {
+                PooledHandle lru = it.next();
+                it.remove();
+                lru.pool.idle.remove(lru);
+                numOpen--;
+                toClose.add(lru);
+            }
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * @param maxIdlePerPool
+     *            The maximum number of idle handles which each pool will keep
+     *            open
+     */
+    public static void setMaxIdlePerPool(int maxIdlePerPool) {
+        if (maxIdlePerPool < 0) {
+            throw new IllegalArgumentException("Maximum number of idle handles must be >= 0");
+        }
+        synchronized (LOCK) {
+            GridDataSourcePool.maxIdlePerPool = maxIdlePerPool;
+        }
+    }
+
+    /**
+     * @param idleTimeout
+     *            The time, in milliseconds, after which an unused handle will
+     *            be closed
+     */
+    public static void setIdleTimeout(long idleTimeout) {
+        synchronized (LOCK) {
+            GridDataSourcePool.idleTimeout = idleTimeout;
+        }
+    }
+
+    /**
+     * @return The number of handles currently open across all pools, whether
+     *         they are idle or borrowed
+     */
+    public static int getNumOpenHandles() {
+        synchronized (LOCK) {
+            return numOpen;
+        }
+    }
+
+    /**
+     * Closes all expired idle handles in all pools.
+     */
+    public static void closeExpired() {
+        List<PooledHandle> toClose = new ArrayList<PooledHandle>();
+        synchronized (LOCK) {
+            expireIdle(System.currentTimeMillis(), toClose);
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Called when a borrowed handle is closed by the caller
+     */
+    private void release(PooledHandle handle, boolean discard) {
+        boolean pooled = false;
+        synchronized (LOCK) {
+            if (!discard && !closed && handle.generation == generation
+                    && idle.size() < maxIdlePerPool && numOpen <= maxOpenHandles) {
+                handle.lastUsed = System.currentTimeMillis();
+                idle.addFirst(handle);
+                ALL_IDLE.add(handle);
+                pooled = true;
+            } else {
+                numOpen--;
+            }
+        }
+        if (!pooled) {
+            handle.closeSource();
+        }
+    }
+
+    /*
+     * Must be called whilst holding LOCK
+     */
+    private void drainIdle(List<PooledHandle> toClose) {
+        PooledHandle handle;
+        while ((handle = idle.pollFirst()) != null) {
+            ALL_IDLE.remove(handle);
+            numOpen--;
+            toClose.add(handle);
+        }
+    }
+
+    /*
+     * Must be called whilst holding LOCK
+     */
+    private static void expireIdle(long now, List<PooledHandle> toClose) {
+        Iterator<PooledHandle> it = ALL_IDLE.iterator();
+        while (it.hasNext()) {
+            PooledHandle handle = it.next();
+            if (now - handle.lastUsed < idleTimeout) {
+                /* All subsequent handles were returned more recently */
+                break;
+            }
+            it.remove();
+            handle.pool.idle.remove(handle);
+            numOpen--;
+            toClose.add(handle);
+        }
+    }
+
+    private static void closeAll(List<PooledHandle> handles) {
+        for (PooledHandle handle : handles) {
+            handle.closeSource();
+        }
+    }
+
+    private static synchronized void startReaper() {
+        if (reaper == null) {
+            reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "grid-data-source-reaper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            reaper.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    closeExpired();
+                }
+            }, REAP_INTERVAL, REAP_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * An open {@link GridDataSource} belonging to a pool
+     */
+    private static final class PooledHandle {
+        private final GridDataSourcePool pool;
+        private final GridDataSource source;
+        private final int generation;
+        private long lastUsed;
+
+        public PooledHandle(GridDataSourcePool pool, GridDataSource source, int generation) {
+            this.pool = pool;
+            this.source = source;
+            this.generation = generation;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        private void closeSource() {
+            try {
+                source.close();
+            } catch (IOException e) {
+                log.error("Problem closing pooled data source for " + pool.name, e);
+            }
+        }
+    }
+
+    /**
+     * The {@link GridDataSource} handed out to callers of {@link #borrow()}.
+     * Closing it returns the underlying handle to the pool.
+     */
+    private class BorrowedGridDataSource implements GridDataSource {
+        protected final PooledHandle handle;
+        protected boolean returned = false;
+        /*
+         * Set if an IOException occurs whilst reading. In this case the
+         * underlying handle may be in a bad state, and we don't want to return
+         * it to the pool.
+         */
+        protected boolean failed = false;
+
+        public BorrowedGridDataSource(PooledHandle handle) {
+            this.handle = handle;
+        }
+
+        @Override
+        public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+                int ymin, int ymax, int xmin, int xmax) throws IOException, DataReadingException {
+            if (returned) {
+                throw new IOException("This data source has already been closed");
+            }
+            try {
+                return handle.source.read(variableId, tmin, tmax, zmin, zmax, ymin, ymax, xmin,
+                        xmax);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!returned) {
+                returned = true;
+                release(handle, failed);
+            }
+        }
+    }
+
+    /**
+     * A {@link BorrowedGridDataSource} whose underlying data source supports
+     * strided reads
+     */
+    private final class StridedBorrowedGridDataSource extends BorrowedGridDataSource implements
+            StridedGridDataSource {
+        public StridedBorrowedGridDataSource(PooledHandle handle) {
+            super(handle);
+        }
+
+        @Override
+        public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+                int ymin, int ymax, int ystride, int xmin, int xmax, int xstride)
+                throws IOException, DataReadingException {
+            if (returned) {
+                throw new IOException("This data source has already been closed");
+            }
+            try {
+                return ((StridedGridDataSource) handle.source).read(variableId, tmin, tmax, zmin,
+                        zmax, ymin, ymax, ystride, xmin, xmax, xstride);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the concurrent reads of {@link GriddedDataset}s which
+ * {@link GriddedDataset#supportsConcurrentReads()}. This is shared by all
+ * datasets to bound the total number of reads, and is not used by threads
+ * which are making speculative reads.
+ * 
+ * @author agent
+ */
+final class GridReadExecutor {
+    /*
+     * The default maximum number of concurrent reads of horizontal data, across
+     * all datasets
+     */
+    private static final int DEFAULT_MAX_CONCURRENT_READS = 8;
+
+    private static final ThreadPoolExecutor executor;
+    static {
+        executor = new ThreadPoolExecutor(DEFAULT_MAX_CONCURRENT_READS,
+                DEFAULT_MAX_CONCURRENT_READS, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "gridded-data-reader-"
+                                + threadNumber.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /*
+     * Whether reads on the current thread are speculative. These never use the
+     * shared executor, so that they cannot delay requests which are being
+     * waited for.
+     */
+    private static final ThreadLocal<Boolean> backgroundReads = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return Boolean.FALSE;
+        }
+    };
+
+    private GridReadExecutor() {
+    }
+
+    /**
+     * Runs a read on the shared executor
+     * 
+     * @param read
+     *            The read to run
+     * @return A {@link Future} giving the result of the read
+     */
+    static <T> Future<T> submit(Callable<T> read) {
+        return executor.submit(read);
+    }
+
+    /**
+     * @return <code>true</code> if reads on the calling thread are
+     *         speculative, and so should not be run on the shared executor
+     */
+    static boolean isBackgroundThread() {
+        return backgroundReads.get();
+    }
+
+    /**
+     * @see GriddedDataset#setBackgroundReads(boolean)
+     */
+    static void setBackgroundReads(boolean background) {
+        backgroundReads.set(background);
+    }
+
+    /**
+     * @see GriddedDataset#setMaxConcurrentReads(int)
+     */
+    static void setMaxConcurrentReads(int maxConcurrentReads) {
+        if (maxConcurrentReads < 1) {
+            throw new IllegalArgumentException("Maximum number of concurrent reads must be >= 1");
+        }
+        synchronized (executor) {
+            if (maxConcurrentReads > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(maxConcurrentReads);
+                executor.setCorePoolSize(maxConcurrentReads);
+            } else {
+                executor.setCorePoolSize(maxConcurrentReads);
+                executor.setMaximumPoolSize(maxConcurrentReads);
+            }
+        }
+    }
+}
@@ -28,6 +28,7 @@
 
 package uk.ac.rdg.resc.edal.dataset;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.AbstractList;
 import java.util.ArrayList;
@@ -36,17 +37,24 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.joda.time.Chronology;
 import org.joda.time.DateTime;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.rdg.resc.edal.dataset.Domain2DMapper.SampledMapper;
 import uk.ac.rdg.resc.edal.dataset.plugins.VariablePlugin;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.domain.GridDomain;
@@ -71,6 +79,8 @@ import uk.ac.rdg.resc.edal.geometry.BoundingBox;
 import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
 import uk.ac.rdg.resc.edal.grid.GridCell2D;
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
 import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
 import uk.ac.rdg.resc.edal.grid.VerticalAxis;
@@ -86,6 +96,7 @@ import uk.ac.rdg.resc.edal.util.Array1D;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Array4D;
 import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.FloatArray1D;
 import uk.ac.rdg.resc.edal.util.GISUtils;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
 import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
@@ -103,10 +114,140 @@ public abstract class GriddedDataset extends AbstractDataset {
     private static final String NO_Z_AXIS_CODE = "NO_Z_AXIS";
     private static final String NO_T_AXIS_CODE = "NO_T_AXIS";
 
+    /*
+     * If set, this strategy is always used, rather than choosing one for each
+     * request
+     */
+    private volatile DataReadingStrategy dataReadingStrategyOverride = null;
+    /*
+     * Used to choose the cheapest DataReadingStrategy for each request, once
+     * this dataset has been calibrated
+     */
+    private volatile DataReadingCostModel dataReadingCostModel = null;
+    /*
+     * Identifies the underlying data, so that copies and indices of it are not
+     * used once it has changed
+     */
+    private volatile SourceVersion sourceVersion = SourceVersion.UNKNOWN;
+
+    /*
+     * Time-major copies of variables, used for reading timeseries
+     */
+    private final DatasetTimeMajorStores timeMajorStores = new DatasetTimeMajorStores(this);
+
+    /*
+     * Statistics of the data in each slice of each variable, used for
+     * estimating data ranges
+     */
+    private final DatasetStatistics statistics = new DatasetStatistics(this);
+
+    /*
+     * Reduced-resolution copies of variables, used for reading maps at low
+     * resolution
+     */
+    private final DatasetOverviews overviews = new DatasetOverviews(this);
+
     public GriddedDataset(String id, Collection<GridVariableMetadata> vars) {
         super(id, vars);
     }
 
+    /**
+     * Builds (or brings up-to-date) time-major copies of all of the
+     * non-derived variables in this dataset which have a time axis. These are
+     * stored in the given directory and are built in the background. Once a
+     * copy is up-to-date, it is used to read timeseries of that variable,
+     * which is much faster than reading them from data which is stored by time
+     * slice.
+     * 
+     * Stores persist between calls, so when a dataset is reloaded with new
+     * time steps, only the new time steps are added to each store. Time steps
+     * which have changed according to the {@link #getSourceVersion() source
+     * version} are stored again, along with all later time steps.
+     * 
+     * @param directory
+     *            The directory in which to store the data
+     * @return A {@link Future} which completes when all stores are
+     *         up-to-date
+     */
+    public Future<?> buildTimeMajorStores(File directory) {
+        return timeMajorStores.build(directory);
+    }
+
+    /**
+     * Builds (or brings up-to-date) an index of the statistics of each
+     * horizontal slice of the non-derived variables in this dataset. This is
+     * stored in the given directory, and can be used as soon as this method
+     * returns. Any slices which are not already in the index are added in the
+     * background, starting with the latest time.
+     * 
+     * @param directory
+     *            The directory in which to store the index
+     * @return A {@link Future} which completes when the index is up-to-date
+     * @throws IOException
+     *             If the index cannot be opened
+     * @see #getSliceStatistics(String, DateTime, Double, BoundingBox)
+     */
+    public Future<?> buildStatisticsIndex(File directory) throws IOException {
+        return statistics.build(directory);
+    }
+
+    /**
+     * Sets up reduced-resolution overviews of all non-derived variables in
+     * this dataset which are on sufficiently large rectilinear grids. These are
+     * used when reading maps whose resolution is much lower than that of the
+     * data.
+     * 
+     * Overviews are stored in the given directory, separately for each
+     * {@link #getSourceVersion() source version}. Overviews which are already
+     * there for the same version (e.g. from before a restart) are reused.
+     * Slices of the overviews of other versions which have not changed are
+     * copied in the background, rather than generated again. The overviews of
+     * other versions are deleted once nothing can be reading them. If the
+     * source version is unknown, no existing overviews are used.
+     * 
+     * @param directory
+     *            The directory in which to store the overviews
+     * @param eager
+     *            If <code>true</code>, overviews of every slice of every
+     *            variable are generated in the background. Otherwise each
+     *            slice is generated in the background when it is first
+     *            needed, and until then maps are read from the original data.
+     * @return A {@link Future} which completes when all overviews have been
+     *         generated (if <code>eager</code> is <code>true</code>), or when
+     *         the unchanged slices of other versions have been copied, or
+     *         <code>null</code> if there is nothing to do in the background
+     */
+    public Future<?> buildOverviews(File directory, boolean eager) {
+        return overviews.build(directory, eager);
+    }
+
+    /**
+     * Gets the statistics of the data in a horizontal slice of a variable,
+     * from the index built by {@link #buildStatisticsIndex(File)}. This does
+     * not read any data.
+     * 
+     * @param varId
+     *            The ID of the variable
+     * @param time
+     *            The time of the slice. If <code>null</code>, the time
+     *            closest to the current time is used
+     * @param z
+     *            The elevation of the slice. If <code>null</code>, the
+     *            elevation closest to the surface is used
+     * @param bbox
+     *            The area of interest, or <code>null</code> for the whole
+     *            slice. Statistics are indexed by block, so are only available
+     *            for smaller areas which are made up of whole blocks.
+     * @return The {@link SliceStatistics}, or <code>null</code> if they are
+     *         not available (e.g. because the variable is derived, the slice
+     *         has not been indexed yet, or the area only covers part of a
+     *         block), in which case the data must be read
+     */
+    public SliceStatistics getSliceStatistics(String varId, DateTime time, Double z,
+            BoundingBox bbox) {
+        return statistics.getSliceStatistics(varId, time, z, bbox);
+    }
+
     @Override
     public Class<GridFeature> getFeatureType(String variableId) {
         /*
@@ -320,6 +461,7 @@ public abstract class GriddedDataset extends AbstractDataset {
         DateTime time = params.getTargetT();
 
         GridDataSource dataSource = null;
+        MapDataReader reader = null;
         try {
             /*
              * Open the source of data
@@ -335,6 +477,7 @@ public abstract class GriddedDataset extends AbstractDataset {
             VerticalCrs vCrs = null;
             StringBuilder name = new StringBuilder("Map of ");
 
+            List<String> scalarVariableIds = new ArrayList<String>();
             for (int i = 0; i < variableIds.size(); i++) {
                 String varId = variableIds.get(i);
                 if (!getVariableMetadata(varId).isScalar()) {
@@ -352,13 +495,18 @@ public abstract class GriddedDataset extends AbstractDataset {
                 }
 
                 name.append(varId + ", ");
+                scalarVariableIds.add(varId);
+            }
 
-                /*
-                 * Do the actual data reading
-                 */
-                Array2D<Number> data = readHorizontalData(varId, targetGrid, zPos, time, dataSource);
-
-                values.put(varId, data);
+            /*
+             * Do the actual data reading. Each underlying variable is only
+             * read once, even if it is required by several derived variables,
+             * and independent variables are read concurrently if possible.
+             */
+            reader = new MapDataReader(targetGrid, zPos, time, dataSource);
+            reader.startReads(scalarVariableIds);
+            for (String varId : scalarVariableIds) {
+                values.put(varId, reader.read(varId));
             }
 
             /*
@@ -384,6 +532,12 @@ public abstract class GriddedDataset extends AbstractDataset {
             log.error("Problem reading data", e);
             throw new DataReadingException("Problem reading map feature", e);
         } finally {
+            if (reader != null) {
+                /*
+                 * Cancels any outstanding reads if we have failed
+                 */
+                reader.cancel();
+            }
             if (dataSource != null) {
                 try {
                     dataSource.close();
@@ -423,62 +577,223 @@ public abstract class GriddedDataset extends AbstractDataset {
     }
 
     /**
-     * Reads horizontal data for a variable, regardless of whether it is derived
-     * or not
+     * Reads the horizontal data for a single map extraction, regardless of
+     * whether the variables are derived or not.
      * 
-     * @param varId
-     *            The ID of the variable to read
-     * @param targetGrid
-     *            The {@link HorizontalGrid} on which to read data
-     * @param zPos
-     *            The z-position to read at
-     * @param time
-     *            The time to read at
-     * @param dataSource
-     *            The {@link GridDataSource} to read data from
-     * @return
-     * @throws IOException
-     *             If there is a problem opening the {@link GridDataSource}
-     * @throws DataReadingException
-     *             If there is a problem reading the data
-     * @throws VariableNotFoundException
+     * Each variable is read (or derived) at most once, so that e.g. the
+     * magnitude and direction of a vector share the same reads of the
+     * components. If this dataset {@link #supportsConcurrentReads()}, the
+     * non-derived variables are read concurrently.
      */
-    private Array2D<Number> readHorizontalData(String varId, final HorizontalGrid targetGrid,
-            Double zPos, DateTime time, GridDataSource dataSource) throws IOException,
-            DataReadingException, VariableNotFoundException {
-        VariablePlugin plugin = isDerivedVariable(varId);
-        if (plugin == null) {
-            return readUnderlyingHorizontalData(varId, targetGrid, zPos, time, dataSource);
-        } else {
-            @SuppressWarnings("unchecked")
-            Array2D<Number>[] pluginSourceData = new Array2D[plugin.usesVariables().length];
-            VariableMetadata[] pluginSourceMetadata = new VariableMetadata[plugin.usesVariables().length];
-            /*
-             * Loop through the variable IDs required by this plugin, getting
-             * data and metadata
-             * 
-             * If we have already read the data, add it to the array, otherwise
-             * read the data first.
-             */
-            for (int i = 0; i < pluginSourceData.length; i++) {
-                String pluginSourceVarId = plugin.usesVariables()[i];
-                pluginSourceData[i] = readHorizontalData(pluginSourceVarId, targetGrid, zPos, time,
-                        dataSource);
-                pluginSourceMetadata[i] = getVariableMetadata(pluginSourceVarId);
-            }
+    private final class MapDataReader {
+        private final HorizontalGrid targetGrid;
+        private final Double zPos;
+        private final DateTime time;
+        private final GridDataSource dataSource;
+
+        /* Data which has already been read or derived, keyed on variable ID */
+        private final Map<String, Array2D<Number>> data = new HashMap<String, Array2D<Number>>();
+        /* Reads which have been submitted to the executor */
+        private final Map<String, Future<Array2D<Number>>> pendingReads = new HashMap<String, Future<Array2D<Number>>>();
+
+        /**
+         * @param targetGrid
+         *            The {@link HorizontalGrid} on which to read data
+         * @param zPos
+         *            The z-position to read at
+         * @param time
+         *            The time to read at
+         * @param dataSource
+         *            The {@link GridDataSource} to use for reads on the
+         *            calling thread
+         */
+        private MapDataReader(HorizontalGrid targetGrid, Double zPos, DateTime time,
+                GridDataSource dataSource) {
+            this.targetGrid = targetGrid;
+            this.zPos = zPos;
+            this.time = time;
+            this.dataSource = dataSource;
+        }
 
-            return plugin.generateArray2D(varId,
-                    new Array2D<HorizontalPosition>(targetGrid.getYSize(), targetGrid.getXSize()) {
-                        @Override
-                        public HorizontalPosition get(int... coords) {
-                            return targetGrid.getDomainObjects().get(coords).getCentre();
+        /**
+         * Starts reading all of the non-derived variables needed for the given
+         * variables in the background, if this dataset supports concurrent
+         * reads and these are not background reads. The first is left to be
+         * read on the calling thread.
+         * 
+         * @param varIds
+         *            The IDs of the variables which will be read
+         */
+        private void startReads(List<String> varIds) {
+            if (!supportsConcurrentReads() || GridReadExecutor.isBackgroundThread()) {
+                return;
+            }
+            Set<String> underlyingVarIds = new LinkedHashSet<String>();
+            for (String varId : varIds) {
+                addUnderlyingVariables(varId, underlyingVarIds);
+            }
+            if (underlyingVarIds.size() < 2) {
+                return;
+            }
+            Iterator<String> iterator = underlyingVarIds.iterator();
+            iterator.next();
+            while (iterator.hasNext()) {
+                final String varId = iterator.next();
+                pendingReads.put(varId, GridReadExecutor.submit(new Callable<Array2D<Number>>() {
+                    @Override
+                    public Array2D<Number> call() throws Exception {
+                        /*
+                         * GridDataSources are not generally thread-safe, so
+                         * each concurrent read gets its own
+                         */
+                        GridDataSource concurrentDataSource = openGridDataSource();
+                        try {
+                            return readUnderlyingHorizontalData(varId, targetGrid, zPos, time,
+                                    concurrentDataSource);
+                        } finally {
+                            concurrentDataSource.close();
                         }
+                    }
+                }));
+            }
+        }
 
-                        @Override
-                        public void set(HorizontalPosition value, int... coords) {
-                            throw new UnsupportedOperationException("This array is immutable");
-                        }
-                    }, pluginSourceData);
+        private void addUnderlyingVariables(String varId, Set<String> underlyingVarIds) {
+            VariablePlugin plugin = isDerivedVariable(varId);
+            if (plugin == null) {
+                underlyingVarIds.add(varId);
+            } else {
+                for (String pluginSourceVarId : plugin.usesVariables()) {
+                    addUnderlyingVariables(pluginSourceVarId, underlyingVarIds);
+                }
+            }
+        }
+
+        /**
+         * Reads horizontal data for a variable, regardless of whether it is
+         * derived or not
+         * 
+         * @param varId
+         *            The ID of the variable to read
+         * @return The data for the variable on the target grid
+         * @throws IOException
+         *             If there is a problem opening the {@link GridDataSource}
+         * @throws DataReadingException
+         *             If there is a problem reading the data
+         * @throws VariableNotFoundException
+         */
+        private Array2D<Number> read(String varId) throws IOException, DataReadingException,
+                VariableNotFoundException {
+            Array2D<Number> values = data.get(varId);
+            if (values != null) {
+                return values;
+            }
+
+            VariablePlugin plugin = isDerivedVariable(varId);
+            if (plugin == null) {
+                Future<Array2D<Number>> pendingRead = pendingReads.remove(varId);
+                if (pendingRead != null) {
+                    values = waitFor(varId, pendingRead);
+                } else {
+                    values = readUnderlyingHorizontalData(varId, targetGrid, zPos, time,
+                            dataSource);
+                }
+            } else {
+                @SuppressWarnings("unchecked")
+                Array2D<Number>[] pluginSourceData = new Array2D[plugin.usesVariables().length];
+                /*
+                 * Loop through the variable IDs required by this plugin,
+                 * getting data. If we have already read the data, it will be
+                 * reused.
+                 */
+                for (int i = 0; i < pluginSourceData.length; i++) {
+                    pluginSourceData[i] = read(plugin.usesVariables()[i]);
+                }
+
+                values = plugin.generateArray2D(varId, getTargetPositions(), pluginSourceData);
+            }
+            data.put(varId, values);
+            return values;
+        }
+
+        /*
+         * Gets the centres of the target grid cells. These are only calculated
+         * if a plugin requests them.
+         */
+        private Array2D<HorizontalPosition> getTargetPositions() {
+            if (targetGrid instanceof RectilinearGrid) {
+                /*
+                 * We can calculate the centres directly from the axes, without
+                 * creating a GridCell2D for each one
+                 */
+                final ReferenceableAxis<Double> xAxis = ((RectilinearGrid) targetGrid).getXAxis();
+                final ReferenceableAxis<Double> yAxis = ((RectilinearGrid) targetGrid).getYAxis();
+                final CoordinateReferenceSystem crs = targetGrid.getCoordinateReferenceSystem();
+                return new Array2D<HorizontalPosition>(targetGrid.getYSize(),
+                        targetGrid.getXSize()) {
+                    @Override
+                    public HorizontalPosition get(int... coords) {
+                        return new HorizontalPosition(xAxis.getCoordinateValue(coords[1]),
+                                yAxis.getCoordinateValue(coords[0]), crs);
+                    }
+
+                    @Override
+                    public void set(HorizontalPosition value, int... coords) {
+                        throw new UnsupportedOperationException("This array is immutable");
+                    }
+                };
+            }
+            return new Array2D<HorizontalPosition>(targetGrid.getYSize(), targetGrid.getXSize()) {
+                @Override
+                public HorizontalPosition get(int... coords) {
+                    return targetGrid.getDomainObjects().get(coords).getCentre();
+                }
+
+                @Override
+                public void set(HorizontalPosition value, int... coords) {
+                    throw new UnsupportedOperationException("This array is immutable");
+                }
+            };
+        }
+
+        /*
+         * Waits for a concurrent read to complete, rethrowing any exception
+         * which it threw
+         */
+        private Array2D<Number> waitFor(String varId, Future<Array2D<Number>> pendingRead)
+                throws IOException, DataReadingException, VariableNotFoundException {
+            try {
+                return pendingRead.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataReadingException("Interrupted whilst reading " + varId, e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof DataReadingException) {
+                    throw (DataReadingException) cause;
+                } else if (cause instanceof VariableNotFoundException) {
+                    throw (VariableNotFoundException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new DataReadingException("Problem reading " + varId, cause);
+            }
+        }
+
+        /**
+         * Cancels any reads which have not yet been waited for. This should be
+         * called once this reader is finished with, since if a read has
+         * failed, the others are no longer required.
+         */
+        private void cancel() {
+            for (Future<Array2D<Number>> pendingRead : pendingReads.values()) {
+                pendingRead.cancel(true);
+            }
+            pendingReads.clear();
         }
     }
 
@@ -531,19 +846,78 @@ public abstract class GriddedDataset extends AbstractDataset {
         int zIndex = getVerticalIndex(zPos, zAxis, varId);
 
         /*
-         * Create a DomainMapper from the source and target grids
+         * Get a DomainMapper from the source and target grids. The same grids
+         * are requested repeatedly (e.g. for map tiles), so these are cached.
          */
-        Domain2DMapper domainMapper = Domain2DMapper.forGrid(sourceGrid, targetGrid);
+        Domain2DMapper domainMapper = Domain2DMapperCache.getInstance().getMapper(sourceGrid,
+                targetGrid);
+
+        /*
+         * If the target grid is much coarser than the source grid, read from
+         * the coarsest overview which still has enough resolution
+         */
+        Array2D<Number> overviewData = overviews.readMapData(varId, domainMapper, targetGrid,
+                tIndex, zIndex);
+        if (overviewData != null) {
+            return overviewData;
+        }
+
+        /*
+         * If the target grid only uses a regularly-spaced sample of the source
+         * points and the data source can read such a sample directly, just
+         * read that sample
+         */
+        if (dataSource instanceof StridedGridDataSource) {
+            SampledMapper sampledMapper = domainMapper.getSampledMapper();
+            if (sampledMapper != null) {
+                return getDataReadingStrategy(sampledMapper).readMapData(
+                        new SampledGridDataSource((StridedGridDataSource) dataSource,
+                                sampledMapper), varId, tIndex, zIndex, sampledMapper);
+            }
+        }
 
         /*
          * Now use the appropriate DataReadingStrategy to read data
          */
-        Array2D<Number> data = getDataReadingStrategy().readMapData(dataSource, varId, tIndex,
-                zIndex, domainMapper);
+        Array2D<Number> data = getDataReadingStrategy(domainMapper).readMapData(dataSource, varId,
+                tIndex, zIndex, domainMapper);
         return data;
     }
 
-    private static int getTimeIndex(DateTime time, TimeAxis tAxis, String varId) {
+    /**
+     * Presents the lattice of points described by a {@link SampledMapper} as a
+     * {@link GridDataSource}, so that it can be read by any
+     * {@link DataReadingStrategy}. Reads are translated into strided reads
+     * from the underlying data source.
+     */
+    private static final class SampledGridDataSource implements GridDataSource {
+        private final StridedGridDataSource source;
+        private final SampledMapper sampledMapper;
+
+        public SampledGridDataSource(StridedGridDataSource source, SampledMapper sampledMapper) {
+            this.source = source;
+            this.sampledMapper = sampledMapper;
+        }
+
+        @Override
+        public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+                int ymin, int ymax, int xmin, int xmax) throws IOException, DataReadingException {
+            int iOffset = sampledMapper.getIOffset();
+            int jOffset = sampledMapper.getJOffset();
+            int iStride = sampledMapper.getIStride();
+            int jStride = sampledMapper.getJStride();
+            return source.read(variableId, tmin, tmax, zmin, zmax, jOffset + ymin * jStride,
+                    jOffset + ymax * jStride, jStride, iOffset + xmin * iStride, iOffset + xmax
+                            * iStride, iStride);
+        }
+
+        @Override
+        public void close() throws IOException {
+            /* The underlying data source is closed by whoever opened it */
+        }
+    }
+
+    static int getTimeIndex(DateTime time, TimeAxis tAxis, String varId) {
         int tIndex = 0;
         if (tAxis != null) {
             if (time == null) {
@@ -558,7 +932,7 @@ public abstract class GriddedDataset extends AbstractDataset {
         return tIndex;
     }
 
-    private static int getVerticalIndex(Double zPos, VerticalAxis zAxis, String varId) {
+    static int getVerticalIndex(Double zPos, VerticalAxis zAxis, String varId) {
         int zIndex = 0;
         if (zAxis != null) {
             if (zPos == null) {
@@ -1037,28 +1411,12 @@ public abstract class GriddedDataset extends AbstractDataset {
         VerticalAxis variableZAxis = metadata.getVerticalDomain();
 
         /*
-         * Find all of the horizontal positions which should be included
+         * Find all of the horizontal positions which should be included, and
+         * their indices in the grid
          */
         List<HorizontalPosition> horizontalPositions = new ArrayList<HorizontalPosition>();
-        if (bbox == null) {
-            bbox = hDomain.getBoundingBox();
-        }
-        if (bbox.getLowerCorner().equals(bbox.getUpperCorner())) {
-            /*
-             * We have a single position
-             */
-            horizontalPositions.add(bbox.getLowerCorner());
-        } else {
-            /*
-             * We want all horizontal grid cells which fall within the bounding
-             * box
-             */
-            for (GridCell2D gridCell : hDomain.getDomainObjects()) {
-                if (bbox.contains(gridCell.getCentre())) {
-                    horizontalPositions.add(gridCell.getCentre());
-                }
-            }
-        }
+        List<GridCoordinates2D> horizontalIndices = new ArrayList<GridCoordinates2D>();
+        findHorizontalPositions(hDomain, bbox, horizontalPositions, horizontalIndices);
 
         /*
          * Find all of the times which should be included
@@ -1084,18 +1442,14 @@ public abstract class GriddedDataset extends AbstractDataset {
         }
 
         /*
-         * Now read the data for each unique profile location.
+         * Find the grid indices of each unique profile location.
          */
-        Map<ProfileLocation, Array1D<Number>> ret = new HashMap<ProfileLocation, Array1D<Number>>();
-        for (HorizontalPosition hPos : horizontalPositions) {
+        List<ProfileLocation> locations = new ArrayList<ProfileLocation>();
+        List<int[]> points = new ArrayList<int[]>();
+        for (int h = 0; h < horizontalPositions.size(); h++) {
+            HorizontalPosition hPos = horizontalPositions.get(h);
+            GridCoordinates2D hIndices = horizontalIndices.get(h);
             for (DateTime time : times) {
-                ProfileLocation location = new ProfileLocation(hPos, time);
-
-                GridCoordinates2D hIndices = hDomain.findIndexOf(hPos);
-
-                int xIndex = hIndices.getX();
-                int yIndex = hIndices.getY();
-
                 /*
                  * We only want times which exactly match
                  */
@@ -1106,52 +1460,44 @@ public abstract class GriddedDataset extends AbstractDataset {
                 if (tIndex < 0) {
                     continue;
                 }
+                locations.add(new ProfileLocation(hPos, time));
+                points.add(new int[] { tIndex, 0, hIndices.getY(), hIndices.getX() });
+            }
+        }
 
-                /*
-                 * Now read the z-limits
-                 */
-                if (variableZAxis == null) {
-                    throw new IllegalArgumentException("The variable " + varId
-                            + " has no vertical axis, so a vertical profile cannot be read.");
-                }
-                if (!variableZAxis.getVerticalCrs().equals(zAxis.getVerticalCrs())) {
-                    throw new IllegalArgumentException("The vertical CRS of the variable " + varId
-                            + " must match that of the domain you are trying to read.");
-                }
-                int zMin;
-                int zMax;
-                if (zAxis.isAscending()) {
-                    zMin = variableZAxis.findIndexOf(zAxis.getExtent().getLow());
-                    zMax = variableZAxis.findIndexOf(zAxis.getExtent().getHigh());
-                } else {
-                    zMin = variableZAxis.findIndexOf(zAxis.getExtent().getHigh());
-                    zMax = variableZAxis.findIndexOf(zAxis.getExtent().getLow());
-                }
-
-                /*
-                 * Read the data and move it to a 1D Array
-                 */
-                Array4D<Number> data4d = dataSource.read(varId, tIndex, tIndex, zMin, zMax, yIndex,
-                        yIndex, xIndex, xIndex);
-                int zSize = zAxis.size();
-                Array1D<Number> data = new ValuesArray1D(zSize);
-
-                for (int i = 0; i < zSize; i++) {
-                    Double zVal = zAxis.getCoordinateValue(i);
-                    int zIndex = variableZAxis.findIndexOf(zVal);
-                    if (zIndex < 0) {
-                        throw new IllegalArgumentException("The z-axis for the variable " + varId
-                                + " does not contain the position " + zVal
-                                + " which was requested.");
-                    }
-                    data.set(data4d.get(new int[] { 0, zIndex - zMin, 0, 0 }), new int[] { i });
-                }
-
-                ret.put(location, data);
+        Map<ProfileLocation, Array1D<Number>> ret = new HashMap<ProfileLocation, Array1D<Number>>();
+        if (locations.isEmpty()) {
+            return ret;
+        }
 
+        /*
+         * Now find the z-indices to read
+         */
+        if (variableZAxis == null) {
+            throw new IllegalArgumentException("The variable " + varId
+                    + " has no vertical axis, so a vertical profile cannot be read.");
+        }
+        if (!variableZAxis.getVerticalCrs().equals(zAxis.getVerticalCrs())) {
+            throw new IllegalArgumentException("The vertical CRS of the variable " + varId
+                    + " must match that of the domain you are trying to read.");
+        }
+        int[] zIndices = new int[zAxis.size()];
+        for (int i = 0; i < zIndices.length; i++) {
+            Double zVal = zAxis.getCoordinateValue(i);
+            zIndices[i] = variableZAxis.findIndexOf(zVal);
+            if (zIndices[i] < 0) {
+                throw new IllegalArgumentException("The z-axis for the variable " + varId
+                        + " does not contain the position " + zVal + " which was requested.");
             }
         }
 
+        /*
+         * Read the data for all locations together
+         */
+        List<Array1D<Number>> data = readSeriesData(varId, Z_AXIS, points, zIndices, dataSource);
+        for (int i = 0; i < locations.size(); i++) {
+            ret.put(locations.get(i), data.get(i));
+        }
         return ret;
     }
 
@@ -1633,28 +1979,12 @@ public abstract class GriddedDataset extends AbstractDataset {
         TimeAxis variableTAxis = metadata.getTemporalDomain();
 
         /*
-         * Find all of the horizontal positions which should be included
+         * Find all of the horizontal positions which should be included, and
+         * their indices in the grid
          */
         List<HorizontalPosition> horizontalPositions = new ArrayList<HorizontalPosition>();
-        if (bbox == null) {
-            bbox = hDomain.getBoundingBox();
-        }
-        if (bbox.getLowerCorner().equals(bbox.getUpperCorner())) {
-            /*
-             * We have a single position
-             */
-            horizontalPositions.add(bbox.getLowerCorner());
-        } else {
-            /*
-             * We want all horizontal grid cells which fall within the bounding
-             * box
-             */
-            for (GridCell2D gridCell : hDomain.getDomainObjects()) {
-                if (bbox.contains(gridCell.getCentre())) {
-                    horizontalPositions.add(gridCell.getCentre());
-                }
-            }
-        }
+        List<GridCoordinates2D> horizontalIndices = new ArrayList<GridCoordinates2D>();
+        findHorizontalPositions(hDomain, bbox, horizontalPositions, horizontalIndices);
 
         /*
          * Find all of the elevations which should be included
@@ -1680,22 +2010,14 @@ public abstract class GriddedDataset extends AbstractDataset {
         }
 
         /*
-         * Now read the data for each unique profile location.
+         * Find the grid indices of each unique point series location.
          */
-        Map<PointSeriesLocation, Array1D<Number>> ret = new HashMap<PointSeriesLocation, Array1D<Number>>();
-        for (HorizontalPosition hPos : horizontalPositions) {
+        List<PointSeriesLocation> locations = new ArrayList<PointSeriesLocation>();
+        List<int[]> points = new ArrayList<int[]>();
+        for (int h = 0; h < horizontalPositions.size(); h++) {
+            HorizontalPosition hPos = horizontalPositions.get(h);
+            GridCoordinates2D hIndices = horizontalIndices.get(h);
             for (Double zVal : zVals) {
-                VerticalPosition zPos = null;
-                if (zVal != null) {
-                    zPos = new VerticalPosition(zVal, zAxis.getVerticalCrs());
-                }
-                PointSeriesLocation location = new PointSeriesLocation(hPos, zPos);
-
-                GridCoordinates2D hIndices = hDomain.findIndexOf(hPos);
-
-                int xIndex = hIndices.getX();
-                int yIndex = hIndices.getY();
-
                 /*
                  * We only want co-ordinate values which match exactly
                  */
@@ -1706,46 +2028,252 @@ public abstract class GriddedDataset extends AbstractDataset {
                 if (zIndex < 0) {
                     continue;
                 }
-
-                /*
-                 * Now read the t-limits
-                 */
-                if (variableTAxis == null) {
-                    throw new IllegalArgumentException("The variable " + varId
-                            + " has no time axis, so a timeseries cannot be read.");
+                VerticalPosition zPos = null;
+                if (zVal != null) {
+                    zPos = new VerticalPosition(zVal, zAxis.getVerticalCrs());
                 }
-                if (!variableTAxis.getChronology().equals(tAxis.getChronology())) {
-                    throw new IllegalArgumentException("The Chronology of the variable " + varId
-                            + " must match that of the domain you are trying to read.");
+                locations.add(new PointSeriesLocation(hPos, zPos));
+                points.add(new int[] { 0, zIndex, hIndices.getY(), hIndices.getX() });
+            }
+        }
+
+        Map<PointSeriesLocation, Array1D<Number>> ret = new HashMap<PointSeriesLocation, Array1D<Number>>();
+        if (locations.isEmpty()) {
+            return ret;
+        }
+
+        /*
+         * Now find the t-indices to read
+         */
+        if (variableTAxis == null) {
+            throw new IllegalArgumentException("The variable " + varId
+                    + " has no time axis, so a timeseries cannot be read.");
+        }
+        if (!variableTAxis.getChronology().equals(tAxis.getChronology())) {
+            throw new IllegalArgumentException("The Chronology of the variable " + varId
+                    + " must match that of the domain you are trying to read.");
+        }
+        int[] tIndices = new int[tAxis.size()];
+        for (int i = 0; i < tIndices.length; i++) {
+            DateTime time = tAxis.getCoordinateValue(i);
+            tIndices[i] = variableTAxis.findIndexOf(time);
+            if (tIndices[i] < 0) {
+                throw new IllegalArgumentException("The time-axis for the variable " + varId
+                        + " does not contain the time " + time + " which was requested.");
+            }
+        }
+
+        /*
+         * If there is an up-to-date time-major copy of this variable, read
+         * from that, since it is much quicker for long timeseries
+         */
+        List<Array1D<Number>> data = timeMajorStores.readTimeseries(varId,
+                variableTAxis.getCoordinateValues(), points, tIndices);
+        if (data == null) {
+            /*
+             * Read the data for all locations together
+             */
+            data = readSeriesData(varId, T_AXIS, points, tIndices, dataSource);
+        }
+        for (int i = 0; i < locations.size(); i++) {
+            ret.put(locations.get(i), data.get(i));
+        }
+        return ret;
+    }
+
+    /*
+     * Finds the positions of the grid cells which fall within a bounding box,
+     * or the single position if the bounding box is a point
+     */
+    private static void findHorizontalPositions(HorizontalGrid hDomain, BoundingBox bbox,
+            List<HorizontalPosition> horizontalPositions,
+            List<GridCoordinates2D> horizontalIndices) {
+        if (bbox == null) {
+            bbox = hDomain.getBoundingBox();
+        }
+        if (bbox.getLowerCorner().equals(bbox.getUpperCorner())) {
+            /*
+             * We have a single position
+             */
+            GridCoordinates2D hIndices = hDomain.findIndexOf(bbox.getLowerCorner());
+            if (hIndices != null) {
+                horizontalPositions.add(bbox.getLowerCorner());
+                horizontalIndices.add(hIndices);
+            }
+        } else {
+            /*
+             * We want all horizontal grid cells which fall within the bounding
+             * box. We already know their indices, so don't need to look them
+             * up.
+             */
+            for (GridCell2D gridCell : hDomain.getDomainObjects()) {
+                if (bbox.contains(gridCell.getCentre())) {
+                    horizontalPositions.add(gridCell.getCentre());
+                    horizontalIndices.add(gridCell.getGridCoordinates());
                 }
-                int tMin = variableTAxis.findIndexOf(tAxis.getExtent().getLow());
-                int tMax = variableTAxis.findIndexOf(tAxis.getExtent().getHigh());
+            }
+        }
+    }
 
-                /*
-                 * Read the data and move it to a 1D Array
-                 */
-                Array4D<Number> data4d = dataSource.read(varId, tMin, tMax, zIndex, zIndex, yIndex,
-                        yIndex, xIndex, xIndex);
-                int tSize = tAxis.size();
-                Array1D<Number> data = new ValuesArray1D(tSize);
-
-                for (int i = 0; i < tSize; i++) {
-                    DateTime time = tAxis.getCoordinateValue(i);
-                    int tIndex = variableTAxis.findIndexOf(time);
-                    if (tIndex < 0) {
-                        throw new IllegalArgumentException("The time-axis for the variable "
-                                + varId + " does not contain the time " + time
-                                + " which was requested.");
-                    }
-                    data.set(data4d.get(new int[] { tIndex - tMin, 0, 0, 0 }), new int[] { i });
+    /*
+     * Indices of the axes in 4D co-ordinates
+     */
+    static final int T_AXIS = 0;
+    static final int Z_AXIS = 1;
+    static final int Y_AXIS = 2;
+    static final int X_AXIS = 3;
+
+    /*
+     * The default maximum number of values to read in a single hyperslab when
+     * extracting timeseries or profiles: 4M values, or 16MB of floats
+     */
+    private static final long DEFAULT_MAX_SERIES_READ_SIZE = 4L * 1024L * 1024L;
+    private static volatile long maxSeriesReadSize = DEFAULT_MAX_SERIES_READ_SIZE;
+
+    /**
+     * Sets the maximum number of values which will be read in a single
+     * operation when extracting timeseries or profiles. Larger extractions
+     * are read in several chunks along the time (or vertical) axis.
+     * 
+     * @param maxValues
+     *            The maximum number of values to read at once
+     */
+    public static void setMaxSeriesReadSize(long maxValues) {
+        if (maxValues < 1) {
+            throw new IllegalArgumentException("Maximum read size must be >= 1");
+        }
+        maxSeriesReadSize = maxValues;
+    }
+
+    /**
+     * Reads 1D series of data (along either the time or vertical axis) at a
+     * number of grid points.
+     * 
+     * Rather than reading each series separately, the block of data covering
+     * all of the points is read in as few hyperslab reads as possible, and
+     * the series extracted from it in memory. If the block is too large to
+     * hold in memory, it is read in chunks along the series axis. If even a
+     * single step along the series axis is too large (i.e. if the points are
+     * very sparse), each series is read separately.
+     * 
+     * @param varId
+     *            The variable to read
+     * @param seriesAxis
+     *            The index in 4D co-ordinates of the axis along which to read
+     *            - either {@link #T_AXIS} or {@link #Z_AXIS}
+     * @param points
+     *            The 4D co-ordinates of each point. The co-ordinate along the
+     *            series axis is ignored.
+     * @param seriesIndices
+     *            The indices along the series axis of the values in each
+     *            series
+     * @param dataSource
+     *            The {@link GridDataSource} to read from
+     * @return A series for each of the given points, in the same order
+     */
+    private static List<Array1D<Number>> readSeriesData(String varId, int seriesAxis,
+            List<int[]> points, int[] seriesIndices, GridDataSource dataSource)
+            throws IOException, DataReadingException {
+        List<FloatArray1D> ret = new ArrayList<FloatArray1D>();
+        for (int n = 0; n < points.size(); n++) {
+            ret.add(new FloatArray1D(seriesIndices.length));
+        }
+        if (seriesIndices.length == 0) {
+            return new ArrayList<Array1D<Number>>(ret);
+        }
+
+        /*
+         * Find the extent of the block covering all of the points
+         */
+        int[] mins = new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+                Integer.MAX_VALUE };
+        int[] maxs = new int[] { Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE,
+                Integer.MIN_VALUE };
+        for (int[] point : points) {
+            for (int d = 0; d < 4; d++) {
+                if (d != seriesAxis) {
+                    mins[d] = Math.min(mins[d], point[d]);
+                    maxs[d] = Math.max(maxs[d], point[d]);
                 }
+            }
+        }
+        for (int seriesIndex : seriesIndices) {
+            mins[seriesAxis] = Math.min(mins[seriesAxis], seriesIndex);
+            maxs[seriesAxis] = Math.max(maxs[seriesAxis], seriesIndex);
+        }
 
-                ret.put(location, data);
+        long sliceSize = 1L;
+        for (int d = 0; d < 4; d++) {
+            if (d != seriesAxis) {
+                sliceSize *= (maxs[d] - mins[d] + 1);
+            }
+        }
+        long maxValues = maxSeriesReadSize;
 
+        if (sliceSize > maxValues && points.size() > 1) {
+            /*
+             * The points are too spread out to read together. Read each
+             * series individually.
+             */
+            log.debug("Reading " + points.size() + " series of " + varId + " individually");
+            for (int n = 0; n < points.size(); n++) {
+                int[] pointMins = points.get(n).clone();
+                int[] pointMaxs = points.get(n).clone();
+                pointMins[seriesAxis] = mins[seriesAxis];
+                pointMaxs[seriesAxis] = maxs[seriesAxis];
+                readSeriesChunks(varId, seriesAxis, Collections.singletonList(points.get(n)),
+                        seriesIndices, pointMins, pointMaxs, maxValues,
+                        Collections.singletonList(ret.get(n)), dataSource);
             }
+        } else {
+            readSeriesChunks(varId, seriesAxis, points, seriesIndices, mins, maxs, maxValues,
+                    ret, dataSource);
         }
+        return new ArrayList<Array1D<Number>>(ret);
+    }
 
-        return ret;
+    /*
+     * Reads the block of data with the given limits in chunks along the
+     * series axis, each of at most (approximately) maxValues values, and
+     * copies the values for each point into its series.
+     */
+    private static void readSeriesChunks(String varId, int seriesAxis, List<int[]> points,
+            int[] seriesIndices, int[] mins, int[] maxs, long maxValues,
+            List<FloatArray1D> series, GridDataSource dataSource) throws IOException,
+            DataReadingException {
+        long sliceSize = 1L;
+        for (int d = 0; d < 4; d++) {
+            if (d != seriesAxis) {
+                sliceSize *= (maxs[d] - mins[d] + 1);
+            }
+        }
+        int chunkSize = (int) Math.max(1L, Math.min(Integer.MAX_VALUE, maxValues / sliceSize));
+
+        int[] chunkMins = mins.clone();
+        int[] chunkMaxs = maxs.clone();
+        for (int chunkStart = mins[seriesAxis]; chunkStart <= maxs[seriesAxis]; chunkStart += chunkSize) {
+            int chunkEnd = (int) Math.min(maxs[seriesAxis], (long) chunkStart + chunkSize - 1);
+            chunkMins[seriesAxis] = chunkStart;
+            chunkMaxs[seriesAxis] = chunkEnd;
+            Array4D<Number> block = dataSource.read(varId, chunkMins[T_AXIS], chunkMaxs[T_AXIS],
+                    chunkMins[Z_AXIS], chunkMaxs[Z_AXIS], chunkMins[Y_AXIS], chunkMaxs[Y_AXIS],
+                    chunkMins[X_AXIS], chunkMaxs[X_AXIS]);
+            for (int i = 0; i < seriesIndices.length; i++) {
+                if (seriesIndices[i] < chunkStart || seriesIndices[i] > chunkEnd) {
+                    continue;
+                }
+                for (int n = 0; n < points.size(); n++) {
+                    int[] point = points.get(n);
+                    int t = (seriesAxis == T_AXIS ? seriesIndices[i] : point[T_AXIS])
+                            - chunkMins[T_AXIS];
+                    int z = (seriesAxis == Z_AXIS ? seriesIndices[i] : point[Z_AXIS])
+                            - chunkMins[Z_AXIS];
+                    series.get(n).setFloat(i,
+                            block.getFloat(t, z, point[Y_AXIS] - chunkMins[Y_AXIS],
+                                    point[X_AXIS] - chunkMins[X_AXIS]));
+                }
+            }
+        }
     }
 
     /**
@@ -2058,5 +2586,177 @@ public abstract class GriddedDataset extends AbstractDataset {
 
     protected abstract GridDataSource openGridDataSource() throws IOException;
 
+    /**
+     * Whether different variables in this dataset can be read concurrently.
+     * If so, {@link #openGridDataSource()} may be called from several threads
+     * at once, and each {@link GridDataSource} it returns will only be used by
+     * a single thread. Datasets should only return <code>true</code> if
+     * opening a {@link GridDataSource} is cheap (e.g. if they are pooled).
+     * 
+     * @return <code>true</code> if this dataset supports concurrent reads.
+     *         This implementation returns <code>false</code>
+     */
+    protected boolean supportsConcurrentReads() {
+        return false;
+    }
+
+    /**
+     * Sets the maximum number of variables which can be read concurrently,
+     * across all {@link GriddedDataset}s which
+     * {@link #supportsConcurrentReads()}. Further reads will wait until one
+     * of these has completed.
+     * 
+     * @param maxConcurrentReads
+     *            The maximum number of concurrent reads
+     */
+    public static void setMaxConcurrentReads(int maxConcurrentReads) {
+        GridReadExecutor.setMaxConcurrentReads(maxConcurrentReads);
+    }
+
+    /**
+     * Sets whether reads made by the calling thread are speculative (e.g.
+     * prefetching data which may be requested later). Speculative reads are
+     * made entirely on the calling thread, even if a dataset
+     * {@link #supportsConcurrentReads()}, so that they never occupy the threads
+     * used for other requests.
+     * 
+     * @param background
+     *            <code>true</code> if subsequent reads on this thread are
+     *            speculative
+     */
+    public static void setBackgroundReads(boolean background) {
+        GridReadExecutor.setBackgroundReads(background);
+    }
+
+    /**
+     * Sets a {@link DataReadingStrategy} to use for all reads from this
+     * dataset, overriding the choice which would otherwise be made for each
+     * request
+     * 
+     * @param dataReadingStrategy
+     *            The {@link DataReadingStrategy} to use, or <code>null</code>
+     *            to choose one automatically
+     */
+    public void setDataReadingStrategy(DataReadingStrategy dataReadingStrategy) {
+        this.dataReadingStrategyOverride = dataReadingStrategy;
+    }
+
+    /**
+     * @return The {@link DataReadingCostModel} used to choose a
+     *         {@link DataReadingStrategy} for each request, or
+     *         <code>null</code> if this dataset has not been calibrated
+     */
+    public DataReadingCostModel getDataReadingCostModel() {
+        return dataReadingCostModel;
+    }
+
+    /**
+     * Sets the {@link DataReadingCostModel} used to choose a
+     * {@link DataReadingStrategy} for each request
+     * 
+     * @param dataReadingCostModel
+     *            The {@link DataReadingCostModel} to use, or <code>null</code>
+     *            to always use {@link #getDataReadingStrategy()}
+     */
+    public void setDataReadingCostModel(DataReadingCostModel dataReadingCostModel) {
+        this.dataReadingCostModel = dataReadingCostModel;
+    }
+
+    /**
+     * @return The version of the underlying data of this dataset
+     */
+    public SourceVersion getSourceVersion() {
+        return sourceVersion;
+    }
+
+    /**
+     * Sets the version of the underlying data of this dataset. This should be
+     * set before any of {@link #buildTimeMajorStores(File)},
+     * {@link #buildStatisticsIndex(File)} or
+     * {@link #buildOverviews(File, boolean)} are called. Data which they stored
+     * for a different version is discarded, unless that version is the
+     * previous version of this one and the data is at a time which has not
+     * changed.
+     * 
+     * @param sourceVersion
+     *            The {@link SourceVersion}
+     */
+    public void setSourceVersion(SourceVersion sourceVersion) {
+        this.sourceVersion = sourceVersion;
+    }
+
+    /**
+     * Measures the cost of reading from this dataset by performing some probe
+     * reads, so that the cheapest {@link DataReadingStrategy} can be chosen
+     * for each request. If this fails, {@link #getDataReadingStrategy()} will
+     * continue to be used for all requests.
+     */
+    public void calibrateDataReading() {
+        /*
+         * Find a non-derived variable to probe
+         */
+        String probeVarId = null;
+        GridVariableMetadata probeMetadata = null;
+        for (String varId : getVariableIds()) {
+            if (isDerivedVariable(varId) == null) {
+                VariableMetadata metadata = vars.get(varId);
+                if (metadata instanceof GridVariableMetadata) {
+                    probeVarId = varId;
+                    probeMetadata = (GridVariableMetadata) metadata;
+                    break;
+                }
+            }
+        }
+        if (probeVarId == null) {
+            return;
+        }
+
+        HorizontalGrid grid = probeMetadata.getHorizontalDomain();
+        GridDataSource dataSource = null;
+        try {
+            dataSource = openGridDataSource();
+            dataReadingCostModel = DataReadingCostModel.calibrate(dataSource, probeVarId, 0, 0,
+                    grid.getXSize(), grid.getYSize());
+            log.debug("Calibrated dataset " + id + ": " + dataReadingCostModel);
+        } catch (IOException | DataReadingException | RuntimeException e) {
+            log.warn("Could not calibrate data reading for dataset " + id + ".  Using "
+                    + getDataReadingStrategy() + " for all reads", e);
+        } finally {
+            if (dataSource != null) {
+                try {
+                    dataSource.close();
+                } catch (IOException e) {
+                    log.error("Problem closing data source");
+                }
+            }
+        }
+    }
+
+    /**
+     * Chooses the {@link DataReadingStrategy} to use for a particular read.
+     * 
+     * @param domainMapper
+     *            The {@link Domain2DMapper} describing the data required
+     * @return The strategy set with
+     *         {@link #setDataReadingStrategy(DataReadingStrategy)} if there is
+     *         one, otherwise the cheapest strategy according to the
+     *         {@link DataReadingCostModel}, if this dataset has been
+     *         calibrated, otherwise {@link #getDataReadingStrategy()}
+     */
+    protected DataReadingStrategy getDataReadingStrategy(Domain2DMapper domainMapper) {
+        if (dataReadingStrategyOverride != null) {
+            return dataReadingStrategyOverride;
+        }
+        DataReadingCostModel costModel = dataReadingCostModel;
+        if (costModel != null) {
+            return costModel.chooseStrategy(domainMapper);
+        }
+        return getDataReadingStrategy();
+    }
+
+    /**
+     * @return The default {@link DataReadingStrategy} for this dataset. This
+     *         is used when no {@link DataReadingCostModel} is available
+     */
     protected abstract DataReadingStrategy getDataReadingStrategy();
 }
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+
+/**
+ * Runs the building of the on-disk indices and copies of the data of
+ * {@link GriddedDataset}s (e.g. {@link TimeMajorStore}s and
+ * {@link StatisticsIndex}es) in the background, and provides the utilities
+ * which they share.
+ * 
+ * A single low-priority thread is shared by all datasets, so that this doesn't
+ * compete with serving requests.
+ * 
+ * @author agent
+ */
+final class IndexBuilder {
+    private static final Logger log = LoggerFactory.getLogger(IndexBuilder.class);
+
+    private static final ExecutorService executor = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "gridded-dataset-indexer");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    private IndexBuilder() {
+    }
+
+    /**
+     * Runs a task on the indexing thread
+     * 
+     * @param task
+     *            The task to run
+     * @return A {@link Future} which completes when the task has run
+     */
+    static Future<?> submit(Runnable task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * @return The metadata of the non-derived variables of a dataset, which
+     *         are the ones which can be indexed
+     */
+    static List<GridVariableMetadata> getIndexableVariables(GriddedDataset dataset) {
+        List<GridVariableMetadata> ret = new ArrayList<GridVariableMetadata>();
+        for (String variableId : dataset.getVariableIds()) {
+            VariableMetadata metadata;
+            try {
+                metadata = dataset.getVariableMetadata(variableId);
+            } catch (VariableNotFoundException e) {
+                continue;
+            }
+            if (metadata instanceof GridVariableMetadata
+                    && dataset.isDerivedVariable(variableId) == null) {
+                ret.add((GridVariableMetadata) metadata);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Closes a {@link GridDataSource}, logging rather than throwing any error
+     * 
+     * @param dataSource
+     *            The {@link GridDataSource} to close. May be <code>null</code>
+     */
+    static void close(GridDataSource dataSource) {
+        if (dataSource != null) {
+            try {
+                dataSource.close();
+            } catch (IOException e) {
+                log.error("Problem closing data source", e);
+            }
+        }
+    }
+
+    /**
+     * @return A version of the given name (e.g. a dataset ID) which is safe to
+     *         use as a filename
+     */
+    static String toSafeFilename(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Deletes a file, or a directory and everything in it
+     */
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
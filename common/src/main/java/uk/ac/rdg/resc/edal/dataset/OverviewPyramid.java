@@ -0,0 +1,718 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGridImpl;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularAxis;
+import uk.ac.rdg.resc.edal.grid.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.AtomicFile;
+import uk.ac.rdg.resc.edal.util.FloatArray4D;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+/**
+ * A set of reduced-resolution copies ("overviews") of the data of a single
+ * variable on a {@link RectilinearGrid}. Each level has half the resolution of
+ * the one before it, and each of its values is the mean of the (non-missing)
+ * values in the corresponding 2x2 cells of the previous level. Level 0 is the
+ * original data, which is not stored here.
+ * 
+ * Reading a map at a low resolution from an overview touches far less data
+ * than reading it from the original grid.
+ * 
+ * Overviews are stored on disk, with one file per level. All levels of a
+ * horizontal slice (i.e. a single time and elevation) are generated together,
+ * by {@link #build(int, int, GridDataSource)}, either in advance or when they
+ * are first needed.
+ * 
+ * The directory also records which slices have been built, along with the
+ * times of the slices and the hash of the {@link SourceVersion} of the data
+ * they were generated from. Reopening the directory for the same version of
+ * the data reuses all of the slices which were built, and
+ * {@link #carryOver(OverviewPyramid, SourceVersion)} copies those slices of
+ * another version which have not changed.
+ * 
+ * @author agent
+ */
+public class OverviewPyramid {
+    private static final Logger log = LoggerFactory.getLogger(OverviewPyramid.class);
+
+    /* Identifies the file of built slices, and its version */
+    private static final int MAGIC = 0x4f565231;
+    private static final String SLICES_FILENAME = "slices.idx";
+
+    /* The size of the buffer used when copying slices between pyramids */
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    /*
+     * No level will have fewer than this number of cells along either axis
+     */
+    private static final int MIN_LEVEL_SIZE = 64;
+
+    /*
+     * The maximum number of values to read from the original data at once
+     */
+    private static final long MAX_READ_SIZE = 4L * 1024L * 1024L;
+
+    /* The number of locks used when building slices */
+    private static final int N_LOCKS = 64;
+
+    private final File directory;
+    private final String varId;
+    private final int xSize;
+    private final int ySize;
+    private final int nZs;
+    /* The time of each time index, in milliseconds since the epoch */
+    private final long[] times;
+    /* The hash of the SourceVersion which the overviews are generated from */
+    private final long sourceHash;
+    /* The grids of each level. Index 0 is level 1 */
+    private final RectilinearGrid[] grids;
+    private final File[] files;
+    private final FileChannel[] channels;
+
+    /* The slices (t * nZs + z) which have been built */
+    private final BitSet builtSlices = new BitSet();
+    private final Object[] buildLocks = new Object[N_LOCKS];
+    /* Held whilst the file of built slices is written */
+    private final Object slicesFileLock = new Object();
+
+    /**
+     * Creates an {@link OverviewPyramid} for a variable. If the directory
+     * already contains overviews of the same variable, grid, times and
+     * version of the data, the slices which were built there are reused.
+     * 
+     * @param directory
+     *            The directory in which to store the overviews
+     * @param varId
+     *            The ID of the variable
+     * @param grid
+     *            The {@link RectilinearGrid} of the variable
+     * @param times
+     *            The time of each time index of the variable, in milliseconds
+     *            since the epoch. If the variable has no time axis, this
+     *            should contain the single value {@link Long#MIN_VALUE}.
+     * @param nZs
+     *            The number of elevations of the variable (1 if it has no
+     *            vertical axis)
+     * @param version
+     *            The {@link SourceVersion} of the data which the overviews
+     *            are generated from
+     * @return The {@link OverviewPyramid}, or <code>null</code> if the grid is
+     *         too small to need overviews
+     */
+    public static OverviewPyramid create(File directory, String varId, RectilinearGrid grid,
+            long[] times, int nZs, SourceVersion version) {
+        int nLevels = getNumLevels(grid);
+        if (nLevels == 0) {
+            return null;
+        }
+        OverviewPyramid pyramid = new OverviewPyramid(directory, varId, grid, times, nZs,
+                version.getHash(), nLevels);
+        SliceRecord record = readSlices(directory);
+        if (record != null && record.matches(pyramid) && record.sourceHash == pyramid.sourceHash
+                && Arrays.equals(record.times, times)) {
+            pyramid.builtSlices.or(record.builtSlices);
+        }
+        return pyramid;
+    }
+
+    /**
+     * Opens the existing overviews of a variable (e.g. those of a previous
+     * version of its data), with the times and version of the data which they
+     * were generated from
+     * 
+     * @param directory
+     *            The directory in which the overviews are stored
+     * @param varId
+     *            The ID of the variable
+     * @param grid
+     *            The {@link RectilinearGrid} of the variable
+     * @param nZs
+     *            The number of elevations of the variable (1 if it has no
+     *            vertical axis)
+     * @return The {@link OverviewPyramid}, or <code>null</code> if the
+     *         directory does not contain overviews on the same grid
+     */
+    public static OverviewPyramid open(File directory, String varId, RectilinearGrid grid,
+            int nZs) {
+        int nLevels = getNumLevels(grid);
+        SliceRecord record = readSlices(directory);
+        if (nLevels == 0 || record == null) {
+            return null;
+        }
+        OverviewPyramid pyramid = new OverviewPyramid(directory, varId, grid, record.times,
+                nZs, record.sourceHash, nLevels);
+        if (!record.matches(pyramid)) {
+            return null;
+        }
+        pyramid.builtSlices.or(record.builtSlices);
+        return pyramid;
+    }
+
+    private static int getNumLevels(RectilinearGrid grid) {
+        int nLevels = 0;
+        while ((grid.getXSize() >> (nLevels + 1)) >= MIN_LEVEL_SIZE
+                && (grid.getYSize() >> (nLevels + 1)) >= MIN_LEVEL_SIZE) {
+            nLevels++;
+        }
+        return nLevels;
+    }
+
+    private OverviewPyramid(File directory, String varId, RectilinearGrid grid, long[] times,
+            int nZs, long sourceHash, int nLevels) {
+        this.directory = directory;
+        this.varId = varId;
+        this.xSize = grid.getXSize();
+        this.ySize = grid.getYSize();
+        this.nZs = nZs;
+        this.times = times;
+        this.sourceHash = sourceHash;
+        grids = new RectilinearGrid[nLevels];
+        files = new File[nLevels];
+        channels = new FileChannel[nLevels];
+        boolean lonAxis = GISUtils.isWgs84LonLat(grid.getCoordinateReferenceSystem());
+        for (int i = 0; i < nLevels; i++) {
+            int factor = 1 << (i + 1);
+            ReferenceableAxis<Double> xAxis = coarsenAxis(grid.getXAxis(), factor, lonAxis);
+            ReferenceableAxis<Double> yAxis = coarsenAxis(grid.getYAxis(), factor, false);
+            if (xAxis instanceof RegularAxis && yAxis instanceof RegularAxis) {
+                grids[i] = new RegularGridImpl((RegularAxis) xAxis, (RegularAxis) yAxis,
+                        grid.getCoordinateReferenceSystem());
+            } else {
+                grids[i] = new RectilinearGridImpl(xAxis, yAxis,
+                        grid.getCoordinateReferenceSystem());
+            }
+            files[i] = new File(directory, "level-" + (i + 1) + ".ovr");
+        }
+        for (int i = 0; i < N_LOCKS; i++) {
+            buildLocks[i] = new Object();
+        }
+    }
+
+    /*
+     * Creates an axis whose cells each cover factor cells of the given axis
+     */
+    private static ReferenceableAxis<Double> coarsenAxis(ReferenceableAxis<Double> axis,
+            int factor, boolean isLongitude) {
+        int size = (axis.size() + factor - 1) / factor;
+        if (axis instanceof RegularAxis) {
+            double spacing = ((RegularAxis) axis).getCoordinateSpacing();
+            return new RegularAxisImpl(axis.getName(), axis.getCoordinateValue(0)
+                    + (factor - 1) * spacing / 2.0, spacing * factor, size, isLongitude);
+        } else {
+            List<Double> values = new ArrayList<Double>();
+            for (int i = 0; i < size; i++) {
+                int start = i * factor;
+                int end = Math.min(axis.size(), start + factor) - 1;
+                values.add((axis.getCoordinateValue(start) + axis.getCoordinateValue(end)) / 2.0);
+            }
+            return new ReferenceableAxisImpl(axis.getName(), values, isLongitude);
+        }
+    }
+
+    /**
+     * @return The number of overview levels, excluding the original data
+     */
+    public int getNumLevels() {
+        return grids.length;
+    }
+
+    /**
+     * @param level
+     *            The level, from 1 to {@link #getNumLevels()}
+     * @return The grid of the given level
+     */
+    public RectilinearGrid getGrid(int level) {
+        return grids[level - 1];
+    }
+
+    /**
+     * Chooses the coarsest level which still has at least one cell per target
+     * grid cell along each axis
+     * 
+     * @param sourceXCells
+     *            The number of cells of the original grid between the first
+     *            and last target grid cells (inclusive) in the x-direction
+     * @param sourceYCells
+     *            The number of cells of the original grid between the first
+     *            and last target grid cells (inclusive) in the y-direction
+     * @param targetXSize
+     *            The x-size of the target grid
+     * @param targetYSize
+     *            The y-size of the target grid
+     * @return The level to use. This will be 0 if the original data should be
+     *         used
+     */
+    public int chooseLevel(int sourceXCells, int sourceYCells, int targetXSize, int targetYSize) {
+        int level = 0;
+        while (level < grids.length
+                && hasResolution(sourceXCells, targetXSize, 1 << (level + 1))
+                && hasResolution(sourceYCells, targetYSize, 1 << (level + 1))) {
+            level++;
+        }
+        return level;
+    }
+
+    /*
+     * Whether there are at least factor source cells per target cell. The
+     * source cells span the centres of the first and last target cells, i.e.
+     * (targetSize - 1) target cells.
+     */
+    private static boolean hasResolution(int sourceCells, int targetSize, int factor) {
+        if (targetSize <= 1) {
+            return sourceCells >= factor;
+        }
+        return sourceCells - 1L >= (long) factor * (targetSize - 1);
+    }
+
+    /**
+     * @return Whether the overviews for the given slice have been built
+     */
+    public boolean isBuilt(int tIndex, int zIndex) {
+        synchronized (builtSlices) {
+            return builtSlices.get(tIndex * nZs + zIndex);
+        }
+    }
+
+    /**
+     * Builds all levels of the overviews of a slice, if they have not already
+     * been built
+     * 
+     * @param tIndex
+     *            The time index of the slice
+     * @param zIndex
+     *            The vertical index of the slice
+     * @param dataSource
+     *            The {@link GridDataSource} to read the original data from
+     * @throws IOException
+     *             If there is a problem reading or writing data
+     * @throws DataReadingException
+     *             If there is a problem reading data
+     */
+    public void build(int tIndex, int zIndex, GridDataSource dataSource) throws IOException,
+            DataReadingException {
+        int slice = tIndex * nZs + zIndex;
+        synchronized (buildLocks[slice % N_LOCKS]) {
+            if (isBuilt(tIndex, zIndex)) {
+                return;
+            }
+            /*
+             * Create the first level, reading the original data in bands of an
+             * even number of rows
+             */
+            int levelXSize = (xSize + 1) / 2;
+            int levelYSize = (ySize + 1) / 2;
+            float[] level = new float[levelXSize * levelYSize];
+            int bandRows = (int) Math.max(2L, Math.min(ySize, MAX_READ_SIZE / xSize) & ~1L);
+            for (int yStart = 0; yStart < ySize; yStart += bandRows) {
+                int yEnd = Math.min(ySize, yStart + bandRows) - 1;
+                int nRows = yEnd - yStart + 1;
+                Array4D<Number> data = dataSource.read(varId, tIndex, tIndex, zIndex, zIndex,
+                        yStart, yEnd, 0, xSize - 1);
+                /* Copy the band in one go, rather than boxing each value */
+                float[] band = new float[nRows * xSize];
+                data.copyInto(band);
+                float[] averaged = average(band, xSize, nRows);
+                System.arraycopy(averaged, 0, level, (yStart / 2) * levelXSize, averaged.length);
+            }
+            write(1, slice, level);
+
+            /*
+             * Now create each subsequent level from the previous one
+             */
+            for (int l = 2; l <= grids.length; l++) {
+                level = average(level, levelXSize, levelYSize);
+                levelXSize = (levelXSize + 1) / 2;
+                levelYSize = (levelYSize + 1) / 2;
+                write(l, slice, level);
+            }
+
+            synchronized (builtSlices) {
+                builtSlices.set(slice);
+            }
+        }
+        writeSlices();
+    }
+
+    /**
+     * Copies the slices of another {@link OverviewPyramid} of the same
+     * variable (e.g. one generated from a previous version of the data) which
+     * have not been built here. Only slices at the same time and elevation
+     * which are {@link SourceVersion#isValid(long, long) valid} in the
+     * version of the data which this pyramid is generated from are copied.
+     * This is much cheaper than building them from the original data.
+     * 
+     * @param previous
+     *            The {@link OverviewPyramid} to copy slices from. If this is
+     *            on a grid of a different size, nothing is copied.
+     * @param version
+     *            The {@link SourceVersion} of the data which this pyramid is
+     *            generated from
+     * @return The number of slices copied
+     * @throws IOException
+     *             If there is a problem reading or writing the overviews
+     */
+    public int carryOver(OverviewPyramid previous, SourceVersion version) throws IOException {
+        if (version.getHash() != sourceHash || previous.xSize != xSize
+                || previous.ySize != ySize || previous.nZs != nZs) {
+            return 0;
+        }
+        Map<Long, Integer> previousTIndices = new HashMap<Long, Integer>();
+        for (int t = 0; t < previous.times.length; t++) {
+            previousTIndices.put(previous.times[t], t);
+        }
+        int nCopied = 0;
+        try {
+            for (int t = 0; t < times.length; t++) {
+                Integer previousT = previousTIndices.get(times[t]);
+                if (previousT == null || !version.isValid(previous.sourceHash, times[t])) {
+                    continue;
+                }
+                for (int z = 0; z < nZs; z++) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return nCopied;
+                    }
+                    if (previous.isBuilt(previousT, z)
+                            && copySlice(previous, previousT * nZs + z, t * nZs + z)) {
+                        nCopied++;
+                    }
+                }
+            }
+        } finally {
+            if (nCopied > 0) {
+                writeSlices();
+            }
+        }
+        return nCopied;
+    }
+
+    /*
+     * Copies all levels of a slice from another pyramid on the same grid,
+     * unless the slice has already been built here
+     */
+    private boolean copySlice(OverviewPyramid previous, int fromSlice, int toSlice)
+            throws IOException {
+        synchronized (buildLocks[toSlice % N_LOCKS]) {
+            if (isBuilt(toSlice / nZs, toSlice % nZs)) {
+                return false;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            for (int l = 1; l <= grids.length; l++) {
+                long sliceBytes = (long) grids[l - 1].getXSize() * grids[l - 1].getYSize() * 4L;
+                FileChannel from = previous.getChannel(l);
+                FileChannel to = getChannel(l);
+                long fromPosition = fromSlice * sliceBytes;
+                long toPosition = toSlice * sliceBytes;
+                long remaining = sliceBytes;
+                while (remaining > 0) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                    readFully(from, buffer, fromPosition);
+                    buffer.flip();
+                    int n = buffer.remaining();
+                    while (buffer.hasRemaining()) {
+                        toPosition += to.write(buffer, toPosition);
+                    }
+                    fromPosition += n;
+                    remaining -= n;
+                }
+            }
+            synchronized (builtSlices) {
+                builtSlices.set(toSlice);
+            }
+            return true;
+        }
+    }
+
+    /*
+     * Averages 2x2 blocks of values, ignoring missing values
+     */
+    private static float[] average(float[] values, int xSize, int ySize) {
+        int outXSize = (xSize + 1) / 2;
+        int outYSize = (ySize + 1) / 2;
+        float[] ret = new float[outXSize * outYSize];
+        for (int j = 0; j < outYSize; j++) {
+            for (int i = 0; i < outXSize; i++) {
+                float sum = 0f;
+                int count = 0;
+                for (int y = 2 * j; y < Math.min(ySize, 2 * j + 2); y++) {
+                    for (int x = 2 * i; x < Math.min(xSize, 2 * i + 2); x++) {
+                        float value = values[y * xSize + x];
+                        if (!Float.isNaN(value)) {
+                            sum += value;
+                            count++;
+                        }
+                    }
+                }
+                ret[j * outXSize + i] = count == 0 ? Float.NaN : sum / count;
+            }
+        }
+        return ret;
+    }
+
+    private void write(int level, int slice, float[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        buffer.asFloatBuffer().put(values);
+        long position = (long) slice * values.length * 4L;
+        FileChannel channel = getChannel(level);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of overview file");
+            }
+            position += read;
+        }
+    }
+
+    /*
+     * Records which slices have been built, once their data is on disk
+     */
+    private void writeSlices() throws IOException {
+        synchronized (slicesFileLock) {
+            final BitSet built;
+            synchronized (builtSlices) {
+                built = (BitSet) builtSlices.clone();
+            }
+            synchronized (this) {
+                for (FileChannel channel : channels) {
+                    if (channel != null) {
+                        channel.force(false);
+                    }
+                }
+            }
+            AtomicFile.write(new File(directory, SLICES_FILENAME), new AtomicFile.Writer() {
+                @Override
+                public void writeTo(OutputStream os) throws IOException {
+                    DataOutputStream out = new DataOutputStream(os);
+                    out.writeInt(MAGIC);
+                    out.writeInt(xSize);
+                    out.writeInt(ySize);
+                    out.writeInt(nZs);
+                    out.writeLong(sourceHash);
+                    out.writeInt(times.length);
+                    for (long time : times) {
+                        out.writeLong(time);
+                    }
+                    long[] words = built.toLongArray();
+                    out.writeInt(words.length);
+                    for (long word : words) {
+                        out.writeLong(word);
+                    }
+                    out.flush();
+                }
+            });
+        }
+    }
+
+    /*
+     * Reads the record of built slices in a directory, or returns null if
+     * there is none
+     */
+    private static SliceRecord readSlices(File directory) {
+        File file = new File(directory, SLICES_FILENAME);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                /* An old format.  The overviews will be rebuilt */
+                return null;
+            }
+            SliceRecord record = new SliceRecord();
+            record.xSize = in.readInt();
+            record.ySize = in.readInt();
+            record.nZs = in.readInt();
+            record.sourceHash = in.readLong();
+            record.times = new long[in.readInt()];
+            for (int i = 0; i < record.times.length; i++) {
+                record.times[i] = in.readLong();
+            }
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            record.builtSlices = BitSet.valueOf(words);
+            return record;
+        } catch (IOException e) {
+            /*
+             * Not a big problem - the overviews will be rebuilt
+             */
+            log.warn("Problem reading overview slices " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.error("Problem closing overview slices file", e);
+                }
+            }
+        }
+    }
+
+    private synchronized FileChannel getChannel(int level) throws IOException {
+        if (channels[level - 1] == null) {
+            files[level - 1].getParentFile().mkdirs();
+            @SuppressWarnings("resource")
+            RandomAccessFile raf = new RandomAccessFile(files[level - 1], "rw");
+            channels[level - 1] = raf.getChannel();
+        }
+        return channels[level - 1];
+    }
+
+    /**
+     * Gets a {@link GridDataSource} which reads data from a level of this
+     * {@link OverviewPyramid}. Only slices which have been built can be read.
+     * 
+     * @param level
+     *            The level, from 1 to {@link #getNumLevels()}
+     * @return A {@link GridDataSource} for the level
+     */
+    public GridDataSource getDataSource(final int level) {
+        final RectilinearGrid grid = grids[level - 1];
+        return new GridDataSource() {
+            @Override
+            public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin,
+                    int zmax, int ymin, int ymax, int xmin, int xmax) throws IOException,
+                    DataReadingException {
+                if (!varId.equals(variableId)) {
+                    throw new DataReadingException("These overviews do not contain "
+                            + variableId);
+                }
+                FileChannel channel = getChannel(level);
+                int levelXSize = grid.getXSize();
+                long sliceSize = (long) levelXSize * grid.getYSize();
+                int nX = xmax - xmin + 1;
+                FloatArray4D ret = new FloatArray4D(tmax - tmin + 1, zmax - zmin + 1, ymax
+                        - ymin + 1, nX);
+                ByteBuffer buffer = ByteBuffer.allocate(nX * 4);
+                float[] row = new float[nX];
+                for (int t = tmin; t <= tmax; t++) {
+                    for (int z = zmin; z <= zmax; z++) {
+                        if (!isBuilt(t, z)) {
+                            throw new DataReadingException("Overviews have not been built for "
+                                    + variableId + " at t=" + t + ", z=" + z);
+                        }
+                        long slice = (long) t * nZs + z;
+                        for (int y = ymin; y <= ymax; y++) {
+                            buffer.clear();
+                            readFully(channel, buffer,
+                                    ((slice * sliceSize) + (long) y * levelXSize + xmin) * 4L);
+                            buffer.flip();
+                            buffer.asFloatBuffer().get(row);
+                            for (int x = 0; x < nX; x++) {
+                                ret.setFloat(t - tmin, z - zmin, y - ymin, x, row[x]);
+                            }
+                        }
+                    }
+                }
+                return ret;
+            }
+
+            @Override
+            public void close() {
+                /*
+                 * The files are shared, so are left open
+                 */
+            }
+        };
+    }
+
+    /**
+     * Closes the files of this {@link OverviewPyramid} and deletes them
+     */
+    public synchronized void delete() {
+        synchronized (builtSlices) {
+            builtSlices.clear();
+        }
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] != null) {
+                try {
+                    channels[i].close();
+                } catch (IOException e) {
+                    /* Ignore - we are deleting the file anyway */
+                }
+                channels[i] = null;
+            }
+            files[i].delete();
+        }
+        new File(directory, SLICES_FILENAME).delete();
+    }
+
+    /*
+     * The contents of the file of built slices
+     */
+    private static final class SliceRecord {
+        private int xSize;
+        private int ySize;
+        private int nZs;
+        private long sourceHash;
+        private long[] times;
+        private BitSet builtSlices;
+
+        private boolean matches(OverviewPyramid pyramid) {
+            return xSize == pyramid.xSize && ySize == pyramid.ySize && nZs == pyramid.nZs;
+        }
+    }
+}
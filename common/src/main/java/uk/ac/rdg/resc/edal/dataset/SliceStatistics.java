@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Summary statistics of the data in a horizontal slice of a variable (or a
+ * part of one): the minimum, maximum and mean of the valid values, how many
+ * valid values there are, and a coarse histogram of their distribution.
+ * 
+ * @author agent
+ */
+public final class SliceStatistics implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** The number of bins in histograms */
+    public static final int N_HISTOGRAM_BINS = 32;
+
+    private final float min;
+    private final float max;
+    private final double mean;
+    private final long count;
+    /*
+     * Counts of values in N_HISTOGRAM_BINS equal bins between min and max, or
+     * null if no histogram is available
+     */
+    private final int[] histogram;
+
+    SliceStatistics(float min, float max, double mean, long count, int[] histogram) {
+        this.min = min;
+        this.max = max;
+        this.mean = mean;
+        this.count = count;
+        this.histogram = histogram;
+    }
+
+    /**
+     * Calculates the statistics of a set of values
+     * 
+     * @param values
+     *            An array containing values. Missing values are represented
+     *            by {@link Float#NaN}
+     * @param withHistogram
+     *            Whether to calculate the histogram of the values
+     * @return The {@link SliceStatistics} of the values
+     */
+    public static SliceStatistics fromValues(float[] values, boolean withHistogram) {
+        float min = Float.NaN;
+        float max = Float.NaN;
+        double sum = 0.0;
+        long count = 0;
+        for (float value : values) {
+            if (!Float.isNaN(value)) {
+                if (count == 0) {
+                    min = value;
+                    max = value;
+                } else if (value < min) {
+                    min = value;
+                } else if (value > max) {
+                    max = value;
+                }
+                sum += value;
+                count++;
+            }
+        }
+        int[] histogram = null;
+        if (withHistogram) {
+            histogram = new int[N_HISTOGRAM_BINS];
+            if (count > 0) {
+                double binWidth = ((double) max - min) / N_HISTOGRAM_BINS;
+                for (float value : values) {
+                    if (!Float.isNaN(value)) {
+                        int bin = binWidth == 0.0 ? 0 : (int) ((value - min) / binWidth);
+                        histogram[Math.min(bin, N_HISTOGRAM_BINS - 1)]++;
+                    }
+                }
+            }
+        }
+        return new SliceStatistics(min, max, count == 0 ? Double.NaN : sum / count, count,
+                histogram);
+    }
+
+    /**
+     * Combines the statistics of several disjoint sets of values. The
+     * resulting {@link SliceStatistics} has no histogram, since histograms
+     * with different ranges cannot be combined exactly.
+     * 
+     * @param statistics
+     *            The {@link SliceStatistics} to combine
+     * @return The statistics of all of the values
+     */
+    public static SliceStatistics combine(Collection<SliceStatistics> statistics) {
+        float min = Float.NaN;
+        float max = Float.NaN;
+        double sum = 0.0;
+        long count = 0;
+        for (SliceStatistics stats : statistics) {
+            if (stats.count > 0) {
+                if (count == 0) {
+                    min = stats.min;
+                    max = stats.max;
+                } else {
+                    min = Math.min(min, stats.min);
+                    max = Math.max(max, stats.max);
+                }
+                sum += stats.mean * stats.count;
+                count += stats.count;
+            }
+        }
+        return new SliceStatistics(min, max, count == 0 ? Double.NaN : sum / count, count, null);
+    }
+
+    /**
+     * @return The smallest valid value, or {@link Float#NaN} if there are no
+     *         valid values
+     */
+    public float getMin() {
+        return min;
+    }
+
+    /**
+     * @return The largest valid value, or {@link Float#NaN} if there are no
+     *         valid values
+     */
+    public float getMax() {
+        return max;
+    }
+
+    /**
+     * @return The mean of the valid values, or {@link Double#NaN} if there
+     *         are no valid values
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return The number of valid (i.e. non-missing) values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The number of values in each of {@link #N_HISTOGRAM_BINS}
+     *         equal-width bins between {@link #getMin()} and
+     *         {@link #getMax()}, or <code>null</code> if no histogram is
+     *         available
+     */
+    public int[] getHistogram() {
+        return histogram == null ? null : histogram.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "min: " + min + ", max: " + max + ", mean: " + mean + ", count: " + count
+                + (histogram == null ? "" : ", histogram: " + Arrays.toString(histogram));
+    }
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.joda.time.DateTime;
+
+import uk.ac.rdg.resc.edal.domain.Extent;
+
+/**
+ * Identifies the version of the underlying data of a {@link GriddedDataset},
+ * so that data which is copied or indexed from it (e.g. by
+ * {@link TimeMajorStore}s and {@link StatisticsIndex}es) is not used once the
+ * underlying data has changed.
+ * 
+ * A version can also record which of its times have changed since the
+ * previous version (e.g. when a file has been added to or modified in a
+ * multi-file aggregation), so that data copied from the previous version at
+ * other times can continue to be used.
+ * 
+ * @author agent
+ */
+public final class SourceVersion {
+    /**
+     * The version of data which cannot be identified (e.g. because it is
+     * remote). Copies of such data are only checked against the time axes of
+     * the dataset.
+     */
+    public static final SourceVersion UNKNOWN = new SourceVersion(null);
+
+    private final long hash;
+    private final Long previousHash;
+    private final List<Extent<DateTime>> changedTimes;
+
+    /**
+     * Creates a version which is unrelated to any previous version
+     * 
+     * @param id
+     *            A string which identifies the version of the data, e.g. its
+     *            location along with the sizes and modification times of its
+     *            files. If <code>null</code>, the version is unknown.
+     */
+    public SourceVersion(String id) {
+        this.hash = hash(id);
+        this.previousHash = null;
+        this.changedTimes = null;
+    }
+
+    /**
+     * Creates a version which has only changed from a previous version at the
+     * given times
+     * 
+     * @param id
+     *            A string which identifies the version of the data
+     * @param previousId
+     *            The string which identifies the previous version
+     * @param changedTimes
+     *            The ranges of times at which the data may differ from the
+     *            previous version. Data at other times is the same in both
+     *            versions. If this is not empty, data which does not vary with
+     *            time is treated as changed.
+     */
+    public SourceVersion(String id, String previousId, List<Extent<DateTime>> changedTimes) {
+        this.hash = hash(id);
+        this.previousHash = hash(previousId);
+        this.changedTimes = Collections.unmodifiableList(changedTimes);
+    }
+
+    /**
+     * @return A hash of this version, which can be stored alongside data
+     *         copied from it and passed to {@link #isValid(long, long)}
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * Tests whether data copied from the version with the given hash is the
+     * same as the data in this version at a particular time
+     * 
+     * @param storedHash
+     *            The {@link #getHash() hash} of the version which the data was
+     *            copied from
+     * @param time
+     *            The time of the data, in milliseconds since the epoch, or
+     *            {@link Long#MIN_VALUE} if the data does not vary with time
+     * @return <code>true</code> if the data is the same in this version
+     */
+    public boolean isValid(long storedHash, long time) {
+        if (storedHash == hash) {
+            return true;
+        }
+        if (previousHash == null || storedHash != previousHash) {
+            return false;
+        }
+        if (time == Long.MIN_VALUE) {
+            return changedTimes.isEmpty();
+        }
+        for (Extent<DateTime> changed : changedTimes) {
+            if (time >= changed.getLow().getMillis() && time <= changed.getHigh().getMillis()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash(String id) {
+        if (id == null) {
+            return 0L;
+        }
+        long hash = 1125899906842597L;
+        for (int i = 0; i < id.length(); i++) {
+            hash = 31L * hash + id.charAt(i);
+        }
+        return hash;
+    }
+}
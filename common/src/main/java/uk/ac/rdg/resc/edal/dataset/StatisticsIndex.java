@@ -0,0 +1,441 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.opengis.metadata.extent.GeographicBoundingBox;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.util.AtomicFile;
+
+/**
+ * A persistent index of the {@link SliceStatistics} of each horizontal slice
+ * (i.e. each time and elevation) of the variables in a dataset. Statistics
+ * are also stored for a number of spatial blocks within each slice, so that
+ * the range of data within a particular area can be estimated.
+ * 
+ * Slices are identified by their time and elevation values rather than their
+ * indices, so that the index remains valid when new times are added to a
+ * dataset. If the size of a variable's horizontal grid changes, all of its
+ * statistics are discarded. The index also records the {@link SourceVersion}
+ * of the data, and when this changes the statistics of any slices which may
+ * have changed are discarded.
+ * 
+ * Indices are shared: {@link #open(File)} returns the same object for the same
+ * file, so that an index can be used by successive versions of a dataset
+ * whilst it is being built.
+ * 
+ * @author agent
+ */
+public class StatisticsIndex {
+    private static final Logger log = LoggerFactory.getLogger(StatisticsIndex.class);
+
+    /* Increment this if the format of the serialised index changes */
+    private static final int INDEX_VERSION = 2;
+
+    /* All open indices, keyed on canonical path */
+    private static final Map<String, StatisticsIndex> openIndices = new HashMap<String, StatisticsIndex>();
+
+    private final File indexFile;
+    private Map<String, VariableEntry> variables = new HashMap<String, VariableEntry>();
+    /* The hash of the SourceVersion which the statistics were calculated from */
+    private long sourceHash = SourceVersion.UNKNOWN.getHash();
+    private boolean modified = false;
+
+    /**
+     * Opens a {@link StatisticsIndex}, reading any existing index from disk
+     * 
+     * @param indexFile
+     *            The file in which to store the index
+     * @return The {@link StatisticsIndex}
+     * @throws IOException
+     *             If the path of the index file cannot be resolved
+     */
+    public static StatisticsIndex open(File indexFile) throws IOException {
+        String key = indexFile.getCanonicalPath();
+        synchronized (openIndices) {
+            StatisticsIndex index = openIndices.get(key);
+            if (index == null) {
+                index = new StatisticsIndex(indexFile);
+                openIndices.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    private StatisticsIndex(File indexFile) {
+        this.indexFile = indexFile;
+        readIndex();
+    }
+
+    /**
+     * Sets the version of the data which is being indexed. If this is
+     * different to the version which the existing statistics were calculated
+     * from, the statistics of all slices which are not
+     * {@link SourceVersion#isValid(long, long) valid} in the new version are
+     * discarded.
+     * 
+     * @param version
+     *            The {@link SourceVersion} of the data
+     */
+    public synchronized void setSourceVersion(SourceVersion version) {
+        if (version.getHash() == sourceHash) {
+            return;
+        }
+        int nDiscarded = 0;
+        for (VariableEntry variable : variables.values()) {
+            Iterator<SliceKey> iterator = variable.slices.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (!version.isValid(sourceHash, iterator.next().time)) {
+                    iterator.remove();
+                    nDiscarded++;
+                }
+            }
+        }
+        if (nDiscarded > 0) {
+            log.debug("Discarded the statistics of " + nDiscarded + " changed slices from "
+                    + indexFile);
+        }
+        sourceHash = version.getHash();
+        modified = true;
+    }
+
+    /**
+     * Gets the statistics of a slice of a variable
+     * 
+     * @param version
+     *            The version of the data being read. Statistics are only
+     *            returned if they are valid for this version.
+     * @param varId
+     *            The ID of the variable
+     * @param time
+     *            The time of the slice, in milliseconds since the epoch, or
+     *            {@link Long#MIN_VALUE} if the variable has no time axis
+     * @param z
+     *            The elevation of the slice, or {@link Double#NaN} if the
+     *            variable has no vertical axis
+     * @param bbox
+     *            The area of interest, or <code>null</code> for the whole
+     *            slice. Statistics are stored for blocks of the slice, so for
+     *            an area smaller than the slice they can only be given if the
+     *            area is made up of whole blocks.
+     * @return The {@link SliceStatistics}, or <code>null</code> if they are
+     *         not in this index, or the area of interest only covers part of
+     *         a block
+     */
+    public synchronized SliceStatistics getStatistics(SourceVersion version, String varId,
+            long time, double z, GeographicBoundingBox bbox) {
+        VariableEntry variable = variables.get(varId);
+        if (variable == null || !version.isValid(sourceHash, time)) {
+            return null;
+        }
+        SliceEntry slice = variable.slices.get(new SliceKey(time, z));
+        if (slice == null) {
+            return null;
+        }
+        if (bbox == null) {
+            return slice.total;
+        }
+        List<SliceStatistics> blocks = new ArrayList<SliceStatistics>();
+        boolean allBlocks = true;
+        for (int i = 0; i < slice.blocks.length; i++) {
+            if (intersects(variable.blockExtents[i], bbox)) {
+                if (!contains(bbox, variable.blockExtents[i])) {
+                    /*
+                     * The statistics of this block would include values from
+                     * outside the area
+                     */
+                    return null;
+                }
+                blocks.add(slice.blocks[i]);
+            } else {
+                allBlocks = false;
+            }
+        }
+        if (allBlocks) {
+            /* This includes the histogram */
+            return slice.total;
+        }
+        return SliceStatistics.combine(blocks);
+    }
+
+    /**
+     * @return Whether this index contains the statistics of the given slice
+     */
+    public synchronized boolean contains(String varId, long time, double z) {
+        VariableEntry variable = variables.get(varId);
+        return variable != null && variable.slices.containsKey(new SliceKey(time, z));
+    }
+
+    /**
+     * @return Whether this index has been set up (with
+     *         {@link #setGrid(String, int, int, double[][])}) for the given
+     *         variable on a grid of the given size
+     */
+    public synchronized boolean hasGrid(String varId, int xSize, int ySize) {
+        VariableEntry variable = variables.get(varId);
+        return variable != null && variable.xSize == xSize && variable.ySize == ySize;
+    }
+
+    /**
+     * Sets the size of the grid of a variable, and the extents of the blocks
+     * for which statistics are stored. If this is different to the existing
+     * grid, all statistics for the variable are discarded.
+     * 
+     * @param varId
+     *            The ID of the variable
+     * @param xSize
+     *            The x-size of the variable's grid
+     * @param ySize
+     *            The y-size of the variable's grid
+     * @param blockExtents
+     *            The geographic extents of the blocks of the grid, as
+     *            [west, south, east, north]. These must be in the same order
+     *            as the block statistics passed to
+     *            {@link #put(SourceVersion, String, long, double,
+     *            SliceStatistics, SliceStatistics[])}
+     */
+    public synchronized void setGrid(String varId, int xSize, int ySize, double[][] blockExtents) {
+        if (!hasGrid(varId, xSize, ySize)) {
+            variables.put(varId, new VariableEntry(xSize, ySize, blockExtents));
+            modified = true;
+        }
+    }
+
+    /**
+     * Adds the statistics of a slice to this index. Statistics calculated from
+     * a version of the data other than the one last passed to
+     * {@link #setSourceVersion(SourceVersion)} are ignored, since they may be
+     * out-of-date.
+     * 
+     * @param version
+     *            The version of the data which the statistics were calculated
+     *            from
+     * @param varId
+     *            The ID of the variable
+     * @param time
+     *            The time of the slice, in milliseconds since the epoch, or
+     *            {@link Long#MIN_VALUE} if the variable has no time axis
+     * @param z
+     *            The elevation of the slice, or {@link Double#NaN} if the
+     *            variable has no vertical axis
+     * @param total
+     *            The statistics of the whole slice
+     * @param blocks
+     *            The statistics of each block of the slice
+     */
+    public synchronized void put(SourceVersion version, String varId, long time, double z,
+            SliceStatistics total, SliceStatistics[] blocks) {
+        if (version.getHash() != sourceHash) {
+            return;
+        }
+        VariableEntry variable = variables.get(varId);
+        if (variable == null) {
+            throw new IllegalStateException("The grid of " + varId + " has not been set");
+        }
+        if (blocks.length != variable.blockExtents.length) {
+            throw new IllegalArgumentException("Expected statistics for "
+                    + variable.blockExtents.length + " blocks");
+        }
+        variable.slices.put(new SliceKey(time, z), new SliceEntry(total, blocks));
+        modified = true;
+    }
+
+    /**
+     * Writes this index to disk, if it has changed since it was last written
+     */
+    public synchronized void write() {
+        if (!modified) {
+            return;
+        }
+        try {
+            /* A partially written index is never read */
+            AtomicFile.write(indexFile, new AtomicFile.Writer() {
+                @Override
+                public void writeTo(OutputStream os) throws IOException {
+                    ObjectOutputStream out = new ObjectOutputStream(os);
+                    out.writeInt(INDEX_VERSION);
+                    out.writeLong(sourceHash);
+                    out.writeObject(variables);
+                    out.close();
+                }
+            });
+            modified = false;
+        } catch (IOException e) {
+            log.warn("Problem writing statistics index to " + indexFile, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readIndex() {
+        if (!indexFile.exists()) {
+            return;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != INDEX_VERSION) {
+                /* An old format.  We just rebuild the index */
+                return;
+            }
+            sourceHash = in.readLong();
+            variables = (Map<String, VariableEntry>) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            /*
+             * Not a big problem - we will just recreate the index.
+             */
+            log.warn("Problem reading statistics index " + indexFile, e);
+            variables = new HashMap<String, VariableEntry>();
+            sourceHash = SourceVersion.UNKNOWN.getHash();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.error("Problem closing statistics index file", e);
+                }
+            }
+        }
+    }
+
+    /*
+     * Tests whether a block extent overlaps a bounding box, allowing for the
+     * two being expressed in different longitude ranges. Blocks which only
+     * touch the edge of the bounding box do not overlap it.
+     */
+    private static boolean intersects(double[] extent, GeographicBoundingBox bbox) {
+        if (extent[1] >= bbox.getNorthBoundLatitude()
+                || extent[3] <= bbox.getSouthBoundLatitude()) {
+            return false;
+        }
+        for (double shift = -360.0; shift <= 360.0; shift += 360.0) {
+            if (extent[0] + shift < bbox.getEastBoundLongitude()
+                    && extent[2] + shift > bbox.getWestBoundLongitude()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Tests whether a block extent lies entirely within a bounding box,
+     * allowing for the two being expressed in different longitude ranges
+     */
+    private static boolean contains(GeographicBoundingBox bbox, double[] extent) {
+        if (extent[1] < bbox.getSouthBoundLatitude() || extent[3] > bbox.getNorthBoundLatitude()) {
+            return false;
+        }
+        for (double shift = -360.0; shift <= 360.0; shift += 360.0) {
+            if (extent[0] + shift >= bbox.getWestBoundLongitude()
+                    && extent[2] + shift <= bbox.getEastBoundLongitude()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class VariableEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int xSize;
+        private final int ySize;
+        private final double[][] blockExtents;
+        private final Map<SliceKey, SliceEntry> slices = new HashMap<SliceKey, SliceEntry>();
+
+        public VariableEntry(int xSize, int ySize, double[][] blockExtents) {
+            this.xSize = xSize;
+            this.ySize = ySize;
+            this.blockExtents = blockExtents;
+        }
+    }
+
+    private static final class SliceEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final SliceStatistics total;
+        private final SliceStatistics[] blocks;
+
+        public SliceEntry(SliceStatistics total, SliceStatistics[] blocks) {
+            this.total = total;
+            this.blocks = blocks;
+        }
+    }
+
+    private static final class SliceKey implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long time;
+        private final double z;
+
+        public SliceKey(long time, double z) {
+            this.time = time;
+            this.z = z;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + (int) (time ^ (time >>> 32));
+            long temp = Double.doubleToLongBits(z);
+            result = prime * result + (int) (temp ^ (temp >>> 32));
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            SliceKey other = (SliceKey) obj;
+            if (time != other.time)
+                return false;
+            if (Double.doubleToLongBits(z) != Double.doubleToLongBits(other.z))
+                return false;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,516 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+/**
+ * A copy of the data of a single variable, stored on disk with time as the
+ * fastest-varying axis. Gridded data is usually stored (and chunked) by time
+ * slice, so reading a long timeseries at a single point touches every time
+ * slice. From this store, the same timeseries can be read with a few
+ * contiguous reads.
+ * 
+ * The data is stored in blocks of a fixed number of time steps. Within each
+ * block, the values for each grid point are contiguous. This means that new
+ * time steps can be appended by
+ * {@link #update(GridDataSource, String, List)} without rewriting the existing
+ * data.
+ * 
+ * The header of the file records the time steps which have been stored (as a
+ * hash) and the {@link SourceVersion} of the data they were read from, so that
+ * when a store is reopened, data can only be used if it is consistent with the
+ * current time axis of the variable and has not changed since it was stored.
+ * If the time axis has changed, the store is rebuilt. If the data has changed,
+ * the store is rebuilt from the first time step which has changed.
+ * 
+ * Stores are shared: {@link #open(File, int, int, int)} returns the same
+ * object for the same file, so that a store can be used by successive
+ * versions of a dataset (e.g. as the dataset is refreshed) whilst being
+ * updated. Since these versions may have different time axes and data, each
+ * read supplies the time axis and source version of the reader, and only
+ * returns data if the stored times and version match them.
+ * 
+ * @author agent
+ */
+public class TimeMajorStore {
+    private static final Logger log = LoggerFactory.getLogger(TimeMajorStore.class);
+
+    /* Identifies a time-major store file, and its version */
+    private static final int MAGIC = 0x544d5332;
+    private static final int HEADER_SIZE = 64;
+
+    /* The default number of time steps in each block */
+    private static final int DEFAULT_BLOCK_LENGTH = 256;
+    /* The default maximum number of values to read from the source at once */
+    private static final long DEFAULT_MAX_READ_SIZE = 4L * 1024L * 1024L;
+
+    /* All open stores, keyed on canonical path */
+    private static final Map<String, TimeMajorStore> openStores = new HashMap<String, TimeMajorStore>();
+
+    private final File file;
+    private final FileChannel channel;
+    private final int xSize;
+    private final int ySize;
+    private final int zSize;
+    private final int blockLength;
+    private final long maxReadSize;
+
+    /*
+     * Held for writing when the stored time steps change (other than by
+     * appending), so that reads never see a partially-cleared store
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /* The number of time steps which have been stored */
+    private volatile int nTimes;
+    /* The hash of the time steps which have been stored */
+    private long timesHash;
+    /* The hash of the SourceVersion which the data was read from */
+    private long sourceHash = SourceVersion.UNKNOWN.getHash();
+    /*
+     * The time steps which have been stored, in milliseconds. This is null
+     * until the stored times have been checked against a time axis.
+     */
+    private long[] storedTimes = null;
+    /* Whether this store has been replaced by another for the same file */
+    private boolean closed = false;
+
+    /**
+     * Opens a {@link TimeMajorStore}, creating it if it does not exist. If the
+     * file exists but does not match the given grid size, it is emptied.
+     * 
+     * @param file
+     *            The file in which to store data
+     * @param xSize
+     *            The size of the x-axis of the variable
+     * @param ySize
+     *            The size of the y-axis of the variable
+     * @param zSize
+     *            The size of the z-axis of the variable (1 if it has none)
+     * @return The {@link TimeMajorStore}
+     * @throws IOException
+     *             If the file cannot be opened
+     */
+    public static TimeMajorStore open(File file, int xSize, int ySize, int zSize)
+            throws IOException {
+        return open(file, xSize, ySize, zSize, DEFAULT_BLOCK_LENGTH, DEFAULT_MAX_READ_SIZE);
+    }
+
+    static TimeMajorStore open(File file, int xSize, int ySize, int zSize, int blockLength,
+            long maxReadSize) throws IOException {
+        String key = file.getCanonicalPath();
+        synchronized (openStores) {
+            TimeMajorStore store = openStores.get(key);
+            if (store == null || store.xSize != xSize || store.ySize != ySize
+                    || store.zSize != zSize) {
+                if (store != null) {
+                    store.close();
+                }
+                store = new TimeMajorStore(file, xSize, ySize, zSize, blockLength, maxReadSize);
+                openStores.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    private TimeMajorStore(File file, int xSize, int ySize, int zSize, int blockLength,
+            long maxReadSize) throws IOException {
+        this.file = file;
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.zSize = zSize;
+        this.maxReadSize = maxReadSize;
+
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        @SuppressWarnings("resource")
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+
+        /*
+         * Read the existing header, if there is one
+         */
+        int storedBlockLength = -1;
+        if (channel.size() >= HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(header, 0L);
+            header.flip();
+            if (header.getInt() == MAGIC && header.getInt() == xSize && header.getInt() == ySize
+                    && header.getInt() == zSize) {
+                storedBlockLength = header.getInt();
+                nTimes = header.getInt();
+                timesHash = header.getLong();
+                sourceHash = header.getLong();
+            }
+        }
+        if (storedBlockLength > 0) {
+            this.blockLength = storedBlockLength;
+        } else {
+            /*
+             * No valid existing data. Start again.
+             */
+            this.blockLength = blockLength;
+            clear();
+        }
+    }
+
+    /**
+     * @return The file backing this store
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The number of time steps which are available in this store. This
+     *         increases as the store is updated.
+     */
+    public int getNumTimes() {
+        return nTimes;
+    }
+
+    /**
+     * Brings this store up-to-date with the given time axis, reading any new
+     * or changed time steps from the given {@link GridDataSource}. If the
+     * time steps already stored do not match the start of the time axis, the
+     * store is rebuilt from scratch.
+     * 
+     * The new data becomes available a block at a time, so this can be called
+     * in the background whilst the store is being read.
+     * 
+     * @param dataSource
+     *            The {@link GridDataSource} to read data from
+     * @param varId
+     *            The ID of the variable to read
+     * @param times
+     *            The time axis values of the variable
+     * @param version
+     *            The version of the data in the {@link GridDataSource}
+     * @throws IOException
+     *             If there is a problem reading or writing data
+     * @throws DataReadingException
+     *             If there is a problem reading data
+     */
+    public synchronized void update(GridDataSource dataSource, String varId,
+            List<DateTime> times, SourceVersion version) throws IOException,
+            DataReadingException {
+        validate(times, version);
+
+        int nPointsPerLevel = xSize * ySize;
+        /*
+         * The number of rows to read at once, so that the number of values
+         * read at once doesn't exceed the limit
+         */
+        int rowsPerRead = (int) Math.max(1L,
+                Math.min(ySize, maxReadSize / ((long) blockLength * xSize)));
+
+        while (nTimes < times.size()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            /*
+             * Fill up the current block
+             */
+            int block = nTimes / blockLength;
+            int blockStart = block * blockLength;
+            int tStart = nTimes;
+            int tEnd = Math.min(times.size(), blockStart + blockLength) - 1;
+            int nNewTimes = tEnd - tStart + 1;
+
+            for (int z = 0; z < zSize; z++) {
+                for (int yStart = 0; yStart < ySize; yStart += rowsPerRead) {
+                    int yEnd = Math.min(ySize, yStart + rowsPerRead) - 1;
+                    int nPoints = (yEnd - yStart + 1) * xSize;
+                    long offset = getOffset(block, (long) z * nPointsPerLevel + (long) yStart
+                            * xSize);
+
+                    /*
+                     * Read the existing data for these points if we are
+                     * adding to a partially-filled block
+                     */
+                    ByteBuffer buffer = ByteBuffer.allocate(nPoints * blockLength * 4);
+                    if (tStart > blockStart) {
+                        readFully(buffer, offset);
+                        buffer.clear();
+                    }
+                    FloatBuffer values = buffer.asFloatBuffer();
+
+                    Array4D<Number> data = dataSource.read(varId, tStart, tEnd, z, z, yStart,
+                            yEnd, 0, xSize - 1);
+                    /*
+                     * Copy the data in one go, rather than boxing each value.
+                     * This is ordered by time then point, and needs
+                     * transposing.
+                     */
+                    float[] newValues = new float[nNewTimes * nPoints];
+                    data.copyInto(newValues);
+                    for (int point = 0; point < nPoints; point++) {
+                        for (int t = 0; t < nNewTimes; t++) {
+                            values.put(point * blockLength + tStart - blockStart + t,
+                                    newValues[t * nPoints + point]);
+                        }
+                    }
+                    writeFully(buffer, offset);
+                }
+            }
+            /*
+             * Now that the data is written, make it available
+             */
+            long[] newStoredTimes = getMillis(times, tEnd + 1);
+            lock.writeLock().lock();
+            try {
+                storedTimes = newStoredTimes;
+                timesHash = hashTimes(times, tEnd + 1);
+                nTimes = tEnd + 1;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            writeHeader();
+        }
+    }
+
+    /**
+     * Checks that the time steps in this store match the start of the given
+     * time axis, emptying the store if they do not, and discards the time
+     * steps from the first one whose data has changed in the given version.
+     * After this has been called, any data which can be read from this store
+     * is consistent with the given time axis and version.
+     * 
+     * @param times
+     *            The time axis values of the variable
+     * @param version
+     *            The version of the data
+     * @throws IOException
+     *             If the store needs emptying and this fails
+     */
+    public synchronized void validate(List<DateTime> times, SourceVersion version)
+            throws IOException {
+        if (nTimes > times.size() || hashTimes(times, nTimes) != timesHash) {
+            log.debug("Time axis has changed.  Rebuilding " + file);
+            clear();
+        }
+        /*
+         * If the store has just been opened, the stored times are the start of
+         * these
+         */
+        long[] validTimes = storedTimes == null ? getMillis(times, nTimes) : storedTimes;
+        int nValid = nTimes;
+        if (sourceHash != version.getHash()) {
+            nValid = 0;
+            while (nValid < nTimes && version.isValid(sourceHash, validTimes[nValid])) {
+                nValid++;
+            }
+            if (nValid < nTimes) {
+                log.debug("Data has changed from " + times.get(nValid) + ".  Rebuilding "
+                        + file + " from there.");
+            }
+        }
+        boolean changed = nValid < nTimes || sourceHash != version.getHash();
+        if (storedTimes != null && !changed) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            storedTimes = Arrays.copyOf(validTimes, nValid);
+            timesHash = hashTimes(times, nValid);
+            nTimes = nValid;
+            sourceHash = version.getHash();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (changed) {
+            writeHeader();
+        }
+    }
+
+    /**
+     * Reads a timeseries of data at a single point. This is safe to call
+     * whilst the store is being updated.
+     * 
+     * @param times
+     *            The time axis values of the variable being read. Data is only
+     *            returned if the requested times are stored and match these.
+     * @param version
+     *            The version of the data being read. Data is only returned if
+     *            it was stored from this version.
+     * @param z
+     *            The z-index of the point
+     * @param y
+     *            The y-index of the point
+     * @param x
+     *            The x-index of the point
+     * @param tMin
+     *            The first time index to read
+     * @param tMax
+     *            The last time index to read
+     * @return The values at the given point, with {@link Float#NaN} for
+     *         missing values, or <code>null</code> if this store does not
+     *         contain the requested times
+     * @throws IOException
+     *             If there is a problem reading the data
+     */
+    public float[] readTimeseries(List<DateTime> times, SourceVersion version, int z, int y,
+            int x, int tMin, int tMax) throws IOException {
+        lock.readLock().lock();
+        try {
+            if (closed || storedTimes == null || sourceHash != version.getHash()
+                    || tMax >= nTimes || tMax >= times.size()) {
+                return null;
+            }
+            for (int t = tMin; t <= tMax; t++) {
+                if (storedTimes[t] != times.get(t).getMillis()) {
+                    return null;
+                }
+            }
+            return read(z, y, x, tMin, tMax);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private float[] read(int z, int y, int x, int tMin, int tMax) throws IOException {
+        long point = ((long) z * ySize + y) * xSize + x;
+        float[] ret = new float[tMax - tMin + 1];
+        int t = tMin;
+        while (t <= tMax) {
+            int block = t / blockLength;
+            int blockEnd = Math.min(tMax, (block + 1) * blockLength - 1);
+            int n = blockEnd - t + 1;
+            ByteBuffer buffer = ByteBuffer.allocate(n * 4);
+            readFully(buffer, getOffset(block, point) + (t - block * blockLength) * 4L);
+            buffer.flip();
+            buffer.asFloatBuffer().get(ret, t - tMin, n);
+            t = blockEnd + 1;
+        }
+        return ret;
+    }
+
+    /*
+     * Gets the offset in the file of the values for a point in a block
+     */
+    private long getOffset(int block, long point) {
+        long pointsPerBlock = (long) xSize * ySize * zSize;
+        return HEADER_SIZE + ((long) block * pointsPerBlock + point) * blockLength * 4L;
+    }
+
+    private void clear() throws IOException {
+        lock.writeLock().lock();
+        try {
+            nTimes = 0;
+            timesHash = hashTimes(null, 0);
+            storedTimes = new long[0];
+            channel.truncate(HEADER_SIZE);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        writeHeader();
+    }
+
+    private void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            closed = true;
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(xSize);
+        header.putInt(ySize);
+        header.putInt(zSize);
+        header.putInt(blockLength);
+        header.putInt(nTimes);
+        header.putLong(timesHash);
+        header.putLong(sourceHash);
+        header.clear();
+        writeFully(header, 0L);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+            position += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /*
+     * Gets the first n times in a list, in milliseconds
+     */
+    private static long[] getMillis(List<DateTime> times, int n) {
+        long[] ret = new long[n];
+        for (int i = 0; i < n; i++) {
+            ret[i] = times.get(i).getMillis();
+        }
+        return ret;
+    }
+
+    /*
+     * Calculates a hash of the first n times in a list
+     */
+    private static long hashTimes(List<DateTime> times, int n) {
+        long hash = 17L;
+        for (int i = 0; i < n; i++) {
+            hash = 31L * hash + times.get(i).getMillis();
+        }
+        return hash;
+    }
+}
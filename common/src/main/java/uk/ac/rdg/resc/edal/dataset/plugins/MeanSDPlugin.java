@@ -114,4 +114,15 @@ public class MeanSDPlugin extends VariablePlugin {
         return null;
     }
 
+    @Override
+    protected float generateFloatValue(String varSuffix, HorizontalPosition pos,
+            float[] sourceValues) {
+        /* As above, there are no values to generate */
+        return Float.NaN;
+    }
+
+    @Override
+    protected boolean usesPosition(String varSuffix) {
+        return false;
+    }
 }
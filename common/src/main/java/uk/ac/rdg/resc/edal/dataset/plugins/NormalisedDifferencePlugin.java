@@ -63,4 +63,18 @@ public class NormalisedDifferencePlugin extends VariablePlugin {
         return (sourceValues[0].doubleValue() - sourceValues[1].doubleValue())
                 / (sourceValues[0].doubleValue() + sourceValues[1].doubleValue());
     }
+
+    @Override
+    protected float generateFloatValue(String varSuffix, HorizontalPosition pos,
+            float[] sourceValues) {
+        /* NaNs propagate, so missing values are handled automatically */
+        double xVal = sourceValues[0];
+        double yVal = sourceValues[1];
+        return (float) ((xVal - yVal) / (xVal + yVal));
+    }
+
+    @Override
+    protected boolean usesPosition(String varSuffix) {
+        return false;
+    }
 }
\ No newline at end of file
@@ -43,6 +43,7 @@ import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.Array1D;
 import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.FloatArray2D;
 import uk.ac.rdg.resc.edal.util.GISUtils;
 
 /**
@@ -144,7 +145,14 @@ public abstract class VariablePlugin {
     }
 
     /**
-     * Convenience method for generating an {@link Array2D} from source
+     * Convenience method for generating an {@link Array2D} from source.
+     * 
+     * All of the values are generated in a single pass when this is called,
+     * using {@link #generateFloatValue(String, HorizontalPosition, float[])},
+     * so that accessing the returned array is as cheap as accessing
+     * non-derived data. Positions are only requested from the supplied
+     * {@link Array2D} if {@link #usesPosition(String)} returns
+     * <code>true</code> for the variable.
      * 
      * @param varId
      *            The ID of the variable to generate
@@ -152,7 +160,7 @@ public abstract class VariablePlugin {
      *            An {@link Array2D} of the positions of each value
      * @param sourceArrays
      *            An {@link Array2D} containing the source values
-     * @return An {@link Array2D} containing the generated values
+     * @return An immutable {@link Array2D} containing the generated values
      */
     public Array2D<Number> generateArray2D(final String varId,
             final Array2D<HorizontalPosition> positions, final Array2D<Number>... sourceArrays) {
@@ -160,20 +168,44 @@ public abstract class VariablePlugin {
             throw new IllegalArgumentException("This plugin needs " + uses.length
                     + " data sources, but you have supplied " + sourceArrays.length);
         }
-        return new Array2D<Number>(sourceArrays[0].getYSize(), sourceArrays[0].getXSize()) {
+        final String varSuffix = varId.substring(prefixLength);
+        int ySize = sourceArrays[0].getYSize();
+        int xSize = sourceArrays[0].getXSize();
+
+        /*
+         * Copy the source data into primitive arrays, so that we only need to
+         * access each source array once
+         */
+        float[][] sourceData = new float[sourceArrays.length][];
+        for (int i = 0; i < sourceArrays.length; i++) {
+            sourceData[i] = new float[ySize * xSize];
+            sourceArrays[i].copyInto(sourceData[i]);
+        }
+
+        boolean needsPositions = usesPosition(varSuffix);
+        float[] sourceValues = new float[sourceArrays.length];
+        float[] values = new float[ySize * xSize];
+        int index = 0;
+        for (int y = 0; y < ySize; y++) {
+            for (int x = 0; x < xSize; x++) {
+                for (int i = 0; i < sourceValues.length; i++) {
+                    sourceValues[i] = sourceData[i][index];
+                }
+                values[index] = generateFloatValue(varSuffix,
+                        needsPositions ? positions.get(y, x) : null, sourceValues);
+                index++;
+            }
+        }
+
+        return new FloatArray2D(ySize, xSize, values) {
             @Override
             public void set(Number value, int... coords) {
                 throw new IllegalArgumentException("This Array is immutable");
             }
 
             @Override
-            public Number get(int... coords) {
-                Number[] sourceValues = new Number[sourceArrays.length];
-                for (int i = 0; i < sourceValues.length; i++) {
-                    sourceValues[i] = sourceArrays[i].get(coords);
-                }
-                return generateValue(varId.substring(prefixLength), positions.get(coords),
-                        sourceValues);
+            public void setFloat(int y, int x, float value) {
+                throw new IllegalArgumentException("This Array is immutable");
             }
         };
     }
@@ -275,6 +307,54 @@ public abstract class VariablePlugin {
     protected abstract Number generateValue(String varSuffix, HorizontalPosition pos,
             Number... sourceValues);
 
+    /**
+     * Whether the values of a variable depend on their position. If not,
+     * positions do not need to be calculated when generating arrays of values,
+     * and <code>null</code> will be passed to
+     * {@link #generateFloatValue(String, HorizontalPosition, float[])}.
+     * 
+     * The default implementation returns <code>true</code>. Subclasses should
+     * override it if they never (or only sometimes) use the position.
+     * 
+     * @param varSuffix
+     *            The suffix ID of the variable to generate
+     * @return <code>false</code> if the variable can be generated without
+     *         knowing the position of each value
+     */
+    protected boolean usesPosition(String varSuffix) {
+        return true;
+    }
+
+    /**
+     * Generates a value as a primitive float, based on primitive source
+     * values. This is used when generating whole arrays of values, and
+     * subclasses should override it where possible to avoid creating objects
+     * for every value.
+     * 
+     * The default implementation converts the source values to {@link Number}
+     * s and calls {@link #generateValue(String, HorizontalPosition, Number...)}
+     * 
+     * @param varSuffix
+     *            The suffix ID of the variable to generate
+     * @param pos
+     *            The {@link HorizontalPosition} at which the value is
+     *            generated. This may affect the returned value
+     * @param sourceValues
+     *            The source values in the order they were supplied to the
+     *            constructor. Missing values are represented by
+     *            {@link Float#NaN}
+     * @return The derived value, or {@link Float#NaN} if it is missing
+     */
+    protected float generateFloatValue(String varSuffix, HorizontalPosition pos,
+            float[] sourceValues) {
+        Number[] boxedValues = new Number[sourceValues.length];
+        for (int i = 0; i < sourceValues.length; i++) {
+            boxedValues[i] = Float.isNaN(sourceValues[i]) ? null : sourceValues[i];
+        }
+        Number value = generateValue(varSuffix, pos, boxedValues);
+        return value == null ? Float.NaN : value.floatValue();
+    }
+
     private String combinedName = null;
 
     /**
@@ -345,4 +345,32 @@ public class VectorPlugin extends VariablePlugin {
             return null;
         }
     }
+
+    @Override
+    protected float generateFloatValue(String varSuffix, HorizontalPosition position,
+            float[] sourceValues) {
+        double xVal = sourceValues[0];
+        double yVal = sourceValues[1];
+        if (Double.isNaN(xVal) || Double.isNaN(yVal)) {
+            return Float.NaN;
+        }
+        if (MAG_ROLE.equals(varSuffix)) {
+            return (float) Math.sqrt(xVal * xVal + yVal * yVal);
+        } else if (DIR_ROLE.equals(varSuffix) && eastNorthComps) {
+            return (float) (Math.atan2(xVal, yVal) * GISUtils.RAD2DEG);
+        } else {
+            /*
+             * Directions on non lat-lon grids need position transformations
+             */
+            return super.generateFloatValue(varSuffix, position, sourceValues);
+        }
+    }
+
+    @Override
+    protected boolean usesPosition(String varSuffix) {
+        /*
+         * Only directions on non lat-lon grids depend on the position
+         */
+        return DIR_ROLE.equals(varSuffix) && !eastNorthComps;
+    }
 }
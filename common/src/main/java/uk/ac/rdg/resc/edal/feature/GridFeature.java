@@ -28,16 +28,13 @@
 
 package uk.ac.rdg.resc.edal.feature;
 
-import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
 import org.joda.time.DateTime;
 
-import uk.ac.rdg.resc.edal.dataset.DataReadingStrategy;
 import uk.ac.rdg.resc.edal.dataset.Domain2DMapper;
-import uk.ac.rdg.resc.edal.dataset.GridDataSource;
 import uk.ac.rdg.resc.edal.domain.GridDomain;
 import uk.ac.rdg.resc.edal.domain.MapDomain;
 import uk.ac.rdg.resc.edal.domain.MapDomainImpl;
@@ -50,6 +47,7 @@ import uk.ac.rdg.resc.edal.metadata.Parameter;
 import uk.ac.rdg.resc.edal.position.GeoPosition;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.ValuesArray2D;
 
 /**
  * An implementation of a {@link Feature} whose domain is a {@link GridDomain}
@@ -130,36 +128,24 @@ public class GridFeature extends AbstractDiscreteFeature<GeoPosition, GridCell4D
 
             parameters.put(varId, getParameter(varId));
 
-            final Array4D<Number> fullValues = getValues(varId);
-            DataReadingStrategy dataReadingStrategy = DataReadingStrategy.PIXEL_BY_PIXEL;
-            GridDataSource dataSource = new GridDataSource() {
-                @Override
-                public Array4D<Number> read(String variableId, final int tmin, int tmax,
-                        final int zmin, int zmax, final int ymin, int ymax, final int xmin, int xmax) {
-                    return new Array4D<Number>(tmax - tmin + 1, zmax - zmin + 1, ymax - ymin + 1,
-                            xmax - xmin + 1) {
-                        @Override
-                        public Number get(int... coords) {
-                            return fullValues.get(coords[0] + tmin, coords[1] + zmin, coords[2]
-                                    + ymin, coords[3] + xmin);
-                        }
-
-                        @Override
-                        public void set(Number value, int... coords) {
-                        }
-                    };
-                }
-
-                @Override
-                public void close() throws IOException {
-                }
-            };
-            Array2D<Number> readMapData;
-            try {
-                readMapData = dataReadingStrategy.readMapData(dataSource, varId, tIndex, zIndex,
-                        mapper);
-            } catch (IOException e) {
-                throw new DataReadingException("Problem reading data", e);
+            /*
+             * The values are already held in memory, so we map them directly
+             * rather than going through a DataReadingStrategy. This preserves
+             * the precision of the stored values, rather than narrowing them
+             * to floats.
+             */
+            Array4D<Number> fullValues = getValues(varId);
+            Array2D<Number> readMapData = new ValuesArray2D(mapper.getTargetYSize(),
+                    mapper.getTargetXSize());
+            int iSize = mapper.getSourceGridISize();
+            int targetXSize = mapper.getTargetXSize();
+            for (int n = 0; n < mapper.getNumMappings(); n++) {
+                long sourceIndex = mapper.getSourceIndex(n);
+                int targetIndex = mapper.getTargetIndex(n);
+                readMapData.set(
+                        fullValues.get(tIndex, zIndex, (int) (sourceIndex / iSize),
+                                (int) (sourceIndex % iSize)), targetIndex / targetXSize,
+                        targetIndex % targetXSize);
             }
             values.put(varId, readMapData);
         }
@@ -59,6 +59,13 @@ public abstract class AbstractCurvilinearGrid extends AbstractTransformedGrid {
         this.latLonBbox = curvCoords.getBoundingBox();
     }
 
+    /**
+     * @return The {@link CurvilinearCoords} which define this grid
+     */
+    public CurvilinearCoords getCurvilinearCoords() {
+        return curvCoords;
+    }
+
     /**
      * Transforms a heading in native grid co-ordinates (degrees clockwise from
      * positive y-direction) into a heading in WGS84 (degrees clockwise from
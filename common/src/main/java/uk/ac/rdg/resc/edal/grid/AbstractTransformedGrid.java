@@ -31,6 +31,9 @@ package uk.ac.rdg.resc.edal.grid;
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+
 /**
  * This is an abstract implementation of a {@link HorizontalGrid} for which
  * there exists a transformation to convert WGS84 to the native CRS.
@@ -62,6 +65,38 @@ public abstract class AbstractTransformedGrid implements HorizontalGrid {
     public abstract double transformNativeHeadingToWgs84(double xComp, double yComp, double lon,
             double lat);
 
+    /**
+     * Finds the indices of a number of WGS84 positions in this grid. This is
+     * equivalent to calling {@link #findIndexOf(HorizontalPosition)} for each
+     * position, but subclasses may override it to transform all of the
+     * positions in one go, without creating intermediate objects.
+     * 
+     * @param lonLat
+     *            The positions to find, as interleaved longitude-latitude
+     *            pairs in WGS84
+     * @param xIndices
+     *            An array in which to store the x-indices of the positions,
+     *            which will be -1 for positions outside of this grid. This
+     *            must be at least half the length of lonLat
+     * @param yIndices
+     *            An array in which to store the y-indices of the positions,
+     *            which will be -1 for positions outside of this grid. This
+     *            must be at least half the length of lonLat
+     */
+    public void findIndicesOf(double[] lonLat, int[] xIndices, int[] yIndices) {
+        for (int n = 0; n < lonLat.length / 2; n++) {
+            GridCoordinates2D coords = findIndexOf(new HorizontalPosition(lonLat[2 * n],
+                    lonLat[2 * n + 1], DefaultGeographicCRS.WGS84));
+            if (coords != null) {
+                xIndices[n] = coords.getX();
+                yIndices[n] = coords.getY();
+            } else {
+                xIndices[n] = -1;
+                yIndices[n] = -1;
+            }
+        }
+    }
+
     /**
      * Always returns {@link DefaultGeographicCRS#WGS84}. Transformations
      * between native CRS and WGS84 are done behind the scenes
@@ -27,10 +27,10 @@
  *******************************************************************************/
 package uk.ac.rdg.resc.edal.grid;
 
+import java.lang.ref.WeakReference;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
 
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 
@@ -38,9 +38,9 @@ import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.CurvilinearCoords;
 import uk.ac.rdg.resc.edal.util.GISUtils;
-import uk.ac.rdg.resc.edal.util.CurvilinearCoords.Cell;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
 import uk.ac.rdg.resc.edal.util.LookUpTable;
+import uk.ac.rdg.resc.edal.util.LookUpTableCache;
 
 /**
  * A HorizontalGrid that is created from a "curvilinear" coordinate system,
@@ -57,15 +57,13 @@ import uk.ac.rdg.resc.edal.util.LookUpTable;
  */
 public final class LookUpTableGrid extends AbstractCurvilinearGrid {
     /**
-     * In-memory cache of LookUpTableGrid objects to save expensive
-     * re-generation of same object
-     * 
-     * @todo The CurvilinearGrid objects can be very big. Really we only need to
-     *       key on the arrays of lon and lat: all other quantities can be
-     *       calculated from these. This means that we could make other large
-     *       objects available for garbage collection.
+     * The {@link LookUpTableGrid}s which are currently in use, keyed on the
+     * content hash of their coordinates. This means that datasets sharing the
+     * same grid also share the same object. Grids are only weakly referenced,
+     * and the expensive part (the {@link LookUpTable}) is held separately in a
+     * memory-bounded {@link LookUpTableCache}.
      */
-    private static final Map<CurvilinearCoords, LookUpTableGrid> CACHE = new HashMap<CurvilinearCoords, LookUpTableGrid>();
+    private static final Map<String, WeakReference<LookUpTableGrid>> GRIDS = new HashMap<String, WeakReference<LookUpTableGrid>>();
 
     private final LookUpTable lut;
 
@@ -74,6 +72,12 @@ public final class LookUpTableGrid extends AbstractCurvilinearGrid {
      */
     public static LookUpTableGrid generate(Array2D<Number> lonVals, Array2D<Number> latVals) {
         CurvilinearCoords curvCoords = new CurvilinearCoords(lonVals, latVals);
+        String key = curvCoords.getContentHash();
+
+        LookUpTableGrid lutGrid = getGrid(key);
+        if (lutGrid != null) {
+            return lutGrid;
+        }
 
         /*
          * We calculate the required resolution of the look-up tables. We want
@@ -81,24 +85,44 @@ public final class LookUpTableGrid extends AbstractCurvilinearGrid {
          */
         double minLutResolution = Math.sqrt(curvCoords.getMeanCellArea()) / 3.0;
 
-        synchronized (CACHE) {
-            LookUpTableGrid lutGrid = CACHE.get(curvCoords);
+        /*
+         * Get the look-up table for this coord sys. This is done outside of any
+         * global lock, so that building a large look-up table does not hold up
+         * requests for other grids.
+         */
+        LookUpTable lut = LookUpTableCache.getInstance().getLookUpTable(curvCoords,
+                minLutResolution);
+
+        synchronized (GRIDS) {
+            /* Another thread may have created this grid in the meantime */
+            lutGrid = getGrid(key);
             if (lutGrid == null) {
-                /* Create a look-up table for this coord sys */
-                LookUpTable lut = new LookUpTable(curvCoords, minLutResolution);
-                /* Create the LookUpTableGrid */
                 lutGrid = new LookUpTableGrid(curvCoords, lut);
-                /* Now put this in the cache */
-                CACHE.put(curvCoords, lutGrid);
+                /* Remove any grids which are no longer in use */
+                Iterator<WeakReference<LookUpTableGrid>> iterator = GRIDS.values().iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().get() == null) {
+                        iterator.remove();
+                    }
+                }
+                GRIDS.put(key, new WeakReference<LookUpTableGrid>(lutGrid));
             }
             return lutGrid;
         }
     }
 
+    private static LookUpTableGrid getGrid(String key) {
+        synchronized (GRIDS) {
+            WeakReference<LookUpTableGrid> ref = GRIDS.get(key);
+            return ref == null ? null : ref.get();
+        }
+    }
+
     public static void clearCache() {
-        synchronized (CACHE) {
-            CACHE.clear();
+        synchronized (GRIDS) {
+            GRIDS.clear();
         }
+        LookUpTableCache.getInstance().clear();
     }
 
     /** Private constructor to prevent direct instantiation */
@@ -107,6 +131,14 @@ public final class LookUpTableGrid extends AbstractCurvilinearGrid {
         this.lut = lut;
     }
 
+    /*
+     * The offsets of the neighbours of a cell, in the same order as
+     * Cell.getNeighbours(): first those which share an edge, then those which
+     * share a corner
+     */
+    private static final int[] NEIGHBOUR_DI = { -1, 0, 1, 0, -1, 1, 1, -1 };
+    private static final int[] NEIGHBOUR_DJ = { 0, -1, 0, 1, -1, -1, 1, 1 };
+
     @Override
     public GridCoordinates2D findIndexOf(HorizontalPosition position) {
         if(!GISUtils.isWgs84LonLat(position.getCoordinateReferenceSystem())) {
@@ -114,49 +146,65 @@ public final class LookUpTableGrid extends AbstractCurvilinearGrid {
         }
         double x = position.getX();
         double y = position.getY();
+        int ni = curvCoords.getNi();
+        int nj = curvCoords.getNj();
         /*
          * Find the "first guess" at the containing cell according to the
          * look-up table
          */
         int[] lutCoords = lut.getGridCoordinates(x, y);
-        /* Return null if the latLonPoint does not match a valid grid point */
-        if (lutCoords == null)
-            return null;
+        if (lutCoords == null) {
+            /*
+             * The look-up table has no value here. Usually this is because the
+             * point is outside the grid, but cells which are much smaller than
+             * the resolution of the look-up table can leave gaps in it, so we
+             * check the spatial index of the grid.
+             */
+            int index = curvCoords.findContainingCell(x, y);
+            if (index < 0) {
+                return null;
+            }
+            return new GridCoordinates2D(index % ni, index / ni);
+        }
+        int i = lutCoords[0];
+        int j = lutCoords[1];
         /*
          * Check that this cell really contains this point, if not, check the
          * neighbours
          */
-        Cell cell = curvCoords.getCell(lutCoords[0], lutCoords[1]);
-        if (cell.contains(x, y)) {
-            return new GridCoordinates2D(lutCoords[0], lutCoords[1]);
+        if (curvCoords.cellContains(i, j, x, y)) {
+            return new GridCoordinates2D(i, j);
         }
 
         /*
-         * We do a gradient-descent method to find the true nearest neighbour We
-         * store the grid coordinates that we have already examined.
-         */
-        Set<Cell> examined = new HashSet<Cell>();
-        examined.add(cell);
-        /*
+         * We do a gradient-descent method to find the true nearest neighbour.
+         * Since each step strictly decreases the distance to the target
+         * position, no cell can be visited twice.
+         * 
          * Find the Euclidean distance from the cell centre to the target
          * position
          */
-        double shortestDistanceSq = cell.findDistanceSq(x, y);
+        double shortestDistanceSq = curvCoords.getDistanceSq(i, j, x, y);
 
         boolean found = true;
         /* Prevent the search going on forever */
         int maxIterations = 100;
-        for (int i = 0; found && i < maxIterations; i++) {
+        for (int iteration = 0; found && iteration < maxIterations; iteration++) {
             found = false;
-            for (Cell neighbour : cell.getNeighbours()) {
-                if (!examined.contains(neighbour)) {
-                    double distanceSq = neighbour.findDistanceSq(x, y);
-                    if (distanceSq < shortestDistanceSq) {
-                        cell = neighbour;
-                        shortestDistanceSq = distanceSq;
-                        found = true;
-                    }
-                    examined.add(neighbour);
+            int centreI = i;
+            int centreJ = j;
+            for (int n = 0; n < NEIGHBOUR_DI.length; n++) {
+                int neighbourI = centreI + NEIGHBOUR_DI[n];
+                int neighbourJ = centreJ + NEIGHBOUR_DJ[n];
+                if (neighbourI < 0 || neighbourJ < 0 || neighbourI >= ni || neighbourJ >= nj) {
+                    continue;
+                }
+                double distanceSq = curvCoords.getDistanceSq(neighbourI, neighbourJ, x, y);
+                if (distanceSq < shortestDistanceSq) {
+                    i = neighbourI;
+                    j = neighbourJ;
+                    shortestDistanceSq = distanceSq;
+                    found = true;
                 }
             }
         }
@@ -165,12 +213,17 @@ public final class LookUpTableGrid extends AbstractCurvilinearGrid {
          * We now have the nearest neighbour, but sometimes the position is
          * actually contained within one of the cell's neighbours
          */
-        if (cell.contains(x, y)) {
-            return new GridCoordinates2D(cell.getI(), cell.getJ());
+        if (curvCoords.cellContains(i, j, x, y)) {
+            return new GridCoordinates2D(i, j);
         }
-        for (Cell neighbour : cell.getNeighbours()) {
-            if (neighbour.contains(x, y)) {
-                return new GridCoordinates2D(neighbour.getI(), neighbour.getJ());
+        for (int n = 0; n < NEIGHBOUR_DI.length; n++) {
+            int neighbourI = i + NEIGHBOUR_DI[n];
+            int neighbourJ = j + NEIGHBOUR_DJ[n];
+            if (neighbourI < 0 || neighbourJ < 0 || neighbourI >= ni || neighbourJ >= nj) {
+                continue;
+            }
+            if (curvCoords.cellContains(neighbourI, neighbourJ, x, y)) {
+                return new GridCoordinates2D(neighbourI, neighbourJ);
             }
         }
 
@@ -179,7 +232,7 @@ public final class LookUpTableGrid extends AbstractCurvilinearGrid {
          * the contains() checks. This is probably OK in the middle of a grid,
          * but we might need to be careful at the edges
          */
-        return new GridCoordinates2D(cell.getI(), cell.getJ());
+        return new GridCoordinates2D(i, j);
     }
 
     @Override
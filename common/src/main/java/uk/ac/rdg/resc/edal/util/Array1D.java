@@ -88,4 +88,36 @@ public abstract class Array1D<T> implements Array<T> {
     public int[] getShape() {
         return new int[] { size };
     }
+
+    /**
+     * Gets a value from a numerical array as a primitive float. Missing values
+     * are returned as {@link Float#NaN}.
+     * 
+     * @return The value at the given index, or NaN if it is missing
+     * @throws ClassCastException
+     *             if this is not an {@link Array1D} of {@link Number}s
+     */
+    public float getFloat(int i) {
+        Object value = get(i);
+        if (value == null) {
+            return Float.NaN;
+        }
+        return ((Number) value).floatValue();
+    }
+
+    /**
+     * Copies the contents of a numerical array into a float array. Missing
+     * values are copied as {@link Float#NaN}.
+     * 
+     * @param dest
+     *            The array to copy into. This must have at least
+     *            {@link #size()} elements.
+     * @throws ClassCastException
+     *             if this is not an {@link Array1D} of {@link Number}s
+     */
+    public void copyInto(float[] dest) {
+        for (int i = 0; i < size; i++) {
+            dest[i] = getFloat(i);
+        }
+    }
 }
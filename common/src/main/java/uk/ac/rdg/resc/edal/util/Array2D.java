@@ -112,4 +112,49 @@ public abstract class Array2D<T> implements Array<T> {
     public int getYSize() {
         return shape[Y_IND];
     }
+
+    /**
+     * Gets a value from a numerical array as a primitive float. Missing values
+     * are returned as {@link Float#NaN}.
+     * 
+     * Subclasses which store primitive data should override this to avoid
+     * boxing.
+     * 
+     * @param y
+     *            The y-coordinate of the value to get
+     * @param x
+     *            The x-coordinate of the value to get
+     * @return The value at the given co-ordinates, or NaN if it is missing
+     * @throws ClassCastException
+     *             if this is not an {@link Array2D} of {@link Number}s
+     */
+    public float getFloat(int y, int x) {
+        Object value = get(y, x);
+        if (value == null) {
+            return Float.NaN;
+        }
+        return ((Number) value).floatValue();
+    }
+
+    /**
+     * Copies the contents of a numerical array into a float array, with the
+     * x-dimension varying fastest. Missing values are copied as
+     * {@link Float#NaN}.
+     * 
+     * @param dest
+     *            The array to copy into. This must have at least
+     *            {@link #size()} elements.
+     * @throws ClassCastException
+     *             if this is not an {@link Array2D} of {@link Number}s
+     */
+    public void copyInto(float[] dest) {
+        int xSize = shape[X_IND];
+        int ySize = shape[Y_IND];
+        int index = 0;
+        for (int y = 0; y < ySize; y++) {
+            for (int x = 0; x < xSize; x++) {
+                dest[index++] = getFloat(y, x);
+            }
+        }
+    }
 }
@@ -143,4 +143,47 @@ public abstract class Array4D<T> implements Array<T> {
     public int getTSize() {
         return shape[T_IND];
     }
+
+    /**
+     * Gets a value from a numerical array as a primitive float. Missing values
+     * are returned as {@link Float#NaN}.
+     * 
+     * Subclasses which store primitive data should override this to avoid
+     * boxing.
+     * 
+     * @return The value at the given co-ordinates, or NaN if it is missing
+     * @throws ClassCastException
+     *             if this is not an {@link Array4D} of {@link Number}s
+     */
+    public float getFloat(int t, int z, int y, int x) {
+        Object value = get(t, z, y, x);
+        if (value == null) {
+            return Float.NaN;
+        }
+        return ((Number) value).floatValue();
+    }
+
+    /**
+     * Copies the contents of a numerical array into a float array, with the
+     * x-dimension varying fastest, followed by y, z and t. Missing values are
+     * copied as {@link Float#NaN}.
+     * 
+     * @param dest
+     *            The array to copy into. This must have at least
+     *            {@link #size()} elements.
+     * @throws ClassCastException
+     *             if this is not an {@link Array4D} of {@link Number}s
+     */
+    public void copyInto(float[] dest) {
+        int index = 0;
+        for (int t = 0; t < shape[T_IND]; t++) {
+            for (int z = 0; z < shape[Z_IND]; z++) {
+                for (int y = 0; y < shape[Y_IND]; y++) {
+                    for (int x = 0; x < shape[X_IND]; x++) {
+                        dest[index++] = getFloat(t, z, y, x);
+                    }
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes files atomically, so that readers (including after a crash) see
+ * either the complete old contents or the complete new contents, but never a
+ * partially written file.
+ * 
+ * @author agent
+ */
+public final class AtomicFile {
+    private AtomicFile() {
+    }
+
+    /**
+     * Writes the contents of a file
+     */
+    public interface Writer {
+        /**
+         * Writes the file contents to the given stream. Any wrapping streams
+         * should be closed (or at least flushed) before returning.
+         */
+        public void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes a file by writing to a temporary file in the same directory and
+     * then moving it over the target file. Parent directories are created if
+     * necessary.
+     * 
+     * @param file
+     *            The file to write
+     * @param writer
+     *            The {@link Writer} which writes the contents
+     * @throws IOException
+     *             If the file could not be written. In this case the target
+     *             file is unchanged.
+     */
+    public static void write(File file, Writer writer) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        /*
+         * Use a unique temporary file, so that concurrent writers of the same
+         * file do not interfere with each other
+         */
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", dir);
+        boolean written = false;
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile));
+            try {
+                writer.writeTo(out);
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                tmpFile.delete();
+            }
+        }
+    }
+}
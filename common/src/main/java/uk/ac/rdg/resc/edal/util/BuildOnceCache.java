@@ -0,0 +1,345 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A memory-bounded, least-recently-used cache of objects which are expensive
+ * to build. If several threads request the same object at the same time, it is
+ * only built once: the first thread builds it and the others wait for the
+ * result. Requests for other objects are not blocked while this happens.
+ * 
+ * Subclasses define how the size of each object is measured.
+ * 
+ * @param <K>
+ *            The type of the keys
+ * @param <V>
+ *            The type of the cached objects
+ * @author agent
+ */
+public abstract class BuildOnceCache<K, V> {
+    private static final Logger log = LoggerFactory.getLogger(BuildOnceCache.class);
+
+    /**
+     * Selects the keys of entries to remove from a {@link BuildOnceCache}
+     */
+    public interface KeyFilter<K> {
+        public boolean accept(K key);
+    }
+
+    /* Used in log messages */
+    private final String name;
+
+    /* Built objects, in order of access */
+    private final LinkedHashMap<K, V> values = new LinkedHashMap<K, V>(16, 0.75f, true);
+    /* Objects which are currently being built */
+    private final Map<K, FutureTask<V>> inProgress = new HashMap<K, FutureTask<V>>();
+
+    private long maxSize;
+    private long size = 0L;
+
+    private long hits = 0L;
+    private long misses = 0L;
+    private long numBuilt = 0L;
+    private long totalBuildTime = 0L;
+
+    /**
+     * @param name
+     *            A name for the cached objects, used in log messages
+     * @param maxSize
+     *            The maximum total size of the cached objects, in bytes
+     */
+    public BuildOnceCache(String name, long maxSize) {
+        this.name = name;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return The approximate size of the given object, in bytes
+     */
+    protected abstract long getSize(V value);
+
+    /**
+     * Gets an object from the cache, building it if it is not present.
+     * 
+     * @param key
+     *            The key identifying the object
+     * @param builder
+     *            A {@link Callable} which builds the object. This is only
+     *            called if the object is neither in the cache nor being built
+     *            by another thread
+     * @return The object. This must not be modified.
+     * @throws ExecutionException
+     *             If the builder threw a checked exception (which is available
+     *             as the cause). Unchecked exceptions are rethrown directly.
+     */
+    public V get(K key, Callable<V> builder) throws ExecutionException {
+        FutureTask<V> task;
+        boolean build = false;
+        synchronized (this) {
+            V value = values.get(key);
+            if (value != null) {
+                hits++;
+                return value;
+            }
+            task = inProgress.get(key);
+            if (task == null) {
+                misses++;
+                task = new FutureTask<V>(builder);
+                inProgress.put(key, task);
+                build = true;
+            } else {
+                /*
+                 * Another thread is building this object. We count this as a
+                 * hit, since we don't build it again.
+                 */
+                hits++;
+            }
+        }
+
+        if (build) {
+            long start = System.nanoTime();
+            task.run();
+            long buildTime = System.nanoTime() - start;
+            synchronized (this) {
+                /*
+                 * If the entry was removed whilst it was being built, the
+                 * result may be out-of-date, so we don't store it
+                 */
+                if (inProgress.get(key) == task) {
+                    inProgress.remove(key);
+                    try {
+                        V value = task.get();
+                        numBuilt++;
+                        totalBuildTime += buildTime;
+                        store(key, value);
+                    } catch (InterruptedException | ExecutionException e) {
+                        /* This will be rethrown below */
+                    }
+                }
+            }
+        }
+
+        try {
+            return getUninterruptibly(task);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Gets an object from the cache without building it. This counts as a hit
+     * or a miss in the statistics.
+     * 
+     * @return The object, or <code>null</code> if it is not in the cache
+     */
+    public synchronized V getIfPresent(K key) {
+        V value = values.get(key);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    private static <V> V getUninterruptibly(FutureTask<V> task) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Adds an object to the cache, replacing any existing object with the same
+     * key. Objects which are larger than the cache are not stored.
+     */
+    public synchronized void put(K key, V value) {
+        store(key, value);
+    }
+
+    private void store(K key, V value) {
+        long valueSize = getSize(value);
+        if (valueSize > maxSize) {
+            return;
+        }
+        V old = values.put(key, value);
+        if (old != null) {
+            size -= getSize(old);
+        }
+        size += valueSize;
+        evict();
+    }
+
+    /**
+     * Removes the objects whose keys are accepted by the given filter. Objects
+     * with these keys which are currently being built will not be stored when
+     * they are complete (although they will still be returned to the threads
+     * which requested them).
+     * 
+     * @return The removed objects, in order of access (least-recent first)
+     */
+    public synchronized Map<K, V> removeAll(KeyFilter<K> filter) {
+        Map<K, V> removed = new LinkedHashMap<K, V>();
+        Iterator<Map.Entry<K, V>> iterator = values.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<K, V> entry = iterator.next();
+            if (filter.accept(entry.getKey())) {
+                size -= getSize(entry.getValue());
+                removed.put(entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+        }
+        Iterator<K> keys = inProgress.keySet().iterator();
+        while (keys.hasNext()) {
+            if (filter.accept(keys.next())) {
+                keys.remove();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Sets the maximum size of the cache, evicting objects if necessary
+     * 
+     * @param maxSize
+     *            The maximum size, in bytes
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Cache size cannot be negative");
+        }
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return The approximate total size of all cached objects, in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The number of objects in the cache
+     */
+    public synchronized int getNumEntries() {
+        return values.size();
+    }
+
+    /**
+     * @return The number of requests for which an object did not need to be
+     *         built
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of requests for which an object was not in the cache
+     *         (and so had to be built)
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The proportion of requests for which an object did not need to
+     *         be built, or 0 if there have been no requests
+     */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * @return The mean time taken to build an object, in milliseconds, or 0
+     *         if none have been built
+     */
+    public synchronized double getMeanBuildTime() {
+        return numBuilt == 0 ? 0.0 : totalBuildTime / 1e6 / numBuilt;
+    }
+
+    /**
+     * Removes all objects from the cache and resets the statistics. Objects
+     * which are currently being built will not be stored.
+     */
+    public synchronized void clear() {
+        values.clear();
+        inProgress.clear();
+        size = 0L;
+        hits = 0L;
+        misses = 0L;
+        numBuilt = 0L;
+        totalBuildTime = 0L;
+    }
+
+    private void evict() {
+        Iterator<V> iterator = values.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            /* Evict the least-recently used objects */
+            size -= getSize(iterator.next());
+            iterator.remove();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(name + " cache: " + values.size() + " entries, " + size + " bytes, hit rate "
+                    + getHitRate());
+        }
+    }
+}
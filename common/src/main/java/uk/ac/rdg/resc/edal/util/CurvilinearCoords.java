@@ -30,6 +30,9 @@ package uk.ac.rdg.resc.edal.util;
 
 import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -69,13 +72,25 @@ public final class CurvilinearCoords {
      */
     private final float[] latitudes;
 
-    /** The longitudes of the corners of the grid cells */
-    private final Array2D<Number> cornerLons;
-    /** The latitudes of the corners of the grid cells */
-    private final Array2D<Number> cornerLats;
+    /**
+     * The longitudes of the corners of the grid cells, flattened to a 1D array
+     * of size (ni+1)*(nj+1)
+     */
+    private final double[] cornerLons;
+    /**
+     * The latitudes of the corners of the grid cells, flattened to a 1D array
+     * of size (ni+1)*(nj+1)
+     */
+    private final double[] cornerLats;
     /** The lon-lat bounding box of the grid */
     private final BoundingBox lonLatBbox;
 
+    /** A digest of the cell centres, calculated when first needed */
+    private volatile String contentHash = null;
+
+    /** A spatial index of the cell centres, built when first needed */
+    private volatile CellIndex cellIndex = null;
+
     public CurvilinearCoords(Array2D<Number> lonVals, Array2D<Number> latVals) {
         /* Sanity check */
         if (!Arrays.equals(lonVals.getShape(), latVals.getShape())) {
@@ -86,6 +101,11 @@ public final class CurvilinearCoords {
 
         ni = lonVals.getShape()[1];
         nj = lonVals.getShape()[0];
+        if (ni < 3 || nj < 3) {
+            /* We need at least 3 points in each direction to calculate corners */
+            throw new IllegalArgumentException(String.format(
+                    "Curvilinear grids must be at least 3x3 points. This one is %dx%d", ni, nj));
+        }
         longitudes = new float[ni * nj];
         latitudes = new float[ni * nj];
 
@@ -133,8 +153,8 @@ public final class CurvilinearCoords {
     /**
      * Adapted from previous ncWMS
      */
-    private Array2D<Number> makeCorners(float[] midpoints, boolean isLongitude) {
-        Array2D<Number> edges = new ValuesArray2D(nj + 1, ni + 1);
+    private double[] makeCorners(float[] midpoints, boolean isLongitude) {
+        double[] edges = new double[(ni + 1) * (nj + 1)];
 
         for (int j = 0; j < nj - 1; j++) {
             for (int i = 0; i < ni - 1; i++) {
@@ -157,26 +177,25 @@ public final class CurvilinearCoords {
                     midpoint4 = GISUtils.getNearestEquivalentLongitude(midpoint1, midpoint4);
                 }
                 double xval = (midpoint1 + midpoint2 + midpoint3 + midpoint4) / 4.0;
-                edges.set(xval, j + 1, i + 1);
+                edges[getCornerIndex(i + 1, j + 1)] = xval;
             }
             /* Extrapolate to exterior points */
-            double val = edges.get(j + 1, 1).doubleValue()
-                    - (edges.get(j + 1, 2).doubleValue() - edges.get(j + 1, 1).doubleValue());
-            edges.set(val, j + 1, 0);
-            val = edges.get(j + 1, ni - 1).doubleValue()
-                    + (edges.get(j + 1, ni - 1).doubleValue() - edges.get(j + 1, ni - 2)
-                            .doubleValue());
-            edges.set(val, j + 1, ni);
+            double edge1 = edges[getCornerIndex(1, j + 1)];
+            double edge2 = edges[getCornerIndex(2, j + 1)];
+            edges[getCornerIndex(0, j + 1)] = edge1 - (edge2 - edge1);
+            double edgeNiMinus1 = edges[getCornerIndex(ni - 1, j + 1)];
+            double edgeNiMinus2 = edges[getCornerIndex(ni - 2, j + 1)];
+            edges[getCornerIndex(ni, j + 1)] = edgeNiMinus1 + (edgeNiMinus1 - edgeNiMinus2);
         }
 
         /* Extrapolate to the first and last row */
         for (int x = 0; x < ni + 1; x++) {
-            double val = edges.get(1, x).doubleValue()
-                    - (edges.get(2, x).doubleValue() - edges.get(1, x).doubleValue());
-            edges.set(val, 0, x);
-            val = edges.get(nj - 1, x).doubleValue()
-                    + (edges.get(nj - 1, x).doubleValue() - edges.get(nj - 2, x).doubleValue());
-            edges.set(val, nj, x);
+            double edge1 = edges[getCornerIndex(x, 1)];
+            double edge2 = edges[getCornerIndex(x, 2)];
+            edges[getCornerIndex(x, 0)] = edge1 - (edge2 - edge1);
+            double edgeNjMinus1 = edges[getCornerIndex(x, nj - 1)];
+            double edgeNjMinus2 = edges[getCornerIndex(x, nj - 2)];
+            edges[getCornerIndex(x, nj)] = edgeNjMinus1 + (edgeNjMinus1 - edgeNjMinus2);
         }
 
         return edges;
@@ -199,6 +218,13 @@ public final class CurvilinearCoords {
         return j * ni + i;
     }
 
+    /**
+     * Gets the index of a corner in the flattened arrays of corner coordinates
+     */
+    private int getCornerIndex(int cornerI, int cornerJ) {
+        return cornerJ * (ni + 1) + cornerI;
+    }
+
     /**
      * Gets the location of the four corners of the cell at indices i, j.
      * 
@@ -219,8 +245,8 @@ public final class CurvilinearCoords {
      * arrays of corner coordinates</i> (not in the arrays of midpoints).
      */
     private LonLatPosition getCorner(int cornerI, int cornerJ) {
-        return new LonLatPosition(cornerLons.get(cornerJ, cornerI).doubleValue(), cornerLats.get(
-                cornerJ, cornerI).doubleValue());
+        int index = getCornerIndex(cornerI, cornerJ);
+        return new LonLatPosition(cornerLons[index], cornerLats[index]);
     }
 
     /**
@@ -238,6 +264,191 @@ public final class CurvilinearCoords {
         return new Cell(i, j);
     }
 
+    /**
+     * Gets the square of the distance (in degrees) between the centre of the
+     * [i,j]th cell and the given longitude-latitude point. This is equivalent
+     * to {@link Cell#findDistanceSq(double, double)}, but does not create any
+     * objects and does not check that i,j is a valid cell.
+     */
+    public double getDistanceSq(int i, int j, double lon, double lat) {
+        int index = getIndex(i, j);
+        double dx = lon - longitudes[index];
+        double dy = lat - latitudes[index];
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Returns true if the boundary of the [i,j]th cell contains the given
+     * longitude-latitude point. This is equivalent to
+     * {@link Cell#contains(double, double)}, but does not create any objects
+     * and does not check that i,j is a valid cell. Cells with any corners
+     * which are NaN do not contain any points.
+     */
+    public boolean cellContains(int i, int j, double lon, double lat) {
+        double centreLon = longitudes[getIndex(i, j)];
+        lon = GISUtils.getNearestEquivalentLongitude(centreLon, lon);
+        if (!(lon * 0.0 + lat * 0.0 == 0.0)) {
+            /* NaN or infinite - this is how Path2D.contains() behaves */
+            return false;
+        }
+        int c0 = getCornerIndex(i, j);
+        int c1 = c0 + 1;
+        int c3 = c0 + ni + 1;
+        int c2 = c3 + 1;
+        double x0 = GISUtils.getNearestEquivalentLongitude(centreLon, cornerLons[c0]);
+        double x1 = GISUtils.getNearestEquivalentLongitude(centreLon, cornerLons[c1]);
+        double x2 = GISUtils.getNearestEquivalentLongitude(centreLon, cornerLons[c2]);
+        double x3 = GISUtils.getNearestEquivalentLongitude(centreLon, cornerLons[c3]);
+        double y0 = cornerLats[c0];
+        double y1 = cornerLats[c1];
+        double y2 = cornerLats[c2];
+        double y3 = cornerLats[c3];
+        if (Double.isNaN(x0 + x1 + x2 + x3 + y0 + y1 + y2 + y3)) {
+            /*
+             * The cell is next to a missing point. A Path2D with NaN corners
+             * would claim to contain almost any point, so we exclude it.
+             */
+            return false;
+        }
+        /*
+         * Use the non-zero winding rule, in the same way as the Path2D
+         * returned by Cell.getBoundaryPath()
+         */
+        int crossings = pointCrossingsForLine(lon, lat, x0, y0, x1, y1)
+                + pointCrossingsForLine(lon, lat, x1, y1, x2, y2)
+                + pointCrossingsForLine(lon, lat, x2, y2, x3, y3)
+                + pointCrossingsForLine(lon, lat, x3, y3, x0, y0);
+        return crossings != 0;
+    }
+
+    /**
+     * Counts the crossings of a ray from the point (px,py) in the positive x
+     * direction with the given line segment, as java.awt.geom.Curve does for
+     * Path2D containment tests.
+     */
+    private static int pointCrossingsForLine(double px, double py, double x0, double y0,
+            double x1, double y1) {
+        if (py < y0 && py < y1) {
+            return 0;
+        }
+        if (py >= y0 && py >= y1) {
+            return 0;
+        }
+        if (px >= x0 && px >= x1) {
+            return 0;
+        }
+        if (px < x0 && px < x1) {
+            return (y0 < y1) ? 1 : -1;
+        }
+        double xintercept = x0 + (py - y0) * (x1 - x0) / (y1 - y0);
+        if (px >= xintercept) {
+            return 0;
+        }
+        return (y0 < y1) ? 1 : -1;
+    }
+
+    /**
+     * Gets the longitude of the centre of the [i,j]th cell without creating
+     * any objects
+     */
+    double getCentreLongitude(int i, int j) {
+        return longitudes[getIndex(i, j)];
+    }
+
+    /**
+     * Gets the corners of the [i,j]th cell in the same order, and with the
+     * same harmonised longitudes, as {@link Cell#getCorners()}, but without
+     * creating any objects.
+     * 
+     * @param cornerLons
+     *            An array of length at least 4 to hold the corner longitudes
+     * @param cornerLats
+     *            An array of length at least 4 to hold the corner latitudes
+     */
+    void getCellCorners(int i, int j, double[] cornerLons, double[] cornerLats) {
+        double centreLon = longitudes[getIndex(i, j)];
+        int c0 = getCornerIndex(i, j);
+        int c3 = c0 + ni + 1;
+        setCorner(0, c0, centreLon, cornerLons, cornerLats);
+        setCorner(1, c0 + 1, centreLon, cornerLons, cornerLats);
+        setCorner(2, c3 + 1, centreLon, cornerLons, cornerLats);
+        setCorner(3, c3, centreLon, cornerLons, cornerLats);
+    }
+
+    private void setCorner(int corner, int cornerIndex, double centreLon, double[] lons,
+            double[] lats) {
+        lons[corner] = GISUtils.getNearestEquivalentLongitude(centreLon, cornerLons[cornerIndex]);
+        lats[corner] = cornerLats[cornerIndex];
+    }
+
+    /**
+     * Finds the cell which contains the given longitude-latitude point, using
+     * a spatial index of the cell centres. If more than one cell contains the
+     * point, the one whose centre is nearest to it is returned. The index is
+     * built the first time this is called. This does not create any objects.
+     * 
+     * @return The index of the cell (j * ni + i), or -1 if no cell contains
+     *         the point
+     */
+    public int findContainingCell(double lon, double lat) {
+        if (Double.isNaN(lon) || Double.isNaN(lat)) {
+            return -1;
+        }
+        CellIndex index = getCellIndex();
+        lon = GISUtils.constrainLongitude180(lon);
+        double radius = index.maxRadius;
+        double radiusSq = radius * radius;
+
+        int nearest = -1;
+        double nearestDistanceSq = Double.POSITIVE_INFINITY;
+        /*
+         * Cells near the anti-meridian may contain the point when it is
+         * expressed as an equivalent longitude
+         */
+        for (int shift = -1; shift <= 1; shift++) {
+            double queryLon = lon + 360.0 * shift;
+            if (queryLon + radius < index.minLon || queryLon - radius > index.maxLon
+                    || lat + radius < index.minLat || lat - radius > index.maxLat) {
+                continue;
+            }
+            int minLonBucket = index.getLonBucket(queryLon - radius);
+            int maxLonBucket = index.getLonBucket(queryLon + radius);
+            int minLatBucket = index.getLatBucket(lat - radius);
+            int maxLatBucket = index.getLatBucket(lat + radius);
+            for (int latBucket = minLatBucket; latBucket <= maxLatBucket; latBucket++) {
+                for (int lonBucket = minLonBucket; lonBucket <= maxLonBucket; lonBucket++) {
+                    int bucket = latBucket * index.nLonBuckets + lonBucket;
+                    for (int b = index.bucketStarts[bucket]; b < index.bucketStarts[bucket + 1]; b++) {
+                        int cell = index.cells[b];
+                        int i = cell % ni;
+                        int j = cell / ni;
+                        double distanceSq = getDistanceSq(i, j, queryLon, lat);
+                        if (distanceSq <= radiusSq && distanceSq < nearestDistanceSq
+                                && cellContains(i, j, queryLon, lat)) {
+                            nearest = cell;
+                            nearestDistanceSq = distanceSq;
+                        }
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    private CellIndex getCellIndex() {
+        CellIndex index = cellIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = cellIndex;
+                if (index == null) {
+                    index = new CellIndex();
+                    cellIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
     /**
      * @return the number of points in the i direction in this grid
      */
@@ -261,6 +472,48 @@ public final class CurvilinearCoords {
         return lonLatBbox;
     }
 
+    /**
+     * Gets a digest of the size and cell centres of this grid. Two
+     * {@link CurvilinearCoords} which are equal have the same content hash, so
+     * this can be used as a compact key for objects derived from the grid
+     * (e.g. {@link LookUpTable}s), including ones which are stored on disk.
+     * 
+     * @return A hexadecimal SHA-1 digest of this grid
+     */
+    public String getContentHash() {
+        String hash = contentHash;
+        if (hash == null) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                /* All Java platforms are required to support SHA-1 */
+                throw new IllegalStateException("SHA-1 is not available", e);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            buffer.putInt(ni).putInt(nj);
+            for (float[] values : new float[][] { longitudes, latitudes }) {
+                for (float value : values) {
+                    if (!buffer.hasRemaining()) {
+                        digest.update(buffer.array(), 0, buffer.position());
+                        buffer.clear();
+                    }
+                    /* This is consistent with Arrays.equals(float[], float[]) */
+                    buffer.putInt(Float.floatToIntBits(value));
+                }
+            }
+            digest.update(buffer.array(), 0, buffer.position());
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            hash = sb.toString();
+            contentHash = hash;
+        }
+        return hash;
+    }
+
     @Override
     public int hashCode() {
         int hashCode = 17;
@@ -308,39 +561,64 @@ public final class CurvilinearCoords {
         }
     }
 
+    /**
+     * Returns the area of the [i,j]th cell in square degrees
+     */
+    private double getCellArea(int i, int j) {
+        double centreLon = longitudes[getIndex(i, j)];
+        int c0 = getCornerIndex(i, j);
+        int c1 = c0 + 1;
+        int c3 = c0 + ni + 1;
+        int c2 = c3 + 1;
+        return getArea(GISUtils.getNearestEquivalentLongitude(centreLon, cornerLons[c0]),
+                cornerLats[c0], GISUtils.getNearestEquivalentLongitude(centreLon, cornerLons[c1]),
+                cornerLats[c1], GISUtils.getNearestEquivalentLongitude(centreLon, cornerLons[c2]),
+                cornerLats[c2], GISUtils.getNearestEquivalentLongitude(centreLon, cornerLons[c3]),
+                cornerLats[c3]);
+    }
+
     /**
      * Returns the area of the quadrilateral defined by the given four vertices.
      * Uses Bretschneider's Formula,
      * http://mathworld.wolfram.com/BretschneidersFormula.html
      */
-    private static double getArea(Point2D p1, Point2D p2, Point2D p3, Point2D p4) {
+    private static double getArea(double x1, double y1, double x2, double y2, double x3,
+            double y3, double x4, double y4) {
         /* The squares of the side lengths */
-        double a2 = p1.distanceSq(p2);
-        double b2 = p2.distanceSq(p3);
-        double c2 = p3.distanceSq(p4);
-        double d2 = p4.distanceSq(p1);
+        double a2 = distanceSq(x1, y1, x2, y2);
+        double b2 = distanceSq(x2, y2, x3, y3);
+        double c2 = distanceSq(x3, y3, x4, y4);
+        double d2 = distanceSq(x4, y4, x1, y1);
         /* The squares of the diagonal lengths */
-        double f2 = p1.distanceSq(p3);
-        double g2 = p2.distanceSq(p4);
+        double f2 = distanceSq(x1, y1, x3, y3);
+        double g2 = distanceSq(x2, y2, x4, y4);
         /* Calculate an intermediate term */
         double term = b2 + d2 - a2 - c2;
         /* Calculate and return the area */
         return Math.sqrt(4 * f2 * g2 - term * term) / 4.0;
     }
 
+    private static double distanceSq(double x1, double y1, double x2, double y2) {
+        double dx = x1 - x2;
+        double dy = y1 - y2;
+        return dx * dx + dy * dy;
+    }
+
     /**
      * Gets the mean area of the cells in this grid, in square degrees.
      */
     public double getMeanCellArea() {
         double sumArea = 0.0;
         int nans = 0;
-        for (Cell cell : getCells()) {
-            double cellArea = cell.getArea();
-            /* Cell areas can be NaN - see Javadoc for Cell.getArea() */
-            if (Double.isNaN(cellArea)) {
-                nans++;
-            } else {
-                sumArea += cellArea;
+        for (int j = 0; j < nj; j++) {
+            for (int i = 0; i < ni; i++) {
+                double cellArea = getCellArea(i, j);
+                /* Cell areas can be NaN - see Javadoc for Cell.getArea() */
+                if (Double.isNaN(cellArea)) {
+                    nans++;
+                } else {
+                    sumArea += cellArea;
+                }
             }
         }
         return sumArea / (size() - nans);
@@ -476,9 +754,7 @@ public final class CurvilinearCoords {
          * </p>
          */
         public double getArea() {
-            List<Point2D> corners = this.getCorners();
-            return CurvilinearCoords.getArea(corners.get(0), corners.get(1), corners.get(2),
-                    corners.get(3));
+            return CurvilinearCoords.this.getCellArea(i, j);
         }
 
         /**
@@ -532,22 +808,16 @@ public final class CurvilinearCoords {
          * the given LonLatPosition
          */
         public double findDistanceSq(double lon, double lat) {
-            LonLatPosition centre = this.getCentre();
-            double dx = lon - centre.getLongitude();
-            double dy = lat - centre.getLatitude();
-            return dx * dx + dy * dy;
+            return CurvilinearCoords.this.getDistanceSq(i, j, lon, lat);
         }
 
         /**
          * Returns true if this cell's {@link #getBoundaryPath() boundary}
-         * contains the given longitude-latitude point.
-         * 
-         * TODO what happens if this cell is represented by NaNs?
+         * contains the given longitude-latitude point. If any corner of this
+         * cell is represented by NaNs, this returns false.
          */
         public boolean contains(double lon, double lat) {
-            lon = harmonizeWithCentre(lon);
-            Path2D path = getBoundaryPath();
-            return path.contains(lon, lat);
+            return CurvilinearCoords.this.cellContains(i, j, lon, lat);
         }
 
         /**
@@ -584,4 +854,111 @@ public final class CurvilinearCoords {
                     centre.getLatitude(), corners);
         }
     }
+
+    /**
+     * A bucket grid over the centres of the valid cells in this grid. Each
+     * bucket holds the indices of the cells whose centres fall within it,
+     * stored in a single array to avoid creating an object per cell.
+     */
+    private final class CellIndex {
+        private final double minLon;
+        private final double maxLon;
+        private final double minLat;
+        private final double maxLat;
+        private final int nLonBuckets;
+        private final int nLatBuckets;
+        private final double lonBucketSize;
+        private final double latBucketSize;
+        /*
+         * The cells in bucket b are cells[bucketStarts[b]] up to (but not
+         * including) cells[bucketStarts[b + 1]]
+         */
+        private final int[] bucketStarts;
+        private final int[] cells;
+        /*
+         * The greatest distance from the centre of a cell to any of its
+         * corners. A cell cannot contain a point which is further than this
+         * from its centre.
+         */
+        private final double maxRadius;
+
+        private CellIndex() {
+            minLon = lonLatBbox.getMinX();
+            maxLon = lonLatBbox.getMaxX();
+            minLat = lonLatBbox.getMinY();
+            maxLat = lonLatBbox.getMaxY();
+
+            int nValid = 0;
+            double maxRadiusSq = 0.0;
+            for (int j = 0; j < nj; j++) {
+                for (int i = 0; i < ni; i++) {
+                    int index = getIndex(i, j);
+                    if (Float.isNaN(longitudes[index])) {
+                        continue;
+                    }
+                    nValid++;
+                    for (int corner = 0; corner < 4; corner++) {
+                        int c = getCornerIndex(i + (corner == 1 || corner == 2 ? 1 : 0), j
+                                + (corner >= 2 ? 1 : 0));
+                        double distanceSq = getDistanceSq(i, j,
+                                GISUtils.getNearestEquivalentLongitude(longitudes[index],
+                                        cornerLons[c]), cornerLats[c]);
+                        /* This also ignores NaN corners */
+                        if (distanceSq > maxRadiusSq) {
+                            maxRadiusSq = distanceSq;
+                        }
+                    }
+                }
+            }
+            maxRadius = Math.sqrt(maxRadiusSq);
+
+            /* Aim for a few cells per bucket, in roughly square buckets */
+            int nBuckets = Math.max(1, nValid / 4);
+            double width = maxLon - minLon;
+            double height = maxLat - minLat;
+            if (width <= 0.0 || height <= 0.0) {
+                nLonBuckets = width > 0.0 ? nBuckets : 1;
+                nLatBuckets = height > 0.0 ? nBuckets : 1;
+            } else {
+                nLonBuckets = (int) Math.max(1,
+                        Math.min(nBuckets, Math.round(Math.sqrt(nBuckets * width / height))));
+                nLatBuckets = Math.max(1, nBuckets / nLonBuckets);
+            }
+            lonBucketSize = width > 0.0 ? width / nLonBuckets : 1.0;
+            latBucketSize = height > 0.0 ? height / nLatBuckets : 1.0;
+
+            /* Count the cells in each bucket, then fill the buckets */
+            bucketStarts = new int[nLonBuckets * nLatBuckets + 1];
+            for (int index = 0; index < longitudes.length; index++) {
+                if (!Float.isNaN(longitudes[index])) {
+                    bucketStarts[getBucket(index) + 1]++;
+                }
+            }
+            for (int b = 0; b < nLonBuckets * nLatBuckets; b++) {
+                bucketStarts[b + 1] += bucketStarts[b];
+            }
+            cells = new int[nValid];
+            int[] positions = Arrays.copyOf(bucketStarts, bucketStarts.length - 1);
+            for (int index = 0; index < longitudes.length; index++) {
+                if (!Float.isNaN(longitudes[index])) {
+                    cells[positions[getBucket(index)]++] = index;
+                }
+            }
+        }
+
+        private int getBucket(int index) {
+            return getLatBucket(latitudes[index]) * nLonBuckets
+                    + getLonBucket(longitudes[index]);
+        }
+
+        private int getLonBucket(double lon) {
+            int bucket = (int) ((lon - minLon) / lonBucketSize);
+            return Math.max(0, Math.min(nLonBuckets - 1, bucket));
+        }
+
+        private int getLatBucket(double lat) {
+            int bucket = (int) ((lat - minLat) / latBucketSize);
+            return Math.max(0, Math.min(nLatBuckets - 1, bucket));
+        }
+    }
 }
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.util.Arrays;
+
+/**
+ * Implementation of an {@link Array2D} which uses a primitive float array for
+ * storage. Missing values are stored as {@link Float#NaN}, and are returned as
+ * <code>null</code> by {@link #get(int...)}.
+ * 
+ * The primitive accessors {@link #getFloat(int, int)} and
+ * {@link #setFloat(int, int, float)} should be used in preference to
+ * {@link #get(int...)} and {@link #set(Number, int...)} wherever performance
+ * matters, since they do not create any objects.
+ * 
+ * @author agent
+ */
+public class FloatArray2D extends Array2D<Number> {
+
+    /* Values stored with the x-dimension varying fastest */
+    private final float[] data;
+    private final int xSize;
+
+    /**
+     * Creates a new {@link FloatArray2D} with all values missing
+     */
+    public FloatArray2D(int ySize, int xSize) {
+        super(ySize, xSize);
+        this.xSize = xSize;
+        data = new float[ySize * xSize];
+        Arrays.fill(data, Float.NaN);
+    }
+
+    /**
+     * Creates a new {@link FloatArray2D} backed by the given data. The array is
+     * not copied.
+     * 
+     * @param data
+     *            The data, with the x-dimension varying fastest. Missing
+     *            values should be {@link Float#NaN}
+     */
+    public FloatArray2D(int ySize, int xSize, float[] data) {
+        super(ySize, xSize);
+        if (data.length != ySize * xSize) {
+            throw new IllegalArgumentException("Data array has " + data.length
+                    + " elements, but the shape requires " + (ySize * xSize));
+        }
+        this.xSize = xSize;
+        this.data = data;
+    }
+
+    @Override
+    public Number get(int... coords) {
+        if (coords.length != 2) {
+            throw new IllegalArgumentException("Wrong number of co-ordinates (" + coords.length
+                    + ") for this Array (needs 2)");
+        }
+        float value = getFloat(coords[Y_IND], coords[X_IND]);
+        return Float.isNaN(value) ? null : value;
+    }
+
+    @Override
+    public void set(Number value, int... coords) {
+        if (coords.length != 2) {
+            throw new IllegalArgumentException("Wrong number of co-ordinates (" + coords.length
+                    + ") for this Array (needs 2)");
+        }
+        setFloat(coords[Y_IND], coords[X_IND], value == null ? Float.NaN : value.floatValue());
+    }
+
+    @Override
+    public float getFloat(int y, int x) {
+        checkBounds(x);
+        return data[y * xSize + x];
+    }
+
+    /**
+     * Sets a value in the array
+     * 
+     * @param value
+     *            The value to set. Use {@link Float#NaN} for a missing value
+     */
+    public void setFloat(int y, int x, float value) {
+        checkBounds(x);
+        data[y * xSize + x] = value;
+    }
+
+    @Override
+    public void copyInto(float[] dest) {
+        System.arraycopy(data, 0, dest, 0, data.length);
+    }
+
+    /**
+     * @return The array backing this {@link FloatArray2D}, with the
+     *         x-dimension varying fastest. Changes to the returned array will
+     *         be reflected in this {@link FloatArray2D}.
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    private void checkBounds(int x) {
+        /*
+         * We need to check the x-bounds explicitly, since otherwise values
+         * would wrap onto the next row. The y-bounds are checked by the array
+         * access.
+         */
+        if (x < 0 || x >= xSize) {
+            throw new ArrayIndexOutOfBoundsException(x);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.util.Arrays;
+
+/**
+ * Implementation of an {@link Array4D} which uses a primitive float array for
+ * storage. Missing values are stored as {@link Float#NaN}, and are returned as
+ * <code>null</code> by {@link #get(int...)}.
+ * 
+ * The primitive accessors {@link #getFloat(int, int, int, int)} and
+ * {@link #setFloat(int, int, int, int, float)} should be used in preference
+ * to {@link #get(int...)} and {@link #set(Number, int...)} wherever
+ * performance matters, since they do not create any objects.
+ * 
+ * @author agent
+ */
+public class FloatArray4D extends Array4D<Number> {
+
+    /* Values stored with x varying fastest, then y, z, t */
+    private final float[] data;
+    private final int xSize;
+    private final int ySize;
+    private final int zSize;
+
+    /**
+     * Creates a new {@link FloatArray4D} with all values missing
+     */
+    public FloatArray4D(int tSize, int zSize, int ySize, int xSize) {
+        this(tSize, zSize, ySize, xSize, newMissingArray(tSize * zSize * ySize * xSize));
+    }
+
+    /**
+     * Creates a new {@link FloatArray4D} backed by the given data. The array is
+     * not copied.
+     * 
+     * @param data
+     *            The data, with the x-dimension varying fastest, followed by
+     *            y, z and t. Missing values should be {@link Float#NaN}
+     */
+    public FloatArray4D(int tSize, int zSize, int ySize, int xSize, float[] data) {
+        super(tSize, zSize, ySize, xSize);
+        if (data.length != tSize * zSize * ySize * xSize) {
+            throw new IllegalArgumentException("Data array has " + data.length
+                    + " elements, but the shape requires " + (tSize * zSize * ySize * xSize));
+        }
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.zSize = zSize;
+        this.data = data;
+    }
+
+    private static float[] newMissingArray(int size) {
+        float[] data = new float[size];
+        Arrays.fill(data, Float.NaN);
+        return data;
+    }
+
+    @Override
+    public Number get(int... coords) {
+        if (coords.length != 4) {
+            throw new IllegalArgumentException("Wrong number of co-ordinates (" + coords.length
+                    + ") for this Array (needs 4)");
+        }
+        float value = getFloat(coords[T_IND], coords[Z_IND], coords[Y_IND], coords[X_IND]);
+        return Float.isNaN(value) ? null : value;
+    }
+
+    @Override
+    public void set(Number value, int... coords) {
+        if (coords.length != 4) {
+            throw new IllegalArgumentException("Wrong number of co-ordinates (" + coords.length
+                    + ") for this Array (needs 4)");
+        }
+        setFloat(coords[T_IND], coords[Z_IND], coords[Y_IND], coords[X_IND],
+                value == null ? Float.NaN : value.floatValue());
+    }
+
+    @Override
+    public float getFloat(int t, int z, int y, int x) {
+        return data[index(t, z, y, x)];
+    }
+
+    /**
+     * Sets a value in the array
+     * 
+     * @param value
+     *            The value to set. Use {@link Float#NaN} for a missing value
+     */
+    public void setFloat(int t, int z, int y, int x, float value) {
+        data[index(t, z, y, x)] = value;
+    }
+
+    @Override
+    public void copyInto(float[] dest) {
+        System.arraycopy(data, 0, dest, 0, data.length);
+    }
+
+    /**
+     * @return The array backing this {@link FloatArray4D}, with the
+     *         x-dimension varying fastest, followed by y, z and t. Changes to
+     *         the returned array will be reflected in this {@link FloatArray4D}
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    private int index(int t, int z, int y, int x) {
+        /*
+         * Only the t-bounds are checked by the array access, so we need to
+         * check the others explicitly to stop values wrapping
+         */
+        if (x < 0 || x >= xSize) {
+            throw new ArrayIndexOutOfBoundsException(x);
+        }
+        if (y < 0 || y >= ySize) {
+            throw new ArrayIndexOutOfBoundsException(y);
+        }
+        if (z < 0 || z >= zSize) {
+            throw new ArrayIndexOutOfBoundsException(z);
+        }
+        return ((t * zSize + z) * ySize + y) * xSize + x;
+    }
+}
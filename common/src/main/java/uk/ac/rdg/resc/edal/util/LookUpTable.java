@@ -28,19 +28,18 @@
 
 package uk.ac.rdg.resc.edal.util;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
-import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
-import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
 import java.awt.image.DataBuffer;
-import java.awt.image.DirectColorModel;
-import java.awt.image.WritableRaster;
+import java.awt.image.DataBufferUShort;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
 
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
-import uk.ac.rdg.resc.edal.util.CurvilinearCoords.Cell;
 
 /**
  * An object that provides an approximate means for mapping from
@@ -67,13 +66,6 @@ public final class LookUpTable {
     // Converts from lat-lon coordinates to index space in the LUT.
     private final AffineTransform transform = new AffineTransform();
 
-    /**
-     * A {@link DirectColorModel} that holds data as unsigned shorts, ignoring
-     * the red and alpha components. (int value = green &lt;&lt; 8 | blue)
-     */
-    private static final ColorModel COLOR_MODEL = new DirectColorModel(16, 0x00000000, 0x0000ff00,
-            0x000000ff, 0x00000000);
-
     /** This value in the look-up table means "missing value" */
     private static final int MISSING_VALUE = 65535;
 
@@ -81,7 +73,24 @@ public final class LookUpTable {
     private static final int MAX_INDEX = 65534;
 
     /**
-     * Creates an empty look-up table (with all indices set to -1).
+     * Receives notifications of progress whilst a {@link LookUpTable} is being
+     * built. The LUT is built in tiles, which may be completed by different
+     * threads, so implementations must be thread-safe.
+     */
+    public interface BuildListener {
+        /**
+         * Called each time a tile of the LUT has been completed
+         * 
+         * @param tilesCompleted
+         *            The number of tiles which have been completed so far
+         * @param totalTiles
+         *            The total number of tiles in the LUT
+         */
+        public void tileCompleted(int tilesCompleted, int totalTiles);
+    }
+
+    /**
+     * Creates a look-up table for the given {@link CurvilinearCoords}
      * 
      * @param curvCoords
      *            The {@link CurvilinearCoords} which this LUT will approximate
@@ -89,6 +98,22 @@ public final class LookUpTable {
      *            The minimum resolution of the LUT in degrees
      */
     public LookUpTable(CurvilinearCoords curvCoords, double minResolution) {
+        this(curvCoords, minResolution, null);
+    }
+
+    /**
+     * Creates a look-up table for the given {@link CurvilinearCoords},
+     * reporting progress as it is built
+     * 
+     * @param curvCoords
+     *            The {@link CurvilinearCoords} which this LUT will approximate
+     * @param minResolution
+     *            The minimum resolution of the LUT in degrees
+     * @param listener
+     *            A {@link BuildListener} to notify of progress, or
+     *            <code>null</code>
+     */
+    public LookUpTable(CurvilinearCoords curvCoords, double minResolution, BuildListener listener) {
         BoundingBox bbox = curvCoords.getBoundingBox();
 
         double lonDiff = bbox.getMaxX() - bbox.getMinX();
@@ -118,80 +143,118 @@ public final class LookUpTable {
         /* Then we translate by the minimum coordinate values */
         transform.translate(-bbox.getMinX(), -bbox.getMinY());
 
+        if (curvCoords.getNi() - 1 > MAX_INDEX || curvCoords.getNj() - 1 > MAX_INDEX) {
+            /* Very unlikely to happen! */
+            throw new IllegalStateException("Can't store indices greater than " + MAX_INDEX);
+        }
+
         /* Populate the look-up tables */
-        makeLuts(curvCoords);
+        makeLuts(curvCoords, listener);
     }
 
     /**
-     * Generates the data for the look-up tables
+     * Creates a look-up table from previously-calculated data
      */
-    private void makeLuts(CurvilinearCoords curvCoords) {
-        /*
-         * Create BufferedImages on which we will paint the i and j indices of
-         * cells
-         */
-        BufferedImage iIm = createBufferedImage();
-        BufferedImage jIm = createBufferedImage();
+    private LookUpTable(int nLon, int nLat, double[] matrix, short[] iData, short[] jData) {
+        this.nLon = nLon;
+        this.nLat = nLat;
+        transform.setTransform(new AffineTransform(matrix));
+        iIndices = new DataBufferUShort(iData, iData.length);
+        jIndices = new DataBufferUShort(jData, jData.length);
+    }
+
+    /**
+     * Writes this look-up table in a compact binary form which can be read
+     * back with {@link #readFrom(DataInput)}
+     * 
+     * @param out
+     *            The {@link DataOutput} to write to
+     * @throws IOException
+     *             If there is a problem writing the data
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(nLon);
+        out.writeInt(nLat);
+        double[] matrix = new double[6];
+        transform.getMatrix(matrix);
+        for (double value : matrix) {
+            out.writeDouble(value);
+        }
+        writeIndices(out, iIndices);
+        writeIndices(out, jIndices);
+    }
 
-        /* Get graphics contexts onto which we'll paint */
-        Graphics2D ig2d = iIm.createGraphics();
-        Graphics2D jg2d = jIm.createGraphics();
+    /**
+     * Reads a look-up table which was written with {@link #writeTo(DataOutput)}
+     * 
+     * @param in
+     *            The {@link DataInput} to read from
+     * @return The {@link LookUpTable}
+     * @throws IOException
+     *             If there is a problem reading the data, or it is not a valid
+     *             look-up table
+     */
+    public static LookUpTable readFrom(DataInput in) throws IOException {
+        int nLon = in.readInt();
+        int nLat = in.readInt();
+        if (nLon <= 0 || nLat <= 0 || (long) nLon * nLat > Integer.MAX_VALUE) {
+            throw new IOException("Invalid look-up table size: " + nLon + "x" + nLat);
+        }
+        double[] matrix = new double[6];
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] = in.readDouble();
+        }
+        short[] iData = readIndices(in, nLon * nLat);
+        short[] jData = readIndices(in, nLon * nLat);
+        return new LookUpTable(nLon, nLat, matrix, iData, jData);
+    }
 
-        /* Apply a transform so that we can paint in lat-lon coordinates */
-        ig2d.setTransform(transform);
-        jg2d.setTransform(transform);
+    /*
+     * The indices are written in blocks, since writing individual shorts to a
+     * stream is very slow for large look-up tables
+     */
+    private static final int IO_BLOCK_SIZE = 8192;
 
-        /*
-         * Populate the BufferedImages using the information from the
-         * curvilinear grid Iterate over all the cells in the grid, painting the
-         * i and j indices of the cell onto the BufferedImage
-         */
-        for (Cell cell : curvCoords.getCells()) {
-            /* Get a Path representing the boundary of the cell */
-            Path2D path = cell.getBoundaryPath();
-            /*
-             * Paint the path onto the BufferedImages as polygons Use the i and
-             * j indices of the cell as the colours
-             */
-            if (cell.getI() > MAX_INDEX || cell.getJ() > MAX_INDEX) {
-                /* Very unlikely to happen! */
-                throw new IllegalStateException("Can't store indices greater than " + MAX_INDEX);
-            }
-            ig2d.setPaint(new Color(cell.getI()));
-            jg2d.setPaint(new Color(cell.getJ()));
-            ig2d.fill(path);
-            jg2d.fill(path);
-
-            /*
-             * We paint a second copy of the cell, shifted by 360 degrees, to
-             * handle the anti-meridian
-             */
-            double shiftLon = cell.getCentre().getLongitude() > 0.0 ? -360.0 : 360.0;
-            path.transform(AffineTransform.getTranslateInstance(shiftLon, 0.0));
-            ig2d.fill(path);
-            jg2d.fill(path);
+    private static void writeIndices(DataOutput out, DataBuffer indices) throws IOException {
+        short[] data = ((DataBufferUShort) indices).getData();
+        ByteBuffer bytes = ByteBuffer.allocate(IO_BLOCK_SIZE * 2);
+        ShortBuffer shorts = bytes.asShortBuffer();
+        for (int offset = 0; offset < data.length; offset += IO_BLOCK_SIZE) {
+            int length = Math.min(IO_BLOCK_SIZE, data.length - offset);
+            shorts.clear();
+            shorts.put(data, offset, length);
+            out.write(bytes.array(), 0, length * 2);
         }
+    }
 
-        /* We only need to store the data buffers, not the whole BufferedImages */
-        iIndices = iIm.getRaster().getDataBuffer();
-        jIndices = jIm.getRaster().getDataBuffer();
+    private static short[] readIndices(DataInput in, int size) throws IOException {
+        short[] data = new short[size];
+        ByteBuffer bytes = ByteBuffer.allocate(IO_BLOCK_SIZE * 2);
+        ShortBuffer shorts = bytes.asShortBuffer();
+        for (int offset = 0; offset < size; offset += IO_BLOCK_SIZE) {
+            int length = Math.min(IO_BLOCK_SIZE, size - offset);
+            in.readFully(bytes.array(), 0, length * 2);
+            shorts.clear();
+            shorts.get(data, offset, length);
+        }
+        return data;
     }
 
     /**
-     * Creates and returns a new {@link BufferedImage} that stores pixel data as
-     * unsigned shorts. Initializes all pixel values to {@link #MISSING_VALUE}.
-     * 
-     * @return
+     * Generates the data for the look-up tables, painting tiles of the LUT in
+     * parallel
      */
-    private BufferedImage createBufferedImage() {
-        WritableRaster raster = COLOR_MODEL.createCompatibleWritableRaster(nLon, nLat);
-        BufferedImage im = new BufferedImage(COLOR_MODEL, raster, true, null);
-        for (int y = 0; y < im.getHeight(); y++) {
-            for (int x = 0; x < im.getWidth(); x++) {
-                im.setRGB(x, y, MISSING_VALUE);
-            }
-        }
-        return im;
+    private void makeLuts(CurvilinearCoords curvCoords, BuildListener listener) {
+        short[] iData = new short[nLon * nLat];
+        short[] jData = new short[nLon * nLat];
+        Arrays.fill(iData, (short) MISSING_VALUE);
+        Arrays.fill(jData, (short) MISSING_VALUE);
+
+        new LookUpTableRasteriser(curvCoords, transform, nLon, nLat, iData, jData, listener)
+                .rasterise();
+
+        iIndices = new DataBufferUShort(iData, iData.length);
+        jIndices = new DataBufferUShort(jData, jData.length);
     }
 
     /**
@@ -245,6 +308,15 @@ public final class LookUpTable {
         return nLat;
     }
 
+    /**
+     * @return The approximate amount of memory used by the indices of this
+     *         look-up table, in bytes
+     */
+    public long getMemoryUsage() {
+        /* Two arrays of shorts */
+        return 4L * nLon * nLat;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -0,0 +1,338 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A memory-bounded cache of {@link LookUpTable}s for curvilinear grids.
+ * Building a {@link LookUpTable} for a large grid is expensive, so they are
+ * shared between all grids with the same coordinates, and (if a directory has
+ * been set) are also stored on disk so that they only need to be built once,
+ * rather than every time the server is restarted.
+ * 
+ * Look-up tables are keyed on the content hash of the
+ * {@link CurvilinearCoords} they approximate (see
+ * {@link CurvilinearCoords#getContentHash()}). If several threads request the
+ * same look-up table at the same time, it is only built (or read from disk)
+ * once (see {@link BuildOnceCache}).
+ * 
+ * @author agent
+ */
+public class LookUpTableCache {
+    private static final Logger log = LoggerFactory.getLogger(LookUpTableCache.class);
+
+    /** The default maximum size of the shared cache, in bytes */
+    public static final long DEFAULT_MAX_SIZE = 256L * 1024L * 1024L;
+
+    /* Identifies look-up table files */
+    private static final int MAGIC = 0x4c555431;
+    /*
+     * Increment this if the format of the stored look-up tables, or the way in
+     * which they are built, changes. Version 3 sampled the pixels of every
+     * table at their centres, so tables whose pixels were a degree or more
+     * across differed from those filled with Graphics2D. Version 4 tables are
+     * identical to those filled with Graphics2D at every scale.
+     */
+    private static final int FILE_VERSION = 4;
+
+    private static final LookUpTableCache INSTANCE = new LookUpTableCache(DEFAULT_MAX_SIZE);
+
+    /* Look-up tables in memory */
+    private final BuildOnceCache<String, LookUpTable> luts;
+
+    private File directory = null;
+
+    /*
+     * Requests which were satisfied from disk, and look-up tables which had to
+     * be built. The BuildOnceCache counts both of these as misses.
+     */
+    private long diskHits = 0L;
+    private long numBuilt = 0L;
+    private long totalBuildTime = 0L;
+
+    /**
+     * @return The {@link LookUpTableCache} shared by all curvilinear grids
+     */
+    public static LookUpTableCache getInstance() {
+        return INSTANCE;
+    }
+
+    LookUpTableCache(long maxSize) {
+        luts = new BuildOnceCache<String, LookUpTable>("Look-up table", maxSize) {
+            @Override
+            protected long getSize(LookUpTable lut) {
+                return lut.getMemoryUsage();
+            }
+        };
+    }
+
+    /**
+     * Gets a {@link LookUpTable} for a curvilinear grid, reading it from disk
+     * or building it if it is not already in the cache.
+     * 
+     * @param curvCoords
+     *            The {@link CurvilinearCoords} which the look-up table will
+     *            approximate
+     * @param minResolution
+     *            The minimum resolution of the look-up table in degrees. This
+     *            should be derived from the coordinates, since it does not
+     *            form part of the key
+     * @return The {@link LookUpTable}. This must not be modified.
+     */
+    public LookUpTable getLookUpTable(final CurvilinearCoords curvCoords,
+            final double minResolution) {
+        final String key = curvCoords.getContentHash();
+        final File dir = getDirectory();
+        try {
+            return luts.get(key, new Callable<LookUpTable>() {
+                @Override
+                public LookUpTable call() {
+                    File lutFile = dir == null ? null : new File(dir, "lut-" + key + ".bin");
+                    LookUpTable lut = readLookUpTable(lutFile, key, minResolution);
+                    if (lut == null) {
+                        lut = buildLookUpTable(curvCoords, minResolution);
+                        writeLookUpTable(lut, lutFile, key, minResolution);
+                    }
+                    return lut;
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Problem building look-up table", e.getCause());
+        }
+    }
+
+    private LookUpTable buildLookUpTable(CurvilinearCoords curvCoords, double minResolution) {
+        long start = System.nanoTime();
+        LookUpTable lut = new LookUpTable(curvCoords, minResolution,
+                new LookUpTable.BuildListener() {
+                    /* Log roughly every 10% */
+                    private final AtomicInteger lastDecile = new AtomicInteger(0);
+
+                    @Override
+                    public void tileCompleted(int tilesCompleted, int totalTiles) {
+                        int decile = (10 * tilesCompleted) / totalTiles;
+                        int last = lastDecile.get();
+                        if (decile > last && lastDecile.compareAndSet(last, decile)) {
+                            log.debug("Building look-up table: " + tilesCompleted + " of "
+                                    + totalTiles + " tiles complete");
+                        }
+                    }
+                });
+        long buildTime = System.nanoTime() - start;
+        synchronized (this) {
+            numBuilt++;
+            totalBuildTime += buildTime;
+        }
+        log.debug("Built " + lut.getNumLonPoints() + "x" + lut.getNumLatPoints()
+                + " look-up table in " + (buildTime / 1000000L) + "ms");
+        return lut;
+    }
+
+    /**
+     * Reads a look-up table from disk.
+     * 
+     * @return The {@link LookUpTable}, or <code>null</code> if it is not
+     *         available
+     */
+    private LookUpTable readLookUpTable(File lutFile, String key, double minResolution) {
+        if (lutFile == null || !lutFile.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(
+                    new FileInputStream(lutFile))));
+            if (in.readInt() != MAGIC || in.readInt() != FILE_VERSION
+                    || !key.equals(in.readUTF()) || in.readDouble() != minResolution) {
+                /*
+                 * An old format, or calculated with a different resolution.
+                 * Either way we just rebuild it.
+                 */
+                log.debug("Ignoring out-of-date look-up table " + lutFile);
+                return null;
+            }
+            LookUpTable lut = LookUpTable.readFrom(in);
+            synchronized (this) {
+                diskHits++;
+            }
+            return lut;
+        } catch (IOException e) {
+            /*
+             * Not a big problem - we will just rebuild it.
+             */
+            log.warn("Problem reading look-up table from " + lutFile, e);
+            lutFile.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.error("Problem closing look-up table file", e);
+                }
+            }
+        }
+    }
+
+    private void writeLookUpTable(final LookUpTable lut, File lutFile, final String key,
+            final double minResolution) {
+        if (lutFile == null) {
+            return;
+        }
+        try {
+            AtomicFile.write(lutFile, new AtomicFile.Writer() {
+                @Override
+                public void writeTo(OutputStream os) throws IOException {
+                    /*
+                     * Look-up tables compress very well, since neighbouring
+                     * points mostly have the same indices
+                     */
+                    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                    try {
+                        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                new DeflaterOutputStream(os, deflater)));
+                        out.writeInt(MAGIC);
+                        out.writeInt(FILE_VERSION);
+                        out.writeUTF(key);
+                        out.writeDouble(minResolution);
+                        lut.writeTo(out);
+                        out.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Problem writing look-up table to " + lutFile, e);
+        }
+    }
+
+    /**
+     * Sets the directory in which look-up tables are stored, so that they
+     * persist between restarts
+     * 
+     * @param directory
+     *            The directory, or <code>null</code> if look-up tables should
+     *            only be held in memory
+     */
+    public synchronized void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    public synchronized File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Sets the maximum size of the cache, evicting look-up tables if necessary
+     * 
+     * @param maxSize
+     *            The maximum size, in bytes
+     */
+    public void setMaxSize(long maxSize) {
+        luts.setMaxSize(maxSize);
+    }
+
+    public long getMaxSize() {
+        return luts.getMaxSize();
+    }
+
+    /**
+     * @return The approximate total size of all look-up tables held in
+     *         memory, in bytes
+     */
+    public long getSize() {
+        return luts.getSize();
+    }
+
+    public int getNumLookUpTables() {
+        return luts.getNumEntries();
+    }
+
+    /**
+     * @return The number of requests satisfied from memory
+     */
+    public long getHits() {
+        return luts.getHits();
+    }
+
+    /**
+     * @return The number of requests satisfied by reading a look-up table
+     *         from disk
+     */
+    public synchronized long getDiskHits() {
+        return diskHits;
+    }
+
+    /**
+     * @return The number of requests for which a look-up table had to be
+     *         built
+     */
+    public synchronized long getMisses() {
+        return numBuilt;
+    }
+
+    /**
+     * @return The mean time taken to build a look-up table, in milliseconds,
+     *         or 0 if none have been built
+     */
+    public synchronized double getMeanBuildTime() {
+        return numBuilt == 0 ? 0.0 : totalBuildTime / 1e6 / numBuilt;
+    }
+
+    /**
+     * Removes all look-up tables from memory and resets the statistics. Any
+     * look-up tables stored on disk are kept.
+     */
+    public void clear() {
+        luts.clear();
+        synchronized (this) {
+            diskHits = 0L;
+            numBuilt = 0L;
+            totalBuildTime = 0L;
+        }
+    }
+}
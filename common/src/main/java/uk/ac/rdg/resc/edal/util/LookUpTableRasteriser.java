@@ -0,0 +1,684 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.awt.geom.AffineTransform;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Paints the cells of a {@link CurvilinearCoords} into the index arrays of a
+ * {@link LookUpTable}.
+ * 
+ * The look-up table is split into square tiles, and the cells which overlap
+ * each tile are painted into it by a scanline polygon filler. Tiles are
+ * painted in parallel. Within a tile, cells are painted in grid order (i
+ * varying fastest), each one twice (the second copy shifted by 360 degrees to
+ * handle the anti-meridian), so later cells overwrite earlier ones exactly as
+ * they would if the whole table were painted in one pass.
+ * 
+ * Each cell is filled with the non-zero winding rule, and a pixel is filled if
+ * the point at which it is sampled is inside the cell, or on a left or top
+ * edge of the cell: filled spans are half-open, so an edge shared by two
+ * cells belongs to exactly one of them. Vertices are transformed to pixel
+ * coordinates in single precision. There are two sampling rules, chosen by
+ * the scale of the table, which are the rules which Java2D uses to fill a
+ * shape through a scaling transform with the default stroke control hint, so
+ * that the tables are identical to those which were previously built by
+ * filling the cell outlines with {@link java.awt.Graphics2D}:
+ * <ul>
+ * <li>When either scale factor of the transform is greater than 1 (pixels
+ * smaller than a degree in either direction, which is the usual case),
+ * vertices are normalised to the nearest quarter-pixel and pixels are sampled
+ * at their centres. The x-coordinate of each edge at successive pixel
+ * centres is tracked with an error term, in the same way as Java2D.</li>
+ * <li>Otherwise, pixels are sampled at their top-left corners. Vertices are
+ * converted to fixed point with 10 bits after the binary point, and edges
+ * are clipped to (just under half a pixel outside) the table before the
+ * conversion, again in the same way as Java2D.</li>
+ * </ul>
+ * 
+ * Cells which have any corners which are NaN (i.e. those next to missing
+ * points in the grid) are not painted.
+ * 
+ * @author agent
+ */
+final class LookUpTableRasteriser {
+    /* The width and height of each tile, in pixels */
+    private static final int TILE_SIZE = 256;
+
+    /*
+     * When sampling pixel centres, the sub-pixel position of each edge is
+     * stored as a fraction of this
+     */
+    private static final int ERRSTEP_MAX = 0x7fffffff;
+
+    /*
+     * Pixels are sampled at their corners when the square of the largest scale
+     * factor of the transform is no greater than this. This is the square of
+     * the minimum pen size at which Java2D switches to its corner-sampling
+     * algorithm.
+     */
+    private static final double MAX_CORNER_SAMPLING_SCALE_SQUARED = 1.000000001;
+
+    /*
+     * When sampling pixel corners, coordinates are stored in fixed point with
+     * this many bits after the binary point
+     */
+    private static final int SUBPIXEL_BITS = 10;
+    private static final int SUBPIXELS = 1 << SUBPIXEL_BITS;
+    /* Edges which are wider than this are set up in double precision */
+    private static final int MAX_FIXED_DX = 1 << (30 - SUBPIXEL_BITS);
+
+    /* The results of clipping the end of a line */
+    private static final int NOT_CLIPPED = 0;
+    private static final int MIN_CLIPPED = 1;
+    private static final int MAX_CLIPPED = 2;
+    private static final int INVISIBLE = 3;
+
+    /*
+     * Used for painting tiles in parallel. Its threads are daemon threads, so
+     * this does not need to be shut down.
+     */
+    private static final ForkJoinPool RASTER_POOL = new ForkJoinPool();
+
+    private final CurvilinearCoords curvCoords;
+    private final AffineTransform transform;
+    private final int nLon;
+    private final int nLat;
+    private final short[] iIndices;
+    private final short[] jIndices;
+    private final LookUpTable.BuildListener listener;
+    private final boolean sampleCorners;
+
+    private final int nTilesX;
+    private final int nTilesY;
+    /*
+     * The polygons which overlap each tile, in painting order. Each polygon is
+     * identified by (2 * cell index + copy), where copy is 1 for the copy
+     * which is shifted by 360 degrees
+     */
+    private final int[][] tilePolygons;
+    private final int[] tileSizes;
+    private final AtomicInteger tilesCompleted = new AtomicInteger(0);
+
+    /**
+     * @param curvCoords
+     *            The {@link CurvilinearCoords} whose cells will be painted
+     * @param transform
+     *            The transform from longitude-latitude coordinates to pixel
+     *            coordinates
+     * @param nLon
+     *            The width of the look-up table
+     * @param nLat
+     *            The height of the look-up table
+     * @param iIndices
+     *            The array to paint the i-indices into, of size nLon*nLat
+     * @param jIndices
+     *            The array to paint the j-indices into, of size nLon*nLat
+     * @param listener
+     *            A {@link LookUpTable.BuildListener} to notify as each tile is
+     *            completed, or <code>null</code>
+     */
+    LookUpTableRasteriser(CurvilinearCoords curvCoords, AffineTransform transform, int nLon,
+            int nLat, short[] iIndices, short[] jIndices, LookUpTable.BuildListener listener) {
+        this.curvCoords = curvCoords;
+        this.transform = transform;
+        this.nLon = nLon;
+        this.nLat = nLat;
+        this.iIndices = iIndices;
+        this.jIndices = jIndices;
+        this.listener = listener;
+        sampleCorners = getMaxScaleSquared(transform) <= MAX_CORNER_SAMPLING_SCALE_SQUARED;
+
+        nTilesX = (nLon + TILE_SIZE - 1) / TILE_SIZE;
+        nTilesY = (nLat + TILE_SIZE - 1) / TILE_SIZE;
+        tilePolygons = new int[nTilesX * nTilesY][];
+        tileSizes = new int[nTilesX * nTilesY];
+    }
+
+    /**
+     * Calculates the square of the largest factor by which a transform scales
+     * lengths, rounded in the same way as Java2D
+     */
+    private static double getMaxScaleSquared(AffineTransform transform) {
+        int nonUniformScale = AffineTransform.TYPE_GENERAL_TRANSFORM
+                | AffineTransform.TYPE_GENERAL_SCALE;
+        if ((transform.getType() & nonUniformScale) == 0) {
+            return Math.abs(transform.getDeterminant());
+        }
+        double a = transform.getScaleX();
+        double b = transform.getShearY();
+        double c = transform.getShearX();
+        double d = transform.getScaleY();
+        double ea = a * a + b * b;
+        double eb = 2 * (a * c + b * d);
+        double ec = c * c + d * d;
+        double hypot = Math.sqrt(eb * eb + (ea - ec) * (ea - ec));
+        return (ea + ec + hypot) / 2.0;
+    }
+
+    /**
+     * Paints all of the cells into the index arrays
+     */
+    void rasterise() {
+        binPolygons();
+        int nTiles = tilePolygons.length;
+        if (nTiles == 1) {
+            paintTiles(0, 1);
+        } else {
+            RASTER_POOL.invoke(new TileTask(0, nTiles));
+        }
+    }
+
+    /**
+     * Finds the tiles which each polygon overlaps
+     */
+    private void binPolygons() {
+        PolygonFiller filler = new PolygonFiller();
+        int nPolygons = 2 * curvCoords.size();
+        for (int polygon = 0; polygon < nPolygons; polygon++) {
+            if (!filler.setPolygon(polygon)) {
+                continue;
+            }
+            int minRow = Math.max(0, filler.minRow);
+            int maxRow = Math.min(nLat, filler.maxRow);
+            int minCol = Math.max(0, filler.minCol);
+            int maxCol = Math.min(nLon, filler.maxCol);
+            if (minRow >= maxRow || minCol >= maxCol) {
+                /* Outside the look-up table */
+                continue;
+            }
+            for (int tileY = minRow / TILE_SIZE; tileY <= (maxRow - 1) / TILE_SIZE; tileY++) {
+                for (int tileX = minCol / TILE_SIZE; tileX <= (maxCol - 1) / TILE_SIZE; tileX++) {
+                    int tile = tileY * nTilesX + tileX;
+                    int[] polygons = tilePolygons[tile];
+                    if (polygons == null) {
+                        polygons = new int[16];
+                        tilePolygons[tile] = polygons;
+                    } else if (tileSizes[tile] == polygons.length) {
+                        polygons = Arrays.copyOf(polygons, polygons.length * 2);
+                        tilePolygons[tile] = polygons;
+                    }
+                    polygons[tileSizes[tile]++] = polygon;
+                }
+            }
+        }
+    }
+
+    /**
+     * Paints the tiles from startTile (inclusive) to endTile (exclusive)
+     */
+    private void paintTiles(int startTile, int endTile) {
+        PolygonFiller filler = new PolygonFiller();
+        for (int tile = startTile; tile < endTile; tile++) {
+            int tileX0 = (tile % nTilesX) * TILE_SIZE;
+            int tileY0 = (tile / nTilesX) * TILE_SIZE;
+            int tileX1 = Math.min(nLon, tileX0 + TILE_SIZE);
+            int tileY1 = Math.min(nLat, tileY0 + TILE_SIZE);
+            int[] polygons = tilePolygons[tile];
+            for (int p = 0; p < tileSizes[tile]; p++) {
+                filler.setPolygon(polygons[p]);
+                filler.fill(tileX0, tileY0, tileX1, tileY1);
+            }
+            /* This tile is no longer needed */
+            tilePolygons[tile] = null;
+            int completed = tilesCompleted.incrementAndGet();
+            if (listener != null) {
+                listener.tileCompleted(completed, tilePolygons.length);
+            }
+        }
+    }
+
+    /**
+     * Recursively splits a range of tiles into single tiles which are painted
+     * in parallel
+     */
+    private final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int startTile;
+        private final int endTile;
+
+        private TileTask(int startTile, int endTile) {
+            this.startTile = startTile;
+            this.endTile = endTile;
+        }
+
+        @Override
+        protected void compute() {
+            if (endTile - startTile <= 1) {
+                paintTiles(startTile, endTile);
+            } else {
+                int midTile = (startTile + endTile) >>> 1;
+                invokeAll(new TileTask(startTile, midTile), new TileTask(midTile, endTile));
+            }
+        }
+    }
+
+    /**
+     * Calculates the edges of a single polygon and fills it. Each thread uses
+     * its own {@link PolygonFiller}, which does not create any objects once it
+     * has been constructed.
+     */
+    private final class PolygonFiller {
+        private final double[] cornerLons = new double[4];
+        private final double[] cornerLats = new double[4];
+        private final double[] coords = new double[8];
+        private final float[] points = new float[8];
+        /* The end points of a line being clipped, and the result */
+        private final float[] line = new float[4];
+        private final float[] clampedEnd = new float[2];
+
+        /*
+         * The state of each edge of the current polygon. When sampling pixel
+         * corners, each side of the polygon can be clipped into three edges,
+         * and curx and bumpx are in fixed point.
+         */
+        private int nEdges;
+        private final int[] curx = new int[12];
+        private final int[] cury = new int[12];
+        private final int[] lasty = new int[12];
+        private final int[] error = new int[12];
+        private final int[] bumpx = new int[12];
+        private final int[] bumperr = new int[12];
+        private final int[] windDir = new int[12];
+
+        /*
+         * The rows (exclusive of maxRow) which the polygon covers, and a
+         * (generous) estimate of the columns
+         */
+        private int minRow;
+        private int maxRow;
+        private int minCol;
+        private int maxCol;
+
+        /* The values to paint */
+        private short iValue;
+        private short jValue;
+
+        /* The edges which cross the current row, sorted by x */
+        private final int[] rowXs = new int[12];
+        private final int[] rowWinds = new int[12];
+
+        /**
+         * Calculates the edges of a polygon
+         * 
+         * @return false if the polygon should not be painted
+         */
+        private boolean setPolygon(int polygon) {
+            int cell = polygon >> 1;
+            int i = cell % curvCoords.getNi();
+            int j = cell / curvCoords.getNi();
+            curvCoords.getCellCorners(i, j, cornerLons, cornerLats);
+            for (int c = 0; c < 4; c++) {
+                if (Double.isNaN(cornerLons[c]) || Double.isNaN(cornerLats[c])) {
+                    return false;
+                }
+                coords[2 * c] = cornerLons[c];
+                coords[2 * c + 1] = cornerLats[c];
+            }
+            if ((polygon & 1) == 1) {
+                /*
+                 * The second copy of the cell, shifted by 360 degrees, to
+                 * handle the anti-meridian
+                 */
+                double shiftLon = curvCoords.getCentreLongitude(i, j) > 0.0 ? -360.0 : 360.0;
+                for (int c = 0; c < 4; c++) {
+                    coords[2 * c] += shiftLon;
+                }
+            }
+            iValue = (short) i;
+            jValue = (short) j;
+
+            /* Transform to pixel coordinates, in single precision */
+            transform.transform(coords, 0, points, 0, 4);
+            nEdges = 0;
+            minRow = Integer.MAX_VALUE;
+            maxRow = Integer.MIN_VALUE;
+            if (sampleCorners) {
+                return setCornerSampledEdges();
+            }
+
+            float minX = Float.POSITIVE_INFINITY;
+            float maxX = Float.NEGATIVE_INFINITY;
+            for (int c = 0; c < 4; c++) {
+                /* Normalise the coordinates, as the stroke control hint does */
+                points[2 * c] = (float) Math.floor(points[2 * c] + 0.25f) + 0.25f;
+                points[2 * c + 1] = (float) Math.floor(points[2 * c + 1] + 0.25f) + 0.25f;
+                minX = Math.min(minX, points[2 * c]);
+                maxX = Math.max(maxX, points[2 * c]);
+            }
+            for (int c = 0; c < 4; c++) {
+                int next = (c + 1) % 4;
+                addEdge(points[2 * c], points[2 * c + 1], points[2 * next],
+                        points[2 * next + 1]);
+            }
+            /*
+             * The x-position of an edge at a given row is calculated
+             * incrementally, so allow some leeway in the column range
+             */
+            minCol = (int) Math.ceil(minX - 0.5f) - 2;
+            maxCol = (int) Math.ceil(maxX - 0.5f) + 2;
+            return nEdges > 0;
+        }
+
+        /**
+         * Calculates the edges of the current polygon for sampling at pixel
+         * corners
+         * 
+         * @return false if the polygon does not cover any pixels
+         */
+        private boolean setCornerSampledEdges() {
+            minCol = Integer.MAX_VALUE;
+            maxCol = Integer.MIN_VALUE;
+            for (int c = 0; c < 4; c++) {
+                int next = (c + 1) % 4;
+                if (next == 0 && points[6] == points[0] && points[7] == points[1]) {
+                    /* The polygon is already closed */
+                    break;
+                }
+                addClippedLine(points[2 * c], points[2 * c + 1], points[2 * next],
+                        points[2 * next + 1]);
+            }
+            return nEdges > 0;
+        }
+
+        /**
+         * Clips a side of the polygon to the table and adds the result as
+         * fixed-point edges. The parts of the line above or below the table
+         * are discarded, as are those to the right. The parts to the left are
+         * moved onto the left boundary, since they still change the winding
+         * number of the pixels to their right.
+         */
+        private void addClippedLine(float x1, float y1, float x2, float y2) {
+            float minX = -0.5f;
+            float maxX = nLon - 0.5f - 1.0f / SUBPIXELS;
+            float minY = -0.5f;
+            float maxY = nLat - 0.5f - 1.0f / SUBPIXELS;
+            line[0] = x1;
+            line[1] = y1;
+            line[2] = x2;
+            line[3] = y2;
+            if (clip(1, 0, 3, 2, minY, maxY) == INVISIBLE
+                    || clip(3, 2, 1, 0, minY, maxY) == INVISIBLE) {
+                return;
+            }
+
+            int clipped = clampX(0, 2, minX, maxX);
+            if (clipped == INVISIBLE) {
+                return;
+            }
+            int fx1 = toFixed(line[0]);
+            int fy1 = toFixed(line[1]);
+            if (clipped == MIN_CLIPPED) {
+                addFixedEdge(toFixed(clampedEnd[0]), toFixed(clampedEnd[1]), fx1, fy1);
+            }
+
+            clipped = clampX(2, 0, minX, maxX);
+            int fx2 = toFixed(line[2]);
+            int fy2 = toFixed(line[3]);
+            addFixedEdge(fx1, fy1, fx2, fy2);
+            if (clipped == MIN_CLIPPED) {
+                addFixedEdge(fx2, fy2, toFixed(clampedEnd[0]), toFixed(clampedEnd[1]));
+            }
+        }
+
+        /**
+         * Clips one end of the current line to a range of x or y. Indices a1
+         * and b1 are the coordinates of that end in the clipped dimension and
+         * the other dimension respectively, and a2 and b2 those of the other
+         * end.
+         * 
+         * @return One of {@link LookUpTableRasteriser#NOT_CLIPPED},
+         *         {@link LookUpTableRasteriser#MIN_CLIPPED},
+         *         {@link LookUpTableRasteriser#MAX_CLIPPED} or
+         *         {@link LookUpTableRasteriser#INVISIBLE} (if the whole line
+         *         is outside the range, in which case it is not changed)
+         */
+        private int clip(int a1, int b1, int a2, int b2, float min, float max) {
+            double t;
+            int result;
+            if (line[a1] < min) {
+                if (line[a2] < min) {
+                    return INVISIBLE;
+                }
+                t = min;
+                result = MIN_CLIPPED;
+            } else if (line[a1] > max) {
+                if (line[a2] > max) {
+                    return INVISIBLE;
+                }
+                t = max;
+                result = MAX_CLIPPED;
+            } else {
+                return NOT_CLIPPED;
+            }
+            /* The same mix of single and double precision as Java2D */
+            line[b1] = (float) (line[b1] + (t - line[a1]) * (line[b2] - line[b1])
+                    / (line[a2] - line[a1]));
+            line[a1] = (float) t;
+            return result;
+        }
+
+        /**
+         * Clips one end of the current line to the range of x. If the end was
+         * to the left of the range, its original position moved onto the left
+         * boundary is stored in clampedEnd. A line which is entirely to the
+         * left of the range is moved onto the left boundary.
+         * 
+         * @param end
+         *            The index of the x-coordinate of the end to clip
+         * @param other
+         *            The index of the x-coordinate of the other end
+         * @return The result of the clipping
+         */
+        private int clampX(int end, int other, float min, float max) {
+            clampedEnd[1] = line[end + 1];
+            int clipped = clip(end, end + 1, other, other + 1, min, max);
+            clampedEnd[0] = line[end];
+            if (clipped == INVISIBLE && line[end] <= max) {
+                line[end] = min;
+                line[other] = min;
+                clipped = NOT_CLIPPED;
+            }
+            return clipped;
+        }
+
+        private int toFixed(float v) {
+            return (int) (v * SUBPIXELS);
+        }
+
+        /**
+         * Adds a fixed-point edge, calculating its x-coordinate at the first
+         * row of pixel corners it crosses and how this changes with each row
+         */
+        private void addFixedEdge(int x0, int y0, int x1, int y1) {
+            if (y0 == y1) {
+                return;
+            }
+            int topX = y0 < y1 ? x0 : x1;
+            int topY = Math.min(y0, y1);
+            /* The first row it crosses, and the first row below it */
+            int istarty = (topY + SUBPIXELS - 1) >> SUBPIXEL_BITS;
+            int ilasty = (Math.max(y0, y1) + SUBPIXELS - 1) >> SUBPIXEL_BITS;
+            if (istarty >= ilasty) {
+                /* The edge does not cross any rows of pixel corners */
+                return;
+            }
+            int dx = x1 - x0;
+            int dy = y1 - y0;
+            int ystartbump = (istarty << SUBPIXEL_BITS) - topY;
+            if (Math.abs(dx) > MAX_FIXED_DX) {
+                bumpx[nEdges] = (int) ((double) dx * SUBPIXELS / dy);
+                curx[nEdges] = topX + (int) ((double) dx * ystartbump / dy);
+            } else {
+                bumpx[nEdges] = (dx << SUBPIXEL_BITS) / dy;
+                curx[nEdges] = topX + dx * ystartbump / dy;
+            }
+            cury[nEdges] = istarty;
+            lasty[nEdges] = ilasty;
+            windDir[nEdges] = y0 < y1 ? 1 : -1;
+            nEdges++;
+
+            minRow = Math.min(minRow, istarty);
+            maxRow = Math.max(maxRow, ilasty);
+            /* Allow for the rounding of the x-position at each row */
+            minCol = Math.min(minCol, (Math.min(x0, x1) >> SUBPIXEL_BITS) - 2);
+            maxCol = Math.max(maxCol, (Math.max(x0, x1) >> SUBPIXEL_BITS) + 3);
+        }
+
+        /**
+         * Adds an edge, calculating its x-coordinate at the first pixel centre
+         * it crosses and how this changes with each row
+         */
+        private void addEdge(float x0, float y0, float x1, float y1) {
+            int dir = 1;
+            if (y0 > y1) {
+                float t = x0;
+                x0 = x1;
+                x1 = t;
+                t = y0;
+                y0 = y1;
+                y1 = t;
+                dir = -1;
+            }
+            /* The first and last rows whose pixel centres the edge crosses */
+            int istarty = (int) Math.ceil(y0 - 0.5f);
+            int ilasty = (int) Math.ceil(y1 - 0.5f);
+            if (istarty >= ilasty) {
+                /* The edge does not cross any pixel centres */
+                return;
+            }
+            float dx = x1 - x0;
+            float dy = y1 - y0;
+            float slope = dx / dy;
+            /* The x-coordinate where the edge crosses the first pixel centre */
+            float ystartbump = istarty + 0.5f - y0;
+            x0 += ystartbump * dx / dy;
+            int istartx = (int) Math.ceil(x0 - 0.5f);
+
+            curx[nEdges] = istartx;
+            cury[nEdges] = istarty;
+            lasty[nEdges] = ilasty;
+            bumpx[nEdges] = (int) Math.floor(slope);
+            bumperr[nEdges] = (int) ((slope - Math.floor(slope)) * ERRSTEP_MAX);
+            error[nEdges] = (int) ((x0 - (istartx - 0.5f)) * ERRSTEP_MAX);
+            windDir[nEdges] = dir;
+            nEdges++;
+
+            minRow = Math.min(minRow, istarty);
+            maxRow = Math.max(maxRow, ilasty);
+        }
+
+        /**
+         * Moves an edge on by the given number of rows
+         */
+        private void advance(int edge, int nRows) {
+            long err = error[edge] + (long) nRows * bumperr[edge];
+            curx[edge] += nRows * bumpx[edge] + (int) (err >>> 31);
+            error[edge] = (int) (err & ERRSTEP_MAX);
+            cury[edge] += nRows;
+        }
+
+        /**
+         * Fills the part of the current polygon which is inside the given tile
+         */
+        private void fill(int tileX0, int tileY0, int tileX1, int tileY1) {
+            int startRow = Math.max(minRow, tileY0);
+            int endRow = Math.min(maxRow, tileY1);
+            if (!sampleCorners) {
+                for (int e = 0; e < nEdges; e++) {
+                    if (cury[e] < startRow && lasty[e] > startRow) {
+                        advance(e, startRow - cury[e]);
+                    }
+                }
+            }
+            for (int y = startRow; y < endRow; y++) {
+                /* Find the edges which cross this row, sorted by x */
+                int nCrossings = 0;
+                for (int e = 0; e < nEdges; e++) {
+                    int x;
+                    if (sampleCorners) {
+                        if (y < cury[e] || y >= lasty[e]) {
+                            continue;
+                        }
+                        /* The first column whose corners are right of the edge */
+                        x = (curx[e] + (y - cury[e]) * bumpx[e] + SUBPIXELS - 1) >> SUBPIXEL_BITS;
+                    } else {
+                        if (cury[e] != y || y >= lasty[e]) {
+                            continue;
+                        }
+                        x = curx[e];
+                        advance(e, 1);
+                    }
+                    int k = nCrossings++;
+                    while (k > 0 && rowXs[k - 1] > x) {
+                        rowXs[k] = rowXs[k - 1];
+                        rowWinds[k] = rowWinds[k - 1];
+                        k--;
+                    }
+                    rowXs[k] = x;
+                    rowWinds[k] = windDir[e];
+                }
+                /* Fill the spans where the winding number is non-zero */
+                int wind = 0;
+                int spanStart = 0;
+                for (int k = 0; k < nCrossings; k++) {
+                    if (wind == 0) {
+                        spanStart = rowXs[k];
+                    }
+                    wind += rowWinds[k];
+                    if (wind == 0) {
+                        int start = Math.max(spanStart, tileX0);
+                        int end = Math.min(rowXs[k], tileX1);
+                        if (start < end) {
+                            int offset = y * nLon;
+                            Arrays.fill(iIndices, offset + start, offset + end, iValue);
+                            Arrays.fill(jIndices, offset + start, offset + end, jValue);
+                        }
+                    }
+                }
+                if (wind != 0) {
+                    /*
+                     * The edges to the right of the table have been clipped
+                     * away, so the span continues to the right-hand side
+                     */
+                    int start = Math.max(spanStart, tileX0);
+                    if (start < tileX1) {
+                        int offset = y * nLon;
+                        Arrays.fill(iIndices, offset + start, offset + tileX1, iValue);
+                        Arrays.fill(jIndices, offset + start, offset + tileX1, jValue);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -150,10 +150,51 @@ public abstract class RArray {
         this.size++;
     }
 
+    /**
+     * Sets the <i>i</i>th element of the array
+     * 
+     * @param i
+     *            The index of the element to set
+     * @param value
+     *            The new value of the element
+     * @throws ArrayIndexOutOfBoundsException
+     *             if {@code i >= size()}
+     * @throws ArithmeticException
+     *             if {@code value} is too large or small to be stored in the
+     *             underlying storage array
+     */
+    public final void set(int i, long value) {
+        if (i < 0 || i >= this.size) {
+            throw new ArrayIndexOutOfBoundsException(i);
+        }
+        if (value < this.getMinValue() || value > this.getMaxValue()) {
+            throw new ArithmeticException(value + " cannot be stored in this array");
+        }
+        this.setElement(i, value);
+    }
+
     public final int size() {
         return this.size;
     }
 
+    /**
+     * @return The number of bytes used by the storage of this array, including
+     *         any spare capacity
+     */
+    public final long getMemoryUsage() {
+        int elementSize;
+        if (storage instanceof byte[]) {
+            elementSize = 1;
+        } else if (storage instanceof short[]) {
+            elementSize = 2;
+        } else if (storage instanceof int[]) {
+            elementSize = 4;
+        } else {
+            elementSize = 8;
+        }
+        return (long) getStorageLength() * elementSize;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.DataReadingCostModel.ReadFootprint;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.FloatArray4D;
+
+/**
+ * Test class for {@link DataReadingCostModel}
+ * 
+ * @author agent
+ */
+public class DataReadingCostModelTest {
+    private RegularGrid sourceGrid;
+
+    @Before
+    public void setUp() {
+        /* A 1-degree global grid */
+        sourceGrid = new RegularGridImpl(-180, -90, 180, 90, DefaultGeographicCRS.WGS84, 360, 180);
+    }
+
+    @Test
+    public void testDenseFootprint() {
+        /* A target grid at the same resolution as the source */
+        RegularGrid targetGrid = new RegularGridImpl(0, 0, 10, 10, DefaultGeographicCRS.WGS84, 10,
+                10);
+        Domain2DMapper mapper = Domain2DMapper.forGrid(sourceGrid, targetGrid);
+        ReadFootprint footprint = new ReadFootprint(mapper);
+
+        assertEquals(1, footprint.getNumReads(DataReadingStrategy.BOUNDING_BOX));
+        assertEquals(10, footprint.getNumReads(DataReadingStrategy.SCANLINE));
+        assertEquals(100, footprint.getNumReads(DataReadingStrategy.PIXEL_BY_PIXEL));
+        assertEquals(100, footprint.getNumValues(DataReadingStrategy.BOUNDING_BOX));
+        assertEquals(100, footprint.getNumValues(DataReadingStrategy.SCANLINE));
+        assertEquals(100, footprint.getNumValues(DataReadingStrategy.PIXEL_BY_PIXEL));
+
+        /* Whatever the costs, one read of the same data is cheapest */
+        assertEquals(DataReadingStrategy.BOUNDING_BOX,
+                new DataReadingCostModel(1.0, 0.001).chooseStrategy(mapper));
+        assertEquals(DataReadingStrategy.BOUNDING_BOX,
+                new DataReadingCostModel(0.001, 1.0).chooseStrategy(mapper));
+    }
+
+    @Test
+    public void testSparseFootprint() {
+        /*
+         * A small target grid covering the whole source grid, so only every
+         * 36th point in each direction is needed
+         */
+        RegularGrid targetGrid = new RegularGridImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84, 10, 5);
+        Domain2DMapper mapper = Domain2DMapper.forGrid(sourceGrid, targetGrid);
+        ReadFootprint footprint = new ReadFootprint(mapper);
+
+        assertEquals(5, footprint.getNumReads(DataReadingStrategy.SCANLINE));
+        assertEquals(50, footprint.getNumValues(DataReadingStrategy.PIXEL_BY_PIXEL));
+        assertTrue(footprint.getNumValues(DataReadingStrategy.SCANLINE) < footprint
+                .getNumValues(DataReadingStrategy.BOUNDING_BOX));
+
+        /* Cheap reads, expensive values: read only what we need */
+        assertEquals(DataReadingStrategy.PIXEL_BY_PIXEL,
+                new DataReadingCostModel(0.001, 1.0).chooseStrategy(mapper));
+        /* Expensive reads, cheap values (e.g. remote data): read once */
+        assertEquals(DataReadingStrategy.BOUNDING_BOX,
+                new DataReadingCostModel(100.0, 1e-6).chooseStrategy(mapper));
+        /* Somewhere in between */
+        assertEquals(DataReadingStrategy.SCANLINE,
+                new DataReadingCostModel(1.0, 0.01).chooseStrategy(mapper));
+    }
+
+    @Test
+    public void testCalibrate() throws IOException, DataReadingException {
+        final int[] nReads = new int[1];
+        GridDataSource dataSource = new GridDataSource() {
+            @Override
+            public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin,
+                    int zmax, int ymin, int ymax, int xmin, int xmax) {
+                nReads[0]++;
+                return new FloatArray4D(tmax - tmin + 1, zmax - zmin + 1, ymax - ymin + 1, xmax
+                        - xmin + 1);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        DataReadingCostModel costModel = DataReadingCostModel.calibrate(dataSource, "var", 0, 0,
+                360, 180);
+        assertTrue(nReads[0] > 0);
+        assertTrue(costModel.getMsPerRead() >= 0.0);
+        assertTrue(costModel.getMsPerValue() > 0.0);
+    }
+}
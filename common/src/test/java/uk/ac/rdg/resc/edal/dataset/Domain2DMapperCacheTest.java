@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.*;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+/**
+ * Test class for {@link Domain2DMapperCache}
+ * 
+ * @author agent
+ */
+public class Domain2DMapperCacheTest {
+    private Domain2DMapperCache cache;
+    private RegularGrid sourceGrid;
+
+    @Before
+    public void setUp() {
+        cache = new Domain2DMapperCache(Domain2DMapperCache.DEFAULT_MAX_SIZE);
+        sourceGrid = new RegularGridImpl(-180, -90, 180, 90, DefaultGeographicCRS.WGS84, 360, 180);
+    }
+
+    private static RegularGrid tile(double minx, double miny) {
+        return new RegularGridImpl(minx, miny, minx + 10, miny + 10, DefaultGeographicCRS.WGS84,
+                16, 16);
+    }
+
+    @Test
+    public void testReuse() {
+        Domain2DMapper mapper = cache.getMapper(sourceGrid, tile(0, 0));
+        /* An equal target grid gives the same mapper */
+        assertSame(mapper, cache.getMapper(sourceGrid, tile(0, 0)));
+        /* A different target grid does not */
+        assertNotSame(mapper, cache.getMapper(sourceGrid, tile(10, 0)));
+        /* Nor does an equal, but different, source grid */
+        RegularGrid otherSource = new RegularGridImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84, 360, 180);
+        assertNotSame(mapper, cache.getMapper(otherSource, tile(0, 0)));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(0.25, cache.getHitRate(), 1e-10);
+        assertEquals(3, cache.getNumMappers());
+        assertTrue(cache.getSize() > 0);
+    }
+
+    @Test
+    public void testCrsIsPartOfKey() throws Exception {
+        RegularGrid latLon = tile(0, 0);
+        RegularGrid otherCrs = new RegularGridImpl(0, 0, 10, 10, GISUtils.getCrs("EPSG:3857"),
+                16, 16);
+        assertNotSame(cache.getMapper(sourceGrid, latLon), cache.getMapper(sourceGrid, otherCrs));
+    }
+
+    @Test
+    public void testMemoryBound() {
+        Domain2DMapper first = cache.getMapper(sourceGrid, tile(0, 0));
+        long mapperSize = first.getMemoryUsage();
+        cache.setMaxSize(2 * mapperSize);
+        cache.getMapper(sourceGrid, tile(10, 0));
+        cache.getMapper(sourceGrid, tile(20, 0));
+
+        assertEquals(2, cache.getNumMappers());
+        assertTrue(cache.getSize() <= 2 * mapperSize);
+        /* The least recently used mapper has been evicted */
+        assertNotSame(first, cache.getMapper(sourceGrid, tile(0, 0)));
+    }
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.*;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RectilinearGridImpl;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.grid.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+
+/**
+ * Test class for {@link Domain2DMapper}. This checks that the mappings for
+ * grids in different CRSs (which are calculated in bulk, in parallel for large
+ * grids, or from a single row and column for separable CRSs) match those found
+ * by transforming each target point individually.
+ */
+public class Domain2DMapperTest {
+    private HorizontalGrid sourceGrid;
+
+    @Before
+    public void setUp() {
+        ReferenceableAxis<Double> longAxis = new RegularAxisImpl("longitude", -179.75, 0.5, 720,
+                true);
+        ReferenceableAxis<Double> latAxis = new RegularAxisImpl("latitude", -89.75, 0.5, 360,
+                false);
+        sourceGrid = new RectilinearGridImpl(longAxis, latAxis, DefaultGeographicCRS.WGS84);
+    }
+
+    @Test
+    public void testSmallReprojectedGrid() throws Exception {
+        /* Small enough to be mapped on a single thread */
+        testReprojectedGrid("EPSG:32661", -2.0e6, -2.0e6, 6.0e6, 6.0e6, 64, 48);
+    }
+
+    @Test
+    public void testLargeReprojectedGrid() throws Exception {
+        /* Large enough to be split across threads */
+        testReprojectedGrid("EPSG:32661", -2.0e6, -2.0e6, 6.0e6, 6.0e6, 512, 400);
+    }
+
+    @Test
+    public void testMercatorGrid() throws Exception {
+        /* Separable, so mapped from a single row and column */
+        testReprojectedGrid("EPSG:3857", -2.0e7, -1.5e7, 1.8e7, 1.2e7, 512, 400);
+    }
+
+    @Test
+    public void testEquidistantCylindricalGrid() throws Exception {
+        testReprojectedGrid("EPSG:4087", -1.0e7, -5.0e6, 1.2e7, 8.0e6, 300, 200);
+    }
+
+    private void testReprojectedGrid(String crsCode, double minx, double miny, double maxx,
+            double maxy, int width, int height) throws Exception {
+        CoordinateReferenceSystem crs = GISUtils.getCrs(crsCode);
+        RegularGridImpl targetGrid = new RegularGridImpl(minx, miny, maxx, maxy, crs, width,
+                height);
+        Domain2DMapper mapper = Domain2DMapper.forGrid(sourceGrid, targetGrid);
+
+        /*
+         * Calculate the expected source index for each target point, one point
+         * at a time
+         */
+        long[] expected = new long[width * height];
+        int expectedMappings = 0;
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                HorizontalPosition pos = GISUtils.transformPosition(targetGrid
+                        .getDomainObjects().get(j, i).getCentre(), DefaultGeographicCRS.WGS84);
+                GridCoordinates2D coords = sourceGrid.findIndexOf(pos);
+                if (coords == null) {
+                    expected[j * width + i] = -1L;
+                } else {
+                    expected[j * width + i] = (long) coords.getY() * sourceGrid.getXSize()
+                            + coords.getX();
+                    expectedMappings++;
+                }
+            }
+        }
+
+        assertTrue(expectedMappings > 0);
+        assertEquals(expectedMappings, mapper.getNumMappings());
+        long lastSource = -1L;
+        int lastTarget = -1;
+        for (int n = 0; n < mapper.getNumMappings(); n++) {
+            long source = mapper.getSourceIndex(n);
+            int target = mapper.getTargetIndex(n);
+            assertEquals(expected[target], source);
+            /* Mappings must be sorted by source, then target index */
+            assertTrue(source > lastSource || (source == lastSource && target > lastTarget));
+            lastSource = source;
+            lastTarget = target;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.GridDataSourcePool.CheckedGridDataSource;
+import uk.ac.rdg.resc.edal.dataset.GridDataSourcePool.GridDataSourceOpener;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+/**
+ * Test class for {@link GridDataSourcePool}
+ *
+ * @author agent
+ */
+public class GridDataSourcePoolTest {
+    private CountingOpener opener1;
+    private CountingOpener opener2;
+    private GridDataSourcePool pool1;
+    private GridDataSourcePool pool2;
+
+    @Before
+    public void setUp() {
+        GridDataSourcePool.setMaxOpenHandles(64);
+        GridDataSourcePool.setMaxIdlePerPool(4);
+        GridDataSourcePool.setIdleTimeout(60000L);
+        opener1 = new CountingOpener();
+        opener2 = new CountingOpener();
+        pool1 = new GridDataSourcePool("test1", opener1);
+        pool2 = new GridDataSourcePool("test2", opener2);
+    }
+
+    @After
+    public void tearDown() {
+        pool1.close();
+        pool2.close();
+        GridDataSourcePool.setMaxOpenHandles(64);
+        GridDataSourcePool.setIdleTimeout(5 * 60 * 1000L);
+    }
+
+    @Test
+    public void testReuse() throws IOException, DataReadingException {
+        GridDataSource source = pool1.borrow();
+        source.read("var", 0, 0, 0, 0, 0, 0, 0, 0);
+        source.close();
+        assertEquals(1, pool1.getNumIdle());
+
+        source = pool1.borrow();
+        source.close();
+        assertEquals(1, opener1.numOpened);
+        assertEquals(0, opener1.numClosed);
+        assertEquals(0.5, pool1.getHitRate(), 1e-10);
+    }
+
+    @Test
+    public void testConcurrentBorrowsAreExclusive() throws IOException {
+        GridDataSource source1 = pool1.borrow();
+        GridDataSource source2 = pool1.borrow();
+        assertEquals(2, opener1.numOpened);
+        source1.close();
+        source2.close();
+        /* Closing twice must not return the handle twice */
+        source2.close();
+        assertEquals(2, pool1.getNumIdle());
+    }
+
+    @Test
+    public void testInvalidate() throws IOException {
+        GridDataSource inUse = pool1.borrow();
+        pool1.borrow().close();
+        assertEquals(1, pool1.getNumIdle());
+
+        pool1.invalidate();
+        assertEquals(0, pool1.getNumIdle());
+        assertEquals(1, opener1.numClosed);
+
+        /* Handles borrowed before invalidation are closed on return */
+        inUse.close();
+        assertEquals(0, pool1.getNumIdle());
+        assertEquals(2, opener1.numClosed);
+
+        pool1.borrow().close();
+        assertEquals(3, opener1.numOpened);
+    }
+
+    @Test
+    public void testOpenBudgetEvictsLeastRecentlyUsed() throws IOException {
+        GridDataSourcePool.setMaxOpenHandles(GridDataSourcePool.getNumOpenHandles() + 2);
+        pool1.borrow().close();
+        pool2.borrow().close();
+        assertEquals(0, opener1.numClosed);
+
+        /* Needs a second handle in pool2, so pool1's idle handle goes */
+        GridDataSource a = pool2.borrow();
+        GridDataSource b = pool2.borrow();
+        assertEquals(1, opener1.numClosed);
+        assertEquals(0, pool1.getNumIdle());
+        a.close();
+        b.close();
+        assertEquals(2, pool2.getNumIdle());
+    }
+
+    @Test
+    public void testIdleTimeout() throws IOException, InterruptedException {
+        GridDataSourcePool.setIdleTimeout(1L);
+        pool1.borrow().close();
+        Thread.sleep(10L);
+        GridDataSourcePool.closeExpired();
+        assertEquals(0, pool1.getNumIdle());
+        assertEquals(1, opener1.numClosed);
+    }
+
+    @Test
+    public void testFailedHandleIsDiscarded() throws IOException, DataReadingException {
+        GridDataSource source = pool1.borrow();
+        try {
+            source.read("fail", 0, 0, 0, 0, 0, 0, 0, 0);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            /* Expected */
+        }
+        source.close();
+        assertEquals(0, pool1.getNumIdle());
+        assertEquals(1, opener1.numClosed);
+    }
+
+    @Test
+    public void testChangedDataInvalidatesPool() throws IOException {
+        GridDataSource a = pool1.borrow();
+        GridDataSource b = pool1.borrow();
+        a.close();
+        b.close();
+        assertEquals(2, pool1.getNumIdle());
+
+        opener1.dataVersion++;
+        GridDataSource source = pool1.borrow();
+        /* Neither stale handle is reused */
+        assertEquals(3, opener1.numOpened);
+        assertEquals(2, opener1.numClosed);
+        assertEquals(0, pool1.getNumIdle());
+        source.close();
+        assertEquals(1, pool1.getNumIdle());
+
+        pool1.borrow().close();
+        assertEquals(3, opener1.numOpened);
+    }
+
+    private static class CountingOpener implements GridDataSourceOpener {
+        private int numOpened = 0;
+        private int numClosed = 0;
+        /* Incremented to simulate a change to the underlying data */
+        private int dataVersion = 0;
+
+        @Override
+        public GridDataSource open() throws IOException {
+            numOpened++;
+            final int openedVersion = dataVersion;
+            return new CheckedGridDataSource() {
+                @Override
+                public boolean isCurrent() {
+                    return openedVersion == dataVersion;
+                }
+
+                @Override
+                public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin,
+                        int zmax, int ymin, int ymax, int xmin, int xmax) throws IOException,
+                        DataReadingException {
+                    if ("fail".equals(variableId)) {
+                        throw new IOException("Read failed");
+                    }
+                    return null;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    numClosed++;
+                }
+            };
+        }
+    }
+}
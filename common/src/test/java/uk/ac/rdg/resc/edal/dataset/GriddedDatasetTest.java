@@ -0,0 +1,712 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.plugins.VectorPlugin;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.feature.MapFeature;
+import uk.ac.rdg.resc.edal.feature.PointSeriesFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.util.Array1D;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.FloatArray4D;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
+
+/**
+ * Test class for reading features from a {@link GriddedDataset}, checking
+ * that data is read with as few reads as possible
+ */
+public class GriddedDatasetTest {
+    private static final float U_VALUE = 3.0f;
+    private static final float V_VALUE = 4.0f;
+    private static final int N_TIMES = 10;
+
+    private RegularGridImpl grid;
+    private TimeAxis tAxis;
+    private TestDataset dataset;
+    private String magId;
+    private String dirId;
+
+    @Before
+    public void setUp() throws EdalException {
+        grid = new RegularGridImpl(-180, -90, 180, 90, DefaultGeographicCRS.WGS84, 36, 18);
+        List<GridVariableMetadata> vars = new ArrayList<GridVariableMetadata>();
+        vars.add(new GridVariableMetadata("u", new Parameter("u", "u", "u", "m/s", null), grid,
+                null, null, true));
+        vars.add(new GridVariableMetadata("v", new Parameter("v", "v", "v", "m/s", null), grid,
+                null, null, true));
+        List<DateTime> times = new ArrayList<DateTime>();
+        for (int t = 0; t < N_TIMES; t++) {
+            times.add(new DateTime(2000, 1, t + 1, 0, 0, DateTimeZone.UTC));
+        }
+        tAxis = new TimeAxisImpl("time", times);
+        vars.add(new GridVariableMetadata("w", new Parameter("w", "w", "w", "m/s", null), grid,
+                null, tAxis, true));
+        dataset = new TestDataset(vars);
+        VectorPlugin vectorPlugin = new VectorPlugin("u", "v", "velocity", true);
+        dataset.addVariablePlugin(vectorPlugin);
+        magId = vectorPlugin.providesVariables()[0];
+        dirId = vectorPlugin.providesVariables()[1];
+    }
+
+    @Test
+    public void testSharedSourcesReadOnce() throws Exception {
+        MapFeature feature = extract(magId, dirId, "u");
+        assertEquals(1, dataset.getNumReads("u"));
+        assertEquals(1, dataset.getNumReads("v"));
+
+        Array2D<Number> mag = feature.getValues(magId);
+        Array2D<Number> dir = feature.getValues(dirId);
+        Array2D<Number> u = feature.getValues("u");
+        for (int j = 0; j < grid.getYSize(); j++) {
+            for (int i = 0; i < grid.getXSize(); i++) {
+                assertEquals(5.0, mag.get(j, i).doubleValue(), 1e-5);
+                assertEquals(Math.toDegrees(Math.atan2(U_VALUE, V_VALUE)), dir.get(j, i)
+                        .doubleValue(), 1e-4);
+                assertEquals(U_VALUE, u.get(j, i).floatValue(), 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void testBackgroundReadsOnCallingThread() throws Exception {
+        extract(magId);
+        assertEquals(2, dataset.readThreads.size());
+
+        dataset.readThreads.clear();
+        GriddedDataset.setBackgroundReads(true);
+        try {
+            extract(magId);
+        } finally {
+            GriddedDataset.setBackgroundReads(false);
+        }
+        assertEquals(Collections.singleton(Thread.currentThread().getName()),
+                dataset.readThreads);
+    }
+
+    @Test
+    public void testFailedReadPropagates() throws Exception {
+        dataset.failingVarId = "v";
+        try {
+            extract(magId);
+            fail("Expected a DataReadingException");
+        } catch (DataReadingException e) {
+            assertTrue(e.getMessage().contains("v"));
+        }
+        /* Every data source must have been closed */
+        assertEquals(0, dataset.openDataSources.get());
+    }
+
+    @Test
+    public void testBoundingBoxTimeseries() throws Exception {
+        /* A 5x4 block of cells. All timeseries can be read in one go */
+        BoundingBox bbox = new BoundingBoxImpl(-40, -20, 10, 20, DefaultGeographicCRS.WGS84);
+        checkTimeseries(bbox, 20);
+        assertEquals(1, dataset.getNumReads("w"));
+
+        /*
+         * With a small memory limit, the same data should be read in several
+         * chunks of time
+         */
+        GriddedDataset.setMaxSeriesReadSize(50);
+        try {
+            checkTimeseries(bbox, 20);
+            assertEquals(1 + N_TIMES / 2, dataset.getNumReads("w"));
+        } finally {
+            GriddedDataset.setMaxSeriesReadSize(4L * 1024L * 1024L);
+        }
+    }
+
+    @Test
+    public void testTimeseriesFromTimeMajorStore() throws Exception {
+        File dir = File.createTempFile("edal-test", "");
+        dir.delete();
+        try {
+            dataset.buildTimeMajorStores(dir).get();
+            int nBuildReads = dataset.getNumReads("w");
+            assertTrue(nBuildReads > 0);
+
+            /*
+             * Timeseries should now come from the store, without reading the
+             * original data
+             */
+            BoundingBox bbox = new BoundingBoxImpl(-40, -20, 10, 20, DefaultGeographicCRS.WGS84);
+            checkTimeseries(bbox, 20);
+            assertEquals(nBuildReads, dataset.getNumReads("w"));
+        } finally {
+            for (File datasetDir : dir.listFiles()) {
+                for (File storeFile : datasetDir.listFiles()) {
+                    storeFile.delete();
+                }
+                datasetDir.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testTimeMajorStoreReloadedWithNewTimes() throws Exception {
+        File dir = File.createTempFile("edal-test", "");
+        dir.delete();
+        try {
+            dataset.buildTimeMajorStores(dir).get();
+
+            /*
+             * A new version of the dataset, whose time axis has moved on by a
+             * day. This shares the same store, which must be rebuilt.
+             */
+            List<DateTime> times = new ArrayList<DateTime>();
+            for (int t = 0; t < N_TIMES; t++) {
+                times.add(new DateTime(2000, 1, t + 2, 0, 0, DateTimeZone.UTC));
+            }
+            List<GridVariableMetadata> vars = new ArrayList<GridVariableMetadata>();
+            vars.add(new GridVariableMetadata("w", new Parameter("w", "w", "w", "m/s", null),
+                    grid, null, new TimeAxisImpl("time", times), true));
+            final TestDataset reloaded = new TestDataset(vars, 1);
+
+            /*
+             * The old version carries on reading whilst the store is rebuilt
+             */
+            final BoundingBox bbox = new BoundingBoxImpl(-40, -20, 10, 20,
+                    DefaultGeographicCRS.WGS84);
+            final AtomicBoolean building = new AtomicBoolean(true);
+            final AtomicReference<Throwable> readFailure = new AtomicReference<Throwable>();
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (building.get()) {
+                            checkTimeseries(dataset, 0, bbox, 20);
+                        }
+                    } catch (Throwable e) {
+                        readFailure.set(e);
+                    }
+                }
+            });
+            reader.start();
+            try {
+                reloaded.buildTimeMajorStores(dir).get();
+            } finally {
+                building.set(false);
+                reader.join();
+            }
+            assertNull(readFailure.get());
+
+            /*
+             * The old version must now read the original data, and the new
+             * version must read from the store
+             */
+            int nReads = dataset.getNumReads("w");
+            checkTimeseries(dataset, 0, bbox, 20);
+            assertTrue(dataset.getNumReads("w") > nReads);
+
+            nReads = reloaded.getNumReads("w");
+            checkTimeseries(reloaded, 1, bbox, 20);
+            assertEquals(nReads, reloaded.getNumReads("w"));
+        } finally {
+            for (File datasetDir : dir.listFiles()) {
+                for (File storeFile : datasetDir.listFiles()) {
+                    storeFile.delete();
+                }
+                datasetDir.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testStatisticsIndex() throws Exception {
+        File dir = File.createTempFile("edal-test", "");
+        dir.delete();
+        try {
+            assertNull(dataset.getSliceStatistics("w", null, null, null));
+            dataset.buildStatisticsIndex(dir).get();
+            int nReads = dataset.getNumReads("w");
+
+            /*
+             * The latest time is used by default
+             */
+            SliceStatistics stats = dataset.getSliceStatistics("w", null, null, null);
+            int tOffset = (N_TIMES - 1) * 10000;
+            assertEquals(tOffset, stats.getMin(), 0f);
+            assertEquals(tOffset + 17 * 100 + 35, stats.getMax(), 0f);
+            assertEquals(tOffset + 8.5 * 100 + 17.5, stats.getMean(), 1e-6);
+            assertEquals(36 * 18, stats.getCount());
+            int total = 0;
+            for (int count : stats.getHistogram()) {
+                total += count;
+            }
+            assertEquals(36 * 18, total);
+
+            stats = dataset.getSliceStatistics("w", tAxis.getCoordinateValue(0), null, null);
+            assertEquals(0f, stats.getMin(), 0f);
+
+            /*
+             * Statistics are available for an area made up of whole blocks.
+             * The first two blocks along each axis contain 9 columns and 5
+             * rows.
+             */
+            BoundingBox bbox = new BoundingBoxImpl(-180, -90, -90, -40,
+                    DefaultGeographicCRS.WGS84);
+            stats = dataset.getSliceStatistics("w", null, null, bbox);
+            assertEquals(tOffset, stats.getMin(), 0f);
+            assertEquals(tOffset + 4 * 100 + 8, stats.getMax(), 0f);
+            assertEquals(9 * 5, stats.getCount());
+
+            /*
+             * They are not available for an area which covers part of a
+             * block, since they would include data from outside the area
+             */
+            bbox = new BoundingBoxImpl(-40, -20, 10, 20, DefaultGeographicCRS.WGS84);
+            assertNull(dataset.getSliceStatistics("w", null, null, bbox));
+
+            /*
+             * No data should have been read to get statistics, and no
+             * statistics are available for derived variables
+             */
+            assertEquals(nReads, dataset.getNumReads("w"));
+            assertNull(dataset.getSliceStatistics(magId, null, null, null));
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testStatisticsIndexAfterSourceChanges() throws Exception {
+        File dir = File.createTempFile("edal-test", "");
+        dir.delete();
+        try {
+            dataset.setSourceVersion(new SourceVersion("v1"));
+            dataset.buildStatisticsIndex(dir).get();
+
+            /*
+             * A new version of the dataset, in which only the data at the
+             * second time has changed. This shares the same index.
+             */
+            List<GridVariableMetadata> vars = new ArrayList<GridVariableMetadata>();
+            vars.add(new GridVariableMetadata("w", new Parameter("w", "w", "w", "m/s", null),
+                    grid, null, tAxis, true));
+            TestDataset modified = new TestDataset(vars, 100);
+            DateTime changedTime = tAxis.getCoordinateValue(1);
+            modified.setSourceVersion(new SourceVersion("v2", "v1", Collections
+                    .singletonList(Extents.newExtent(changedTime, changedTime))));
+            modified.buildStatisticsIndex(dir).get();
+
+            /*
+             * Only the changed slice is read again
+             */
+            assertEquals(1, modified.getNumReads("w"));
+            assertEquals(0f, modified.getSliceStatistics("w", tAxis.getCoordinateValue(0), null,
+                    null).getMin(), 0f);
+            assertEquals(101 * 10000f, modified.getSliceStatistics("w", changedTime, null, null)
+                    .getMin(), 0f);
+
+            /*
+             * The old version can no longer use the index
+             */
+            assertNull(dataset.getSliceStatistics("w", tAxis.getCoordinateValue(0), null, null));
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testMapFromOverviews() throws Exception {
+        RegularGridImpl largeGrid = new RegularGridImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84, 1024, 512);
+        TestDataset largeDataset = new TestDataset(Collections.singletonList(new GridVariableMetadata(
+                "w", new Parameter("w", "w", "w", "m/s", null), largeGrid, null, tAxis, true)));
+        File dir = File.createTempFile("edal-test", "");
+        dir.delete();
+        try {
+            largeDataset.buildOverviews(dir, false);
+
+            /*
+             * Each cell of a 128x64 map covers 8x8 cells of the data, so should
+             * come from the third level of overviews, which averages them.
+             * These are not built yet, so the first map is sampled from the
+             * original data, and the overviews are built in the background.
+             */
+            RegularGridImpl mapGrid = new RegularGridImpl(-180, -90, 180, 90,
+                    DefaultGeographicCRS.WGS84, 128, 64);
+            PlottingDomainParams params = new PlottingDomainParams(mapGrid, null, null, null,
+                    null, tAxis.getCoordinateValue(2));
+            Array2D<Number> values = largeDataset
+                    .extractMapFeatures(Collections.singleton("w"), params).get(0)
+                    .getValues("w");
+            assertEquals(2 * 10000 + 4 * 100 + 4, values.get(0, 0).doubleValue(), 1e-2);
+
+            long end = System.currentTimeMillis() + 10000L;
+            while (values.get(0, 0).doubleValue() != 2 * 10000 + 3.5 * 100 + 3.5
+                    && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+                values = largeDataset.extractMapFeatures(Collections.singleton("w"), params)
+                        .get(0).getValues("w");
+            }
+            int nReads = largeDataset.getNumReads("w");
+            for (int i = 0; i < 2; i++) {
+                values = largeDataset.extractMapFeatures(Collections.singleton("w"), params)
+                        .get(0).getValues("w");
+                for (int y = 0; y < 64; y++) {
+                    for (int x = 0; x < 128; x++) {
+                        assertEquals(2 * 10000 + (8 * y + 3.5) * 100 + (8 * x + 3.5), values
+                                .get(y, x).doubleValue(), 1e-2);
+                    }
+                }
+                /*
+                 * Once they are built, the original data is not read again
+                 */
+                assertEquals(nReads, largeDataset.getNumReads("w"));
+            }
+        } finally {
+            deleteOverviewDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testOverviewsKeptWhilstInUse() throws Exception {
+        RegularGridImpl largeGrid = new RegularGridImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84, 1024, 512);
+        List<GridVariableMetadata> vars = Collections.singletonList(new GridVariableMetadata(
+                "w", new Parameter("w", "w", "w", "m/s", null), largeGrid, null, tAxis, true));
+        File dir = File.createTempFile("edal-test", "");
+        dir.delete();
+        File datasetDir = new File(dir, "test");
+        try {
+            /* Left over from a previous run */
+            File staleDir = new File(datasetDir, "stale");
+            staleDir.mkdirs();
+
+            TestDataset oldDataset = new TestDataset(vars);
+            oldDataset.buildOverviews(dir, true).get();
+            assertFalse(staleDir.exists());
+            File[] oldDirs = datasetDir.listFiles();
+            assertEquals(1, oldDirs.length);
+
+            /*
+             * A new version of the dataset must not remove the overviews of the
+             * old one, which may still be in use
+             */
+            TestDataset newDataset = new TestDataset(vars);
+            newDataset.buildOverviews(dir, false);
+            assertTrue(oldDirs[0].exists());
+            assertEquals(2 * 10000 + 3.5 * 100 + 3.5,
+                    oldDataset.extractMapFeatures(Collections.singleton("w"),
+                            new PlottingDomainParams(new RegularGridImpl(-180, -90, 180, 90,
+                                    DefaultGeographicCRS.WGS84, 128, 64), null, null, null,
+                                    null, tAxis.getCoordinateValue(2))).get(0).getValues("w")
+                            .get(0, 0).doubleValue(), 1e-2);
+
+            /*
+             * Once the old version can no longer be used, its overviews are
+             * removed by the next version
+             */
+            WeakReference<TestDataset> oldRef = new WeakReference<TestDataset>(oldDataset);
+            oldDataset = null;
+            for (int i = 0; i < 50 && oldRef.get() != null; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            Assume.assumeTrue(oldRef.get() == null);
+            new TestDataset(vars).buildOverviews(dir, false);
+            assertFalse(oldDirs[0].exists());
+        } finally {
+            deleteOverviewDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testOverviewsReusedForUnchangedData() throws Exception {
+        RegularGridImpl largeGrid = new RegularGridImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84, 1024, 512);
+        List<GridVariableMetadata> vars = Collections.singletonList(new GridVariableMetadata(
+                "w", new Parameter("w", "w", "w", "m/s", null), largeGrid, null, tAxis, true));
+        PlottingDomainParams params = new PlottingDomainParams(new RegularGridImpl(-180, -90,
+                180, 90, DefaultGeographicCRS.WGS84, 128, 64), null, null, null, null,
+                tAxis.getCoordinateValue(5));
+        File dir = File.createTempFile("edal-test", "");
+        dir.delete();
+        try {
+            TestDataset oldDataset = new TestDataset(vars);
+            oldDataset.setSourceVersion(new SourceVersion("v1"));
+            oldDataset.buildOverviews(dir, true).get();
+            assertEquals(N_TIMES, oldDataset.getNumReads("w"));
+
+            /*
+             * Another instance of the same version uses the same overviews
+             * straight away
+             */
+            TestDataset sameDataset = new TestDataset(vars);
+            sameDataset.setSourceVersion(new SourceVersion("v1"));
+            assertNull(sameDataset.buildOverviews(dir, false));
+            assertEquals(5 * 10000 + 3.5 * 100 + 3.5,
+                    sameDataset.extractMapFeatures(Collections.singleton("w"), params).get(0)
+                            .getValues("w").get(0, 0).doubleValue(), 1e-2);
+            assertEquals(0, sameDataset.getNumReads("w"));
+
+            /*
+             * A new version in which only the data at one time has changed
+             * copies the overviews of the other times
+             */
+            TestDataset newDataset = new TestDataset(vars);
+            DateTime changedTime = tAxis.getCoordinateValue(2);
+            newDataset.setSourceVersion(new SourceVersion("v2", "v1", Collections
+                    .singletonList(Extents.newExtent(changedTime, changedTime))));
+            newDataset.buildOverviews(dir, true).get();
+            assertEquals(1, newDataset.getNumReads("w"));
+            assertEquals(5 * 10000 + 3.5 * 100 + 3.5,
+                    newDataset.extractMapFeatures(Collections.singleton("w"), params).get(0)
+                            .getValues("w").get(0, 0).doubleValue(), 1e-2);
+            assertEquals(1, newDataset.getNumReads("w"));
+            assertEquals(2, new File(dir, "test").listFiles().length);
+        } finally {
+            deleteOverviewDirectory(dir);
+        }
+    }
+
+    private static void deleteOverviewDirectory(File dir) {
+        File datasetDir = new File(dir, "test");
+        if (datasetDir.listFiles() != null) {
+            for (File versionDir : datasetDir.listFiles()) {
+                for (File varDir : versionDir.listFiles()) {
+                    for (File file : varDir.listFiles()) {
+                        file.delete();
+                    }
+                    varDir.delete();
+                }
+                versionDir.delete();
+            }
+        }
+        datasetDir.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testStridedMapRead() throws Exception {
+        RegularGridImpl largeGrid = new RegularGridImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84, 1024, 512);
+        TestDataset largeDataset = new TestDataset(Collections.singletonList(new GridVariableMetadata(
+                "index", new Parameter("index", "index", "index", "1", null), largeGrid, null,
+                tAxis, true)));
+
+        /*
+         * Each cell of a 128x64 map covers exactly 8x8 cells of the data, so
+         * only one value in each 8x8 block should be read
+         */
+        RegularGridImpl mapGrid = new RegularGridImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84, 128, 64);
+        Array2D<Number> values = largeDataset.extractMapFeatures(Collections.singleton("index"),
+                new PlottingDomainParams(mapGrid, null, null, null, null, null)).get(0)
+                .getValues("index");
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 128; x++) {
+                assertEquals((8 * y + 4) * 2048 + (8 * x + 4), values.get(y, x).intValue());
+            }
+        }
+        assertEquals(128 * 64, largeDataset.nValuesRead.get());
+
+        /*
+         * Each cell of a 100x50 map covers 10.24x10.24 cells of the data. The
+         * data cells read should still overlap the correct map cell, and there
+         * should be roughly one per map cell.
+         */
+        largeDataset.nValuesRead.set(0);
+        mapGrid = new RegularGridImpl(-180, -90, 180, 90, DefaultGeographicCRS.WGS84, 100, 50);
+        values = largeDataset.extractMapFeatures(Collections.singleton("index"),
+                new PlottingDomainParams(mapGrid, null, null, null, null, null)).get(0)
+                .getValues("index");
+        for (int y = 0; y < 50; y++) {
+            for (int x = 0; x < 100; x++) {
+                int index = values.get(y, x).intValue();
+                assertTrue(index % 2048 < (x + 1) * 10.24 && index % 2048 + 1 > x * 10.24);
+                assertTrue(index / 2048 < (y + 1) * 10.24 && index / 2048 + 1 > y * 10.24);
+            }
+        }
+        assertTrue(largeDataset.nValuesRead.get() < 2 * 100 * 50);
+    }
+
+    private void checkTimeseries(BoundingBox bbox, int expectedFeatures) throws Exception {
+        checkTimeseries(dataset, 0, bbox, expectedFeatures);
+    }
+
+    private void checkTimeseries(TestDataset dataset, int tOffset, BoundingBox bbox,
+            int expectedFeatures) throws Exception {
+        PlottingDomainParams params = new PlottingDomainParams(1, 1, bbox, null, null, null,
+                null, null);
+        List<? extends PointSeriesFeature> features = dataset.extractTimeseriesFeatures(
+                Collections.singleton("w"), params);
+        assertEquals(expectedFeatures, features.size());
+        for (PointSeriesFeature feature : features) {
+            GridCoordinates2D coords = grid.findIndexOf(feature.getHorizontalPosition());
+            Array1D<Number> values = feature.getValues("w");
+            assertEquals(N_TIMES, values.size());
+            for (int t = 0; t < N_TIMES; t++) {
+                assertEquals((t + tOffset) * 10000 + coords.getY() * 100 + coords.getX(),
+                        values.get(t).intValue());
+            }
+        }
+    }
+
+    private MapFeature extract(String... varIds) throws Exception {
+        PlottingDomainParams params = new PlottingDomainParams(grid, null, null, null, null, null);
+        List<MapFeature> features = dataset.extractMapFeatures(
+                new HashSet<String>(Arrays.asList(varIds)), params);
+        assertEquals(1, features.size());
+        return features.get(0);
+    }
+
+    private static final class TestDataset extends GriddedDataset {
+        private final Map<String, AtomicInteger> nReads = new ConcurrentHashMap<String, AtomicInteger>();
+        private final AtomicInteger openDataSources = new AtomicInteger(0);
+        private final AtomicLong nValuesRead = new AtomicLong(0);
+        private volatile String failingVarId = null;
+        /* The offset of the time indices used to generate values */
+        private final int tOffset;
+        /* The names of the threads which have read data */
+        private final Set<String> readThreads = Collections
+                .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        private TestDataset(List<GridVariableMetadata> vars) {
+            this(vars, 0);
+        }
+
+        private TestDataset(List<GridVariableMetadata> vars, int tOffset) {
+            super("test", vars);
+            this.tOffset = tOffset;
+        }
+
+        private int getNumReads(String varId) {
+            AtomicInteger count = nReads.get(varId);
+            return count == null ? 0 : count.get();
+        }
+
+        @Override
+        protected GridDataSource openGridDataSource() throws IOException {
+            openDataSources.incrementAndGet();
+            return new StridedGridDataSource() {
+                @Override
+                public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin,
+                        int zmax, int ymin, int ymax, int xmin, int xmax)
+                        throws DataReadingException {
+                    return read(variableId, tmin, tmax, zmin, zmax, ymin, ymax, 1, xmin, xmax, 1);
+                }
+
+                @Override
+                public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin,
+                        int zmax, int ymin, int ymax, int ystride, int xmin, int xmax,
+                        int xstride) throws DataReadingException {
+                    if (variableId.equals(failingVarId)) {
+                        throw new DataReadingException("Cannot read " + variableId);
+                    }
+                    readThreads.add(Thread.currentThread().getName());
+                    nReads.putIfAbsent(variableId, new AtomicInteger(0));
+                    nReads.get(variableId).incrementAndGet();
+                    FloatArray4D data = new FloatArray4D(tmax - tmin + 1, zmax - zmin + 1,
+                            (ymax - ymin) / ystride + 1, (xmax - xmin) / xstride + 1);
+                    nValuesRead.addAndGet(data.size());
+                    for (int t = 0; t <= tmax - tmin; t++) {
+                        for (int j = 0; j < data.getYSize(); j++) {
+                            for (int i = 0; i < data.getXSize(); i++) {
+                                int y = ymin + j * ystride;
+                                int x = xmin + i * xstride;
+                                float value;
+                                if (variableId.equals("w")) {
+                                    /* Encode the indices in the value */
+                                    value = (t + tmin + tOffset) * 10000 + y * 100 + x;
+                                } else if (variableId.equals("index")) {
+                                    /* Just the horizontal index */
+                                    value = y * 2048 + x;
+                                } else {
+                                    value = variableId.equals("u") ? U_VALUE : V_VALUE;
+                                }
+                                data.setFloat(t, 0, j, i, value);
+                            }
+                        }
+                    }
+                    return data;
+                }
+
+                @Override
+                public void close() {
+                    openDataSources.decrementAndGet();
+                }
+            };
+        }
+
+        @Override
+        protected boolean supportsConcurrentReads() {
+            return true;
+        }
+
+        @Override
+        protected DataReadingStrategy getDataReadingStrategy() {
+            return DataReadingStrategy.BOUNDING_BOX;
+        }
+    }
+}
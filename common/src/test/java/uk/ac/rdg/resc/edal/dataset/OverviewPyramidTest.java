@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.FloatArray4D;
+
+/**
+ * Test class for {@link OverviewPyramid}
+ */
+public class OverviewPyramidTest {
+    private static final SourceVersion VERSION = new SourceVersion("v1");
+    private static final long[] TIMES = new long[] { 0L, 1000L, 2000L };
+
+    /* Large enough for a single level of overviews */
+    private RegularGridImpl grid;
+    private File dir;
+    private int nReads;
+
+    @Before
+    public void setUp() throws IOException {
+        grid = new RegularGridImpl(-180, -90, 180, 90, DefaultGeographicCRS.WGS84, 256, 128);
+        dir = File.createTempFile("edal-test", "");
+        dir.delete();
+        nReads = 0;
+    }
+
+    @After
+    public void tearDown() {
+        IndexBuilder.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testReopenedForSameVersion() throws Exception {
+        File pyramidDir = new File(dir, "v1");
+        OverviewPyramid pyramid = OverviewPyramid.create(pyramidDir, "var", grid, TIMES, 1,
+                VERSION);
+        assertEquals(1, pyramid.getNumLevels());
+        pyramid.build(1, 0, new TestDataSource());
+        assertEquals(1, nReads);
+
+        /*
+         * The built slice is used by a new instance for the same version
+         */
+        OverviewPyramid reopened = OverviewPyramid.create(pyramidDir, "var", grid, TIMES, 1,
+                VERSION);
+        assertTrue(reopened.isBuilt(1, 0));
+        assertFalse(reopened.isBuilt(0, 0));
+        assertEquals(value(1), reopened.getDataSource(1).read("var", 1, 1, 0, 0, 0, 0, 0, 0)
+                .get(0, 0, 0, 0).floatValue(), 1e-3f);
+
+        /*
+         * But not for a different version, or different times
+         */
+        assertFalse(OverviewPyramid.create(pyramidDir, "var", grid, TIMES, 1,
+                new SourceVersion("v2")).isBuilt(1, 0));
+        assertFalse(OverviewPyramid.create(pyramidDir, "var", grid,
+                new long[] { 0L, 1500L, 2000L }, 1, VERSION).isBuilt(1, 0));
+    }
+
+    @Test
+    public void testCarryOverUnchangedSlices() throws Exception {
+        OverviewPyramid oldPyramid = OverviewPyramid.create(new File(dir, "v1"), "var", grid,
+                TIMES, 1, VERSION);
+        for (int t = 0; t < TIMES.length; t++) {
+            oldPyramid.build(t, 0, new TestDataSource());
+        }
+
+        /*
+         * The data at 1000 has changed, and a new time has been added
+         */
+        SourceVersion newVersion = new SourceVersion("v2", "v1", Collections.singletonList(Extents
+                .newExtent(new DateTime(1000L, DateTimeZone.UTC), new DateTime(1000L,
+                        DateTimeZone.UTC))));
+        OverviewPyramid newPyramid = OverviewPyramid.create(new File(dir, "v2"), "var", grid,
+                new long[] { 1000L, 2000L, 3000L }, 1, newVersion);
+        OverviewPyramid previous = OverviewPyramid.open(new File(dir, "v1"), "var", grid, 1);
+        assertEquals(1, newPyramid.carryOver(previous, newVersion));
+        assertFalse(newPyramid.isBuilt(0, 0));
+        assertTrue(newPyramid.isBuilt(1, 0));
+        assertFalse(newPyramid.isBuilt(2, 0));
+        assertEquals(value(2), newPyramid.getDataSource(1).read("var", 1, 1, 0, 0, 0, 0, 0, 0)
+                .get(0, 0, 0, 0).floatValue(), 1e-3f);
+
+        /*
+         * Slices are not copied from unrelated versions
+         */
+        OverviewPyramid unrelated = OverviewPyramid.create(new File(dir, "v3"), "var", grid,
+                TIMES, 1, new SourceVersion("v3"));
+        assertEquals(0, unrelated.carryOver(previous, new SourceVersion("v3")));
+    }
+
+    /*
+     * The value of the first cell of the first level of overviews at a time
+     * index, i.e. the mean of the values in the first 2x2 cells of the data
+     */
+    private static float value(int t) {
+        return t * 100000f + 500.5f;
+    }
+
+    private final class TestDataSource implements GridDataSource {
+        @Override
+        public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+                int ymin, int ymax, int xmin, int xmax) throws IOException, DataReadingException {
+            nReads++;
+            FloatArray4D data = new FloatArray4D(tmax - tmin + 1, zmax - zmin + 1,
+                    ymax - ymin + 1, xmax - xmin + 1);
+            for (int t = tmin; t <= tmax; t++) {
+                for (int z = zmin; z <= zmax; z++) {
+                    for (int y = ymin; y <= ymax; y++) {
+                        for (int x = xmin; x <= xmax; x++) {
+                            data.setFloat(t - tmin, z - zmin, y - ymin, x - xmin, t * 100000f
+                                    + y * 1000f + x);
+                        }
+                    }
+                }
+            }
+            return data;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.FloatArray4D;
+
+/**
+ * Test class for {@link TimeMajorStore}
+ */
+public class TimeMajorStoreTest {
+    private static final int X_SIZE = 5;
+    private static final int Y_SIZE = 4;
+    private static final int Z_SIZE = 2;
+    private static final int BLOCK_LENGTH = 4;
+    private static final SourceVersion VERSION = new SourceVersion("v1");
+
+    private File file;
+    private int nReads;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("edal-test", ".tms");
+        file.delete();
+        nReads = 0;
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testBuildAndAppend() throws Exception {
+        TimeMajorStore store = TimeMajorStore.open(file, X_SIZE, Y_SIZE, Z_SIZE, BLOCK_LENGTH,
+                1000L);
+        store.update(new TestDataSource(0), "var", getTimes(6, 0), VERSION);
+        assertEquals(6, store.getNumTimes());
+        checkValues(store, getTimes(6, 0), 0, 6, 0);
+
+        /*
+         * Add some more times. This fills up the partial block and adds
+         * another, and should only read the new times
+         */
+        int readsBefore = nReads;
+        store.update(new TestDataSource(0), "var", getTimes(11, 0), VERSION);
+        assertEquals(11, store.getNumTimes());
+        checkValues(store, getTimes(11, 0), 0, 11, 0);
+        assertEquals(readsBefore + 2 * Z_SIZE, nReads);
+
+        /*
+         * Reading across blocks
+         */
+        float[] values = store.readTimeseries(getTimes(11, 0), VERSION, 1, 3, 4, 3, 9);
+        assertEquals(7, values.length);
+        for (int t = 0; t < values.length; t++) {
+            assertEquals(value(t + 3, 1, 3, 4, 0), values[t], 0f);
+        }
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        TimeMajorStore store = TimeMajorStore.open(file, X_SIZE, Y_SIZE, Z_SIZE, BLOCK_LENGTH,
+                1000L);
+        store.update(new TestDataSource(0), "var", getTimes(5, 0), VERSION);
+        assertSame(store, TimeMajorStore.open(file, X_SIZE, Y_SIZE, Z_SIZE, BLOCK_LENGTH, 1000L));
+
+        /*
+         * A different grid size means that the existing data can't be used
+         */
+        store = TimeMajorStore.open(file, X_SIZE, Y_SIZE, 1, BLOCK_LENGTH, 1000L);
+        assertEquals(0, store.getNumTimes());
+    }
+
+    @Test
+    public void testRebuildWhenTimesChange() throws Exception {
+        TimeMajorStore store = TimeMajorStore.open(file, X_SIZE, Y_SIZE, Z_SIZE, BLOCK_LENGTH,
+                1000L);
+        store.update(new TestDataSource(0), "var", getTimes(6, 0), VERSION);
+
+        /*
+         * Times which don't start with the stored times invalidate the store
+         */
+        List<DateTime> newTimes = getTimes(6, 1);
+        store.validate(newTimes, VERSION);
+        assertEquals(0, store.getNumTimes());
+        assertNull(store.readTimeseries(getTimes(6, 0), VERSION, 0, 0, 0, 0, 5));
+        store.update(new TestDataSource(1), "var", newTimes, VERSION);
+        assertEquals(6, store.getNumTimes());
+        checkValues(store, newTimes, 0, 6, 1);
+    }
+
+    @Test
+    public void testRebuildWhenSourceChanges() throws Exception {
+        TimeMajorStore store = TimeMajorStore.open(file, X_SIZE, Y_SIZE, Z_SIZE, BLOCK_LENGTH,
+                1000L);
+        List<DateTime> times = getTimes(6, 0);
+        store.update(new TestDataSource(0), "var", times, VERSION);
+
+        /*
+         * The same times from an unrelated version of the data invalidate the
+         * store
+         */
+        SourceVersion newVersion = new SourceVersion("v2");
+        assertNull(store.readTimeseries(times, newVersion, 0, 0, 0, 0, 5));
+        store.validate(times, newVersion);
+        assertEquals(0, store.getNumTimes());
+        store.update(new TestDataSource(1), "var", times, newVersion);
+        checkValues(store, times, newVersion, 0, 6, 1);
+        /* Readers of the old version no longer use the store */
+        assertNull(store.readTimeseries(times, VERSION, 0, 0, 0, 0, 5));
+    }
+
+    @Test
+    public void testRebuildFromChangedTime() throws Exception {
+        TimeMajorStore store = TimeMajorStore.open(file, X_SIZE, Y_SIZE, Z_SIZE, BLOCK_LENGTH,
+                1000L);
+        List<DateTime> times = getTimes(8, 0);
+        store.update(new TestDataSource(0), "var", times, VERSION);
+
+        /*
+         * Only the data at the sixth time has changed, so the time steps
+         * before it are kept and the rest are read again
+         */
+        SourceVersion newVersion = new SourceVersion("v2", "v1",
+                Collections.singletonList(Extents.newExtent(times.get(5), times.get(5))));
+        store.validate(times, newVersion);
+        assertEquals(5, store.getNumTimes());
+        int readsBefore = nReads;
+        store.update(new TestDataSource(1), "var", times, newVersion);
+        assertEquals(8, store.getNumTimes());
+        assertEquals(readsBefore + Z_SIZE, nReads);
+        checkValues(store, times, newVersion, 0, 5, 0);
+        checkValues(store, times, newVersion, 5, 3, 1);
+    }
+
+    @Test
+    public void testReadsCheckTimes() throws Exception {
+        TimeMajorStore store = TimeMajorStore.open(file, X_SIZE, Y_SIZE, Z_SIZE, BLOCK_LENGTH,
+                1000L);
+        List<DateTime> times = getTimes(6, 0);
+        store.update(new TestDataSource(0), "var", times, VERSION);
+
+        /* Times which haven't been stored yet */
+        assertNull(store.readTimeseries(getTimes(8, 0), VERSION, 0, 0, 0, 4, 7));
+        /* A longer time axis which starts with the stored times */
+        assertNotNull(store.readTimeseries(getTimes(8, 0), VERSION, 0, 0, 0, 0, 5));
+        /* A different time axis */
+        assertNull(store.readTimeseries(getTimes(6, 1), VERSION, 0, 0, 0, 0, 5));
+
+        /*
+         * Once the store has been extended, readers with the original time
+         * axis can still use it
+         */
+        store.update(new TestDataSource(0), "var", getTimes(10, 0), VERSION);
+        checkValues(store, times, 0, 6, 0);
+    }
+
+    @Test
+    public void testReplacedStoreNotRead() throws Exception {
+        TimeMajorStore store = TimeMajorStore.open(file, X_SIZE, Y_SIZE, Z_SIZE, BLOCK_LENGTH,
+                1000L);
+        store.update(new TestDataSource(0), "var", getTimes(6, 0), VERSION);
+        /* A different grid size replaces the store */
+        TimeMajorStore.open(file, X_SIZE, Y_SIZE, 1, BLOCK_LENGTH, 1000L);
+        assertNull(store.readTimeseries(getTimes(6, 0), VERSION, 0, 0, 0, 0, 5));
+    }
+
+    @Test
+    public void testLimitedReadSize() throws Exception {
+        /*
+         * Only allows one row of one block to be read at a time
+         */
+        TimeMajorStore store = TimeMajorStore.open(file, X_SIZE, Y_SIZE, Z_SIZE, BLOCK_LENGTH,
+                X_SIZE * BLOCK_LENGTH);
+        store.update(new TestDataSource(0), "var", getTimes(BLOCK_LENGTH, 0), VERSION);
+        assertEquals(Y_SIZE * Z_SIZE, nReads);
+        checkValues(store, getTimes(BLOCK_LENGTH, 0), 0, BLOCK_LENGTH, 0);
+    }
+
+    private void checkValues(TimeMajorStore store, List<DateTime> times, int tMin, int nTimes,
+            int offset) throws IOException {
+        checkValues(store, times, VERSION, tMin, nTimes, offset);
+    }
+
+    private void checkValues(TimeMajorStore store, List<DateTime> times, SourceVersion version,
+            int tMin, int nTimes, int offset) throws IOException {
+        for (int z = 0; z < Z_SIZE; z++) {
+            for (int y = 0; y < Y_SIZE; y++) {
+                for (int x = 0; x < X_SIZE; x++) {
+                    float[] values = store.readTimeseries(times, version, z, y, x, tMin,
+                            tMin + nTimes - 1);
+                    for (int t = 0; t < nTimes; t++) {
+                        assertEquals(value(tMin + t, z, y, x, offset), values[t], 0f);
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<DateTime> getTimes(int nTimes, int offset) {
+        List<DateTime> times = new ArrayList<DateTime>();
+        for (int t = 0; t < nTimes; t++) {
+            times.add(new DateTime(2000, 1, 1, t + offset, 0, DateTimeZone.UTC));
+        }
+        return times;
+    }
+
+    private static float value(int t, int z, int y, int x, int offset) {
+        return (t + offset) * 1000 + z * 100 + y * 10 + x;
+    }
+
+    private final class TestDataSource implements GridDataSource {
+        private final int offset;
+
+        public TestDataSource(int offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+                int ymin, int ymax, int xmin, int xmax) throws IOException, DataReadingException {
+            nReads++;
+            FloatArray4D data = new FloatArray4D(tmax - tmin + 1, zmax - zmin + 1,
+                    ymax - ymin + 1, xmax - xmin + 1);
+            for (int t = tmin; t <= tmax; t++) {
+                for (int z = zmin; z <= zmax; z++) {
+                    for (int y = ymin; y <= ymax; y++) {
+                        for (int x = xmin; x <= xmax; x++) {
+                            data.setFloat(t - tmin, z - zmin, y - ymin, x - xmin,
+                                    value(t, z, y, x, offset));
+                        }
+                    }
+                }
+            }
+            return data;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for {@link AtomicFile}
+ * 
+ * @author agent
+ */
+public class AtomicFileTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("atomic").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private static AtomicFile.Writer writer(final String contents) {
+        return new AtomicFile.Writer() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(contents.getBytes("UTF-8"));
+            }
+        };
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+    }
+
+    @Test
+    public void testWriteAndReplace() throws IOException {
+        File file = new File(new File(dir, "sub"), "test.dat");
+        AtomicFile.write(file, writer("first"));
+        assertEquals("first", read(file));
+        AtomicFile.write(file, writer("second"));
+        assertEquals("second", read(file));
+        /* No temporary files are left behind */
+        assertEquals(1, file.getParentFile().listFiles().length);
+        file.delete();
+        file.getParentFile().delete();
+    }
+
+    @Test
+    public void testFailureLeavesFileUnchanged() throws IOException {
+        File file = new File(dir, "test.dat");
+        AtomicFile.write(file, writer("original"));
+        try {
+            AtomicFile.write(file, new AtomicFile.Writer() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    out.write("partial".getBytes("UTF-8"));
+                    throw new IOException("Failed");
+                }
+            });
+            fail("The exception should be propagated");
+        } catch (IOException e) {
+            assertEquals("Failed", e.getMessage());
+        }
+        assertEquals("original", read(file));
+        assertEquals(1, dir.listFiles().length);
+    }
+}
@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.util.BuildOnceCache.KeyFilter;
+
+/**
+ * Test class for {@link BuildOnceCache}
+ * 
+ * @author agent
+ */
+public class BuildOnceCacheTest {
+    private BuildOnceCache<String, int[]> cache;
+
+    @Before
+    public void setUp() {
+        /* Room for 3 arrays of 10 ints */
+        cache = new BuildOnceCache<String, int[]>("Test", 120) {
+            @Override
+            protected long getSize(int[] value) {
+                return value.length * 4L;
+            }
+        };
+    }
+
+    private static Callable<int[]> builder(final int length) {
+        return new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                return new int[length];
+            }
+        };
+    }
+
+    @Test
+    public void testReuseAndEviction() throws ExecutionException {
+        int[] a = cache.get("a", builder(10));
+        assertSame(a, cache.get("a", builder(10)));
+        cache.get("b", builder(10));
+        cache.get("c", builder(10));
+        /* Access "a" so that "b" is the least recently used */
+        cache.get("a", builder(10));
+        cache.get("d", builder(10));
+
+        assertEquals(3, cache.getNumEntries());
+        assertEquals(120, cache.getSize());
+        assertEquals(2, cache.getHits());
+        assertEquals(4, cache.getMisses());
+        assertSame(a, cache.get("a", builder(10)));
+        assertEquals(1, cache.removeAll(new KeyFilter<String>() {
+            @Override
+            public boolean accept(String key) {
+                return key.equals("b") || key.equals("c");
+            }
+        }).size());
+        assertEquals(2, cache.getNumEntries());
+        assertEquals(80, cache.getSize());
+
+        /* Objects which are too big are returned, but not stored */
+        int[] big = cache.get("big", builder(100));
+        assertEquals(100, big.length);
+        assertNotSame(big, cache.get("big", builder(100)));
+        assertEquals(2, cache.getNumEntries());
+    }
+
+    @Test
+    public void testBuiltOnce() throws Exception {
+        final AtomicInteger builds = new AtomicInteger(0);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<int[]> slowBuilder = new Callable<int[]>() {
+            @Override
+            public int[] call() throws Exception {
+                builds.incrementAndGet();
+                release.await();
+                return new int[10];
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<int[]>> results = new ArrayList<Future<int[]>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<int[]>() {
+                    @Override
+                    public int[] call() throws Exception {
+                        return cache.get("a", slowBuilder);
+                    }
+                }));
+            }
+            /* Let all of the threads reach the cache */
+            while (cache.getHits() + cache.getMisses() < 8) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            int[] first = results.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<int[]> result : results) {
+                assertSame(first, result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, builds.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(7, cache.getHits());
+    }
+
+    @Test
+    public void testRemovedWhilstBuilding() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<int[]> result = executor.submit(new Callable<int[]>() {
+                @Override
+                public int[] call() throws Exception {
+                    return cache.get("a", new Callable<int[]>() {
+                        @Override
+                        public int[] call() throws Exception {
+                            started.countDown();
+                            release.await();
+                            return new int[10];
+                        }
+                    });
+                }
+            });
+            started.await();
+            cache.clear();
+            release.countDown();
+            /* The requester still gets its result, but it is not stored */
+            assertNotNull(result.get(10, TimeUnit.SECONDS));
+            assertEquals(0, cache.getNumEntries());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExceptions() {
+        try {
+            cache.get("a", new Callable<int[]>() {
+                @Override
+                public int[] call() throws IOException {
+                    throw new IOException("Checked");
+                }
+            });
+            fail("Checked exceptions should be wrapped");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        try {
+            cache.get("a", new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    throw new IllegalArgumentException("Unchecked");
+                }
+            });
+            fail("Unchecked exceptions should be rethrown");
+        } catch (IllegalArgumentException e) {
+            /* Expected */
+        } catch (ExecutionException e) {
+            fail("Unchecked exceptions should not be wrapped");
+        }
+        /* Failures are not cached */
+        assertEquals(0, cache.getNumEntries());
+    }
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import static org.junit.Assert.*;
+
+import java.awt.geom.Point2D;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.util.CurvilinearCoords.Cell;
+
+/**
+ * Test class for {@link CurvilinearCoords}
+ * 
+ * @author agent
+ */
+public class CurvilinearCoordsTest {
+    /**
+     * Creates a grid which is rotated by the given angle, starting at the
+     * given longitude
+     */
+    private static CurvilinearCoords coords(double startLon, double angle) {
+        int ni = 30;
+        int nj = 20;
+        ValuesArray2D lons = new ValuesArray2D(nj, ni);
+        ValuesArray2D lats = new ValuesArray2D(nj, ni);
+        double cos = Math.cos(Math.toRadians(angle));
+        double sin = Math.sin(Math.toRadians(angle));
+        for (int j = 0; j < nj; j++) {
+            for (int i = 0; i < ni; i++) {
+                /* Make the cells vary in size, so that they are not all alike */
+                double x = i + 0.02 * i * i;
+                lons.set(startLon + cos * x - sin * j, j, i);
+                lats.set(sin * x + cos * j, j, i);
+            }
+        }
+        /* Add some missing points */
+        lons.set(Double.NaN, 5, 5);
+        lats.set(Double.NaN, 5, 5);
+        return new CurvilinearCoords(lons, lats);
+    }
+
+    @Test
+    public void testContainsMatchesBoundaryPath() {
+        CurvilinearCoords coords = coords(165, 30);
+        int nMissing = 0;
+        for (Cell cell : coords.getCells()) {
+            if (Double.isNaN(cell.getArea())) {
+                /* Cells next to missing points contain nothing */
+                nMissing++;
+                assertFalse(cell.contains(cell.getCentre().getLongitude(), cell.getCentre()
+                        .getLatitude()));
+                continue;
+            }
+            for (double lon = -180.0; lon < 180.0; lon += 0.7) {
+                for (double lat = -5.0; lat < 45.0; lat += 0.7) {
+                    double harmonizedLon = GISUtils.getNearestEquivalentLongitude(cell
+                            .getCentre().getLongitude(), lon);
+                    assertEquals(cell.getBoundaryPath().contains(harmonizedLon, lat),
+                            cell.contains(lon, lat));
+                }
+            }
+        }
+        assertEquals(9, nMissing);
+    }
+
+    @Test
+    public void testFindContainingCell() {
+        CurvilinearCoords coords = coords(165, 30);
+        int nFound = 0;
+        for (double lon = -180.0; lon < 180.0; lon += 0.3) {
+            for (double lat = -5.0; lat < 45.0; lat += 0.3) {
+                /* Find the containing cell by brute force */
+                int expected = -1;
+                double nearest = Double.POSITIVE_INFINITY;
+                for (Cell cell : coords.getCells()) {
+                    if (cell.contains(lon, lat)) {
+                        double harmonizedLon = GISUtils.getNearestEquivalentLongitude(cell
+                                .getCentre().getLongitude(), lon);
+                        double distanceSq = cell.findDistanceSq(harmonizedLon, lat);
+                        if (distanceSq < nearest) {
+                            nearest = distanceSq;
+                            expected = cell.getJ() * coords.getNi() + cell.getI();
+                        }
+                    }
+                }
+                if (expected >= 0) {
+                    nFound++;
+                }
+                assertEquals(expected, coords.findContainingCell(lon, lat));
+            }
+        }
+        /* Make sure that we have actually tested something */
+        assertTrue(nFound > 1000);
+        assertEquals(-1, coords.findContainingCell(0.0, 0.0));
+        assertEquals(-1, coords.findContainingCell(Double.NaN, 10.0));
+    }
+
+    @Test
+    public void testMeanCellArea() {
+        ValuesArray2D lons = new ValuesArray2D(10, 10);
+        ValuesArray2D lats = new ValuesArray2D(10, 10);
+        for (int j = 0; j < 10; j++) {
+            for (int i = 0; i < 10; i++) {
+                lons.set(0.5 * i, j, i);
+                lats.set(2.0 * j, j, i);
+            }
+        }
+        CurvilinearCoords coords = new CurvilinearCoords(lons, lats);
+        assertEquals(1.0, coords.getMeanCellArea(), 1e-10);
+        Point2D corner = coords.getCell(0, 0).getCorners().get(0);
+        assertEquals(-0.25, corner.getX(), 1e-10);
+        assertEquals(-1.0, corner.getY(), 1e-10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooSmall() {
+        new CurvilinearCoords(new ValuesArray2D(2, 5), new ValuesArray2D(2, 5));
+    }
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for {@link FloatArray2D}, {@link FloatArray1D} and {@link FloatArray4D}.
+ * 
+ * @author agent
+ */
+public class FloatArray2DTest {
+
+    private FloatArray2D data;
+
+    private static final int XSIZE = 5;
+    private static final int YSIZE = 7;
+
+    @Before
+    public void setUp() {
+        data = new FloatArray2D(YSIZE, XSIZE);
+        for (int i = 0; i < YSIZE; i++) {
+            for (int j = 0; j < XSIZE; j++) {
+                data.set(10 * i + j, i, j);
+            }
+        }
+        data.set(null, 2, 3);
+        data.setFloat(4, 1, Float.NaN);
+    }
+
+    @Test
+    public void testMissingValues() {
+        assertNull(data.get(2, 3));
+        assertNull(data.get(4, 1));
+        assertTrue(Float.isNaN(data.getFloat(2, 3)));
+        assertEquals(34f, data.getFloat(3, 4), 0f);
+        assertEquals(34f, data.get(3, 4).floatValue(), 0f);
+        /* A newly-created array should be entirely missing */
+        FloatArray2D empty = new FloatArray2D(2, 2);
+        for (Number value : empty) {
+            assertNull(value);
+        }
+    }
+
+    @Test
+    public void testCopyIntoMatchesIterator() {
+        float[] copied = new float[XSIZE * YSIZE];
+        data.copyInto(copied);
+        Iterator<Number> iterator = data.iterator();
+        for (int i = 0; i < copied.length; i++) {
+            Number value = iterator.next();
+            if (value == null) {
+                assertTrue(Float.isNaN(copied[i]));
+            } else {
+                assertEquals(value.floatValue(), copied[i], 0f);
+            }
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void testDefaultPrimitiveAccessors() {
+        /*
+         * Boxed arrays should behave in the same way through the primitive
+         * accessors
+         */
+        ValuesArray2D boxed = new ValuesArray2D(YSIZE, XSIZE);
+        for (int i = 0; i < YSIZE; i++) {
+            for (int j = 0; j < XSIZE; j++) {
+                boxed.set(data.get(i, j), i, j);
+            }
+        }
+        float[] expected = new float[XSIZE * YSIZE];
+        float[] actual = new float[XSIZE * YSIZE];
+        data.copyInto(expected);
+        boxed.copyInto(actual);
+        assertFloatArraysEqual(expected, actual);
+        assertTrue(Float.isNaN(boxed.getFloat(2, 3)));
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException.class)
+    public void testXOutOfBounds() {
+        /* This would be a valid index into the backing array */
+        data.getFloat(1, XSIZE);
+    }
+
+    @Test
+    public void testArray1D() {
+        FloatArray1D array = new FloatArray1D(4);
+        assertNull(array.get(0));
+        array.setFloat(0, 1.5f);
+        array.set(2.5f, 1);
+        array.set(null, 2);
+        assertEquals(1.5f, array.get(0).floatValue(), 0f);
+        assertEquals(2.5f, array.getFloat(1), 0f);
+        assertNull(array.get(2));
+        assertTrue(Float.isNaN(array.getFloat(3)));
+
+        float[] copied = new float[4];
+        array.copyInto(copied);
+        assertFloatArraysEqual(new float[] { 1.5f, 2.5f, Float.NaN, Float.NaN }, copied);
+    }
+
+    @Test
+    public void testArray4D() {
+        float[] values = new float[2 * 3 * 4 * 5];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        FloatArray4D array = new FloatArray4D(2, 3, 4, 5, values);
+        assertEquals(((1 * 3 + 2) * 4 + 3) * 5 + 4, array.getFloat(1, 2, 3, 4), 0f);
+        array.set(null, 1, 2, 3, 4);
+        assertNull(array.get(1, 2, 3, 4));
+
+        /* The primitive copy must match the default (boxed) implementation */
+        float[] copied = new float[values.length];
+        array.copyInto(copied);
+        ValuesArray4D boxed = new ValuesArray4D(2, 3, 4, 5);
+        Iterator<Number> it = array.iterator();
+        for (int t = 0; t < 2; t++) {
+            for (int z = 0; z < 3; z++) {
+                for (int y = 0; y < 4; y++) {
+                    for (int x = 0; x < 5; x++) {
+                        boxed.set(it.next(), t, z, y, x);
+                    }
+                }
+            }
+        }
+        float[] boxedCopy = new float[values.length];
+        boxed.copyInto(boxedCopy);
+        assertFloatArraysEqual(copied, boxedCopy);
+    }
+
+    private static void assertFloatArraysEqual(float[] expected, float[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            /* Float.compare treats NaNs as equal */
+            assertEquals(0, Float.compare(expected[i], actual[i]));
+        }
+    }
+}
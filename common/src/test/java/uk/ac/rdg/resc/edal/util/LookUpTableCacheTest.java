@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for {@link LookUpTableCache}
+ * 
+ * @author agent
+ */
+public class LookUpTableCacheTest {
+    private LookUpTableCache cache;
+    private File lutDir;
+
+    @Before
+    public void setUp() throws IOException {
+        cache = new LookUpTableCache(LookUpTableCache.DEFAULT_MAX_SIZE);
+        lutDir = File.createTempFile("luts", "");
+        lutDir.delete();
+        cache.setDirectory(lutDir);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = lutDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        lutDir.delete();
+    }
+
+    /**
+     * Creates a grid which is rotated by the given angle
+     */
+    private static CurvilinearCoords coords(double angle) {
+        int ni = 30;
+        int nj = 20;
+        ValuesArray2D lons = new ValuesArray2D(nj, ni);
+        ValuesArray2D lats = new ValuesArray2D(nj, ni);
+        double cos = Math.cos(Math.toRadians(angle));
+        double sin = Math.sin(Math.toRadians(angle));
+        for (int j = 0; j < nj; j++) {
+            for (int i = 0; i < ni; i++) {
+                lons.set(cos * i - sin * j, j, i);
+                lats.set(sin * i + cos * j, j, i);
+            }
+        }
+        return new CurvilinearCoords(lons, lats);
+    }
+
+    private static double resolution(CurvilinearCoords coords) {
+        return Math.sqrt(coords.getMeanCellArea()) / 3.0;
+    }
+
+    @Test
+    public void testContentHash() {
+        assertEquals(coords(20).getContentHash(), coords(20).getContentHash());
+        assertFalse(coords(20).getContentHash().equals(coords(25).getContentHash()));
+    }
+
+    @Test
+    public void testReuse() {
+        CurvilinearCoords coords = coords(20);
+        LookUpTable lut = cache.getLookUpTable(coords, resolution(coords));
+        /* Equal coordinates give the same look-up table */
+        CurvilinearCoords equalCoords = coords(20);
+        assertSame(lut, cache.getLookUpTable(equalCoords, resolution(equalCoords)));
+        /* Different coordinates do not */
+        CurvilinearCoords otherCoords = coords(25);
+        LookUpTable otherLut = cache.getLookUpTable(otherCoords, resolution(otherCoords));
+        assertNotSame(lut, otherLut);
+
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getNumLookUpTables());
+        assertEquals(lut.getMemoryUsage() + otherLut.getMemoryUsage(), cache.getSize());
+    }
+
+    @Test
+    public void testPersistence() {
+        CurvilinearCoords coords = coords(20);
+        LookUpTable lut = cache.getLookUpTable(coords, resolution(coords));
+        assertEquals(1, lutDir.listFiles().length);
+
+        /* A new cache reads the look-up table from disk rather than building it */
+        LookUpTableCache newCache = new LookUpTableCache(LookUpTableCache.DEFAULT_MAX_SIZE);
+        newCache.setDirectory(lutDir);
+        LookUpTable readLut = newCache.getLookUpTable(coords, resolution(coords));
+        assertEquals(1, newCache.getDiskHits());
+        assertEquals(0, newCache.getMisses());
+        assertNotSame(lut, readLut);
+        assertEquals(lut, readLut);
+        assertEquals(lut.getNumLonPoints(), readLut.getNumLonPoints());
+        assertEquals(lut.getNumLatPoints(), readLut.getNumLatPoints());
+        for (double lon = -10.0; lon < 30.0; lon += 0.37) {
+            for (double lat = -5.0; lat < 35.0; lat += 0.37) {
+                int[] expected = lut.getGridCoordinates(lon, lat);
+                int[] actual = readLut.getGridCoordinates(lon, lat);
+                if (expected == null) {
+                    assertNull(actual);
+                } else {
+                    assertArrayEquals(expected, actual);
+                }
+            }
+        }
+
+        /* A different resolution means the stored look-up table is not used */
+        newCache.clear();
+        newCache.getLookUpTable(coords, resolution(coords) * 2);
+        assertEquals(0, newCache.getDiskHits());
+        assertEquals(1, newCache.getMisses());
+    }
+
+    @Test
+    public void testMemoryBound() {
+        CurvilinearCoords coords = coords(20);
+        LookUpTable first = cache.getLookUpTable(coords, resolution(coords));
+        CurvilinearCoords otherCoords = coords(25);
+        LookUpTable other = cache.getLookUpTable(otherCoords, resolution(otherCoords));
+        assertEquals(2, cache.getNumLookUpTables());
+
+        cache.setMaxSize(other.getMemoryUsage());
+        assertEquals(1, cache.getNumLookUpTables());
+        assertEquals(other.getMemoryUsage(), cache.getSize());
+        /* The least recently used look-up table has been evicted from memory */
+        assertSame(other, cache.getLookUpTable(otherCoords, resolution(otherCoords)));
+        LookUpTable reread = cache.getLookUpTable(coords, resolution(coords));
+        assertNotSame(first, reread);
+        /* ...but can still be read from disk */
+        assertEquals(1, cache.getDiskHits());
+        assertEquals(first, reread);
+    }
+}
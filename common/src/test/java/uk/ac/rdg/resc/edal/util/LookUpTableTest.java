@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Test class for {@link LookUpTable}. This checks that the look-up tables are
+ * identical to those produced by filling the outline of each cell with
+ * {@link Graphics2D}, which is how they used to be built.
+ * 
+ * @author agent
+ */
+public class LookUpTableTest {
+    private static final ColorModel COLOR_MODEL = new DirectColorModel(16, 0x00000000, 0x0000ff00,
+            0x000000ff, 0x00000000);
+    private static final short MISSING = (short) 65535;
+
+    /**
+     * Creates a rotated grid which crosses the anti-meridian, with a few
+     * missing points
+     */
+    private static CurvilinearCoords rotatedGrid() {
+        int ni = 60;
+        int nj = 40;
+        ValuesArray2D lons = new ValuesArray2D(nj, ni);
+        ValuesArray2D lats = new ValuesArray2D(nj, ni);
+        double cos = Math.cos(Math.toRadians(25));
+        double sin = Math.sin(Math.toRadians(25));
+        for (int j = 0; j < nj; j++) {
+            for (int i = 0; i < ni; i++) {
+                double lon = 165.0 + 0.5 * (cos * i - sin * j);
+                if (lon > 180.0) {
+                    lon -= 360.0;
+                }
+                lons.set(lon, j, i);
+                lats.set(-10.0 + 0.5 * (sin * i + cos * j), j, i);
+            }
+        }
+        lons.set(Double.NaN, 12, 17);
+        lats.set(Double.NaN, 30, 45);
+        return new CurvilinearCoords(lons, lats);
+    }
+
+    /**
+     * Creates a grid whose rows and columns are curved
+     */
+    private static CurvilinearCoords curvedGrid() {
+        int ni = 50;
+        int nj = 45;
+        ValuesArray2D lons = new ValuesArray2D(nj, ni);
+        ValuesArray2D lats = new ValuesArray2D(nj, ni);
+        for (int j = 0; j < nj; j++) {
+            for (int i = 0; i < ni; i++) {
+                lons.set(10.0 + 0.4 * i + 0.02 * j * j, j, i);
+                lats.set(30.0 + 0.35 * j + 1.5 * Math.sin(i / 6.0), j, i);
+            }
+        }
+        return new CurvilinearCoords(lons, lats);
+    }
+
+    /**
+     * Creates a grid of large, irregular cells, many of whose edges cross the
+     * boundary of a coarse LUT at shallow angles
+     */
+    private static CurvilinearCoords largeCellGrid() {
+        int ni = 7;
+        int nj = 6;
+        ValuesArray2D lons = new ValuesArray2D(nj, ni);
+        ValuesArray2D lats = new ValuesArray2D(nj, ni);
+        for (int j = 0; j < nj; j++) {
+            for (int i = 0; i < ni; i++) {
+                lons.set(-40.0 + 21.0 * i - 6.5 * j + 3.0 * Math.sin(i * j), j, i);
+                lats.set(-50.0 + 4.5 * i + 17.0 * j + 2.5 * Math.cos(i + 2 * j), j, i);
+            }
+        }
+        return new CurvilinearCoords(lons, lats);
+    }
+
+    /**
+     * Creates a grid rotated by 45 degrees, whose cell corners are at whole
+     * degrees. In a LUT with two pixels per degree, each edge shared by two
+     * cells passes exactly through a line of pixel centres, and in a LUT with
+     * one pixel per degree, through a line of pixel corners.
+     */
+    private static CurvilinearCoords diagonalGrid() {
+        int n = 11;
+        ValuesArray2D lons = new ValuesArray2D(n, n);
+        ValuesArray2D lats = new ValuesArray2D(n, n);
+        for (int j = 0; j < n; j++) {
+            for (int i = 0; i < n; i++) {
+                lons.set(i - j, j, i);
+                lats.set(i + j, j, i);
+            }
+        }
+        return new CurvilinearCoords(lons, lats);
+    }
+
+    @Test
+    public void testRotatedGrid() throws IOException {
+        LookUpTable lut = checkLut(rotatedGrid(), 0.07);
+        /* Check that the anti-meridian is covered */
+        assertNotNull(lut.getGridCoordinates(179.9, 0.0));
+        assertNotNull(lut.getGridCoordinates(-179.9, 0.0));
+    }
+
+    @Test
+    public void testCurvedGrid() throws IOException {
+        checkLut(curvedGrid(), 0.05);
+        checkLut(curvedGrid(), 0.13);
+    }
+
+    @Test
+    public void testEdgesThroughPixelCentres() throws IOException {
+        LookUpTable lut = checkLut(diagonalGrid(), 0.49);
+        /* Two pixels per degree */
+        assertEquals(41, lut.getNumLonPoints());
+        assertEquals(41, lut.getNumLatPoints());
+    }
+
+    @Test
+    public void testCoarseGrids() throws IOException {
+        /* Pixels of at least a degree are sampled differently */
+        checkLut(rotatedGrid(), 1.0);
+        checkLut(curvedGrid(), 0.99);
+        checkLut(curvedGrid(), 1.7);
+        checkLut(largeCellGrid(), 1.04);
+        checkLut(largeCellGrid(), 1.13);
+        checkLut(largeCellGrid(), 1.27);
+    }
+
+    @Test
+    public void testEdgesThroughPixelCorners() throws IOException {
+        LookUpTable lut = checkLut(diagonalGrid(), 0.99);
+        /* One pixel per degree */
+        assertEquals(21, lut.getNumLonPoints());
+        assertEquals(21, lut.getNumLatPoints());
+    }
+
+    @Test
+    public void testProgress() {
+        final AtomicInteger calls = new AtomicInteger(0);
+        final AtomicInteger maxCompleted = new AtomicInteger(0);
+        final AtomicInteger total = new AtomicInteger(0);
+        new LookUpTable(rotatedGrid(), 0.07, new LookUpTable.BuildListener() {
+            @Override
+            public void tileCompleted(int tilesCompleted, int totalTiles) {
+                calls.incrementAndGet();
+                total.set(totalTiles);
+                synchronized (maxCompleted) {
+                    maxCompleted.set(Math.max(maxCompleted.get(), tilesCompleted));
+                }
+            }
+        });
+        assertTrue(total.get() > 1);
+        assertEquals(total.get(), calls.get());
+        assertEquals(total.get(), maxCompleted.get());
+    }
+
+    /**
+     * Checks that a LUT is identical to one painted with {@link Graphics2D}
+     * 
+     * @return The LUT
+     */
+    private static LookUpTable checkLut(CurvilinearCoords coords, double resolution)
+            throws IOException {
+        LookUpTable lut = new LookUpTable(coords, resolution);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        lut.writeTo(new DataOutputStream(bytes));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        int nLon = in.readInt();
+        int nLat = in.readInt();
+        double[] matrix = new double[6];
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] = in.readDouble();
+        }
+        short[] iData = new short[nLon * nLat];
+        short[] jData = new short[nLon * nLat];
+        for (int i = 0; i < iData.length; i++) {
+            iData[i] = in.readShort();
+        }
+        for (int i = 0; i < jData.length; i++) {
+            jData[i] = in.readShort();
+        }
+
+        AffineTransform transform = new AffineTransform(matrix);
+        assertArrayEquals(paint(coords, nLon, nLat, transform, true), iData);
+        assertArrayEquals(paint(coords, nLon, nLat, transform, false), jData);
+        return lut;
+    }
+
+    /**
+     * Paints the i- or j-indices of the cells (and their copies shifted by 360
+     * degrees) with {@link Graphics2D}, in grid order. Cells with missing
+     * corners are not painted.
+     */
+    private static short[] paint(CurvilinearCoords coords, int nLon, int nLat,
+            AffineTransform transform, boolean iIndices) {
+        WritableRaster raster = COLOR_MODEL.createCompatibleWritableRaster(nLon, nLat);
+        BufferedImage im = new BufferedImage(COLOR_MODEL, raster, true, null);
+        short[] data = ((DataBufferUShort) raster.getDataBuffer()).getData();
+        Arrays.fill(data, MISSING);
+        Graphics2D g2d = im.createGraphics();
+        g2d.setTransform(transform);
+
+        double[] cornerLons = new double[4];
+        double[] cornerLats = new double[4];
+        for (int j = 0; j < coords.getNj(); j++) {
+            for (int i = 0; i < coords.getNi(); i++) {
+                coords.getCellCorners(i, j, cornerLons, cornerLats);
+                boolean missing = false;
+                for (int c = 0; c < 4; c++) {
+                    missing |= Double.isNaN(cornerLons[c]) || Double.isNaN(cornerLats[c]);
+                }
+                if (missing) {
+                    continue;
+                }
+                Path2D path = new Path2D.Double();
+                path.moveTo(cornerLons[0], cornerLats[0]);
+                for (int c = 1; c < 4; c++) {
+                    path.lineTo(cornerLons[c], cornerLats[c]);
+                }
+                path.closePath();
+                g2d.setPaint(new Color(iIndices ? i : j));
+                g2d.fill(path);
+
+                double shiftLon = coords.getCentreLongitude(i, j) > 0.0 ? -360.0 : 360.0;
+                path.transform(AffineTransform.getTranslateInstance(shiftLon, 0.0));
+                g2d.fill(path);
+            }
+        }
+        g2d.dispose();
+        return data;
+    }
+}
@@ -77,12 +77,30 @@ public class ColourScale {
         if(input == null || Float.isNaN(input.floatValue())) {
             return null;
         }
-        
-        if(logarithmic) {
-            if(scaleMin <= 0.0 || scaleMax <= 0.0) {
+        return scaleZeroToOne(input.floatValue());
+    }
+
+    /**
+     * Scales a primitive input number to the range 0-1. This behaves exactly
+     * as {@link #scaleZeroToOne(Number)}, but returns {@link Float#NaN} rather
+     * than <code>null</code> for missing values, and does not create any
+     * objects.
+     * 
+     * @param input
+     *            The input number
+     * @return A number from 0-1 if in range, a number outside 0-1 if
+     *         out-of-range, and NaN if NaN
+     */
+    public float scaleZeroToOne(float input) {
+        if (Float.isNaN(input)) {
+            return Float.NaN;
+        }
+
+        if (logarithmic) {
+            if (scaleMin <= 0.0 || scaleMax <= 0.0) {
                 throw new IllegalArgumentException("Cannot log-scale zero/negative numbers");
             }
-            if(input.floatValue() <= 0.0f) {
+            if (input <= 0.0f) {
                 /*
                  * Below min scale, but logarithmic so this would cause an
                  * error. Just need to return a number which is outside the 0-1
@@ -90,9 +108,10 @@ public class ColourScale {
                  */
                 return -1f;
             }
-            return (float) ((Math.log(input.doubleValue()) - Math.log(scaleMin)) / (Math.log(scaleMax) - Math.log(scaleMin)));
+            return (float) ((Math.log(input) - Math.log(scaleMin)) / (Math.log(scaleMax) - Math
+                    .log(scaleMin)));
         } else {
-            return ((input.floatValue() - scaleMin) / (scaleMax - scaleMin));
+            return ((input - scaleMin) / (scaleMax - scaleMin));
         }
     }
 }
@@ -156,6 +156,20 @@ public abstract class ColourScheme {
      */
     public abstract Color getColor(Number value);
 
+    /**
+     * Returns the colour associated with the given primitive value. This is
+     * used when colouring whole arrays of data, and subclasses should override
+     * it where they can do so without creating objects.
+     * 
+     * @param value
+     *            The value to get a colour for. {@link Float#NaN} represents
+     *            missing data
+     * @return The colour for the given value
+     */
+    public Color getColor(float value) {
+        return getColor(Float.isNaN(value) ? null : Float.valueOf(value));
+    }
+
     /**
      * @return The minimum value of this colour scale
      */
@@ -193,13 +193,7 @@ public class ContourLayer extends GriddedImageLayer {
         Array2D<Number> dataValues = dataReader.getDataForLayerName(dataFieldName);
         for(int j=0; j<height; j++) {
             for(int i=0; i< width;i++){
-                Number value = dataValues.get(j,i);
-                float val;
-                if(value == null) {
-                    val = Float.NaN;
-                } else {
-                    val = value.floatValue();
-                }
+                float val = dataValues.getFloat(j, i);
                 /*
                  * SGT goes against the grain somewhat by specifying that the y-axis
                  * values vary fastest.
@@ -128,6 +128,27 @@ public abstract class GriddedImageLayer extends ImageLayer {
                 public Number get(int... coords) {
                     return values.get(params.getHeight() - coords[0] - 1, coords[1]);
                 }
+
+                @Override
+                public float getFloat(int y, int x) {
+                    return values.getFloat(params.getHeight() - y - 1, x);
+                }
+
+                @Override
+                public void copyInto(float[] dest) {
+                    /*
+                     * Copy the data in bulk and then reverse the order of the
+                     * rows
+                     */
+                    int xSize = getXSize();
+                    int ySize = getYSize();
+                    float[] unflipped = new float[xSize * ySize];
+                    values.copyInto(unflipped);
+                    for (int y = 0; y < ySize; y++) {
+                        System.arraycopy(unflipped, (ySize - y - 1) * xSize, dest, y * xSize,
+                                xSize);
+                    }
+                }
             };
         };
 
@@ -71,13 +71,14 @@ public class RasterLayer extends GriddedImageLayer {
         Array2D<Number> values = dataReader.getDataForLayerName(dataFieldName);
 
         /*
-         * The iterator iterates over the x-dimension first, which is the same
-         * convention as expected for the colour-values array in image.setRGB
-         * below
+         * Copy the values into a primitive array. This has the x-dimension
+         * varying fastest, which is the same convention as expected for the
+         * colour-values array in image.setRGB below
          */
-        int index = 0;
-        for (Number value : values) {
-            pixels[index++] = colourScheme.getColor(value).getRGB();
+        float[] data = new float[pixels.length];
+        values.copyInto(data);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = colourScheme.getColor(data[i]).getRGB();
         }
         image.setRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
     }
@@ -84,27 +84,34 @@ public class SegmentColourScheme extends ColourScheme {
 
     @Override
     public Color getColor(Number value) {
-        Float zeroToOne = scaleRange.scaleZeroToOne(value);
+        if (value == null) {
+            return noDataColour;
+        }
+        return getColor(value.floatValue());
+    }
+
+    @Override
+    public Color getColor(float value) {
+        float zeroToOne = scaleRange.scaleZeroToOne(value);
         if (palette == null) {
             palette = ColourPalette.fromString(paletteString, nColourBands);
         }
-        if (zeroToOne == null || Float.isNaN(zeroToOne.floatValue())) {
+        if (Float.isNaN(zeroToOne)) {
             return noDataColour;
         }
-        float val = zeroToOne.floatValue();
-        if (val < 0.0) {
+        if (zeroToOne < 0.0) {
             if (belowMinColour == null) {
                 return palette.getColor(0f);
             }
             return belowMinColour;
         }
-        if (val > 1.0) {
+        if (zeroToOne > 1.0) {
             if (aboveMaxColour == null) {
                 return palette.getColor(1f);
             }
             return aboveMaxColour;
         }
-        return palette.getColor(val);
+        return palette.getColor(zeroToOne);
     }
 
     @Override
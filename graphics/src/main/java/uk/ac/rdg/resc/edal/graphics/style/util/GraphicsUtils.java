@@ -38,6 +38,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.dataset.SliceStatistics;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
 import uk.ac.rdg.resc.edal.exceptions.EdalParseException;
@@ -188,28 +190,43 @@ public class GraphicsUtils {
             time = variableMetadata.getTemporalDomain().getExtent().getHigh();
             tExtent = variableMetadata.getTemporalDomain().getExtent();
         }
-        PlottingDomainParams params = new PlottingDomainParams(100, 100, variableMetadata
-                .getHorizontalDomain().getBoundingBox(), zExtent, tExtent, null, zPos, time);
         float min = Float.MAX_VALUE;
         float max = -Float.MAX_VALUE;
-        try {
-            Collection<? extends DiscreteFeature<?, ?>> mapFeatures = dataset.extractMapFeatures(
-                    CollectionUtils.setOf(varId), params);
-            for (DiscreteFeature<?, ?> feature : mapFeatures) {
-                Array<Number> values = feature.getValues(varId);
-                if (values != null) {
-                    for (Number value : values) {
-                        if (value != null && !Double.isNaN(value.doubleValue())) {
-                            min = (float) Math.min(value.doubleValue(), min);
-                            max = (float) Math.max(value.doubleValue(), max);
+        /*
+         * If the statistics of this slice have been indexed, we don't need to
+         * read any data
+         */
+        SliceStatistics statistics = null;
+        if (dataset instanceof GriddedDataset) {
+            statistics = ((GriddedDataset) dataset).getSliceStatistics(varId, time, zPos, null);
+        }
+        if (statistics != null) {
+            if (statistics.getCount() > 0) {
+                min = statistics.getMin();
+                max = statistics.getMax();
+            }
+        } else {
+            PlottingDomainParams params = new PlottingDomainParams(100, 100, variableMetadata
+                    .getHorizontalDomain().getBoundingBox(), zExtent, tExtent, null, zPos, time);
+            try {
+                Collection<? extends DiscreteFeature<?, ?>> mapFeatures = dataset
+                        .extractMapFeatures(CollectionUtils.setOf(varId), params);
+                for (DiscreteFeature<?, ?> feature : mapFeatures) {
+                    Array<Number> values = feature.getValues(varId);
+                    if (values != null) {
+                        for (Number value : values) {
+                            if (value != null && !Double.isNaN(value.doubleValue())) {
+                                min = (float) Math.min(value.doubleValue(), min);
+                                max = (float) Math.max(value.doubleValue(), max);
+                            }
                         }
                     }
                 }
+            } catch (DataReadingException | VariableNotFoundException e) {
+                log.error(
+                        "Problem reading data whilst estimating scale range.  A default value will be used.",
+                        e);
             }
-        } catch (DataReadingException | VariableNotFoundException e) {
-            log.error(
-                    "Problem reading data whilst estimating scale range.  A default value will be used.",
-                    e);
         }
 
         if (max == -Float.MAX_VALUE || min == Float.MAX_VALUE) {
@@ -257,6 +257,8 @@ public class NcwmsAdminServlet extends HttpServlet {
         server.setMaxImageHeight(Integer.parseInt(request.getParameter("server.maximageheight")));
         server.setAllowFeatureInfo(request.getParameter("server.allowfeatureinfo") != null);
         server.setAllowGlobalCapabilities(request.getParameter("server.allowglobalcapabilities") != null);
+        server.setLoaderThreads(Integer.parseInt(request.getParameter("server.loaderthreads")));
+        catalogue.getConfig().getDatasetLoader().setNumThreads(server.getLoaderThreads());
 
         /*
          * Save the dataset information, checking for removals First look
@@ -275,13 +277,13 @@ public class NcwmsAdminServlet extends HttpServlet {
                 if (!newLocation.trim().equals(ds.getLocation().trim())) {
                     refreshDataset = true;
                 }
-                ds.setLocation(newLocation);
                 String newDataReaderClass = request.getParameter("dataset." + ds.getId()
                         + ".reader");
                 if (!newDataReaderClass.trim().equals(ds.getDataReaderClass().trim())) {
                     refreshDataset = true;
                 }
-                ds.setDataReaderClass(newDataReaderClass);
+                /* This releases anything held open for the old location */
+                catalogue.getConfig().changeDatasetLocation(ds, newLocation, newDataReaderClass);
                 boolean disabled = request.getParameter("dataset." + ds.getId() + ".disabled") != null;
                 if (disabled == false && ds.isDisabled()) {
                     /* We've re-enabled the dataset so need to reload it */
@@ -351,7 +353,9 @@ public class NcwmsAdminServlet extends HttpServlet {
                 ds.setCopyrightStatement(request.getParameter("dataset.new" + i + ".copyright"));
                 /*
                  * addDataset() contains code to ensure that the dataset loads
-                 * its metadata at the next opportunity
+                 * its metadata at the next opportunity. If the ID is already
+                 * in use, it also releases the resources of the dataset it
+                 * replaces.
                  */
                 catalogue.getConfig().addDataset(ds);
             }
@@ -448,6 +452,8 @@ public class NcwmsAdminServlet extends HttpServlet {
         cache.setInMemorySizeMB(Integer.parseInt(request.getParameter("cache.inMemorySizeMB")));
         cache.setElementLifetimeMinutes(Float.parseFloat(request
                 .getParameter("cache.elementLifetimeMinutes")));
+        cache.setPrefetchThreads(Integer.parseInt(request.getParameter("cache.prefetchThreads")));
+        cache.setPrefetchDepth(Integer.parseInt(request.getParameter("cache.prefetchDepth")));
         /*
          * Update the cache settings. This will clear any cached items from
          * memory if the cache has changed.
@@ -129,8 +129,15 @@ public class NcwmsCatalogue extends WmsCatalogue implements DatasetStorage {
      *            The ID of the dataset to remove
      */
     public void removeDataset(String id) {
-        datasets.remove(id);
+        /*
+         * Remove it from the config first. This cancels any load in progress,
+         * which could otherwise publish the dataset again after we remove it,
+         * and makes datasetLoaded() ignore a publication too late to cancel.
+         */
         config.removeDataset(config.getDatasetInfo(id));
+        synchronized (this) {
+            datasets.remove(id);
+        }
     }
 
     /**
@@ -143,14 +150,25 @@ public class NcwmsCatalogue extends WmsCatalogue implements DatasetStorage {
      *            The new ID
      */
     public void changeDatasetId(String oldId, String newId) {
-        Dataset dataset = datasets.get(oldId);
-        datasets.remove(oldId);
-        datasets.put(newId, dataset);
+        /* As in removeDataset(), this cancels any load under the old ID first */
         config.changeDatasetId(config.getDatasetInfo(oldId), newId);
+        synchronized (this) {
+            Dataset dataset = datasets.get(oldId);
+            datasets.remove(oldId);
+            datasets.put(newId, dataset);
+        }
     }
 
     @Override
     public synchronized void datasetLoaded(Dataset dataset, Collection<NcwmsVariable> variables) {
+        if (config.getDatasetInfo(dataset.getId()) == null) {
+            /*
+             * It was removed or renamed whilst this load was publishing it, too
+             * late for the load to be cancelled
+             */
+            return;
+        }
+
         /*
          * If we already have a dataset with this ID, it will be replaced. This
          * is exactly what we want.
@@ -0,0 +1,283 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.ncwms.config;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.ncwms.config.NcwmsConfig.DatasetStorage;
+
+/**
+ * Loads the metadata of {@link NcwmsDataset}s on a pool of background threads.
+ * 
+ * Datasets waiting to be loaded are queued in order of their load priority,
+ * and then of how long they took to load last time, so that small datasets
+ * become available before large ones. A second pool is used for work on the
+ * individual variables of a dataset (such as estimating their value ranges),
+ * so that a single large dataset can make use of all of the available
+ * processors.
+ * 
+ * A load can be cancelled with {@link #cancel(NcwmsDataset)} when its dataset
+ * is removed or renamed. A cancelled load does not publish its dataset unless
+ * the publication had already started.
+ * 
+ * @author agent
+ */
+public final class DatasetLoader {
+    private final ThreadPoolExecutor loaderPool;
+    private final ThreadPoolExecutor variablePool;
+
+    /* The datasets which are queued or currently loading, with their tasks */
+    private final ConcurrentMap<NcwmsDataset, LoadTask> pending = new ConcurrentHashMap<NcwmsDataset, LoadTask>();
+    /* Used to load datasets with equal priorities in the order they were queued */
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final AtomicLong numLoaded = new AtomicLong(0);
+
+    /**
+     * @param nThreads
+     *            The number of datasets to load simultaneously. If this is
+     *            less than 1, the number of available processors is used
+     */
+    public DatasetLoader(int nThreads) {
+        int nProcessors = Runtime.getRuntime().availableProcessors();
+        nThreads = getNumThreads(nThreads);
+        loaderPool = new ThreadPoolExecutor(nThreads, nThreads, 60L, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new LoaderThreadFactory("load-metadata-"));
+        loaderPool.allowCoreThreadTimeOut(true);
+        variablePool = new ThreadPoolExecutor(nProcessors, nProcessors, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new LoaderThreadFactory("load-variables-"));
+        variablePool.allowCoreThreadTimeOut(true);
+    }
+
+    private static int getNumThreads(int nThreads) {
+        return nThreads < 1 ? Runtime.getRuntime().availableProcessors() : nThreads;
+    }
+
+    /**
+     * Queues a dataset to be loaded, unless it is already queued or loading.
+     * 
+     * @param dataset
+     *            The {@link NcwmsDataset} to load
+     * @param datasetStorage
+     *            The {@link DatasetStorage} to send the loaded dataset to
+     */
+    public void load(NcwmsDataset dataset, DatasetStorage datasetStorage) {
+        LoadTask task = new LoadTask(dataset, datasetStorage);
+        if (pending.putIfAbsent(dataset, task) == null) {
+            loaderPool.execute(task);
+        }
+    }
+
+    /**
+     * Cancels any queued or running load of a dataset. A queued load is
+     * removed from the queue. A running load is allowed to finish (so that it
+     * is not interrupted part-way through reading a file), but will not
+     * publish the dataset, and any resources it opened are released.
+     * 
+     * This never waits for the load. A publication which has already started
+     * when this is called will complete, so the {@link DatasetStorage} must
+     * ignore datasets which are no longer configured under the ID they were
+     * published with. Publishing a dataset takes locks on the
+     * {@link DatasetStorage} and the {@link NcwmsConfig}, so this must not be
+     * called whilst holding either.
+     * 
+     * @param dataset
+     *            The {@link NcwmsDataset} which has been removed or renamed
+     */
+    public void cancel(NcwmsDataset dataset) {
+        LoadTask task = pending.get(dataset);
+        if (task == null) {
+            return;
+        }
+        task.cancel();
+        if (loaderPool.remove(task)) {
+            /* It had not started, so it will never run */
+            pending.remove(dataset, task);
+        }
+    }
+
+    /**
+     * Changes the number of datasets which are loaded simultaneously
+     * 
+     * @param nThreads
+     *            The number of threads to use. If this is less than 1, the
+     *            number of available processors is used
+     */
+    public void setNumThreads(int nThreads) {
+        nThreads = getNumThreads(nThreads);
+        /* The order matters, since the core size can't exceed the maximum */
+        if (nThreads > loaderPool.getMaximumPoolSize()) {
+            loaderPool.setMaximumPoolSize(nThreads);
+            loaderPool.setCorePoolSize(nThreads);
+        } else {
+            loaderPool.setCorePoolSize(nThreads);
+            loaderPool.setMaximumPoolSize(nThreads);
+        }
+    }
+
+    public int getNumThreads() {
+        return loaderPool.getMaximumPoolSize();
+    }
+
+    /**
+     * @return The number of datasets waiting to be loaded
+     */
+    public int getNumQueued() {
+        return loaderPool.getQueue().size();
+    }
+
+    /**
+     * @return The number of datasets currently being loaded
+     */
+    public int getNumLoading() {
+        return loaderPool.getActiveCount();
+    }
+
+    /**
+     * @return The total number of dataset loads which have completed
+     *         (successfully or not)
+     */
+    public long getNumLoaded() {
+        return numLoaded.get();
+    }
+
+    /**
+     * @return The {@link ExecutorService} to use for work on individual
+     *         variables whilst loading a dataset
+     */
+    ExecutorService getVariableExecutor() {
+        return variablePool;
+    }
+
+    public void shutdown() {
+        loaderPool.shutdownNow();
+        variablePool.shutdownNow();
+    }
+
+    private final class LoadTask implements Runnable, Comparable<LoadTask>, DatasetStorage {
+        private final NcwmsDataset dataset;
+        private final DatasetStorage datasetStorage;
+        private final int priority;
+        private final long lastLoadTime;
+        private final long sequenceNumber;
+        private final long queuedAt;
+        private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+        public LoadTask(NcwmsDataset dataset, DatasetStorage datasetStorage) {
+            this.dataset = dataset;
+            this.datasetStorage = datasetStorage;
+            priority = dataset.getLoadPriority();
+            lastLoadTime = dataset.getLastLoadTime();
+            sequenceNumber = sequence.getAndIncrement();
+            queuedAt = System.currentTimeMillis();
+        }
+
+        @Override
+        public void run() {
+            /* The ID under which any resources will be opened */
+            String loadingId = dataset.getId();
+            try {
+                if (!cancelled.get()) {
+                    /* The dataset is published through this task */
+                    dataset.refresh(this, variablePool, System.currentTimeMillis() - queuedAt);
+                }
+            } finally {
+                pending.remove(dataset, this);
+                if (cancelled.get()) {
+                    /*
+                     * The dataset was removed or renamed whilst loading, after
+                     * its resources were released. Release anything which the
+                     * load opened, and make sure that a renamed dataset is
+                     * loaded again under its new ID.
+                     */
+                    dataset.releaseResources(loadingId);
+                    dataset.forceRefresh();
+                }
+                numLoaded.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void datasetLoaded(Dataset loaded, Collection<NcwmsVariable> variables) {
+            /*
+             * No lock is held whilst publishing, since the storage takes locks
+             * which the thread cancelling this load may hold
+             */
+            if (!cancelled.get()) {
+                datasetStorage.datasetLoaded(loaded, variables);
+            }
+        }
+
+        void cancel() {
+            cancelled.set(true);
+        }
+
+        @Override
+        public int compareTo(LoadTask other) {
+            /* Higher priorities first */
+            int comp = Integer.compare(other.priority, priority);
+            if (comp == 0) {
+                /* Then datasets which loaded quickly last time */
+                comp = Long.compare(lastLoadTime, other.lastLoadTime);
+            }
+            if (comp == 0) {
+                /* Then in the order they were queued */
+                comp = Long.compare(sequenceNumber, other.sequenceNumber);
+            }
+            return comp;
+        }
+    }
+
+    private static final class LoaderThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(0);
+
+        public LoaderThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,582 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.ncwms.config;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.oro.io.GlobFilenameFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
+
+/**
+ * Watches the files making up {@link NcwmsDataset}s, and notifies a
+ * {@link ChangeListener} when they are added, removed or modified, so that
+ * datasets only need to be reloaded when their data has actually changed.
+ * 
+ * Local directories are watched with a {@link WatchService}. Where this is not
+ * possible or not reliable (directories on network filesystems, which do not
+ * report changes made by other hosts, and locations with wildcards in their
+ * directory names), the sizes and modification times of the files are scanned
+ * periodically instead. Changes are debounced, so that a file which is still
+ * being written, or a batch of new files, causes a single notification once
+ * the changes have stopped.
+ * 
+ * Remote datasets and NcML files (which may refer to any other files) cannot be
+ * watched, and should continue to be refreshed at regular intervals.
+ * 
+ * @author agent
+ */
+public final class DatasetWatcher {
+    private static final Logger log = LoggerFactory.getLogger(DatasetWatcher.class);
+
+    /** The default time to wait after the last change before notifying */
+    public static final long DEFAULT_DEBOUNCE_MS = 2000L;
+    /** The default interval between scans of locations which cannot be watched */
+    public static final long DEFAULT_SCAN_INTERVAL_MS = 10000L;
+
+    /* How often the watcher thread checks for settled changes and due scans */
+    private static final long POLL_INTERVAL_MS = 250L;
+
+    /* Filesystem types which do not reliably report changes */
+    private static final Set<String> NETWORK_FILESYSTEMS = new HashSet<String>(Arrays.asList(
+            "nfs", "nfs4", "cifs", "smb", "smbfs", "smb2", "smb3", "afs", "ncpfs", "9p",
+            "lustre", "gpfs", "fuse.sshfs", "fuse.s3fs", "fuse.gcsfuse"));
+
+    /**
+     * Receives notifications of changes to the files of watched datasets
+     */
+    public interface ChangeListener {
+        /**
+         * Called (on the watcher thread) once the files of a dataset have
+         * changed and then remained unchanged for the debounce period
+         * 
+         * @param dataset
+         *            The {@link NcwmsDataset} whose files have changed
+         */
+        public void datasetChanged(NcwmsDataset dataset);
+    }
+
+    private final ChangeListener listener;
+    private final long debounceMs;
+    private final long scanIntervalMs;
+    /* null if the platform does not support watching */
+    private final WatchService watchService;
+    private final Thread watcherThread;
+
+    /* The registration of each dataset, whether or not it can be watched */
+    private final Map<NcwmsDataset, Registration> registrations = new IdentityHashMap<NcwmsDataset, Registration>();
+    /* The registrations which are notified by each watched directory */
+    private final Map<WatchKey, List<Registration>> watchedDirs = new HashMap<WatchKey, List<Registration>>();
+    /* The time of the most recent change to each dataset not yet notified */
+    private final Map<NcwmsDataset, Long> pendingChanges = new IdentityHashMap<NcwmsDataset, Long>();
+
+    /**
+     * Creates a {@link DatasetWatcher} with the default debounce period and
+     * scan interval
+     * 
+     * @param listener
+     *            The {@link ChangeListener} to notify of changes
+     */
+    public DatasetWatcher(ChangeListener listener) {
+        this(listener, DEFAULT_DEBOUNCE_MS, DEFAULT_SCAN_INTERVAL_MS);
+    }
+
+    /**
+     * @param listener
+     *            The {@link ChangeListener} to notify of changes
+     * @param debounceMs
+     *            The time in milliseconds for which a dataset's files must be
+     *            unchanged before the listener is notified
+     * @param scanIntervalMs
+     *            The interval in milliseconds between scans of locations which
+     *            cannot be watched
+     */
+    public DatasetWatcher(ChangeListener listener, long debounceMs, long scanIntervalMs) {
+        this.listener = listener;
+        this.debounceMs = debounceMs;
+        this.scanIntervalMs = scanIntervalMs;
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Cannot watch for changes to files.  All datasets will be scanned for changes instead.", e);
+        }
+        watchService = service;
+        watcherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "dataset-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    /**
+     * Starts watching the files of a dataset, if it is not already being
+     * watched. If the location of the dataset has changed since it was last
+     * registered, the new location is watched instead. This is cheap to call
+     * repeatedly for a dataset which is already registered.
+     * 
+     * @param dataset
+     *            The {@link NcwmsDataset} to watch
+     * @return <code>true</code> if changes to the dataset will be notified,
+     *         <code>false</code> if it cannot be watched (or has asked not to
+     *         be)
+     */
+    public boolean watch(NcwmsDataset dataset) {
+        String location = dataset.isWatchForChanges() ? dataset.getLocation() : null;
+        synchronized (this) {
+            Registration registration = registrations.get(dataset);
+            if (registration != null && registration.isFor(location)) {
+                return registration.isWatched();
+            }
+        }
+        /*
+         * Checking the filesystem and scanning the files may be slow (e.g. on
+         * a network filesystem), so is done without holding the lock, which
+         * the watcher thread needs
+         */
+        File watchableDir = null;
+        Long signature = null;
+        if (isScannable(location)) {
+            watchableDir = getWatchableDirectory(location);
+            if (watchableDir == null) {
+                signature = scan(location);
+            }
+        }
+        synchronized (this) {
+            Registration registration = registrations.get(dataset);
+            if (registration != null) {
+                if (registration.isFor(location)) {
+                    /* Registered by another thread whilst we were scanning */
+                    return registration.isWatched();
+                }
+                unregister(registration);
+            }
+            registration = register(dataset, location, watchableDir, signature);
+            registrations.put(dataset, registration);
+            return registration.isWatched();
+        }
+    }
+
+    /**
+     * Stops watching the files of a dataset
+     * 
+     * @param dataset
+     *            The {@link NcwmsDataset} to stop watching
+     */
+    public synchronized void unwatch(NcwmsDataset dataset) {
+        Registration registration = registrations.remove(dataset);
+        if (registration != null) {
+            unregister(registration);
+        }
+        pendingChanges.remove(dataset);
+    }
+
+    /**
+     * @return The number of datasets which are watched through change
+     *         notifications from the filesystem
+     */
+    public synchronized int getNumWatched() {
+        int nWatched = 0;
+        for (Registration registration : registrations.values()) {
+            if (registration.key != null) {
+                nWatched++;
+            }
+        }
+        return nWatched;
+    }
+
+    /**
+     * @return The number of datasets which are watched by periodically
+     *         scanning their files
+     */
+    public synchronized int getNumScanned() {
+        int nScanned = 0;
+        for (Registration registration : registrations.values()) {
+            if (registration.scanned) {
+                nScanned++;
+            }
+        }
+        return nScanned;
+    }
+
+    /**
+     * Stops watching all datasets
+     */
+    public void shutdown() {
+        watcherThread.interrupt();
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                log.error("Problem closing watch service", e);
+            }
+        }
+    }
+
+    /**
+     * Registers a dataset, which must be done whilst holding the lock
+     * 
+     * @param dir
+     *            The directory to watch, or <code>null</code> if the location
+     *            cannot be watched
+     * @param signature
+     *            The result of scanning the location if it cannot be watched,
+     *            or <code>null</code> if it has not been scanned
+     */
+    private Registration register(NcwmsDataset dataset, String location, File dir,
+            Long signature) {
+        Registration registration = new Registration(dataset, location);
+        if (!isScannable(location)) {
+            return registration;
+        }
+        if (dir != null) {
+            try {
+                registration.key = dir.toPath().register(watchService, ENTRY_CREATE,
+                        ENTRY_DELETE, ENTRY_MODIFY);
+                registration.filter = getFilenameFilter(location);
+                List<Registration> dirRegistrations = watchedDirs.get(registration.key);
+                if (dirRegistrations == null) {
+                    dirRegistrations = new ArrayList<Registration>();
+                    watchedDirs.put(registration.key, dirRegistrations);
+                }
+                dirRegistrations.add(registration);
+                log.debug("Watching " + dir + " for changes to dataset " + dataset.getId());
+                return registration;
+            } catch (IOException | UnsupportedOperationException e) {
+                log.debug("Cannot watch " + dir + ".  It will be scanned instead.", e);
+                registration.key = null;
+            }
+        }
+        startScanning(registration, signature);
+        return registration;
+    }
+
+    /**
+     * @return The directory containing the files of a local location, if it
+     *         can be watched for changes, or <code>null</code> if the location
+     *         must be scanned instead
+     */
+    private File getWatchableDirectory(String location) {
+        File dir = new File(location).getParentFile();
+        if (watchService != null && !hasWildcards(dir.getPath()) && dir.isDirectory()
+                && !isNetworkFilesystem(dir.toPath())) {
+            return dir;
+        }
+        return null;
+    }
+
+    private void unregister(Registration registration) {
+        if (registration.key != null) {
+            List<Registration> dirRegistrations = watchedDirs.get(registration.key);
+            if (dirRegistrations != null) {
+                dirRegistrations.remove(registration);
+                if (dirRegistrations.isEmpty()) {
+                    /* Nothing else is watching this directory */
+                    watchedDirs.remove(registration.key);
+                    registration.key.cancel();
+                }
+            }
+            registration.key = null;
+        }
+        registration.scanned = false;
+    }
+
+    /**
+     * Starts scanning the location of a registration
+     * 
+     * @param signature
+     *            The result of scanning the location, or <code>null</code> if
+     *            it has not been scanned. In that case it is scanned straight
+     *            away by the watcher thread (without holding the lock), and
+     *            changes are notified from then on.
+     */
+    private void startScanning(Registration registration, Long signature) {
+        registration.scanned = true;
+        registration.signature = signature;
+        registration.nextScan = signature == null ? 0L : System.currentTimeMillis()
+                + scanIntervalMs;
+        log.debug("Scanning " + registration.location + " for changes to dataset "
+                + registration.dataset.getId());
+    }
+
+    /**
+     * The main loop of the watcher thread
+     */
+    private void watch() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (watchService == null) {
+                    Thread.sleep(POLL_INTERVAL_MS);
+                } else {
+                    WatchKey key = watchService.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    while (key != null) {
+                        processEvents(key);
+                        key = watchService.poll();
+                    }
+                }
+                scanDueLocations();
+                for (NcwmsDataset dataset : getSettledChanges()) {
+                    try {
+                        listener.datasetChanged(dataset);
+                    } catch (RuntimeException e) {
+                        log.error("Problem handling change to dataset " + dataset.getId(), e);
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void processEvents(WatchKey key) {
+        long now = System.currentTimeMillis();
+        List<Registration> dirRegistrations = watchedDirs.get(key);
+        File dir = ((Path) key.watchable()).toFile();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dirRegistrations == null) {
+                continue;
+            }
+            for (Registration registration : dirRegistrations) {
+                /*
+                 * If events have been lost, we have to assume that every
+                 * dataset in the directory has changed
+                 */
+                if (event.kind() == OVERFLOW
+                        || registration.filter.accept(dir, event.context().toString())) {
+                    pendingChanges.put(registration.dataset, now);
+                }
+            }
+        }
+        if (!key.reset() && dirRegistrations != null) {
+            /*
+             * The directory has gone (or become inaccessible). Its datasets
+             * have changed, and can only be scanned from now on.
+             */
+            watchedDirs.remove(key);
+            for (Registration registration : dirRegistrations) {
+                registration.key = null;
+                pendingChanges.put(registration.dataset, now);
+                startScanning(registration, null);
+            }
+        }
+    }
+
+    private void scanDueLocations() {
+        /*
+         * Scanning may be slow, so is done without holding the lock
+         */
+        List<Registration> due = new ArrayList<Registration>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Registration registration : registrations.values()) {
+                if (registration.scanned && now >= registration.nextScan) {
+                    due.add(registration);
+                }
+            }
+        }
+        for (Registration registration : due) {
+            long signature = scan(registration.location);
+            synchronized (this) {
+                if (!registration.scanned) {
+                    /* Unregistered while we were scanning */
+                    continue;
+                }
+                long now = System.currentTimeMillis();
+                if (registration.signature == null) {
+                    /* The first scan, which later ones are compared with */
+                    registration.signature = signature;
+                } else if (signature != registration.signature.longValue()) {
+                    registration.signature = signature;
+                    pendingChanges.put(registration.dataset, now);
+                }
+                registration.nextScan = now + scanIntervalMs;
+            }
+        }
+    }
+
+    /**
+     * @return The datasets whose files have changed, but not for at least the
+     *         debounce period. These are removed from the pending changes.
+     */
+    private synchronized List<NcwmsDataset> getSettledChanges() {
+        if (pendingChanges.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long now = System.currentTimeMillis();
+        List<NcwmsDataset> settled = new ArrayList<NcwmsDataset>();
+        Iterator<Entry<NcwmsDataset, Long>> iterator = pendingChanges.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry<NcwmsDataset, Long> change = iterator.next();
+            if (now - change.getValue() >= debounceMs) {
+                settled.add(change.getKey());
+                iterator.remove();
+            }
+        }
+        return settled;
+    }
+
+    /**
+     * @return A value which changes whenever a file matching the location is
+     *         added, removed or modified
+     */
+    private static long scan(String location) {
+        List<File> files;
+        try {
+            files = CdmUtils.expandGlobExpression(location);
+        } catch (RuntimeException e) {
+            /*
+             * Directories which cannot be listed (e.g. whilst a network
+             * filesystem is unavailable) are treated as empty
+             */
+            log.debug("Problem scanning " + location, e);
+            files = Collections.emptyList();
+        }
+        List<String> stamps = new ArrayList<String>();
+        for (File file : files) {
+            stamps.add(file.getPath() + ":" + file.length() + ":" + file.lastModified());
+        }
+        /* The order of the listing is not guaranteed */
+        Collections.sort(stamps);
+        long signature = 17L;
+        for (String stamp : stamps) {
+            signature = 31L * signature + stamp.hashCode();
+        }
+        return signature;
+    }
+
+    /**
+     * @return Whether the location refers to local files in a known
+     *         directory, which can be watched or scanned
+     */
+    private static boolean isScannable(String location) {
+        return isLocalLocation(location) && new File(location).getParentFile() != null;
+    }
+
+    /**
+     * @return Whether the location refers to local files which could be
+     *         watched (i.e. it is not a URL or an NcML file, which may refer to
+     *         any other files)
+     */
+    static boolean isLocalLocation(String location) {
+        return location != null && !location.contains("://")
+                && !location.toLowerCase().endsWith(".ncml");
+    }
+
+    /**
+     * @return A filter which accepts the names of the files in a location's
+     *         directory which are part of the dataset
+     */
+    static FilenameFilter getFilenameFilter(String location) {
+        return new GlobFilenameFilter(new File(location).getName());
+    }
+
+    static boolean hasWildcards(String path) {
+        return path.indexOf('*') >= 0 || path.indexOf('?') >= 0 || path.indexOf('[') >= 0
+                || path.indexOf('{') >= 0;
+    }
+
+    private static boolean isNetworkFilesystem(Path dir) {
+        try {
+            return isNetworkFilesystemType(Files.getFileStore(dir).type());
+        } catch (IOException e) {
+            /* We can't tell, so don't rely on notifications */
+            return true;
+        }
+    }
+
+    /**
+     * @return Whether a filesystem of the given type (as given by
+     *         {@link java.nio.file.FileStore#type()}) may not report changes
+     *         made by other hosts
+     */
+    static boolean isNetworkFilesystemType(String type) {
+        return NETWORK_FILESYSTEMS.contains(type.toLowerCase());
+    }
+
+    /**
+     * The way in which a single dataset is watched
+     */
+    private static final class Registration {
+        private final NcwmsDataset dataset;
+        private final String location;
+        /* The key of the watched directory, or null if it is not watched */
+        private WatchKey key = null;
+        /* Matches the names of the dataset's files in the watched directory */
+        private FilenameFilter filter = null;
+        /* Whether the location is scanned, rather than watched */
+        private boolean scanned = false;
+        /* The result of the latest scan, or null if it has not been scanned */
+        private Long signature = null;
+        private long nextScan;
+
+        public Registration(NcwmsDataset dataset, String location) {
+            this.dataset = dataset;
+            this.location = location;
+        }
+
+        private boolean isWatched() {
+            return key != null || scanned;
+        }
+
+        private boolean isFor(String location) {
+            return this.location == null ? location == null : this.location.equals(location);
+        }
+    }
+}
@@ -45,6 +45,10 @@ public class NcwmsCacheInfo implements CacheInfo {
     private int inMemorySizeMB = 256;
     @XmlElement(name = "elementLifetimeMinutes")
     private float elementLifetimeMinutes = 0;
+    @XmlElement(name = "prefetchThreads")
+    private int prefetchThreads = 1;
+    @XmlElement(name = "prefetchDepth")
+    private int prefetchDepth = 2;
 
     NcwmsCacheInfo() {
     }
@@ -93,4 +97,32 @@ public class NcwmsCacheInfo implements CacheInfo {
     public float getElementLifetimeMinutes() {
         return elementLifetimeMinutes;
     }
+
+    @Override
+    public int getPrefetchThreads() {
+        return prefetchThreads;
+    }
+
+    /**
+     * @param prefetchThreads
+     *            The number of threads used to read maps into the cache before
+     *            they are requested. 0 disables prefetching.
+     */
+    public void setPrefetchThreads(int prefetchThreads) {
+        this.prefetchThreads = prefetchThreads;
+    }
+
+    @Override
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    /**
+     * @param prefetchDepth
+     *            The number of time steps (or elevations) to read ahead of the
+     *            most recent request
+     */
+    public void setPrefetchDepth(int prefetchDepth) {
+        this.prefetchDepth = prefetchDepth;
+    }
 }
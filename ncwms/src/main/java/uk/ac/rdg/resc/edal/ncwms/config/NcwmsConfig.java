@@ -34,9 +34,12 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -93,13 +96,18 @@ public class NcwmsConfig {
     @XmlTransient
     private File configBackup;
 
-    /** The scheduler that will handle the background (re)loading of datasets */
-    private static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
     /**
-     * Contains handles to background threads that can be used to cancel
-     * reloading of datasets. Maps dataset IDs to Future objects
+     * The scheduler that checks whether datasets need (re)loading. The loading
+     * itself is done by the {@link DatasetLoader}
      */
-    private static Map<String, ScheduledFuture<?>> futures = new HashMap<String, ScheduledFuture<?>>();
+    private static ScheduledExecutorService scheduler = Executors
+            .newSingleThreadScheduledExecutor();
+    /** The pool of threads which (re)loads datasets in the background */
+    private static DatasetLoader loader = null;
+    /** Watches the files of datasets, so that they are reloaded when they change */
+    private static DatasetWatcher watcher = null;
+    /** The regular check of all datasets, which can be cancelled */
+    private static ScheduledFuture<?> datasetChecker = null;
 
     /*
      * Used for JAX-B
@@ -140,33 +148,125 @@ public class NcwmsConfig {
          * Also during the load, return WmsLayerMetadatas (these are just the
          * NcwmsVariables...)
          */
-        for (final NcwmsDataset dataset : datasets.values()) {
-            scheduleReload(dataset);
-        }
-    }
-
-    private void scheduleReload(final NcwmsDataset dataset) {
         if (datasetStorage == null) {
             throw new IllegalStateException(
                     "You need to set something to handle loaded datasets before loading them.");
         }
-        Runnable reloader = new Runnable() {
+        getDatasetLoader();
+        getDatasetWatcher();
+        /*
+         * A single task checks all datasets every second. This is cheap:
+         * datasets whose files are watched are only reloaded once they have
+         * changed, and only those which cannot be watched are reloaded at
+         * their update intervals.
+         */
+        synchronized (NcwmsConfig.class) {
+            if (datasetChecker != null) {
+                datasetChecker.cancel(false);
+            }
+            datasetChecker = scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkDatasets();
+                }
+            }, 0, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * @return The {@link DatasetLoader} which loads datasets in the background
+     */
+    public DatasetLoader getDatasetLoader() {
+        synchronized (NcwmsConfig.class) {
+            if (loader == null) {
+                loader = new DatasetLoader(serverInfo.getLoaderThreads());
+            }
+            return loader;
+        }
+    }
+
+    /*
+     * Cancels any queued or running load of the dataset. This doesn't create
+     * a loader if there isn't one, since then nothing can be loading.
+     * 
+     * This must not be called whilst holding the lock on a config: a load
+     * publishes its dataset through the catalogue, which locks itself and
+     * then saves the config.
+     */
+    private static void cancelLoad(NcwmsDataset dataset) {
+        DatasetLoader currentLoader;
+        synchronized (NcwmsConfig.class) {
+            currentLoader = loader;
+        }
+        if (currentLoader != null) {
+            currentLoader.cancel(dataset);
+        }
+    }
+
+    /**
+     * @return The {@link DatasetWatcher} which watches the files of datasets
+     *         for changes
+     */
+    public DatasetWatcher getDatasetWatcher() {
+        synchronized (NcwmsConfig.class) {
+            if (watcher == null) {
+                watcher = new DatasetWatcher(new DatasetWatcher.ChangeListener() {
+                    @Override
+                    public void datasetChanged(NcwmsDataset dataset) {
+                        dataset.notifyChanged();
+                        /*
+                         * Load it straight away, rather than waiting for the
+                         * next check
+                         */
+                        if (dataset.needsRefresh()) {
+                            getDatasetLoader().load(dataset, datasetStorage);
+                        }
+                    }
+                });
+            }
+            return watcher;
+        }
+    }
+
+    /**
+     * Makes sure that every dataset is being watched for changes, and queues
+     * any which need (re)loading
+     */
+    private void checkDatasets() {
+        List<NcwmsDataset> datasetsByPriority;
+        synchronized (this) {
+            datasetsByPriority = new ArrayList<NcwmsDataset>(datasets.values());
+        }
+        /*
+         * Queue the datasets in order of priority, so that when they are all
+         * loaded at startup the most important ones start first
+         */
+        Collections.sort(datasetsByPriority, new Comparator<NcwmsDataset>() {
             @Override
-            public void run() {
+            public int compare(NcwmsDataset dataset1, NcwmsDataset dataset2) {
+                return Integer.compare(dataset2.getLoadPriority(), dataset1.getLoadPriority());
+            }
+        });
+        DatasetWatcher datasetWatcher = getDatasetWatcher();
+        DatasetLoader datasetLoader = getDatasetLoader();
+        for (NcwmsDataset dataset : datasetsByPriority) {
+            try {
+                /*
+                 * This picks up new datasets and changes to the locations of
+                 * existing ones
+                 */
+                dataset.setWatched(datasetWatcher.watch(dataset));
+                if (dataset.needsRefresh()) {
+                    datasetLoader.load(dataset, datasetStorage);
+                }
+            } catch (RuntimeException e) {
                 /*
-                 * This will check to see if the metadata need reloading, then
-                 * go ahead if so.
+                 * Don't let a problem with one dataset stop the checks of the
+                 * others (or cancel this task)
                  */
-                dataset.refresh(datasetStorage);
+                log.error("Problem checking dataset " + dataset.getId(), e);
             }
-        };
-        /*
-         * Run the task immediately, and then redo it every 1s
-         */
-        ScheduledFuture<?> future = scheduler.scheduleWithFixedDelay(reloader, 0, 1,
-                TimeUnit.SECONDS);
-        /* We need to keep a handle to the Future object so we can cancel it */
-        futures.put(dataset.getId(), future);
+        }
     }
 
     public NcwmsContact getContactInfo() {
@@ -226,24 +326,80 @@ public class NcwmsConfig {
         }
     }
 
-    public synchronized void addDataset(NcwmsDataset dataset) {
-        datasets.put(dataset.getId(), dataset);
-        scheduleReload(dataset);
+    public void addDataset(NcwmsDataset dataset) {
+        NcwmsDataset replaced;
+        synchronized (this) {
+            /* This will be loaded by the next check of the datasets */
+            replaced = datasets.put(dataset.getId(), dataset);
+        }
+        if (replaced != null && replaced != dataset) {
+            /* Nothing would ever release what the replaced dataset holds */
+            discardDataset(replaced);
+        }
+    }
+
+    public void removeDataset(NcwmsDataset dataset) {
+        synchronized (this) {
+            datasets.remove(dataset.getId());
+        }
+        discardDataset(dataset);
     }
 
-    public synchronized void removeDataset(NcwmsDataset dataset) {
-        datasets.remove(dataset.getId());
-        futures.get(dataset.getId()).cancel(true);
-        futures.remove(dataset.getId());
+    /*
+     * Stops a dataset which is no longer in the config from being watched or
+     * loaded, and releases what it holds. Called without the lock on the
+     * config (see cancelLoad()).
+     */
+    private void discardDataset(NcwmsDataset dataset) {
+        getDatasetWatcher().unwatch(dataset);
+        /* A load which is queued or in progress must not bring it back */
+        cancelLoad(dataset);
+        dataset.releaseResources();
     }
 
-    public synchronized void changeDatasetId(NcwmsDataset dataset, String newId) {
-        datasets.remove(dataset.getId());
-        ScheduledFuture<?> removedScheduler = futures.remove(dataset.getId());
-        dataset.setId(newId);
+    public void changeDatasetId(NcwmsDataset dataset, String newId) {
+        synchronized (this) {
+            datasets.remove(dataset.getId());
+        }
+        /* Any load in progress would publish the dataset under its old ID */
+        cancelLoad(dataset);
+        /* Resources are held under the old ID, so would never be reused */
+        dataset.releaseResources();
+        synchronized (this) {
+            dataset.setId(newId);
+            datasets.put(newId, dataset);
+        }
+    }
 
-        datasets.put(newId, dataset);
-        futures.put(dataset.getId(), removedScheduler);
+    /**
+     * Changes the location and data reader of a dataset. If either has
+     * changed, the resources held for the old location are released first,
+     * since the dataset factory holds them under the ID and location, and
+     * they would never be reused.
+     * 
+     * @param dataset
+     *            The dataset to change
+     * @param location
+     *            The new location of the data
+     * @param dataReaderClass
+     *            The new data reader class
+     */
+    public void changeDatasetLocation(NcwmsDataset dataset, String location,
+            String dataReaderClass) {
+        boolean changed;
+        synchronized (this) {
+            changed = !location.trim().equals(dataset.getLocation().trim())
+                    || !dataReaderClass.trim().equals(dataset.getDataReaderClass().trim());
+        }
+        if (changed) {
+            /* A load in progress would reopen the old location */
+            cancelLoad(dataset);
+            dataset.releaseResources();
+        }
+        synchronized (this) {
+            dataset.setLocation(location);
+            dataset.setDataReaderClass(dataReaderClass);
+        }
     }
 
     public synchronized void addDynamicService(NcwmsDynamicService dynamicService) {
@@ -288,6 +444,14 @@ public class NcwmsConfig {
 
     public static void shutdown() {
         scheduler.shutdownNow();
+        synchronized (NcwmsConfig.class) {
+            if (watcher != null) {
+                watcher.shutdown();
+            }
+            if (loader != null) {
+                loader.shutdown();
+            }
+        }
     }
 
     @Override
@@ -29,13 +29,20 @@
 package uk.ac.rdg.resc.edal.ncwms.config;
 
 import java.awt.Color;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
@@ -49,8 +56,10 @@ import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.rdg.resc.edal.dataset.DataReadingStrategy;
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.dataset.DatasetFactory;
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.graphics.style.util.ColourPalette;
@@ -109,10 +118,71 @@ public class NcwmsDataset {
     @XmlAttribute(name = "disabled")
     private boolean disabled = false;
 
-    /* The update interval in minutes. -1 means "never update automatically" */
+    /*
+     * The update interval in minutes. -1 means "never update automatically".
+     * For datasets whose files are watched for changes, this is instead the
+     * minimum time between the last load and a reload caused by a change
+     * (and -1 means no minimum)
+     */
     @XmlAttribute(name = "updateInterval")
     private int updateInterval = -1;
 
+    /*
+     * The name of a DataReadingStrategy to use for all reads from this
+     * dataset. If empty, the cheapest strategy is chosen for each request
+     */
+    @XmlAttribute(name = "dataReadingStrategy")
+    private String dataReadingStrategy = "";
+
+    /*
+     * Set true to keep a time-major copy of the data in the working directory,
+     * which makes timeseries extraction much faster
+     */
+    @XmlAttribute(name = "timeMajorStore")
+    private boolean timeMajorStore = false;
+
+    /*
+     * Set true to keep an index of the statistics of the data in the working
+     * directory, which is used for estimating data ranges
+     */
+    @XmlAttribute(name = "statisticsIndex")
+    private boolean statisticsIndex = false;
+
+    /*
+     * Whether to generate reduced-resolution overviews of the data, for
+     * faster rendering of large areas. This can be "lazy" (generate each
+     * overview when it is first needed) or "eager" (generate them all in the
+     * background). If empty, no overviews are used.
+     */
+    @XmlAttribute(name = "overviews")
+    private String overviews = "";
+
+    /*
+     * Whether to keep a snapshot of the dataset's metadata in the working
+     * directory. After a restart, the dataset is restored from the snapshot
+     * immediately, and then fully reloaded in the background only if its
+     * files have changed (remote datasets and NcML documents are always
+     * reloaded). This is off unless it is enabled for a dataset, since a
+     * snapshot may briefly serve out-of-date metadata.
+     */
+    @XmlAttribute(name = "metadataSnapshot")
+    private boolean metadataSnapshot = false;
+
+    /*
+     * Datasets with higher priorities are loaded first when several are
+     * waiting to be loaded
+     */
+    @XmlAttribute(name = "loadPriority")
+    private int loadPriority = 0;
+
+    /*
+     * Whether to watch the dataset's files for changes. Watched datasets are
+     * reloaded shortly after their files change (but no sooner than the update
+     * interval after the last load), rather than at a fixed update interval
+     */
+    @XmlAttribute(name = "watchForChanges")
+    private boolean watchForChanges = true;
+
     @XmlAttribute(name = "metadataUrl")
     private String metadataUrl = "";
 
@@ -155,6 +225,42 @@ public class NcwmsDataset {
      */
     @XmlTransient
     private List<String> loadingProgress = new ArrayList<String>();
+    /*
+     * The time in milliseconds taken by each phase of the most recent load,
+     * in the order they happened. This is replaced (rather than modified) as
+     * each phase completes, so that it can be safely read at any time
+     */
+    @XmlTransient
+    private volatile Map<String, Long> loadTimings = new LinkedHashMap<String, Long>();
+    /*
+     * The total time in milliseconds taken by the most recent successful load,
+     * or 0 if the dataset has not yet been loaded
+     */
+    @XmlTransient
+    private volatile long lastLoadTime = 0L;
+    /*
+     * Set when the dataset has been restored from a snapshot, which needs to
+     * be checked against the underlying data
+     */
+    @XmlTransient
+    private volatile boolean revalidateSnapshot = false;
+    /*
+     * The most recently loaded version of this dataset, which the next
+     * refresh can build upon
+     */
+    @XmlTransient
+    private Dataset loadedDataset = null;
+    /*
+     * Set when the files of this dataset are being watched for changes, in
+     * which case there is no need to refresh it at regular intervals
+     */
+    @XmlTransient
+    private volatile boolean watched = false;
+    /*
+     * Set when the files of this dataset have changed since it was last loaded
+     */
+    @XmlTransient
+    private volatile boolean changeDetected = false;
     /*
      * The time at which this dataset's stored Layers were last successfully
      * updated, or null if the Layers have not yet been loaded
@@ -179,10 +285,37 @@ public class NcwmsDataset {
      *            {@link WmsLayerMetadata} back to once a refresh is completed
      */
     public void refresh(DatasetStorage datasetStorage) {
+        refresh(datasetStorage, null, 0L);
+    }
+
+    /**
+     * Refreshes the dataset if required.
+     * 
+     * @param datasetStorage
+     *            The {@link DatasetStorage} object to send {@link Dataset}s and
+     *            {@link WmsLayerMetadata} back to once a refresh is completed
+     * @param variableExecutor
+     *            An {@link ExecutorService} to use for work on individual
+     *            variables, or <code>null</code> to do all work on the calling
+     *            thread
+     * @param queuedTime
+     *            The time in milliseconds that this refresh spent waiting to be
+     *            run, to be recorded with the load timings
+     */
+    void refresh(DatasetStorage datasetStorage, ExecutorService variableExecutor,
+            long queuedTime) {
         if (!needsRefresh()) {
             return;
         }
+        /* Any changes from now on will need another refresh */
+        changeDetected = false;
         loadingProgress = new ArrayList<String>();
+        Map<String, Long> timings = new LinkedHashMap<String, Long>();
+        if (queuedTime > 0) {
+            timings.put("Waiting to load", queuedTime);
+        }
+        loadTimings = timings;
+        long startTime = System.currentTimeMillis();
         /*
          * Include the id of the dataset in the thread for debugging purposes
          * Comment this out to use the default thread names (e.g.
@@ -198,7 +331,8 @@ public class NcwmsDataset {
              */
             state = lastSuccessfulUpdateTime == null ? DatasetState.LOADING : DatasetState.UPDATING;
 
-            createDataset(datasetStorage);
+            createDataset(datasetStorage, variableExecutor);
+            lastLoadTime = System.currentTimeMillis() - startTime;
 
             /*
              * Update the state of this dataset. If we've got this far there
@@ -226,7 +360,14 @@ public class NcwmsDataset {
 
     public void createDataset(DatasetStorage datasetStorage) throws InstantiationException,
             IllegalAccessException, ClassNotFoundException, IOException, EdalException {
+        createDataset(datasetStorage, null);
+    }
+
+    private void createDataset(DatasetStorage datasetStorage, ExecutorService variableExecutor)
+            throws InstantiationException, IllegalAccessException, ClassNotFoundException,
+            IOException, EdalException {
         loadingProgress.add("Starting loading");
+        long phaseStart = System.currentTimeMillis();
 
         /*
          * Get the appropriate DatasetFactory
@@ -239,9 +380,112 @@ public class NcwmsDataset {
          * TODO In the old version, we dealt with OPeNDAP credentials here...
          */
 
-        Dataset dataset = factory.createDataset(id, location);
+        File snapshotDir = getSnapshotDirectory();
+        Dataset dataset = null;
+        boolean restored = false;
+        if (snapshotDir != null && revalidateSnapshot) {
+            /*
+             * We are serving a restored snapshot. We only need to reload the
+             * dataset if it has changed since the snapshot was taken
+             */
+            revalidateSnapshot = false;
+            if (factory.isSnapshotCurrent(id, location, snapshotDir)) {
+                addLoadTiming("Checking metadata snapshot", phaseStart);
+                loadingProgress.add("Metadata snapshot is up-to-date");
+                loadingProgress.add("Finished loading dataset metadata");
+                return;
+            }
+            loadingProgress.add("Metadata snapshot is out-of-date");
+        } else if (snapshotDir != null && lastSuccessfulUpdateTime == null) {
+            /*
+             * This is the first load since startup, so restore the snapshot
+             * if there is one
+             */
+            try {
+                dataset = factory.restoreDataset(id, location, snapshotDir);
+                restored = dataset != null;
+            } catch (Exception e) {
+                log.warn("Problem restoring metadata snapshot for dataset " + id
+                        + ".  It will be loaded in full", e);
+            }
+        }
+
+        if (restored) {
+            loadingProgress.add("Dataset restored from metadata snapshot");
+            phaseStart = addLoadTiming("Restoring metadata snapshot", phaseStart);
+        } else {
+            if (loadedDataset != null) {
+                /*
+                 * Only read the parts of the dataset which have changed, if
+                 * the factory supports it
+                 */
+                dataset = factory.refreshDataset(loadedDataset, id, location);
+                loadingProgress.add("Dataset refreshed");
+            } else {
+                dataset = factory.createDataset(id, location);
+                loadingProgress.add("Dataset created");
+            }
+            phaseStart = addLoadTiming("Reading metadata", phaseStart);
+
+            if (snapshotDir != null) {
+                try {
+                    if (factory.writeSnapshot(dataset, snapshotDir)) {
+                        loadingProgress.add("Metadata snapshot written");
+                    }
+                } catch (IOException e) {
+                    log.warn("Problem writing metadata snapshot for dataset " + id, e);
+                }
+                phaseStart = addLoadTiming("Writing metadata snapshot", phaseStart);
+            }
+        }
+
+        if (dataset instanceof GriddedDataset && dataReadingStrategy != null
+                && !dataReadingStrategy.trim().isEmpty()) {
+            try {
+                DataReadingStrategy strategy = DataReadingStrategy.valueOf(dataReadingStrategy
+                        .trim().toUpperCase());
+                ((GriddedDataset) dataset).setDataReadingStrategy(strategy);
+                loadingProgress.add("Using data reading strategy: " + strategy);
+            } catch (IllegalArgumentException e) {
+                log.warn("Unknown data reading strategy " + dataReadingStrategy
+                        + " for dataset " + id + ".  It will be chosen automatically");
+            }
+        }
+        if (timeMajorStore && dataset instanceof GriddedDataset
+                && DatasetFactory.getWorkingDirectory() != null) {
+            /*
+             * This builds in the background, and is used once it is
+             * up-to-date
+             */
+            ((GriddedDataset) dataset).buildTimeMajorStores(new File(DatasetFactory
+                    .getWorkingDirectory(), "timeseries"));
+            loadingProgress.add("Building time-major store for timeseries extraction");
+        }
+        if (statisticsIndex && dataset instanceof GriddedDataset
+                && DatasetFactory.getWorkingDirectory() != null) {
+            /*
+             * Any existing statistics are available immediately (including for
+             * estimating the colour scale ranges of new variables below).
+             * Missing ones are calculated in the background.
+             */
+            ((GriddedDataset) dataset).buildStatisticsIndex(new File(DatasetFactory
+                    .getWorkingDirectory(), "statistics"));
+            loadingProgress.add("Building index of data statistics");
+        }
+        if (overviews != null && !overviews.trim().isEmpty()
+                && dataset instanceof GriddedDataset
+                && DatasetFactory.getWorkingDirectory() != null) {
+            boolean eager = "eager".equalsIgnoreCase(overviews.trim());
+            if (!eager && !"lazy".equalsIgnoreCase(overviews.trim())) {
+                log.warn("Unknown overview generation " + overviews + " for dataset " + id
+                        + ".  Overviews will be generated when needed");
+            }
+            ((GriddedDataset) dataset).buildOverviews(new File(DatasetFactory
+                    .getWorkingDirectory(), "overviews"), eager);
+            loadingProgress.add("Using " + (eager ? "eager" : "lazy") + " overview generation");
+        }
+        phaseStart = addLoadTiming("Setting up data access", phaseStart);
 
-        loadingProgress.add("Dataset created");
         /*
          * Loop through existing variables and check that they are still there,
          * removing them if not
@@ -257,32 +501,119 @@ public class NcwmsDataset {
             variables.remove(varToRemove);
         }
         /*
-         * Now create any new variable objects which are needed.
+         * Now create any new variable objects which are needed. Estimating
+         * the value ranges involves reading data, so this is done for all
+         * variables in parallel if possible.
          */
+        Map<String, Future<Extent<Float>>> valueRanges = new LinkedHashMap<String, Future<Extent<Float>>>();
         for (String varId : variableIds) {
             if (!variables.containsKey(varId)) {
                 loadingProgress.add("Creating default metadata for variable: " + varId);
-                /*
-                 * Create a new variable object with default values.
-                 */
-                Extent<Float> colorScaleRange = GraphicsUtils.estimateValueRange(dataset, varId);
-                VariableMetadata variableMetadata = dataset.getVariableMetadata(varId);
-                NcwmsVariable variable = new NcwmsVariable(varId, varId, variableMetadata
-                        .getParameter().getDescription(), colorScaleRange,
-                        ColourPalette.DEFAULT_PALETTE_NAME, Color.black, Color.black, new Color(0,
-                                true), "linear", ColourPalette.MAX_NUM_COLOURS, null, null, null);
-                variable.setNcwmsDataset(this);
-                variables.put(varId, variable);
+                valueRanges.put(varId, estimateValueRange(dataset, varId, variableExecutor));
             }
         }
+        for (Entry<String, Future<Extent<Float>>> valueRange : valueRanges.entrySet()) {
+            String varId = valueRange.getKey();
+            Extent<Float> colorScaleRange = getValueRange(valueRange.getValue());
+            /*
+             * Create a new variable object with default values.
+             */
+            VariableMetadata variableMetadata = dataset.getVariableMetadata(varId);
+            NcwmsVariable variable = new NcwmsVariable(varId, varId, variableMetadata
+                    .getParameter().getDescription(), colorScaleRange,
+                    ColourPalette.DEFAULT_PALETTE_NAME, Color.black, Color.black, new Color(0,
+                            true), "linear", ColourPalette.MAX_NUM_COLOURS, null, null, null);
+            variable.setNcwmsDataset(this);
+            variables.put(varId, variable);
+        }
+        phaseStart = addLoadTiming("Estimating value ranges", phaseStart);
 
         loadingProgress.add("Making this dataset available through the WMS catalogue");
         datasetStorage.datasetLoaded(dataset, variables.values());
+        loadedDataset = dataset;
+        addLoadTiming("Publishing layers", phaseStart);
+        if (restored) {
+            /*
+             * The dataset is now available. Check it against the underlying
+             * data the next time it is refreshed, which will be shortly.
+             */
+            revalidateSnapshot = true;
+        }
 
         loadingProgress.add("Finished loading dataset metadata");
     }
 
-    private boolean needsRefresh() {
+    /**
+     * @return The directory in which to store the metadata snapshot of this
+     *         dataset, or <code>null</code> if snapshots are not in use
+     */
+    private File getSnapshotDirectory() {
+        if (!metadataSnapshot || DatasetFactory.getWorkingDirectory() == null) {
+            return null;
+        }
+        return new File(DatasetFactory.getWorkingDirectory(), "snapshots");
+    }
+
+    /**
+     * Starts estimating the value range of a variable
+     * 
+     * @param executor
+     *            The {@link ExecutorService} to run the estimation on, or
+     *            <code>null</code> to run it immediately on this thread
+     */
+    private static Future<Extent<Float>> estimateValueRange(final Dataset dataset,
+            final String varId, ExecutorService executor) {
+        Callable<Extent<Float>> estimator = new Callable<Extent<Float>>() {
+            @Override
+            public Extent<Float> call() {
+                return GraphicsUtils.estimateValueRange(dataset, varId);
+            }
+        };
+        if (executor == null) {
+            FutureTask<Extent<Float>> task = new FutureTask<Extent<Float>>(estimator);
+            task.run();
+            return task;
+        }
+        return executor.submit(estimator);
+    }
+
+    /**
+     * Waits for an estimated value range, rethrowing any exception thrown
+     * whilst estimating it
+     */
+    private static Extent<Float> getValueRange(Future<Extent<Float>> valueRange)
+            throws EdalException {
+        try {
+            return valueRange.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EdalException("Interrupted whilst estimating value range", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new EdalException("Problem estimating value range", e.getCause());
+        }
+    }
+
+    /**
+     * Records the time taken by a phase of loading the dataset
+     * 
+     * @param phase
+     *            The name of the phase
+     * @param phaseStart
+     *            The time at which the phase started
+     * @return The current time, i.e. the start time of the next phase
+     */
+    private long addLoadTiming(String phase, long phaseStart) {
+        long now = System.currentTimeMillis();
+        Map<String, Long> timings = new LinkedHashMap<String, Long>(loadTimings);
+        timings.put(phase, now - phaseStart);
+        loadTimings = timings;
+        return now;
+    }
+
+    boolean needsRefresh() {
         if (disabled || state == DatasetState.LOADING || state == DatasetState.UPDATING) {
             return false;
         } else if (state == DatasetState.NEEDS_REFRESH) {
@@ -299,6 +630,20 @@ public class NcwmsDataset {
             boolean needsRefresh = lastFailedUpdateTime == null ? true : new DateTime()
                     .isAfter(lastFailedUpdateTime.plusSeconds((int) delaySeconds));
             return needsRefresh;
+        } else if (revalidateSnapshot) {
+            /* We have been restored from a snapshot which needs checking */
+            return true;
+        } else if (changeDetected) {
+            /*
+             * The underlying files have changed. The update interval limits
+             * how often this causes a reload, for datasets which are slow to
+             * load and whose files change often.
+             */
+            return updateInterval <= 0 || lastSuccessfulUpdateTime == null
+                    || new DateTime().isAfter(lastSuccessfulUpdateTime.plusMinutes(updateInterval));
+        } else if (watched) {
+            /* We will be told if the files change, so there is no need to poll */
+            return false;
         } else if (this.updateInterval < 0) {
             /* We never update this dataset */
             return false;
@@ -312,10 +657,53 @@ public class NcwmsDataset {
     }
 
     /**
-     * Forces this dataset to be refreshed the next time it has an opportunity
+     * Sets whether the files of this dataset are being watched for changes
+     */
+    void setWatched(boolean watched) {
+        this.watched = watched;
+    }
+
+    /**
+     * Releases any resources (e.g. open file handles) which the dataset
+     * factory holds for this dataset under its current ID. This is called
+     * when the dataset is removed or its ID is changed.
+     */
+    void releaseResources() {
+        releaseResources(id);
+    }
+
+    /**
+     * Releases any resources which the dataset factory holds for this dataset
+     * under the given ID
+     * 
+     * @param datasetId
+     *            The ID under which the resources were opened
+     */
+    void releaseResources(String datasetId) {
+        try {
+            DatasetFactory.forName(dataReaderClass).closeDataset(datasetId, location);
+        } catch (InstantiationException | IllegalAccessException | ClassNotFoundException e) {
+            /* The dataset cannot have been loaded, so nothing is held */
+            log.debug("No dataset factory to release " + datasetId + " from", e);
+        }
+    }
+
+    /**
+     * Records that the files of this dataset have changed, so that it will be
+     * refreshed the next time it has an opportunity
+     */
+    void notifyChanged() {
+        changeDetected = true;
+    }
+
+    /**
+     * Forces this dataset to be reloaded from scratch the next time it has an
+     * opportunity
      */
     public void forceRefresh() {
         this.err = null;
+        this.revalidateSnapshot = false;
+        this.loadedDataset = null;
         this.state = DatasetState.NEEDS_REFRESH;
     }
 
@@ -411,6 +799,50 @@ public class NcwmsDataset {
         return updateInterval;
     }
 
+    public String getDataReadingStrategy() {
+        return dataReadingStrategy;
+    }
+
+    public boolean isTimeMajorStore() {
+        return timeMajorStore;
+    }
+
+    public boolean isStatisticsIndex() {
+        return statisticsIndex;
+    }
+
+    public String getOverviews() {
+        return overviews;
+    }
+
+    public boolean isMetadataSnapshot() {
+        return metadataSnapshot;
+    }
+
+    public boolean isWatchForChanges() {
+        return watchForChanges;
+    }
+
+    public int getLoadPriority() {
+        return loadPriority;
+    }
+
+    /**
+     * @return The time in milliseconds taken by each phase of the most recent
+     *         load of this dataset
+     */
+    public Map<String, Long> getLoadTimings() {
+        return loadTimings;
+    }
+
+    /**
+     * @return The total time in milliseconds taken by the most recent
+     *         successful load of this dataset, or 0 if it has not been loaded
+     */
+    public long getLastLoadTime() {
+        return lastLoadTime;
+    }
+
     public String getMetadataUrl() {
         return metadataUrl;
     }
@@ -486,6 +918,34 @@ public class NcwmsDataset {
         this.updateInterval = updateInterval;
     }
 
+    public void setDataReadingStrategy(String dataReadingStrategy) {
+        this.dataReadingStrategy = dataReadingStrategy;
+    }
+
+    public void setTimeMajorStore(boolean timeMajorStore) {
+        this.timeMajorStore = timeMajorStore;
+    }
+
+    public void setStatisticsIndex(boolean statisticsIndex) {
+        this.statisticsIndex = statisticsIndex;
+    }
+
+    public void setOverviews(String overviews) {
+        this.overviews = overviews;
+    }
+
+    public void setMetadataSnapshot(boolean metadataSnapshot) {
+        this.metadataSnapshot = metadataSnapshot;
+    }
+
+    public void setLoadPriority(int loadPriority) {
+        this.loadPriority = loadPriority;
+    }
+
+    public void setWatchForChanges(boolean watchForChanges) {
+        this.watchForChanges = watchForChanges;
+    }
+
     public void setMetadataUrl(String metadataUrl) {
         this.metadataUrl = metadataUrl;
     }
@@ -61,6 +61,12 @@ public class NcwmsServerInfo implements ServerInfo {
     private String url = "";
     @XmlElement(name = "allowglobalcapabilities")
     private boolean globalCapabilities = true;
+    /*
+     * The number of datasets to load simultaneously. 0 means use the number of
+     * available processors
+     */
+    @XmlElement(name = "loaderThreads")
+    private int loaderThreads = 0;
 
     NcwmsServerInfo() {
     }
@@ -121,6 +127,10 @@ public class NcwmsServerInfo implements ServerInfo {
         return globalCapabilities;
     }
     
+    public int getLoaderThreads() {
+        return loaderThreads;
+    }
+
     public void setTitle(String title) {
         this.title = title;
     }
@@ -154,6 +164,10 @@ public class NcwmsServerInfo implements ServerInfo {
         this.globalCapabilities = globalCapabilities;
     }
 
+    public void setLoaderThreads(int loaderThreads) {
+        this.loaderThreads = loaderThreads;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -173,6 +187,8 @@ public class NcwmsServerInfo implements ServerInfo {
         sb.append(url);
         sb.append("\nGlobal Capabilities: ");
         sb.append(globalCapabilities);
+        sb.append("\nLoader threads: ");
+        sb.append(loaderThreads);
         return sb.toString();
     }
     
@@ -0,0 +1,357 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.ncwms.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.ncwms.config.NcwmsConfig.DatasetStorage;
+
+public class DatasetLoaderTest {
+    private static final long TIMEOUT_MS = 10000L;
+
+    private DatasetLoader loader;
+    /* The IDs of the datasets which have been published, in order */
+    private List<String> published;
+    private DatasetStorage storage;
+    /* The IDs of the datasets in the order they started loading */
+    private List<String> loadOrder;
+
+    @Before
+    public void setUp() {
+        published = Collections.synchronizedList(new ArrayList<String>());
+        loadOrder = Collections.synchronizedList(new ArrayList<String>());
+        storage = new DatasetStorage() {
+            @Override
+            public void datasetLoaded(Dataset dataset, Collection<NcwmsVariable> variables) {
+                published.add(dataset.getId());
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        if (loader != null) {
+            loader.shutdown();
+        }
+    }
+
+    @Test
+    public void testOrdering() throws Exception {
+        loader = new DatasetLoader(1);
+        /* Occupy the only thread, so that everything else is queued */
+        TestDataset blocker = new TestDataset("blocker", 0, 0L);
+        blocker.holdLoad();
+        loader.load(blocker, storage);
+        blocker.awaitStarted();
+
+        TestDataset slowLow = new TestDataset("slowLow", 0, 5000L);
+        TestDataset fastLow = new TestDataset("fastLow", 0, 100L);
+        TestDataset slowHigh = new TestDataset("slowHigh", 10, 9000L);
+        TestDataset fastLow2 = new TestDataset("fastLow2", 0, 100L);
+        TestDataset mid = new TestDataset("mid", 5, 0L);
+        for (TestDataset dataset : Arrays.asList(slowLow, fastLow, slowHigh, fastLow2, mid)) {
+            loader.load(dataset, storage);
+        }
+        assertEquals(5, loader.getNumQueued());
+
+        blocker.releaseLoad();
+        awaitLoaded(6);
+        /*
+         * Highest priority first, then quickest to load, then in the order
+         * they were queued
+         */
+        assertEquals(Arrays.asList("blocker", "slowHigh", "mid", "fastLow", "fastLow2",
+                "slowLow"), loadOrder);
+        assertEquals(loadOrder, published);
+    }
+
+    @Test
+    public void testDuplicatesIgnored() throws Exception {
+        loader = new DatasetLoader(1);
+        TestDataset dataset = new TestDataset("dataset", 0, 0L);
+        dataset.holdLoad();
+        loader.load(dataset, storage);
+        dataset.awaitStarted();
+        /* Already loading, so this is ignored */
+        loader.load(dataset, storage);
+        assertEquals(0, loader.getNumQueued());
+
+        dataset.releaseLoad();
+        awaitLoaded(1);
+        assertEquals(1, dataset.numLoads.get());
+
+        /* Once loaded, it can be loaded again */
+        loader.load(dataset, storage);
+        awaitLoaded(2);
+        assertEquals(2, dataset.numLoads.get());
+    }
+
+    @Test
+    public void testCancelQueued() throws Exception {
+        loader = new DatasetLoader(1);
+        TestDataset blocker = new TestDataset("blocker", 0, 0L);
+        blocker.holdLoad();
+        loader.load(blocker, storage);
+        blocker.awaitStarted();
+
+        TestDataset removed = new TestDataset("removed", 0, 0L);
+        loader.load(removed, storage);
+        assertEquals(1, loader.getNumQueued());
+        loader.cancel(removed);
+        assertEquals(0, loader.getNumQueued());
+
+        blocker.releaseLoad();
+        awaitLoaded(1);
+        /* Give the cancelled task a chance to run, if it is going to */
+        Thread.sleep(100L);
+        assertEquals(0, removed.numLoads.get());
+        assertEquals(Collections.singletonList("blocker"), published);
+
+        /* Cancelling doesn't stop it being loaded again later */
+        loader.load(removed, storage);
+        awaitLoaded(2);
+        assertEquals(Arrays.asList("blocker", "removed"), published);
+    }
+
+    @Test
+    public void testCancelRunning() throws Exception {
+        loader = new DatasetLoader(1);
+        TestDataset dataset = new TestDataset("oldId", 0, 0L);
+        dataset.holdLoad();
+        loader.load(dataset, storage);
+        dataset.awaitStarted();
+
+        /* Renamed whilst loading */
+        loader.cancel(dataset);
+        dataset.setId("newId");
+        dataset.releaseLoad();
+        awaitLoaded(1);
+
+        assertEquals(1, dataset.numLoads.get());
+        assertTrue(published.isEmpty());
+        /* Anything opened by the load is released under the ID it used */
+        assertEquals(Collections.singletonList("oldId"), dataset.released);
+        /* ...and it will be loaded again under its new ID */
+        assertEquals(1, dataset.numForcedRefreshes.get());
+    }
+
+    @Test
+    public void testCancelDuringPublication() throws Exception {
+        loader = new DatasetLoader(1);
+        /* Stands in for the config, which the catalogue saves on publication */
+        final Object configLock = new Object();
+        final CountDownLatch publishing = new CountDownLatch(1);
+        DatasetStorage lockingStorage = new DatasetStorage() {
+            @Override
+            public void datasetLoaded(Dataset dataset, Collection<NcwmsVariable> variables) {
+                publishing.countDown();
+                synchronized (configLock) {
+                    published.add(dataset.getId());
+                }
+            }
+        };
+        final TestDataset dataset = new TestDataset("dataset", 0, 0L);
+        Thread canceller;
+        synchronized (configLock) {
+            loader.load(dataset, lockingStorage);
+            assertTrue(publishing.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            /*
+             * The dataset is removed whilst the publication waits for the
+             * config. Cancelling must not wait for the publication, which
+             * would deadlock.
+             */
+            canceller = new Thread() {
+                @Override
+                public void run() {
+                    loader.cancel(dataset);
+                }
+            };
+            canceller.start();
+            canceller.join(TIMEOUT_MS);
+            assertFalse(canceller.isAlive());
+        }
+        /* The publication was under way, so completes */
+        awaitLoaded(1);
+        assertEquals(Collections.singletonList("dataset"), published);
+        /* ...but the load was cancelled, so its resources are released */
+        assertEquals(Collections.singletonList("dataset"), dataset.released);
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        loader = new DatasetLoader(2);
+        assertEquals(2, loader.getNumThreads());
+        final AtomicInteger current = new AtomicInteger(0);
+        final AtomicInteger max = new AtomicInteger(0);
+        for (int i = 0; i < 8; i++) {
+            TestDataset dataset = new TestDataset("dataset" + i, 0, 0L) {
+                @Override
+                void refresh(DatasetStorage datasetStorage, ExecutorService variableExecutor,
+                        long queuedTime) {
+                    int nowLoading = current.incrementAndGet();
+                    synchronized (max) {
+                        max.set(Math.max(max.get(), nowLoading));
+                    }
+                    try {
+                        Thread.sleep(50L);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    current.decrementAndGet();
+                    super.refresh(datasetStorage, variableExecutor, queuedTime);
+                }
+            };
+            loader.load(dataset, storage);
+        }
+        awaitLoaded(8);
+        assertEquals(2, max.get());
+        assertEquals(8, published.size());
+
+        /* Reducing the number of threads takes effect for later loads */
+        loader.setNumThreads(1);
+        assertEquals(1, loader.getNumThreads());
+        max.set(0);
+        for (int i = 0; i < 4; i++) {
+            loader.load(new TestDataset("later" + i, 0, 0L), storage);
+        }
+        awaitLoaded(12);
+        assertTrue(max.get() <= 1);
+    }
+
+    private void awaitLoaded(long numLoaded) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT_MS;
+        while (loader.getNumLoaded() < numLoaded) {
+            if (System.currentTimeMillis() > end) {
+                throw new AssertionError("Only " + loader.getNumLoaded() + " of " + numLoaded
+                        + " datasets loaded");
+            }
+            Thread.sleep(10L);
+        }
+    }
+
+    /**
+     * An {@link NcwmsDataset} which records how it is loaded, rather than
+     * reading any data
+     */
+    private class TestDataset extends NcwmsDataset {
+        private final int priority;
+        private final long lastLoadTime;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private volatile CountDownLatch release = null;
+        final AtomicInteger numLoads = new AtomicInteger(0);
+        final AtomicInteger numForcedRefreshes = new AtomicInteger(0);
+        final List<String> released = Collections.synchronizedList(new ArrayList<String>());
+
+        TestDataset(String id, int priority, long lastLoadTime) {
+            setId(id);
+            this.priority = priority;
+            this.lastLoadTime = lastLoadTime;
+        }
+
+        void holdLoad() {
+            release = new CountDownLatch(1);
+        }
+
+        void releaseLoad() {
+            release.countDown();
+        }
+
+        void awaitStarted() throws InterruptedException {
+            assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public int getLoadPriority() {
+            return priority;
+        }
+
+        @Override
+        public long getLastLoadTime() {
+            return lastLoadTime;
+        }
+
+        @Override
+        void refresh(DatasetStorage datasetStorage, ExecutorService variableExecutor,
+                long queuedTime) {
+            final String id = getId();
+            loadOrder.add(id);
+            numLoads.incrementAndGet();
+            started.countDown();
+            CountDownLatch waitFor = release;
+            if (waitFor != null) {
+                try {
+                    waitFor.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Dataset dataset = (Dataset) Proxy.newProxyInstance(Dataset.class.getClassLoader(),
+                    new Class<?>[] { Dataset.class }, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if (method.getName().equals("getId")) {
+                                return id;
+                            }
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+            datasetStorage.datasetLoaded(dataset, Collections.<NcwmsVariable> emptyList());
+        }
+
+        @Override
+        void releaseResources(String datasetId) {
+            released.add(datasetId);
+        }
+
+        @Override
+        public void forceRefresh() {
+            numForcedRefreshes.incrementAndGet();
+        }
+    }
+}
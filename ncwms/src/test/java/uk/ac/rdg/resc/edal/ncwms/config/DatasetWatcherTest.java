@@ -0,0 +1,325 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.ncwms.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DatasetWatcherTest {
+    private static final long DEBOUNCE_MS = 300L;
+    private static final long SCAN_INTERVAL_MS = 200L;
+    /* Long enough for any notification which is going to happen */
+    private static final long WAIT_MS = 5000L;
+
+    private File dir;
+    private DatasetWatcher watcher;
+    private BlockingQueue<Notification> notifications;
+
+    private static final class Notification {
+        private final String id;
+        private final long time;
+
+        public Notification(String id, long time) {
+            this.id = id;
+            this.time = time;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        dir = new File(System.getProperty("java.io.tmpdir"), "edal-watcher-test-"
+                + System.nanoTime());
+        dir.mkdirs();
+        notifications = new LinkedBlockingQueue<Notification>();
+        watcher = new DatasetWatcher(new DatasetWatcher.ChangeListener() {
+            @Override
+            public void datasetChanged(NcwmsDataset dataset) {
+                notifications.add(new Notification(dataset.getId(), System.currentTimeMillis()));
+            }
+        }, DEBOUNCE_MS, SCAN_INTERVAL_MS);
+    }
+
+    @After
+    public void tearDown() {
+        watcher.shutdown();
+        deleteRecursively(dir);
+    }
+
+    @Test
+    public void testLocations() {
+        assertTrue(DatasetWatcher.isLocalLocation("/data/*.nc"));
+        assertFalse(DatasetWatcher.isLocalLocation("http://example.com/data.nc"));
+        assertFalse(DatasetWatcher.isLocalLocation("dods://example.com/data.nc"));
+        assertFalse(DatasetWatcher.isLocalLocation("/data/aggregation.NcML"));
+        assertFalse(DatasetWatcher.isLocalLocation(null));
+
+        assertTrue(DatasetWatcher.hasWildcards("/data/20??"));
+        assertTrue(DatasetWatcher.hasWildcards("/data/*/x"));
+        assertTrue(DatasetWatcher.hasWildcards("/data/[ab]"));
+        assertFalse(DatasetWatcher.hasWildcards("/data/2015"));
+
+        assertTrue(DatasetWatcher.isNetworkFilesystemType("nfs4"));
+        assertTrue(DatasetWatcher.isNetworkFilesystemType("CIFS"));
+        assertFalse(DatasetWatcher.isNetworkFilesystemType("ext4"));
+        assertFalse(DatasetWatcher.isNetworkFilesystemType("tmpfs"));
+    }
+
+    @Test
+    public void testFilenameFilter() {
+        File parent = new File("/data");
+        FilenameFilter filter = DatasetWatcher.getFilenameFilter("/data/sst_*.nc");
+        assertTrue(filter.accept(parent, "sst_20150101.nc"));
+        assertTrue(filter.accept(parent, "sst_.nc"));
+        assertFalse(filter.accept(parent, "chl_20150101.nc"));
+        assertFalse(filter.accept(parent, "sst_20150101.nc.tmp"));
+
+        filter = DatasetWatcher.getFilenameFilter("/data/sst_2015010?.nc");
+        assertTrue(filter.accept(parent, "sst_20150101.nc"));
+        assertFalse(filter.accept(parent, "sst_20150110.nc"));
+
+        /* A single file only matches itself */
+        filter = DatasetWatcher.getFilenameFilter("/data/sst.nc");
+        assertTrue(filter.accept(parent, "sst.nc"));
+        assertFalse(filter.accept(parent, "sst.nc.1"));
+    }
+
+    @Test
+    public void testWatchDirectory() throws Exception {
+        NcwmsDataset dataset = newDataset("sst", new File(dir, "sst_*.nc").getPath());
+        assertTrue(watcher.watch(dataset));
+        /* This is cheap to call again */
+        assertTrue(watcher.watch(dataset));
+        assertEquals(1, watcher.getNumWatched());
+        assertEquals(0, watcher.getNumScanned());
+
+        /* Files which are not part of the dataset are ignored */
+        write(new File(dir, "chl_1.nc"));
+        assertNull(notifications.poll(DEBOUNCE_MS * 3, TimeUnit.MILLISECONDS));
+
+        write(new File(dir, "sst_1.nc"));
+        assertEquals("sst", awaitNotification().id);
+
+        new File(dir, "sst_1.nc").delete();
+        assertEquals("sst", awaitNotification().id);
+        assertNull(notifications.poll(DEBOUNCE_MS * 3, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testDebounce() throws Exception {
+        NcwmsDataset dataset = newDataset("sst", new File(dir, "*.nc").getPath());
+        assertTrue(watcher.watch(dataset));
+
+        /*
+         * A file being written slowly, followed by more files, gives one
+         * notification once the changes have stopped
+         */
+        File file = new File(dir, "sst_1.nc");
+        long lastChange = 0L;
+        for (int i = 0; i < 4; i++) {
+            write(file);
+            write(new File(dir, "sst_" + (i + 2) + ".nc"));
+            lastChange = System.currentTimeMillis();
+            Thread.sleep(DEBOUNCE_MS / 3);
+        }
+        Notification notification = awaitNotification();
+        assertTrue(notification.time - lastChange >= DEBOUNCE_MS);
+        assertNull(notifications.poll(DEBOUNCE_MS * 3, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        assertTrue(watcher.watch(newDataset("a", new File(dir, "a_*.nc").getPath())));
+        assertTrue(watcher.watch(newDataset("b", new File(dir, "b_*.nc").getPath())));
+        assertEquals(2, watcher.getNumWatched());
+
+        /*
+         * Holding the watcher's lock stops it from taking any events, so that
+         * they build up until the watch service discards them and reports an
+         * overflow instead. None of these files matches either dataset, but
+         * since we can't know which files changed, both must be notified.
+         */
+        synchronized (watcher) {
+            for (int i = 0; i < 1000; i++) {
+                new File(dir, "c_" + i + ".tmp").createNewFile();
+            }
+            Thread.sleep(500L);
+        }
+        Set<String> notified = new HashSet<String>();
+        notified.add(awaitNotification().id);
+        notified.add(awaitNotification().id);
+        assertTrue(notified.contains("a"));
+        assertTrue(notified.contains("b"));
+    }
+
+    @Test
+    public void testScanningFallback() throws Exception {
+        /*
+         * Wildcards in the directory name can't be watched, so this is scanned
+         * instead, as are directories on network filesystems
+         */
+        File subDir = new File(dir, "sub1");
+        subDir.mkdirs();
+        NcwmsDataset dataset = newDataset("scanned", new File(new File(dir, "sub*"), "*.nc")
+                .getPath());
+        assertTrue(watcher.watch(dataset));
+        assertEquals(0, watcher.getNumWatched());
+        assertEquals(1, watcher.getNumScanned());
+        assertNull(notifications.poll(SCAN_INTERVAL_MS * 3, TimeUnit.MILLISECONDS));
+
+        long changed = System.currentTimeMillis();
+        write(new File(subDir, "data.nc"));
+        Notification notification = awaitNotification();
+        assertEquals("scanned", notification.id);
+        assertTrue(notification.time - changed >= DEBOUNCE_MS);
+
+        /* Modifications are detected through the size and modification time */
+        File newDir = new File(dir, "sub2");
+        newDir.mkdirs();
+        write(new File(newDir, "more.nc"));
+        assertEquals("scanned", awaitNotification().id);
+        assertNull(notifications.poll(SCAN_INTERVAL_MS * 3, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testMissingDirectoryIsScanned() throws Exception {
+        File missing = new File(dir, "notyet");
+        NcwmsDataset dataset = newDataset("later", new File(missing, "*.nc").getPath());
+        assertTrue(watcher.watch(dataset));
+        assertEquals(1, watcher.getNumScanned());
+
+        missing.mkdirs();
+        write(new File(missing, "data.nc"));
+        assertEquals("later", awaitNotification().id);
+    }
+
+    @Test
+    public void testRemovedDirectoryIsScanned() throws Exception {
+        File subDir = new File(dir, "removed");
+        subDir.mkdirs();
+        NcwmsDataset dataset = newDataset("removed", new File(subDir, "*.nc").getPath());
+        assertTrue(watcher.watch(dataset));
+        assertEquals(1, watcher.getNumWatched());
+
+        /* Removing the directory is a change, after which it is scanned */
+        deleteRecursively(subDir);
+        assertEquals("removed", awaitNotification().id);
+        assertEquals(0, watcher.getNumWatched());
+        assertEquals(1, watcher.getNumScanned());
+        assertNull(notifications.poll(SCAN_INTERVAL_MS * 3, TimeUnit.MILLISECONDS));
+
+        subDir.mkdirs();
+        write(new File(subDir, "data.nc"));
+        assertEquals("removed", awaitNotification().id);
+    }
+
+    @Test
+    public void testUnwatchable() {
+        assertFalse(watcher.watch(newDataset("remote", "https://example.com/thredds/data.nc")));
+        assertFalse(watcher.watch(newDataset("ncml", new File(dir, "agg.ncml").getPath())));
+        NcwmsDataset optedOut = newDataset("optedOut", new File(dir, "*.nc").getPath());
+        optedOut.setWatchForChanges(false);
+        assertFalse(watcher.watch(optedOut));
+        assertEquals(0, watcher.getNumWatched());
+        assertEquals(0, watcher.getNumScanned());
+    }
+
+    @Test
+    public void testUnwatchAndRelocate() throws Exception {
+        File otherDir = new File(dir, "other");
+        otherDir.mkdirs();
+        NcwmsDataset dataset = newDataset("sst", new File(dir, "*.nc").getPath());
+        assertTrue(watcher.watch(dataset));
+
+        /* A change of location is picked up by the next call to watch() */
+        dataset.setLocation(new File(otherDir, "*.nc").getPath());
+        assertTrue(watcher.watch(dataset));
+        assertEquals(1, watcher.getNumWatched());
+        write(new File(dir, "old.nc"));
+        assertNull(notifications.poll(DEBOUNCE_MS * 3, TimeUnit.MILLISECONDS));
+        write(new File(otherDir, "new.nc"));
+        assertEquals("sst", awaitNotification().id);
+
+        watcher.unwatch(dataset);
+        assertEquals(0, watcher.getNumWatched());
+        write(new File(otherDir, "newer.nc"));
+        assertNull(notifications.poll(DEBOUNCE_MS * 3, TimeUnit.MILLISECONDS));
+    }
+
+    private Notification awaitNotification() throws InterruptedException {
+        Notification notification = notifications.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("No change was notified", notification);
+        return notification;
+    }
+
+    private static NcwmsDataset newDataset(String id, String location) {
+        NcwmsDataset dataset = new NcwmsDataset();
+        dataset.setId(id);
+        dataset.setLocation(location);
+        return dataset;
+    }
+
+    /*
+     * Appends to a file, so that both its size and modification time change
+     */
+    private static void write(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[100]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
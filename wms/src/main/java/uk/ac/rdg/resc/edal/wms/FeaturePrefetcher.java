@@ -0,0 +1,470 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.VerticalAxis;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.wms.WmsCatalogue.CacheKey;
+import uk.ac.rdg.resc.edal.wms.exceptions.EdalLayerNotFoundException;
+
+/**
+ * Predicts which maps will be requested next and reads them into the feature
+ * cache of a {@link WmsCatalogue} in the background.
+ * 
+ * Clients which step through time (or elevation) request the same layer over
+ * the same area at successive time steps. For each layer and area, this
+ * records the last time and elevation requested. If successive requests move
+ * along one of these axes, the next few values along that axis (in the same
+ * direction) are read. Otherwise the next time step is read.
+ * 
+ * Reads are performed on a fixed number of low-priority threads, and are never
+ * waited for by the requests which triggered them. They do not use the threads
+ * which {@link GriddedDataset}s share for concurrent reads. If more reads are
+ * predicted than can be performed, the oldest predictions are discarded.
+ * 
+ * @author agent
+ */
+public final class FeaturePrefetcher {
+    private static final Logger log = LoggerFactory.getLogger(FeaturePrefetcher.class);
+
+    /* The number of layer/area combinations whose access patterns we record */
+    private static final int MAX_PATTERNS = 1000;
+    /* The number of prefetched maps we keep track of to calculate the hit rate */
+    private static final int MAX_TRACKED = 10000;
+    /* The number of predicted reads which can wait for a thread */
+    private static final int MAX_QUEUED = 64;
+
+    private static final AtomicInteger threadNumber = new AtomicInteger(0);
+
+    private final WmsCatalogue catalogue;
+    private final int nThreads;
+    private final int depth;
+    private final ThreadPoolExecutor executor;
+
+    /* The last request for each layer/area */
+    private final Map<AccessKey, PlottingDomainParams> lastAccesses = new LinkedHashMap<AccessKey, PlottingDomainParams>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<AccessKey, PlottingDomainParams> eldest) {
+            return size() > MAX_PATTERNS;
+        }
+    };
+    /* Maps which have been prefetched, but not yet requested */
+    private final Map<CacheKey, Boolean> prefetched = new LinkedHashMap<CacheKey, Boolean>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, Boolean> eldest) {
+            return size() > MAX_TRACKED;
+        }
+    };
+    /* Maps which are waiting to be prefetched, or are being prefetched */
+    private final Set<CacheKey> pending = Collections
+            .newSetFromMap(new ConcurrentHashMap<CacheKey, Boolean>());
+
+    private final AtomicLong nScheduled = new AtomicLong(0);
+    private final AtomicLong nCompleted = new AtomicLong(0);
+    private final AtomicLong nDiscarded = new AtomicLong(0);
+    private final AtomicLong nHits = new AtomicLong(0);
+
+    /**
+     * @param catalogue
+     *            The {@link WmsCatalogue} whose feature cache should be
+     *            populated
+     * @param nThreads
+     *            The number of threads to use for prefetching
+     * @param depth
+     *            The number of steps along an axis to read ahead
+     */
+    FeaturePrefetcher(WmsCatalogue catalogue, int nThreads, int depth) {
+        this.catalogue = catalogue;
+        this.nThreads = nThreads;
+        this.depth = depth;
+        executor = new ThreadPoolExecutor(nThreads, nThreads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "wms-prefetch-"
+                                + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                }, new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            discard((PrefetchTask) r);
+                            return;
+                        }
+                        /*
+                         * The most recent predictions are the most useful, so
+                         * make room by dropping the oldest one
+                         */
+                        Runnable oldest = executor.getQueue().poll();
+                        if (oldest != null) {
+                            discard((PrefetchTask) oldest);
+                        }
+                        if (!executor.getQueue().offer(r)) {
+                            discard((PrefetchTask) r);
+                        }
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return The number of threads used for prefetching
+     */
+    public int getNumThreads() {
+        return nThreads;
+    }
+
+    /**
+     * @return The number of steps along an axis which are read ahead
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return The number of maps which have been scheduled for prefetching
+     */
+    public long getNumScheduled() {
+        return nScheduled.get();
+    }
+
+    /**
+     * @return The number of maps which have been read into the cache
+     */
+    public long getNumCompleted() {
+        return nCompleted.get();
+    }
+
+    /**
+     * @return The number of scheduled maps which were dropped before being
+     *         read, because newer predictions were made
+     */
+    public long getNumDiscarded() {
+        return nDiscarded.get();
+    }
+
+    /**
+     * @return The number of prefetched maps which were subsequently requested
+     */
+    public long getNumHits() {
+        return nHits.get();
+    }
+
+    /**
+     * @return The fraction of prefetched maps which were subsequently
+     *         requested, or 0 if no maps have been prefetched
+     */
+    public double getHitRate() {
+        long completed = nCompleted.get();
+        return completed == 0 ? 0.0 : (double) nHits.get() / completed;
+    }
+
+    /**
+     * Records that a map has been requested, and schedules the reading of any
+     * maps which are likely to be requested next
+     * 
+     * @param layerId
+     *            The ID of the layer which was requested
+     * @param params
+     *            The parameters of the request
+     */
+    void accessed(String layerId, PlottingDomainParams params) {
+        PlottingDomainParams previous;
+        synchronized (lastAccesses) {
+            previous = lastAccesses.put(new AccessKey(layerId, params), params);
+        }
+
+        VariableMetadata metadata;
+        try {
+            metadata = catalogue.getVariableMetadataFromId(layerId);
+        } catch (EdalLayerNotFoundException e) {
+            return;
+        }
+        TimeAxis tAxis = metadata.getTemporalDomain() instanceof TimeAxis ? (TimeAxis) metadata
+                .getTemporalDomain() : null;
+        VerticalAxis zAxis = metadata.getVerticalDomain() instanceof VerticalAxis ? (VerticalAxis) metadata
+                .getVerticalDomain() : null;
+        int tIndex = getTimeIndex(tAxis, params);
+        int zIndex = getVerticalIndex(zAxis, params);
+        if (tIndex < 0 && zIndex < 0) {
+            return;
+        }
+
+        if (previous != null) {
+            int tStep = tIndex - getTimeIndex(tAxis, previous);
+            int zStep = zIndex - getVerticalIndex(zAxis, previous);
+            if (tIndex >= 0 && tStep != 0 && zStep == 0) {
+                /* Moving through time */
+                for (int i = 1; i <= depth; i++) {
+                    scheduleTime(layerId, params, tAxis, tIndex + i * tStep);
+                }
+                return;
+            } else if (zIndex >= 0 && zStep != 0 && tStep == 0) {
+                /* Moving through elevation */
+                for (int i = 1; i <= depth; i++) {
+                    scheduleElevation(layerId, params, zAxis, zIndex + i * zStep);
+                }
+                return;
+            }
+        }
+        /*
+         * No pattern yet. The most likely next request is the next time step
+         */
+        if (tIndex >= 0) {
+            scheduleTime(layerId, params, tAxis, tIndex + 1);
+        }
+    }
+
+    /**
+     * Records that a map has been retrieved from the cache, updating the hit
+     * rate if it was prefetched
+     */
+    void cacheHit(CacheKey key) {
+        synchronized (prefetched) {
+            if (prefetched.remove(key) != null) {
+                nHits.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Stops prefetching. Any reads which have not started are abandoned
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void scheduleTime(String layerId, PlottingDomainParams params, TimeAxis tAxis,
+            int tIndex) {
+        if (tIndex < 0 || tIndex >= tAxis.size()) {
+            return;
+        }
+        /* Use the same chronology as the request, so that the cache keys match */
+        DateTime time = new DateTime(tAxis.getCoordinateValue(tIndex).getMillis(), params
+                .getTargetT().getChronology());
+        schedule(new CacheKey(layerId, new PlottingDomainParams(params.getWidth(),
+                params.getHeight(), params.getBbox(), params.getZExtent(),
+                params.getTExtent() == null ? null : Extents.newExtent(time, time),
+                params.getTargetHorizontalPosition(), params.getTargetZ(), time)));
+    }
+
+    private void scheduleElevation(String layerId, PlottingDomainParams params,
+            VerticalAxis zAxis, int zIndex) {
+        if (zIndex < 0 || zIndex >= zAxis.size()) {
+            return;
+        }
+        Double z = zAxis.getCoordinateValue(zIndex);
+        schedule(new CacheKey(layerId, new PlottingDomainParams(params.getWidth(),
+                params.getHeight(), params.getBbox(), params.getZExtent() == null ? null
+                        : Extents.newExtent(z, z), params.getTExtent(),
+                params.getTargetHorizontalPosition(), z, params.getTargetT())));
+    }
+
+    private void schedule(CacheKey key) {
+        if (!pending.add(key)) {
+            /* Already scheduled */
+            return;
+        }
+        if (catalogue.isCached(key)) {
+            pending.remove(key);
+            return;
+        }
+        nScheduled.incrementAndGet();
+        executor.execute(new PrefetchTask(key));
+    }
+
+    private void discard(PrefetchTask task) {
+        pending.remove(task.key);
+        nDiscarded.incrementAndGet();
+    }
+
+    /**
+     * @return The index of the requested time on the time axis, or -1 if the
+     *         request is not for a single time which is on the axis
+     */
+    private static int getTimeIndex(TimeAxis tAxis, PlottingDomainParams params) {
+        DateTime time = params.getTargetT();
+        Extent<DateTime> tExtent = params.getTExtent();
+        if (tAxis == null || time == null
+                || (tExtent != null && !tExtent.getLow().equals(tExtent.getHigh()))) {
+            return -1;
+        }
+        int index = tAxis.findIndexOf(time);
+        if (index < 0 || tAxis.getCoordinateValue(index).getMillis() != time.getMillis()) {
+            return -1;
+        }
+        return index;
+    }
+
+    /**
+     * @return The index of the requested elevation on the vertical axis, or -1
+     *         if the request is not for a single elevation which is on the axis
+     */
+    private static int getVerticalIndex(VerticalAxis zAxis, PlottingDomainParams params) {
+        Double z = params.getTargetZ();
+        Extent<Double> zExtent = params.getZExtent();
+        if (zAxis == null || z == null
+                || (zExtent != null && !zExtent.getLow().equals(zExtent.getHigh()))) {
+            return -1;
+        }
+        int index = zAxis.findIndexOf(z);
+        if (index < 0 || !zAxis.getCoordinateValue(index).equals(z)) {
+            return -1;
+        }
+        return index;
+    }
+
+    private final class PrefetchTask implements Runnable {
+        private final CacheKey key;
+
+        public PrefetchTask(CacheKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            /*
+             * Read everything on this thread, rather than using the threads
+             * shared with requests which are being waited for
+             */
+            GriddedDataset.setBackgroundReads(true);
+            try {
+                if (catalogue.prefetch(key)) {
+                    synchronized (prefetched) {
+                        prefetched.put(key, Boolean.TRUE);
+                    }
+                    nCompleted.incrementAndGet();
+                }
+            } catch (Exception e) {
+                /*
+                 * Nothing was waiting for this, so it's not a problem. If the
+                 * map is requested, the same problem will be reported then.
+                 */
+                log.debug("Problem prefetching " + key.id, e);
+            } finally {
+                GriddedDataset.setBackgroundReads(false);
+                pending.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Identifies a layer and area, ignoring the time and elevation
+     */
+    private static final class AccessKey {
+        private final String layerId;
+        private final int width;
+        private final int height;
+        private final BoundingBox bbox;
+        private final HorizontalPosition targetPos;
+
+        public AccessKey(String layerId, PlottingDomainParams params) {
+            this.layerId = layerId;
+            width = params.getWidth();
+            height = params.getHeight();
+            bbox = params.getBbox();
+            targetPos = params.getTargetHorizontalPosition();
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + ((bbox == null) ? 0 : bbox.hashCode());
+            result = prime * result + height;
+            result = prime * result + ((layerId == null) ? 0 : layerId.hashCode());
+            result = prime * result + ((targetPos == null) ? 0 : targetPos.hashCode());
+            result = prime * result + width;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            AccessKey other = (AccessKey) obj;
+            if (bbox == null) {
+                if (other.bbox != null)
+                    return false;
+            } else if (!bbox.equals(other.bbox))
+                return false;
+            if (height != other.height)
+                return false;
+            if (layerId == null) {
+                if (other.layerId != null)
+                    return false;
+            } else if (!layerId.equals(other.layerId))
+                return false;
+            if (targetPos == null) {
+                if (other.targetPos != null)
+                    return false;
+            } else if (!targetPos.equals(other.targetPos))
+                return false;
+            if (width != other.width)
+                return false;
+            return true;
+        }
+    }
+}
@@ -118,6 +118,8 @@ public abstract class WmsCatalogue implements FeatureCatalogue {
     private boolean cachingEnabled = false;
     protected final CacheManager cacheManager;
     private Cache featureCache = null;
+    /* Reads maps into the feature cache before they are requested */
+    private FeaturePrefetcher prefetcher = null;
 
     private SortedMap<String, StyleDef> styleDefs = new TreeMap<String, StyleDef>(
             new Comparator<String>() {
@@ -267,8 +269,10 @@ public abstract class WmsCatalogue implements FeatureCatalogue {
                         / (1024 * 1024)
                 && lifetimeSeconds == featureCache.getCacheConfiguration().getTimeToLiveSeconds()) {
             /*
-             * We are not changing anything about the cache.
+             * We are not changing anything about the cache, but the prefetch
+             * settings may have changed
              */
+            setPrefetcher(cacheConfig);
             return;
         }
 
@@ -306,6 +310,36 @@ public abstract class WmsCatalogue implements FeatureCatalogue {
              */
             featureCache = null;
         }
+        setPrefetcher(cacheConfig);
+    }
+
+    /**
+     * Starts, stops or reconfigures prefetching. Prefetched maps are stored in
+     * the feature cache, so this requires the cache to be enabled.
+     */
+    private void setPrefetcher(CacheInfo cacheConfig) {
+        int nThreads = cachingEnabled ? cacheConfig.getPrefetchThreads() : 0;
+        int depth = cacheConfig.getPrefetchDepth();
+        if (prefetcher != null && prefetcher.getNumThreads() == nThreads
+                && prefetcher.getDepth() == depth) {
+            return;
+        }
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+            prefetcher = null;
+        }
+        if (nThreads > 0 && depth > 0) {
+            prefetcher = new FeaturePrefetcher(this, nThreads, depth);
+        }
+    }
+
+    /**
+     * @return The {@link FeaturePrefetcher} which is reading maps into the
+     *         cache before they are requested, or <code>null</code> if
+     *         prefetching is disabled
+     */
+    public FeaturePrefetcher getPrefetcher() {
+        return prefetcher;
     }
 
     @Override
@@ -316,6 +350,7 @@ public abstract class WmsCatalogue implements FeatureCatalogue {
         Collection<? extends DiscreteFeature<?, ?>> mapFeatures;
         if (cachingEnabled) {
             CacheKey key = new CacheKey(id, params);
+            FeaturePrefetcher prefetcher = this.prefetcher;
             Element element = featureCache.get(key);
             if (element != null && element.getObjectValue() != null) {
                 /*
@@ -323,11 +358,17 @@ public abstract class WmsCatalogue implements FeatureCatalogue {
                  */
                 mapFeatures = (Collection<? extends DiscreteFeature<?, ?>>) element
                         .getObjectValue();
+                if (prefetcher != null) {
+                    prefetcher.cacheHit(key);
+                }
             } else {
                 Dataset dataset = getDatasetFromLayerName(id);
                 mapFeatures = dataset.extractMapFeatures(CollectionUtils.setOf(variable), params);
                 featureCache.put(new Element(key, mapFeatures));
             }
+            if (prefetcher != null) {
+                prefetcher.accessed(id, params);
+            }
         } else {
             Dataset dataset = getDatasetFromLayerName(id);
             mapFeatures = dataset.extractMapFeatures(CollectionUtils.setOf(variable), params);
@@ -335,6 +376,39 @@ public abstract class WmsCatalogue implements FeatureCatalogue {
         return new FeaturesAndMemberName(mapFeatures, variable);
     }
 
+    /**
+     * @return Whether the features for the given key are in the cache
+     */
+    boolean isCached(CacheKey key) {
+        Cache cache = featureCache;
+        return cache != null && cache.isKeyInCache(key);
+    }
+
+    /**
+     * Reads the features for the given key into the cache, if they are not
+     * already there. This is called by the {@link FeaturePrefetcher}.
+     * 
+     * @return <code>true</code> if the features were read
+     * @throws EdalException
+     *             If there is a problem reading the features
+     */
+    boolean prefetch(CacheKey key) throws EdalException {
+        Cache cache = featureCache;
+        if (cache == null || cache.isKeyInCache(key)) {
+            return false;
+        }
+        Dataset dataset = getDatasetFromLayerName(key.id);
+        Collection<? extends DiscreteFeature<?, ?>> mapFeatures = dataset.extractMapFeatures(
+                CollectionUtils.setOf(getVariableFromId(key.id)), key.params);
+        try {
+            cache.put(new Element(key, mapFeatures));
+        } catch (IllegalStateException e) {
+            /* The cache has been replaced since we started */
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Gets the {@link VariableMetadata} object corresponding to a named layer
      * 
@@ -820,7 +894,7 @@ public abstract class WmsCatalogue implements FeatureCatalogue {
     public abstract WmsLayerMetadata getLayerMetadata(String layerName)
             throws EdalLayerNotFoundException;
 
-    private static class CacheKey {
+    static final class CacheKey {
         final String id;
         final PlottingDomainParams params;
 
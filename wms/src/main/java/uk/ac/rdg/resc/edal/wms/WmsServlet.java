@@ -79,6 +79,7 @@ import org.slf4j.LoggerFactory;
 
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.dataset.SliceStatistics;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.domain.HorizontalDomain;
 import uk.ac.rdg.resc.edal.domain.PointCollectionDomain;
@@ -1416,13 +1417,35 @@ public class WmsServlet extends HttpServlet {
             layerName = catalogue.getLayerName(datasetId, variableId);
         }
 
+        /*
+         * If the statistics of the data in the requested area have been
+         * indexed, use those rather than reading any data. They are not
+         * available for areas which only cover part of an indexed block, since
+         * they would include values from outside the area, so the data is
+         * read instead.
+         */
+        PlottingDomainParams plottingParams = getMapParams.getPlottingDomainParameters();
+        try {
+            Dataset dataset = catalogue.getDatasetFromLayerName(layerName);
+            if (dataset instanceof GriddedDataset) {
+                SliceStatistics statistics = ((GriddedDataset) dataset).getSliceStatistics(
+                        catalogue.getVariableMetadataFromId(layerName).getId(),
+                        plottingParams.getTargetT(), plottingParams.getTargetZ(),
+                        plottingParams.getBbox());
+                if (statistics != null && statistics.getCount() > 0) {
+                    return getMinMaxJson(minmax, statistics.getMin(), statistics.getMax());
+                }
+            }
+        } catch (EdalLayerNotFoundException e) {
+            throw new MetadataException("Layer " + layerName + " not found on this server", e);
+        }
+
         /*
          * Now read the required features
          */
         FeaturesAndMemberName featuresAndMember;
         try {
-            featuresAndMember = catalogue.getFeaturesForLayer(layerName,
-                    getMapParams.getPlottingDomainParameters());
+            featuresAndMember = catalogue.getFeaturesForLayer(layerName, plottingParams);
         } catch (EdalException e) {
             log.error("Bad layer name", e);
             throw new MetadataException("Problem reading data", e);
@@ -1474,6 +1497,10 @@ public class WmsServlet extends HttpServlet {
             throw new MetadataException("No data in this area - cannot calculate min/max");
         }
 
+        return getMinMaxJson(minmax, min, max);
+    }
+
+    private static String getMinMaxJson(JSONObject minmax, double min, double max) {
         /*
          * No variation in scale.
          */
@@ -44,4 +44,17 @@ public interface CacheInfo {
      *         If this is 0, no limit is set.
      */
     public float getElementLifetimeMinutes();
+
+    /**
+     * @return The number of background threads used to read maps into the
+     *         cache before they are requested. If this is 0, maps are not
+     *         prefetched.
+     */
+    public int getPrefetchThreads();
+
+    /**
+     * @return The number of time steps (or elevations) ahead of the most
+     *         recent request which are prefetched
+     */
+    public int getPrefetchDepth();
 }
@@ -0,0 +1,338 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
+import uk.ac.rdg.resc.edal.grid.VerticalAxis;
+import uk.ac.rdg.resc.edal.grid.VerticalAxisImpl;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.position.VerticalCrsImpl;
+import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.wms.WmsCatalogue.CacheKey;
+import uk.ac.rdg.resc.edal.wms.exceptions.EdalLayerNotFoundException;
+import uk.ac.rdg.resc.edal.wms.util.ContactInfo;
+import uk.ac.rdg.resc.edal.wms.util.ServerInfo;
+
+/**
+ * Test class for {@link FeaturePrefetcher}, checking which maps are predicted
+ * and read, and how hits are counted
+ */
+public class FeaturePrefetcherTest {
+    private static final String LAYER = "dataset/var";
+    private static final int DEPTH = 2;
+
+    private TimeAxis tAxis;
+    private VerticalAxis zAxis;
+    private TestCatalogue catalogue;
+    private FeaturePrefetcher prefetcher;
+
+    @Before
+    public void setUp() {
+        List<DateTime> times = new ArrayList<DateTime>();
+        for (int t = 0; t < 10; t++) {
+            times.add(new DateTime(2000, 1, t + 1, 0, 0, DateTimeZone.UTC));
+        }
+        tAxis = new TimeAxisImpl("time", times);
+        List<Double> depths = new ArrayList<Double>();
+        for (int z = 0; z < 5; z++) {
+            depths.add(z * 10.0);
+        }
+        zAxis = new VerticalAxisImpl("depth", depths, new VerticalCrsImpl("m", false, false,
+                false));
+        catalogue = new TestCatalogue(new GridVariableMetadata("var", new Parameter("var",
+                "var", "var", "m", null), new RegularGridImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84, 36, 18), zAxis, tAxis, true));
+        prefetcher = new FeaturePrefetcher(catalogue, 1, DEPTH);
+    }
+
+    @After
+    public void tearDown() {
+        prefetcher.shutdown();
+    }
+
+    @Test
+    public void testFirstAccessReadsNextTime() throws Exception {
+        prefetcher.accessed(LAYER, params(0, 0));
+        awaitCompleted(1);
+        assertEquals(Collections.singleton(key(1, 0)), catalogue.getPrefetched());
+    }
+
+    @Test
+    public void testReadsAheadInTime() throws Exception {
+        prefetcher.accessed(LAYER, params(5, 2));
+        prefetcher.accessed(LAYER, params(3, 2));
+        /* Steps of -2, which run off the start of the axis after the first */
+        awaitCompleted(2);
+        Set<CacheKey> expected = new HashSet<CacheKey>();
+        expected.add(key(6, 2));
+        expected.add(key(1, 2));
+        assertEquals(expected, catalogue.getPrefetched());
+        assertEquals(2, prefetcher.getNumScheduled());
+    }
+
+    @Test
+    public void testReadsAheadInElevation() throws Exception {
+        prefetcher.accessed(LAYER, params(4, 0));
+        prefetcher.accessed(LAYER, params(4, 1));
+        awaitCompleted(1 + DEPTH);
+        Set<CacheKey> expected = new HashSet<CacheKey>();
+        expected.add(key(5, 0));
+        expected.add(key(4, 2));
+        expected.add(key(4, 3));
+        assertEquals(expected, catalogue.getPrefetched());
+    }
+
+    @Test
+    public void testDifferentAreasTrackedSeparately() throws Exception {
+        prefetcher.accessed(LAYER, params(4, 0));
+        prefetcher.accessed(LAYER, new PlottingDomainParams(256, 256, new BoundingBoxImpl(0,
+                0, 90, 90, DefaultGeographicCRS.WGS84), Extents.newExtent(zAxis
+                .getCoordinateValue(0), zAxis.getCoordinateValue(0)), null, null, zAxis
+                .getCoordinateValue(0), tAxis.getCoordinateValue(5)));
+        /* No pattern, so each area just reads its next time step */
+        awaitCompleted(2);
+        assertTrue(catalogue.getPrefetched().contains(key(5, 0)));
+        assertEquals(2, prefetcher.getNumScheduled());
+    }
+
+    @Test
+    public void testPendingReadsNotRepeated() throws Exception {
+        catalogue.block();
+        prefetcher.accessed(LAYER, params(0, 0));
+        prefetcher.accessed(LAYER, params(0, 0));
+        prefetcher.accessed(LAYER, params(0, 0));
+        assertEquals(1, prefetcher.getNumScheduled());
+        catalogue.unblock();
+        awaitCompleted(1);
+        assertEquals(1, catalogue.getNumPrefetches());
+    }
+
+    @Test
+    public void testCachedMapsNotRead() throws Exception {
+        catalogue.setCached(key(1, 0));
+        prefetcher.accessed(LAYER, params(0, 0));
+        assertEquals(0, prefetcher.getNumScheduled());
+        assertEquals(0, catalogue.getNumPrefetches());
+    }
+
+    @Test
+    public void testHitRate() throws Exception {
+        assertEquals(0.0, prefetcher.getHitRate(), 0.0);
+        prefetcher.accessed(LAYER, params(2, 0));
+        prefetcher.accessed(LAYER, params(3, 0));
+        awaitCompleted(1 + DEPTH);
+
+        /* A map which was not prefetched */
+        prefetcher.cacheHit(key(2, 0));
+        assertEquals(0, prefetcher.getNumHits());
+
+        prefetcher.cacheHit(key(4, 0));
+        assertEquals(1, prefetcher.getNumHits());
+        /* Only the first hit on a prefetched map counts */
+        prefetcher.cacheHit(key(4, 0));
+        assertEquals(1, prefetcher.getNumHits());
+        assertEquals(1.0 / 3.0, prefetcher.getHitRate(), 1e-10);
+    }
+
+    @Test
+    public void testReadOnLowPriorityThread() throws Exception {
+        prefetcher.accessed(LAYER, params(0, 0));
+        awaitCompleted(1);
+        assertEquals(Thread.MIN_PRIORITY, catalogue.priority);
+    }
+
+    private void awaitCompleted(int n) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000L;
+        while (prefetcher.getNumCompleted() < n && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(n, prefetcher.getNumCompleted());
+    }
+
+    private PlottingDomainParams params(int tIndex, int zIndex) {
+        Double z = zAxis.getCoordinateValue(zIndex);
+        DateTime time = tAxis.getCoordinateValue(tIndex);
+        return new PlottingDomainParams(256, 256, new BoundingBoxImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84), Extents.newExtent(z, z), Extents.newExtent(time,
+                time), null, z, time);
+    }
+
+    private CacheKey key(int tIndex, int zIndex) {
+        return new CacheKey(LAYER, params(tIndex, zIndex));
+    }
+
+    /**
+     * A {@link WmsCatalogue} containing a single layer, which records the maps
+     * it is asked to prefetch rather than reading them
+     */
+    private static final class TestCatalogue extends WmsCatalogue {
+        private final VariableMetadata metadata;
+        private final Set<CacheKey> prefetched = new HashSet<CacheKey>();
+        private final Set<CacheKey> cached = new HashSet<CacheKey>();
+        private CountDownLatch latch = new CountDownLatch(0);
+        private volatile int priority = -1;
+
+        private TestCatalogue(VariableMetadata metadata) {
+            this.metadata = metadata;
+        }
+
+        private synchronized void block() {
+            latch = new CountDownLatch(1);
+        }
+
+        private synchronized void unblock() {
+            latch.countDown();
+        }
+
+        private synchronized void setCached(CacheKey key) {
+            cached.add(key);
+        }
+
+        private synchronized Set<CacheKey> getPrefetched() {
+            return new HashSet<CacheKey>(prefetched);
+        }
+
+        private synchronized int getNumPrefetches() {
+            return prefetched.size();
+        }
+
+        @Override
+        synchronized boolean isCached(CacheKey key) {
+            return cached.contains(key);
+        }
+
+        @Override
+        boolean prefetch(CacheKey key) {
+            CountDownLatch latch;
+            synchronized (this) {
+                latch = this.latch;
+            }
+            try {
+                latch.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            priority = Thread.currentThread().getPriority();
+            synchronized (this) {
+                prefetched.add(key);
+                cached.add(key);
+            }
+            return true;
+        }
+
+        @Override
+        public VariableMetadata getVariableMetadataFromId(String layerName)
+                throws EdalLayerNotFoundException {
+            if (!LAYER.equals(layerName)) {
+                throw new EdalLayerNotFoundException("No layer " + layerName);
+            }
+            return metadata;
+        }
+
+        @Override
+        public ServerInfo getServerInfo() {
+            return null;
+        }
+
+        @Override
+        public ContactInfo getContactInfo() {
+            return null;
+        }
+
+        @Override
+        public boolean allowsGlobalCapabilities() {
+            return false;
+        }
+
+        @Override
+        public DateTime getServerLastUpdate() {
+            return null;
+        }
+
+        @Override
+        public Collection<Dataset> getAllDatasets() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public String getDatasetTitle(String datasetId) {
+            return null;
+        }
+
+        @Override
+        public Dataset getDatasetFromId(String datasetId) {
+            return null;
+        }
+
+        @Override
+        public Dataset getDatasetFromLayerName(String layerName) {
+            return null;
+        }
+
+        @Override
+        public String getVariableFromId(String layerName) {
+            return "var";
+        }
+
+        @Override
+        public String getLayerName(String datasetId, String variableId) {
+            return LAYER;
+        }
+
+        @Override
+        public WmsLayerMetadata getLayerMetadata(String layerName) {
+            return null;
+        }
+    }
+}